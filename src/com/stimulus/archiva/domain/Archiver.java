@@ -17,6 +17,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
+import java.util.Calendar;
 import org.apache.commons.logging.*;
 import javax.crypto.*;
 import com.stimulus.archiva.exception.*;
@@ -33,6 +34,16 @@ public abstract class Archiver implements Props {
     protected static final String maxMessageSizeKey				= "max.message.size";	
     protected static final String archiveThreadsKey				= "archive.threads";
     protected static final String processMalformedMessagesKey   = "archive.process.malformed.messages";
+    protected static final String asyncIngestKey				= "archive.async.ingest";
+    protected static final String asyncIngestQueueSizeKey		= "archive.async.queue.size";
+    protected static final String spoolThresholdKey				= "archive.spool.threshold";
+    protected static final String recompressClosedVolumesKey	= "archive.recompress.closed.volumes";
+    protected static final String recompressLevelKey			= "archive.recompress.level";
+    protected static final String quietHoursStartKey			= "archive.quiet.hours.start";
+    protected static final String quietHoursEndKey				= "archive.quiet.hours.end";
+    protected static final String packedStoreKey				= "archive.packed.store";
+    protected static final String packedSegmentSizeKey			= "archive.packed.segment.size";
+    protected static final String messageCacheSizeKey			= "archive.message.cache.size";
    
     protected static final String defaultPassPhrase="changeme";
     protected static final String defaultSmartAttachmentStorage = "yes";
@@ -40,6 +51,16 @@ public abstract class Archiver implements Props {
     protected static final String defaultMaxMessageSize		= "150"; // mb 
     protected static final String defaultArchiveThreads = "6";
     protected static final String defaultProcessMalformedMessages   = "no";
+    protected static final String defaultAsyncIngest = "no";
+    protected static final String defaultAsyncIngestQueueSize = "100";
+    protected static final String defaultSpoolThreshold = "1024"; // kb
+    protected static final String defaultRecompressClosedVolumes = "no";
+    protected static final String defaultRecompressLevel = "9";
+    protected static final String defaultQuietHoursStart = "1";
+    protected static final String defaultQuietHoursEnd = "5";
+    protected static final String defaultPackedStore = "no";
+    protected static final String defaultPackedSegmentSize = "1024"; // mb
+    protected static final String defaultMessageCacheSize = "32"; // mb
     
     protected int 		maxMessageSize = 150;
     protected boolean 	smartAttachmentStorage = false;
@@ -50,6 +71,16 @@ public abstract class Archiver implements Props {
     protected int 		archiveThreads = 6;
     protected int 		runningArchiveThreads = 6;
     protected boolean   processMalformedMessages = false;
+    protected boolean	asyncIngest = false;
+    protected int		asyncIngestQueueSize = 100;
+    protected int		spoolThreshold = 1024;
+    protected boolean	recompressClosedVolumes = false;
+    protected int		recompressLevel = 9;
+    protected int		quietHoursStart = 1;
+    protected int		quietHoursEnd = 5;
+    protected boolean	packedStore = false;
+    protected int		packedSegmentSize = 1024;
+    protected int		messageCacheSize = 32;
     
     protected static Log logger = LogFactory.getLog(Archiver.class);
     
@@ -102,6 +133,88 @@ public abstract class Archiver implements Props {
 		this.processMalformedMessages = processMalformedMessages;
 	}
 	
+	// when enabled, incoming messages are journaled and acknowledged before they are 
+	// parsed, stored and indexed by the archive queue service
+	
+	public boolean isAsyncIngest() { return asyncIngest; }
+	
+	public void setAsyncIngest(boolean asyncIngest) {
+		this.asyncIngest = asyncIngest;
+	}
+	
+	public int getAsyncIngestQueueSize() { return asyncIngestQueueSize; }
+	
+	public void setAsyncIngestQueueSize(int asyncIngestQueueSize) {
+		this.asyncIngestQueueSize = asyncIngestQueueSize;
+	}
+	
+	// incoming messages larger than this (in kb) are spooled to a temp file and parsed from there,
+	// rather than held in memory
+	
+	public int getSpoolThreshold() { return spoolThreshold; }
+	
+	public void setSpoolThreshold(int spoolThreshold) {
+		this.spoolThreshold = spoolThreshold;
+	}
+	
+	// when enabled, the store files of closed volumes are recompressed at the recompress level
+	// during quiet hours
+	
+	public boolean isRecompressClosedVolumes() { return recompressClosedVolumes; }
+	
+	public void setRecompressClosedVolumes(boolean recompressClosedVolumes) {
+		this.recompressClosedVolumes = recompressClosedVolumes;
+	}
+	
+	public int getRecompressLevel() { return recompressLevel; }
+	
+	public void setRecompressLevel(int recompressLevel) {
+		this.recompressLevel = recompressLevel;
+	}
+	
+	public int getQuietHoursStart() { return quietHoursStart; }
+	
+	public void setQuietHoursStart(int quietHoursStart) {
+		this.quietHoursStart = quietHoursStart;
+	}
+	
+	public int getQuietHoursEnd() { return quietHoursEnd; }
+	
+	public void setQuietHoursEnd(int quietHoursEnd) {
+		this.quietHoursEnd = quietHoursEnd;
+	}
+	
+	// when enabled, new messages are appended to the segments of a packed store rather than
+	// written to their own file in the hash tree
+	
+	public boolean isPackedStore() { return packedStore; }
+	
+	public void setPackedStore(boolean packedStore) {
+		this.packedStore = packedStore;
+	}
+	
+	public int getPackedSegmentSize() { return packedSegmentSize; }
+	
+	public void setPackedSegmentSize(int packedSegmentSize) {
+		this.packedSegmentSize = packedSegmentSize;
+	}
+	
+	// size (in mb) of the cache of messages read for viewing or export. zero disables the cache.
+	
+	public int getMessageCacheSize() { return messageCacheSize; }
+	
+	public void setMessageCacheSize(int messageCacheSize) {
+		this.messageCacheSize = messageCacheSize;
+	}
+	
+	// quiet hours may wrap around midnight (e.g. from 22 to 5)
+	public boolean isQuietHours() {
+		int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+		if (quietHoursStart<=quietHoursEnd)
+			return hour>=quietHoursStart && hour<quietHoursEnd;
+		return hour>=quietHoursStart || hour<quietHoursEnd;
+	}
+	
 	public void setPassPhrase(String passPhrase) {
 		try {
 		    if (passPhrase.trim().length()<1)
@@ -133,6 +246,16 @@ public abstract class Archiver implements Props {
         prop.setProperty(maxMessageSizeKey,Integer.toString(maxMessageSize));
         prop.setProperty(archiveThreadsKey,Integer.toString(archiveThreads));
         prop.setProperty(processMalformedMessagesKey, ConfigUtil.getYesNo(processMalformedMessages));
+        prop.setProperty(asyncIngestKey, ConfigUtil.getYesNo(asyncIngest));
+        prop.setProperty(asyncIngestQueueSizeKey, Integer.toString(asyncIngestQueueSize));
+        prop.setProperty(spoolThresholdKey, Integer.toString(spoolThreshold));
+        prop.setProperty(recompressClosedVolumesKey, ConfigUtil.getYesNo(recompressClosedVolumes));
+        prop.setProperty(recompressLevelKey, Integer.toString(recompressLevel));
+        prop.setProperty(quietHoursStartKey, Integer.toString(quietHoursStart));
+        prop.setProperty(quietHoursEndKey, Integer.toString(quietHoursEnd));
+        prop.setProperty(packedStoreKey, ConfigUtil.getYesNo(packedStore));
+        prop.setProperty(packedSegmentSizeKey, Integer.toString(packedSegmentSize));
+        prop.setProperty(messageCacheSizeKey, Integer.toString(messageCacheSize));
       
         if (passPhrase!=null) {
 	        // if raw password is hash value, we know to see the passphrase
@@ -165,6 +288,16 @@ public abstract class Archiver implements Props {
         	}
         }
     	setProcessMalformedMessages(ConfigUtil.getBoolean(prop.getProperty(processMalformedMessagesKey),defaultProcessMalformedMessages));
+    	setAsyncIngest(ConfigUtil.getBoolean(prop.getProperty(asyncIngestKey),defaultAsyncIngest));
+    	setAsyncIngestQueueSize(ConfigUtil.getInteger(prop.getProperty(asyncIngestQueueSizeKey),defaultAsyncIngestQueueSize));
+    	setSpoolThreshold(ConfigUtil.getInteger(prop.getProperty(spoolThresholdKey),defaultSpoolThreshold));
+    	setRecompressClosedVolumes(ConfigUtil.getBoolean(prop.getProperty(recompressClosedVolumesKey),defaultRecompressClosedVolumes));
+    	setRecompressLevel(ConfigUtil.getInteger(prop.getProperty(recompressLevelKey),defaultRecompressLevel));
+    	setQuietHoursStart(ConfigUtil.getInteger(prop.getProperty(quietHoursStartKey),defaultQuietHoursStart));
+    	setQuietHoursEnd(ConfigUtil.getInteger(prop.getProperty(quietHoursEndKey),defaultQuietHoursEnd));
+    	setPackedStore(ConfigUtil.getBoolean(prop.getProperty(packedStoreKey),defaultPackedStore));
+    	setPackedSegmentSize(ConfigUtil.getInteger(prop.getProperty(packedSegmentSizeKey),defaultPackedSegmentSize));
+    	setMessageCacheSize(ConfigUtil.getInteger(prop.getProperty(messageCacheSizeKey),defaultMessageCacheSize));
       	return true;
 	}
 	
@@ -176,6 +309,12 @@ public abstract class Archiver implements Props {
     public abstract boolean insertMessage(Email email) throws MessageStoreException;
     
     public abstract Email retrieveMessage(EmailID emailID) throws MessageStoreException;
+    
+    public abstract Email retrieveCachedMessage(EmailID emailID) throws MessageStoreException;
+    
+    public abstract void evictMessage(EmailID emailID);
+    
+    public abstract String getMessageCacheStatistics();
  
     public abstract void backupMessage(File file) throws MessageStoreException;
     
@@ -186,6 +325,8 @@ public abstract class Archiver implements Props {
     	
  	public abstract void processMessages(ProcessMessage process) throws ProcessException;
  	
+ 	public abstract void processMessages(ProcessMessage process, File directory) throws ProcessException;
+ 	
  	public abstract void recoverMessages(RecoverMessage recover) throws MessageStoreException;
  	
  	public abstract int getNoMessagesForRecovery();
@@ -201,6 +342,28 @@ public abstract class Archiver implements Props {
     public abstract boolean isMessageExist(EmailID emailId); 
     
     public abstract  InputStream getRawMessageInputStream(File messageFile, boolean decompress, boolean decrypt)  throws IOException,MessageStoreException;
+
+    public abstract InputStream getRawMessageInputStream(EmailID emailID) throws IOException,MessageStoreException;
+
+    public abstract void migrateAttachments(Volume volume) throws MessageStoreException;
+
+    public abstract void upgradeStore(Volume volume) throws MessageStoreException;
+
+    public abstract boolean recompressStore(Volume volume) throws MessageStoreException;
+
+    public abstract void packStore(Volume volume) throws MessageStoreException;
+
+    public abstract void syncStore(Volume volume);
+
+    public abstract void closeStore(Volume volume);
+
+    public abstract void calculateAttachmentStatistics(Volume volume);
+
+    public abstract boolean loadAttachmentStatistics(Volume volume);
+
+    public abstract void saveAttachmentStatistics(Volume volume);
+
+    public abstract long getAttachmentSavedSpace(Volume volume);
     
  	public static abstract class ProcessMessage
     {
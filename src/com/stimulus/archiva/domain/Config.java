@@ -88,6 +88,7 @@ public class Config implements Serializable, Cloneable {
      protected LogFiles				logFiles;
 	 protected VolumeIRService 		volumeIRService;
 	 protected CPUThrottleService	throttleService;
+	 protected ArchiveQueueService	archiveQueueService;
      
      
      protected byte[]    salt;
@@ -142,6 +143,7 @@ public class Config implements Serializable, Cloneable {
 	   	  logFiles = new LogFiles();
 	   	  volumeIRService = new VolumeIRService();
 	   	  throttleService = new CPUThrottleService();
+	   	  archiveQueueService = new ArchiveQueueService();
 	   	  registerProps();
      }
 	 public String getApplicationVersion() { return applicationVersion; }
@@ -181,6 +183,7 @@ public class Config implements Serializable, Cloneable {
 		 services.registerService(smtpService);
 		 services.registerService(milterService);
 		 services.registerService(iapService);
+		 services.registerService(archiveQueueService);
 		 services.registerService(indexer);
 		 services.registerService(volumeIRService);
 		 services.registerService(configAutoLoad);
@@ -363,6 +366,8 @@ public class Config implements Serializable, Cloneable {
       
       public MilterServerService getMilterServerService() { return milterService; }
       
+      public ArchiveQueueService getArchiveQueueService() { return archiveQueueService; }
+      
       public Agent getAgent() { return agent; }
       
       public Roles getRoles() { return roles; }
@@ -424,6 +429,7 @@ public class Config implements Serializable, Cloneable {
 	   public static void shutdown() {
 		   if (Config.config!=null) {
 			   Config.config.getServices().stopAll();
+			   logger.info("message cache statistics "+MessageService.getCacheStatistics());
 		   }
 		   shutdown = true;
 		   Config.config = null;
@@ -24,6 +24,9 @@ import java.security.*;
 import java.util.*;
 import org.apache.commons.logging.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
 
 public class EmailID implements Serializable {
 
@@ -74,7 +77,7 @@ public class EmailID implements Serializable {
     	this.volume = volume;
     }
 
-    public static synchronized String generateUniqueID(Email email)
+    public static String generateUniqueID(Email email)
     {
     	try
 	  	{
@@ -83,32 +86,7 @@ public class EmailID implements Serializable {
     		if (raw==null) {
     			return DateUtil.convertDatetoString(new Date());
     		}
-    		Enumeration<Header> headers = raw.getAllHeaders();
-    		LinkedList<String> orderedHeaders = new LinkedList<String>();
-    		while (headers.hasMoreElements()) {
-    			Header header = headers.nextElement();
-    			
-    			if (Compare.equalsIgnoreCase(header.getName(), "Date") ||
-					Compare.equalsIgnoreCase(header.getName(), "CC") ||
-					Compare.equalsIgnoreCase(header.getName(), "BCC") ||
-					Compare.equalsIgnoreCase(header.getName(), "Subject") ||
-					Compare.equalsIgnoreCase(header.getName(), "To") ||
-					Compare.equalsIgnoreCase(header.getName(), "From"))
-    					orderedHeaders.add(header.getName()+header.getValue());
-    		
-    		}
-    		Collections.sort(orderedHeaders);
-    		StringBuffer allHeaders = new StringBuffer();
-    		for (String header: orderedHeaders)
-    			allHeaders.append(header);
-    		MessageDigest sha = MessageDigest.getInstance("SHA-1");
-    		byte[] bytes = allHeaders.toString().getBytes();
-    		InputStream is = new ByteArrayInputStream(bytes);
-    		DigestInputStream dis = new DigestInputStream(is,sha);
-    		while (dis.read()!=-1);
-    		dis.close();
-		    byte[] digest = sha.digest();  
-	  	  	return toHex(digest);
+    		return digestState.get().digest(raw);
 	  	} catch (Exception e)
 	  	{
 	  		logger.error("failed to generate a uniqueid for a message");
@@ -116,14 +94,153 @@ public class EmailID implements Serializable {
 	  	}
     }
     
-    private static String toHex(byte[] block) {
-		StringBuffer buf = new StringBuffer();
+    /* 
+     * The unique ID is the SHA-1 of the Date, CC, BCC, Subject, To and From headers, each 
+     * written as name+value, sorted and concatenated, then encoded using the platform charset. 
+     * IDs of existing volumes depend on this exact byte sequence. The digest, encoder and 
+     * buffers are confined to each thread so that archive threads do not contend for a lock.
+     */
+    
+    private static final ThreadLocal<DigestState> digestState = new ThreadLocal<DigestState>() {
+    	@Override
+    	protected DigestState initialValue() {
+    		return new DigestState();
+    	}
+    };
+    
+    private static class DigestState {
+    	
+    	MessageDigest sha;
+    	CharsetEncoder encoder;
+    	ByteBuffer bytes = ByteBuffer.allocate(4096);
+    	CharBuffer chars = CharBuffer.allocate(4096);
+    	ArrayList<String> names = new ArrayList<String>();
+    	ArrayList<String> values = new ArrayList<String>();
+    	int[] order = new int[16];
+    	int[] merged = new int[16];
+    	char[] hex = new char[40];
+    	
+    	DigestState() {
+    		try {
+    			sha = MessageDigest.getInstance("SHA-1");
+    		} catch (NoSuchAlgorithmException nsae) {
+    			throw new IllegalStateException("SHA-1 message digest is not available",nsae);
+    		}
+    		// same substitution behaviour as String.getBytes()
+    		encoder = Charset.defaultCharset().newEncoder()
+    				  .onMalformedInput(CodingErrorAction.REPLACE)
+    				  .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    	}
+    	
+    	String digest(MimeMessage raw) throws MessagingException {
+    		names.clear();
+    		values.clear();
+    		Enumeration<Header> headers = raw.getAllHeaders();
+    		while (headers.hasMoreElements()) {
+    			Header header = headers.nextElement();
+    			String name = header.getName();
+    			if (Compare.equalsIgnoreCase(name, "Date") ||
+					Compare.equalsIgnoreCase(name, "CC") ||
+					Compare.equalsIgnoreCase(name, "BCC") ||
+					Compare.equalsIgnoreCase(name, "Subject") ||
+					Compare.equalsIgnoreCase(name, "To") ||
+					Compare.equalsIgnoreCase(name, "From")) {
+    					names.add(name);
+    					values.add(header.getValue());
+    			}
+    		}
+    		int count = names.size();
+    		if (order.length<count) {
+    			order = new int[count*2];
+    			merged = new int[count*2];
+    		}
+    		for (int i=0;i<count;i++)
+    			order[i] = i;
+    		sort(0,count);
+    		
+    		chars.clear();
+    		for (int i=0;i<count;i++) {
+    			append(names.get(order[i]));
+    			append(values.get(order[i]));
+    		}
+    		chars.flip();
+    		sha.reset();
+    		encoder.reset();
+    		bytes.clear();
 
+    		while (encoder.encode(chars,bytes,true).isOverflow()) 
+    			update();
+    		while (encoder.flush(bytes).isOverflow()) 
+    			update();
+    		update();
+    		return toHex(sha.digest(),hex);
+    	}
+    	
+    	void append(String s) {
+    		if (s==null)
+    			s = "null";
+    		if (chars.remaining()<s.length()) {
+    			CharBuffer larger = CharBuffer.allocate(Math.max(chars.capacity()*2,chars.position()+s.length()));
+    			chars.flip();
+    			larger.put(chars);
+    			chars = larger;
+    		}
+    		chars.put(s);
+    	}
+    	
+    	void update() {
+    		sha.update(bytes.array(),0,bytes.position());
+    		bytes.clear();
+    	}
+    	
+    	// merge sort of the header indexes in order[from,to). headers that compare equal are the same string.
+    	void sort(int from, int to) {
+    		if (to-from<8) {
+    			for (int i=from+1;i<to;i++) {
+    				int index = order[i];
+    				int j = i;
+    				for (;j>from && compare(order[j-1],index)>0;j--)
+    					order[j] = order[j-1];
+    				order[j] = index;
+    			}
+    			return;
+    		}
+    		int mid = (from+to)>>>1;
+    		sort(from,mid);
+    		sort(mid,to);
+    		int i = from, j = mid, k = from;
+    		while (i<mid && j<to)
+    			merged[k++] = compare(order[i],order[j])<=0 ? order[i++] : order[j++];
+    		while (i<mid)
+    			merged[k++] = order[i++];
+    		while (j<to)
+    			merged[k++] = order[j++];
+    		System.arraycopy(merged,from,order,from,to-from);
+    	}
+    	
+    	// orders headers as if comparing the concatenated strings name+value
+    	int compare(int i1, int i2) {
+    		String n1 = names.get(i1), v1 = String.valueOf(values.get(i1));
+    		String n2 = names.get(i2), v2 = String.valueOf(values.get(i2));
+    		int len1 = n1.length()+v1.length();
+    		int len2 = n2.length()+v2.length();
+    		int lim = Math.min(len1,len2);
+    		for (int k=0;k<lim;k++) {
+    			char c1 = k<n1.length() ? n1.charAt(k) : v1.charAt(k-n1.length());
+    			char c2 = k<n2.length() ? n2.charAt(k) : v2.charAt(k-n2.length());
+    			if (c1!=c2)
+    				return c1-c2;
+    		}
+    		return len1-len2;
+    	}
+    }
+    
+    private static String toHex(byte[] block, char[] buf) {
 		for (int i = 0; i < block.length; ++i) {
-			buf.append(hexits.charAt((block[i] >>> 4) & 0xf));
-			buf.append(hexits.charAt(block[i] & 0xf));
+			buf[i*2] = hexits.charAt((block[i] >>> 4) & 0xf);
+			buf[i*2+1] = hexits.charAt(block[i] & 0xf);
 		}
-		return buf + "";
+		return new String(buf,0,block.length*2);
 	}
     
     
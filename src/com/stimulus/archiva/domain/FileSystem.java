@@ -100,6 +100,7 @@ public class FileSystem {
     	check = check && checkPath(getViewPath(),"view");
     	check = check && checkPath(getNoArchivePath(),"noarchive");
     	check = check && checkPath(getQuarantinePath(),"quarantine");
+    	check = check && checkPath(getJournalPath(),"journal");
     	check = check && checkPath(getClassesPath(),"classes");
     	check = check && checkPath(getLogPath(),"debug log");
     	return check;
@@ -140,9 +141,17 @@ public class FileSystem {
   	  return getDir(applicationPath + File.separatorChar + "WEB-INF"+File.separatorChar + "noarchive");
     }
     
+    public String getJournalPath() {
+  	  return getDir(applicationPath + File.separatorChar + "WEB-INF"+File.separatorChar + "journal");
+    }
+    
     public String getQuarantinePath() {
   	  return getDir(applicationPath + File.separatorChar + "WEB-INF"+File.separatorChar + "quarantine");
     }
+    
+    public String getExportPath() {
+  	  return getDir(applicationPath + File.separatorChar + "WEB-INF"+File.separatorChar + "export");
+    }
  
     public String getClassesPath() {
   	  return applicationPath + File.separatorChar + "WEB-INF"+ File.separatorChar + "classes";
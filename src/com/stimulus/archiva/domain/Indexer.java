@@ -30,6 +30,17 @@ public abstract class Indexer implements Service, Props {
         protected static final String indexDefaultCharSetKey			= "index.default.charset";
         protected static final String indexDetectCharSetKey				= "index.detect.charset";
         protected static final String indexZipFileNameCharSetKey		= "index.zip.filename.charset";
+        protected static final String indexPersistentWriterKey			= "index.writer.persistent";
+        protected static final String indexCommitDocsKey				= "index.commit.docs";
+        protected static final String indexCommitIntervalKey			= "index.commit.interval";
+        protected static final String indexRAMBufferSizeKey				= "index.ram.buffer.size";
+        protected static final String indexShadowRebuildKey				= "index.rebuild.shadow";
+        protected static final String indexRebuildRAMBufferSizeKey		= "index.rebuild.ram.buffer.size";
+        protected static final String indexExtractionCacheSizeKey		= "index.extraction.cache.size";
+        protected static final String indexExtractionTimeoutKey			= "index.extraction.timeout";
+        protected static final String indexExtractionMaxSizeKey			= "index.extraction.max.size";
+        protected static final String indexExtractionThreadsKey			= "index.extraction.threads";
+        protected static final String indexExtractionBufferSizeKey		= "index.extraction.buffer.size";
 
         protected static final String defaultIndexLanguage = "en";
         protected static final String defaultIndexLanguageDetection = "no";
@@ -41,6 +52,17 @@ public abstract class Indexer implements Service, Props {
         protected static final String defaultIndexDetectCharSet = "no";
         protected static final String defaultIndexDefaultCharSet = "UTF-8";
         protected static final String defaultZipFileNameCharSetKey = "UTF-8";
+        protected static final String defaultIndexPersistentWriter = "yes";
+        protected static final String defaultIndexCommitDocs = "1000";
+        protected static final String defaultIndexCommitInterval = "30000"; // milliseconds
+        protected static final String defaultIndexRAMBufferSize = "32"; // megabytes
+        protected static final String defaultIndexShadowRebuild = "yes";
+        protected static final String defaultIndexRebuildRAMBufferSize = "256"; // megabytes
+        protected static final String defaultIndexExtractionCacheSize = "256"; // megabytes per volume
+        protected static final String defaultIndexExtractionTimeout = "60"; // seconds
+        protected static final String defaultIndexExtractionMaxSize = "10240"; // kilobytes of text
+        protected static final String defaultIndexExtractionThreads = "2"; // per document type
+        protected static final String defaultIndexExtractionBufferSize = "512"; // kilobytes
         
         protected String indexPath;
         protected String indexLanguage = defaultIndexLanguage;
@@ -53,6 +75,17 @@ public abstract class Indexer implements Service, Props {
         protected String indexDefaultCharSet;
         protected boolean indexDetectCharSet;
         protected String indexZipFileNameCharSet;
+        protected boolean indexPersistentWriter = true;
+        protected int indexCommitDocs = 1000;
+        protected int indexCommitInterval = 30000;
+        protected int indexRAMBufferSize = 32;
+        protected boolean indexShadowRebuild = true;
+        protected int indexRebuildRAMBufferSize = 256;
+        protected int indexExtractionCacheSize = 256;
+        protected int indexExtractionTimeout = 60;
+        protected int indexExtractionMaxSize = 10240;
+        protected int indexExtractionThreads = 2;
+        protected int indexExtractionBufferSize = 512;
         
         
     	public void saveSettings(String prefix, Settings prop, String suffix) {
@@ -66,6 +99,17 @@ public abstract class Indexer implements Service, Props {
       	     prop.setProperty(indexDetectCharSetKey,ConfigUtil.getYesNo(indexDetectCharSet));
       	     prop.setProperty(indexDefaultCharSetKey,indexDefaultCharSet);
       	     prop.setProperty(indexZipFileNameCharSetKey,indexZipFileNameCharSet);
+      	     prop.setProperty(indexPersistentWriterKey,ConfigUtil.getYesNo(indexPersistentWriter));
+      	     prop.setProperty(indexCommitDocsKey,Integer.toString(indexCommitDocs));
+      	     prop.setProperty(indexCommitIntervalKey,Integer.toString(indexCommitInterval));
+      	     prop.setProperty(indexRAMBufferSizeKey,Integer.toString(indexRAMBufferSize));
+      	     prop.setProperty(indexShadowRebuildKey,ConfigUtil.getYesNo(indexShadowRebuild));
+      	     prop.setProperty(indexRebuildRAMBufferSizeKey,Integer.toString(indexRebuildRAMBufferSize));
+      	     prop.setProperty(indexExtractionCacheSizeKey,Integer.toString(indexExtractionCacheSize));
+      	     prop.setProperty(indexExtractionTimeoutKey,Integer.toString(indexExtractionTimeout));
+      	     prop.setProperty(indexExtractionMaxSizeKey,Integer.toString(indexExtractionMaxSize));
+      	     prop.setProperty(indexExtractionThreadsKey,Integer.toString(indexExtractionThreads));
+      	     prop.setProperty(indexExtractionBufferSizeKey,Integer.toString(indexExtractionBufferSize));
     	}
     	
     	public boolean loadSettings(String prefix, Settings prop, String suffix) {
@@ -79,6 +123,17 @@ public abstract class Indexer implements Service, Props {
 			setIndexDefaultCharSet(ConfigUtil.getString(prop.getProperty(indexDefaultCharSetKey),defaultIndexDefaultCharSet));
 			setIndexDetectCharSet(ConfigUtil.getBoolean(prop.getProperty(indexDetectCharSetKey),defaultIndexDetectCharSet));
 			setIndexZipFileNameCharSet(ConfigUtil.getString(prop.getProperty(indexZipFileNameCharSet),defaultZipFileNameCharSetKey));
+			setIndexPersistentWriter(ConfigUtil.getBoolean(prop.getProperty(indexPersistentWriterKey),defaultIndexPersistentWriter));
+			setIndexCommitDocs(ConfigUtil.getInteger(prop.getProperty(indexCommitDocsKey),defaultIndexCommitDocs));
+			setIndexCommitInterval(ConfigUtil.getInteger(prop.getProperty(indexCommitIntervalKey),defaultIndexCommitInterval));
+			setIndexRAMBufferSize(ConfigUtil.getInteger(prop.getProperty(indexRAMBufferSizeKey),defaultIndexRAMBufferSize));
+			setIndexShadowRebuild(ConfigUtil.getBoolean(prop.getProperty(indexShadowRebuildKey),defaultIndexShadowRebuild));
+			setIndexRebuildRAMBufferSize(ConfigUtil.getInteger(prop.getProperty(indexRebuildRAMBufferSizeKey),defaultIndexRebuildRAMBufferSize));
+			setIndexExtractionCacheSize(ConfigUtil.getInteger(prop.getProperty(indexExtractionCacheSizeKey),defaultIndexExtractionCacheSize));
+			setIndexExtractionTimeout(ConfigUtil.getInteger(prop.getProperty(indexExtractionTimeoutKey),defaultIndexExtractionTimeout));
+			setIndexExtractionMaxSize(ConfigUtil.getInteger(prop.getProperty(indexExtractionMaxSizeKey),defaultIndexExtractionMaxSize));
+			setIndexExtractionThreads(ConfigUtil.getInteger(prop.getProperty(indexExtractionThreadsKey),defaultIndexExtractionThreads));
+			setIndexExtractionBufferSize(ConfigUtil.getInteger(prop.getProperty(indexExtractionBufferSizeKey),defaultIndexExtractionBufferSize));
 	      	return true;
     	}
     	
@@ -151,6 +206,112 @@ public abstract class Indexer implements Service, Props {
         	return indexZipFileNameCharSet;
         }
 
+        // when enabled, the index writer of the active volume is kept open and committed 
+        // according to the commit policy below, rather than closed every few seconds
+        
+        public void setIndexPersistentWriter(boolean indexPersistentWriter) {
+        	this.indexPersistentWriter = indexPersistentWriter;
+        }
+        
+        public boolean getIndexPersistentWriter() {
+        	return indexPersistentWriter;
+        }
+        
+        public void setIndexCommitDocs(int indexCommitDocs) {
+        	this.indexCommitDocs = indexCommitDocs;
+        }
+        
+        public int getIndexCommitDocs() {
+        	return indexCommitDocs;
+        }
+        
+        public void setIndexCommitInterval(int indexCommitInterval) {
+        	this.indexCommitInterval = indexCommitInterval;
+        }
+        
+        public int getIndexCommitInterval() {
+        	return indexCommitInterval;
+        }
+        
+        public void setIndexRAMBufferSize(int indexRAMBufferSize) {
+        	this.indexRAMBufferSize = indexRAMBufferSize;
+        }
+        
+        public int getIndexRAMBufferSize() {
+        	return indexRAMBufferSize;
+        }
+        
+        // when enabled, a volume is reindexed into a shadow index that replaces the live 
+        // index once complete, rather than deleting the live index up front
+        
+        public void setIndexShadowRebuild(boolean indexShadowRebuild) {
+        	this.indexShadowRebuild = indexShadowRebuild;
+        }
+        
+        public boolean getIndexShadowRebuild() {
+        	return indexShadowRebuild;
+        }
+        
+        // RAM buffer of the index writer used when rebuilding a volume index
+        
+        public void setIndexRebuildRAMBufferSize(int indexRebuildRAMBufferSize) {
+        	this.indexRebuildRAMBufferSize = indexRebuildRAMBufferSize;
+        }
+        
+        public int getIndexRebuildRAMBufferSize() {
+        	return indexRebuildRAMBufferSize;
+        }
+        
+        // size of the text extracted from attachments kept for each volume. zero disables the cache.
+        
+        public void setIndexExtractionCacheSize(int indexExtractionCacheSize) {
+        	this.indexExtractionCacheSize = indexExtractionCacheSize;
+        }
+        
+        public int getIndexExtractionCacheSize() {
+        	return indexExtractionCacheSize;
+        }
+        
+        // time allowed to extract the text of a document in seconds. zero for no limit.
+        
+        public void setIndexExtractionTimeout(int indexExtractionTimeout) {
+        	this.indexExtractionTimeout = indexExtractionTimeout;
+        }
+        
+        public int getIndexExtractionTimeout() {
+        	return indexExtractionTimeout;
+        }
+        
+        // text indexed from a document in kilobytes (thousands of characters). zero for no limit.
+        
+        public void setIndexExtractionMaxSize(int indexExtractionMaxSize) {
+        	this.indexExtractionMaxSize = indexExtractionMaxSize;
+        }
+        
+        public int getIndexExtractionMaxSize() {
+        	return indexExtractionMaxSize;
+        }
+        
+        // extractions of each document type that run at once
+        
+        public void setIndexExtractionThreads(int indexExtractionThreads) {
+        	this.indexExtractionThreads = indexExtractionThreads;
+        }
+        
+        public int getIndexExtractionThreads() {
+        	return indexExtractionThreads;
+        }
+        
+        // extracted text and archive entries up to this size in kilobytes are held in memory rather than temp files
+        
+        public void setIndexExtractionBufferSize(int indexExtractionBufferSize) {
+        	this.indexExtractionBufferSize = indexExtractionBufferSize;
+        }
+        
+        public int getIndexExtractionBufferSize() {
+        	return indexExtractionBufferSize;
+        }
+
         public abstract void indexMessage(Email emailID) throws MessageSearchException;
 
     	public abstract void deleteMessage(EmailID emailID) throws MessageSearchException;
@@ -0,0 +1,189 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.domain;
+
+import java.io.*;
+import java.util.*;
+import javax.mail.MessagingException;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+import org.apache.commons.logging.*;
+
+/*
+ * Holds the raw bytes of an incoming message. Messages up to the spool threshold are kept in
+ * memory, larger messages are spilled to a temp file. An Email parsed from the spool is backed by
+ * a shared input stream, so that only its headers are read into memory: the body and each of its
+ * parts are read from the spool when the message is stored or indexed.
+ */
+
+public class MessageSpool extends OutputStream {
+
+	protected static final Log logger = LogFactory.getLog(MessageSpool.class.getName());
+	protected static final int BUFFER_SIZE = 8192;
+
+	protected int threshold;
+	protected SpoolBuffer buffer;
+	protected File file;
+	protected OutputStream fileStream;
+	protected boolean ownsFile = true;
+	protected long size = 0;
+	protected List<InputStream> openStreams = new ArrayList<InputStream>();
+
+	public MessageSpool(int threshold) {
+		this.threshold = threshold;
+		buffer = new SpoolBuffer(Math.min(threshold,BUFFER_SIZE));
+	}
+
+	// spool threshold in bytes, as configured
+	public static int getDefaultThreshold() {
+		return Config.getConfig().getArchiver().getSpoolThreshold()*1024;
+	}
+
+	public static MessageSpool spool(InputStream in) throws IOException {
+		MessageSpool spool = new MessageSpool(getDefaultThreshold());
+		try {
+			byte[] data = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(data))>=0)
+				spool.write(data,0,read);
+			spool.flush();
+		} catch (IOException io) {
+			spool.close();
+			throw io;
+		}
+		return spool;
+	}
+
+	// wrap a message that is already on disk. the file is left in place when the spool is closed.
+	public static MessageSpool open(File file) throws IOException {
+		MessageSpool spool = new MessageSpool(getDefaultThreshold());
+		if (file.length()<=spool.threshold) {
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] data = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(data))>=0)
+					spool.write(data,0,read);
+			} finally {
+				in.close();
+			}
+		} else {
+			spool.buffer = null;
+			spool.file = file;
+			spool.ownsFile = false;
+			spool.size = file.length();
+		}
+		return spool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b },0,1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (buffer!=null && buffer.size()+len>threshold)
+			spill();
+		if (buffer!=null)
+			buffer.write(b,off,len);
+		else if (fileStream!=null)
+			fileStream.write(b,off,len);
+		else
+			throw new IOException("message spool is closed for writing");
+		size += len;
+	}
+
+	protected void spill() throws IOException {
+		file = File.createTempFile("incoming",".eml");
+		logger.debug("spooling message to temp file {tempFile='"+file.getPath()+"',threshold='"+threshold+"'}");
+		fileStream = new BufferedOutputStream(new FileOutputStream(file),BUFFER_SIZE);
+		buffer.writeTo(fileStream);
+		buffer = null;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (fileStream!=null)
+			fileStream.flush();
+	}
+
+	protected void finishWrite() throws IOException {
+		if (fileStream!=null) {
+			fileStream.close();
+			fileStream = null;
+		}
+	}
+
+	public boolean isSpilled() { return buffer==null; }
+
+	public long getSize() { return size; }
+
+	/**
+	 * Return a new stream over the spooled message. The stream is closed with the spool.
+	 * @return A shared input stream positioned at the start of the message
+	 */
+
+	public synchronized InputStream getInputStream() throws IOException {
+		finishWrite();
+		InputStream is;
+		if (buffer!=null)
+			is = new SharedByteArrayInputStream(buffer.getBuffer(),0,buffer.size());
+		else
+			is = new SharedFileInputStream(file,BUFFER_SIZE);
+		openStreams.add(is);
+		return is;
+	}
+
+	/**
+	 * Parse the spooled message. Only the headers are read, the content remains in the spool.
+	 * @param emailID The email ID (or null if it is not yet assigned)
+	 * @return The email
+	 */
+
+	public Email getEmail(EmailID emailID) throws IOException, MessagingException {
+		return new Email(emailID,getInputStream());
+	}
+
+	@Override
+	public synchronized void close() {
+		for (InputStream is : openStreams) {
+			try { is.close(); } catch (IOException io) {}
+		}
+		openStreams.clear();
+		try { finishWrite(); } catch (IOException io) {}
+		if (file!=null && ownsFile && file.exists() && !file.delete()) {
+			logger.debug("failed to delete spool file {tempFile='"+file.getPath()+"'}");
+			Config.getFileSystem().getTempFiles().markForDeletion(file);
+		}
+		buffer = null;
+	}
+
+	public static boolean isSpooled(InputStream in) {
+		return in instanceof SharedInputStream;
+	}
+
+	// exposes the buffer so that the spooled bytes are not copied when read back
+	protected static class SpoolBuffer extends ByteArrayOutputStream {
+
+		public SpoolBuffer(int size) {
+			super(size);
+		}
+
+		public byte[] getBuffer() { return buf; }
+	}
+}
@@ -46,7 +46,10 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
       
       protected String  id;
       protected String  version;
+      protected String  compression = defaultCompression;
+      protected int     compressionLevel = defaultCompressionLevel;
       protected static final String INFO_FILE = "volumeinfo";
+      protected static final String SPACE_FILE = "spaceinfo";
       protected static final String volumePathKey 			= "volume.store.path";
       protected static final String volumeNameKey 			= "volume.name";
       protected static final String volumeIndexPathKey 		= "volume.index.path";
@@ -60,12 +63,19 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
       protected static final int defaultVolumeMaxSize = 307200;
       protected static final String defaultVolumeRemoteSearch = "no";
       protected static final String defaultCheckClosed = "no";
+      protected static final String defaultCompression = "gzip";
+      protected static final int defaultCompressionLevel = 6;
       protected Object diskSpaceLock = new Object();
       protected Object volumeinfoLock = new Object();
       protected boolean currentlyCheckingDiskSpace = false;
       
       public static ConcurrentHashMap<String,Long> usedSpaceCache = new ConcurrentHashMap<String,Long>();
       
+      // free space on the store and index file systems as of the last reconciliation, less 
+      // the bytes written since. the used space ledger is persisted to the spaceinfo file.
+      protected static ConcurrentHashMap<String,Long> freeSpaceCache = new ConcurrentHashMap<String,Long>();
+      protected static ConcurrentHashMap<String,Long> savedSpaceCache = new ConcurrentHashMap<String,Long>();
+      
       
    
       //protected SignatureManifest manifest = new SignatureManifest(this);
@@ -96,8 +106,37 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 	  public String getIndexPath() { return indexPath; }
 	  
 	  public void incUsedSpace(long indexInc,long storeInc) {
-		  Volume.usedSpaceCache.put(getIndexPath().toLowerCase(),getUsedIndexSpace()+indexInc);
-		  Volume.usedSpaceCache.put(getPath().toLowerCase(),getUsedArchiveSpace()+storeInc);
+		  addCachedSpace(usedSpaceCache,getIndexPath(),indexInc);
+		  addCachedSpace(usedSpaceCache,getPath(),storeInc);
+		  addCachedSpace(freeSpaceCache,getIndexPath(),-indexInc);
+		  addCachedSpace(freeSpaceCache,getPath(),-storeInc);
+	  }
+	  
+	  protected static void addCachedSpace(ConcurrentHashMap<String,Long> cache, String path, long inc) {
+		  if (inc==0)
+			  return;
+		  String key = path.toLowerCase();
+		  Long space;
+		  do {
+			  space = cache.get(key);
+			  if (space==null)
+				  return;
+		  } while (!cache.replace(key,space,space+inc));
+	  }
+	  
+	  // called after the index is committed. index directories are flat so this is cheap.
+	  public void updateUsedIndexSpace() {
+		  if (!isDiskSpaceChecked())
+			  return;
+		  File[] files = new File(getIndexPath()).listFiles();
+		  if (files==null)
+			  return;
+		  long usedIndexSpace = 0;
+		  for (File file : files)
+			  usedIndexSpace += file.length();
+		  Long previous = usedSpaceCache.put(getIndexPath().toLowerCase(),usedIndexSpace);
+		  if (previous!=null)
+			  addCachedSpace(freeSpaceCache,getIndexPath(),previous-usedIndexSpace);
 	  }
 	  
 	  
@@ -145,7 +184,8 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
       public long getUsedArchiveSpace() { return getCachedUsedSpace(getPath()); }
     
       protected long getAvailableBytes(File filePath, long usedBytes) {
-    	  long freeSpaceBytes = filePath.getFreeSpace();
+    	  Long cachedFreeSpace = freeSpaceCache.get(filePath.getPath().toLowerCase());
+    	  long freeSpaceBytes = cachedFreeSpace!=null ? cachedFreeSpace : filePath.getFreeSpace();
     	  long maxSizeBytes = maxSize * 1024 * 1024;
     	  long freeSpace2Bytes = maxSizeBytes - usedBytes;
     	  if (freeSpaceBytes < freeSpace2Bytes)
@@ -171,13 +211,13 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 			  File storePath = new File(getPath());
 			  File indexPath = new File(getIndexPath());
 			  
-			  if (!storePath.exists() || !indexPath.exists()) {
+			  if (!isSpaceReconciled() && (!storePath.exists() || !indexPath.exists())) {
 				  logger.debug("attempt to calculate disk space on non-existant index or store. return true.");
 				  return Space.ENOUGH;
 			  }
 			
 			  long usedArchiveSpace = getUsedArchiveSpace();
-			  long usedIndexSpace = getUsedArchiveSpace();
+			  long usedIndexSpace = getUsedIndexSpace();
 			  
 			  if (!isDiskSpaceChecked()) {
 				  logger.debug("disk space has not been checked yet. assume zero bytes are used.");
@@ -294,6 +334,24 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 		  return allowRemoteSearch;
 	  }
 
+	  // codec and level used to compress new store files (existing files keep their own)
+	  
+	  public String getCompression() {
+		  return compression;
+	  }
+	  
+	  public void setCompression(String compression) {
+		  this.compression = compression;
+	  }
+	  
+	  public int getCompressionLevel() {
+		  return compressionLevel;
+	  }
+	  
+	  public void setCompressionLevel(int compressionLevel) {
+		  this.compressionLevel = compressionLevel;
+	  }
+
 	  
 	  public boolean isEjected() { 
 		  return !(new File(getVolumeInfoFileName()).exists());
@@ -319,6 +377,14 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 	 
 	
 	   public void calculateSpace()  throws ArchivaException {
+		   calculateSpace(false);
+	   }
+	   
+	   /*
+	    * Walk the store and index to count the space they use. This is expensive on large volumes,
+	    * so it is only done once for volumes without a space ledger, or when requested (force).
+	    */
+	   public void calculateSpace(boolean force)  throws ArchivaException {
 		   
 		   logger.debug("calculateSpace() {"+toString()+"}");
 		   
@@ -330,7 +396,7 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 			   logger.debug("skipping disk space check. volume status unmounted/ejected/new. {"+toString()+"}");
 			   return;
 		   }
-		   if (getStatus() == Status.CLOSED && !checkClosedVolume) {
+		   if (getStatus() == Status.CLOSED && !checkClosedVolume && !force) {
 			   logger.debug("skipping disk space check. checking of closed volume disabled for performance reasons. {"+toString()+"}");
 			   return;
 		   }
@@ -348,6 +414,8 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 		   usedSpaceCache.put(getIndexPath(), totalUsedIndexSpace);
            logger.debug("used index disk space {usedIndexSpace='" + getUsedIndexSpace() + "' bytes',"+toString() + "}");
            logger.debug("used store disk space {usedStoreSpace='" + getUsedArchiveSpace() +"' bytes',"+toString() + "}");
+           reconcileSpace();
+           saveSpaceInfo();
            
 
 			if (getStatus() == Status.ACTIVE) {
@@ -384,6 +452,91 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 		   return counter.getTotal();
        }
 	   
+	   public boolean isSpaceReconciled() {
+		   return freeSpaceCache.get(getPath().toLowerCase())!=null && freeSpaceCache.get(getIndexPath().toLowerCase())!=null;
+	   }
+	   
+	   // refresh the cached free space from the file system
+	   public void reconcileSpace() {
+		   File storePath = new File(getPath());
+		   File indexPath = new File(getIndexPath());
+		   if (!storePath.exists() || !indexPath.exists())
+			   return;
+		   freeSpaceCache.put(getPath().toLowerCase(),storePath.getFreeSpace());
+		   freeSpaceCache.put(getIndexPath().toLowerCase(),indexPath.getFreeSpace());
+	   }
+	   
+	   // load the used space ledger. returns false if there is none
+	   public boolean loadSpaceInfo() {
+		   File spaceFile = new File(getPath()+File.separator+SPACE_FILE);
+		   if (!spaceFile.exists())
+			   return false;
+		   long usedArchiveSpace = -1;
+		   long usedIndexSpace = -1;
+		   BufferedReader in = null;
+		   try {
+			   in = new BufferedReader(new FileReader(spaceFile));
+			   String line;
+			   while ((line = in.readLine())!=null) {
+				   if (line.startsWith("#") || line.indexOf(':')<0)
+					   continue;
+				   String name = line.substring(0,line.indexOf(':')).trim();
+				   String value = line.substring(line.indexOf(':')+1).trim();
+				   if (name.equals("store"))
+					   usedArchiveSpace = Long.parseLong(value);
+				   else if (name.equals("index"))
+					   usedIndexSpace = Long.parseLong(value);
+			   }
+		   } catch (Exception e) {
+			   logger.error("failed to read volume space info {"+toString()+"}",e);
+			   return false;
+		   } finally {
+			   try { if (in!=null) in.close(); } catch (Exception e) {}
+		   }
+		   if (usedArchiveSpace<0 || usedIndexSpace<0)
+			   return false;
+		   usedSpaceCache.put(getPath().toLowerCase(),usedArchiveSpace);
+		   usedSpaceCache.put(getIndexPath().toLowerCase(),usedIndexSpace);
+		   savedSpaceCache.put(getPath().toLowerCase(),usedArchiveSpace+usedIndexSpace);
+		   logger.debug("loaded volume space info {usedStoreSpace='"+usedArchiveSpace+"',usedIndexSpace='"+usedIndexSpace+"',"+toString()+"}");
+		   return true;
+	   }
+	   
+	   // persist the used space ledger, if it has changed
+	   public void saveSpaceInfo() {
+		   if (!isDiskSpaceChecked() || isEjected())
+			   return;
+		   long usedArchiveSpace = getUsedArchiveSpace();
+		   long usedIndexSpace = getUsedIndexSpace();
+		   Long saved = savedSpaceCache.get(getPath().toLowerCase());
+		   if (saved!=null && saved==usedArchiveSpace+usedIndexSpace)
+			   return;
+		   File spaceFile = new File(getPath()+File.separator+SPACE_FILE);
+		   File tmpFile = new File(getPath()+File.separator+SPACE_FILE+".tmp");
+		   PrintWriter out = null;
+		   try {
+			   out = new PrintWriter(new FileWriter(tmpFile));
+			   out.print("# Archiva volume space usage\n");
+			   out.print("store:"+usedArchiveSpace+"\n");
+			   out.print("index:"+usedIndexSpace+"\n");
+			   out.close();
+			   out = null;
+			   spaceFile.delete();
+			   if (!tmpFile.renameTo(spaceFile))
+				   throw new IOException("failed to rename "+tmpFile);
+			   savedSpaceCache.put(getPath().toLowerCase(),usedArchiveSpace+usedIndexSpace);
+		   } catch (IOException io) {
+			   logger.error("failed to write volume space info {"+toString()+"}",io);
+		   } finally {
+			   if (out!=null) out.close();
+		   }
+	   }
+	   
+	   // recalculate space in the background
+	   public void recalculateSpace() {
+		   new DiskCheck(this).start();
+	   }
+	   
 	   public boolean isVolumeAccessible() {
 		  return new File(getPath()+File.separator+INFO_FILE).exists();
 	   }
@@ -414,6 +567,8 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 			        	out.writeBytes("created:"+DateUtil.convertDatetoString(getCreatedDate())+"\n");
 			        if (getClosedDate()!=null)
 			        	out.writeBytes("closed:"+DateUtil.convertDatetoString(getClosedDate())+"\n");
+			        out.writeBytes("compression:"+getCompression()+"\n");
+			        out.writeBytes("compressionlevel:"+getCompressionLevel()+"\n");
 			        
 		      } catch (IOException io) {
 		    	  if (getStatus()!=Volume.Status.UNMOUNTED)
@@ -454,6 +609,15 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 			           	   setVersion(st.nextToken().trim());
 			              else if (name.toLowerCase(Locale.ENGLISH).trim().equals("id"))
 			              	   setID(st.nextToken().trim());
+			              else if (name.toLowerCase(Locale.ENGLISH).trim().equals("compression"))
+			              	   setCompression(st.nextToken().trim());
+			              else if (name.toLowerCase(Locale.ENGLISH).trim().equals("compressionlevel")) {
+			            	  try {
+			            		  setCompressionLevel(Integer.parseInt(st.nextToken().trim()));
+			            	  } catch (NumberFormatException nfe) {
+			            		  logger.error("failed to load volume.info: compression level is not a number {vol='"+toString()+"'}");
+			            	  }
+			              }
 			              else if (name.toLowerCase(Locale.ENGLISH).trim().equals("status")) {
 				           	  Status status = Status.CLOSED; // default
 				           	  try {
@@ -745,7 +909,8 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 	 			 setName("diskspace checker");
 	 			 Thread.currentThread().setPriority(Thread.NORM_PRIORITY-1);
 				 try {
-					 vol.calculateSpace();
+					 vol.calculateSpace(true);
+					 Config.getConfig().getArchiver().calculateAttachmentStatistics(vol);
 				 } catch (Exception e) {
 		            logger.error("failed to retrieve disk space {"+vol+"}",e);
 		         } 
@@ -771,6 +936,8 @@ public class Volume implements Comparable<Volume>,Serializable,Props, Cloneable
 			   volume.setAllowRemoteSearch(getAllowRemoteSearch());
 			   volume.setID(getID());
 			   volume.setVersion(getVersion());
+			   volume.setCompression(getCompression());
+			   volume.setCompressionLevel(getCompressionLevel());
 			   return volume;
 		   }
 		   
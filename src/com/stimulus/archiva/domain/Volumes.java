@@ -29,6 +29,7 @@ import com.stimulus.archiva.domain.Volume.Status;
 import com.stimulus.archiva.exception.*;
 import com.stimulus.util.*;
 import com.stimulus.archiva.monitor.*;
+import com.stimulus.archiva.search.VolumeSearcherManager;
 
 public class Volumes  implements Serializable, Props, Cloneable {
 
@@ -251,6 +252,7 @@ public class Volumes  implements Serializable, Props, Cloneable {
 	 	     if (v.getStatus()==Volume.Status.ACTIVE)
 	 	         throw new ConfigurationException("failed to delete active volume. it must be closed first",logger);
 		  	 volumes.remove(v);
+		  	 VolumeSearcherManager.close(v);
 		  	Collections.sort(volumes);
 		  	return v;
  	  }
@@ -341,6 +343,7 @@ public class Volumes  implements Serializable, Props, Cloneable {
  	  public synchronized Volume closeVolume(Volume volume) throws ConfigurationException {
  		  		volume.setStatus(Volume.Status.CLOSED);
 				volume.setClosedDate(new Date());
+				VolumeSearcherManager.refresh(volume);
  		  		logger.debug("volume is now closed {"+volume+"}");
  		  		return volume;
  	  }
@@ -368,6 +371,7 @@ public class Volumes  implements Serializable, Props, Cloneable {
 		           throw new ConfigurationException("failed to unmount volume. no such volume exists",logger);
 		   	    	Volume vs = (Volume)o;
 			   	    vs.setStatus(Volume.Status.UNMOUNTED);
+			   	    VolumeSearcherManager.close(vs);
 			   	    Collections.sort(volumes);
 			   	    vs.save();
 			   	    logger.debug("volume is now unmounted {"+vs+"}");
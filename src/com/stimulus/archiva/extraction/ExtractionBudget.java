@@ -0,0 +1,188 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.extraction;
+
+import java.io.*;
+
+/*
+ * The time and amount of text allowed for the extraction of a single document. The budget of the
+ * running extraction is bound to the thread that runs it. Extractors that write their text as
+ * they go wrap their output with getWriter(), which stops the extraction once the budget is spent.
+ * The extractor then returns the text written so far, so that a document is truncated rather than
+ * left out of the index.
+ */
+
+public class ExtractionBudget {
+
+	protected static final ThreadLocal<ExtractionBudget> current = new ThreadLocal<ExtractionBudget>();
+	protected static final ExtractionBudget unlimited = new ExtractionBudget(0,0);
+
+	protected long deadline;
+	protected long maxChars;
+	protected volatile boolean cancelled = false;
+	protected volatile boolean truncated = false;
+	protected volatile boolean timedOut = false;
+
+	/**
+	 * @param timeout The time allowed in milliseconds, or zero for no limit
+	 * @param maxChars The number of characters of text allowed, or zero for no limit
+	 */
+
+	public ExtractionBudget(long timeout, long maxChars) {
+		this.deadline = timeout>0 ? System.currentTimeMillis()+timeout : Long.MAX_VALUE;
+		this.maxChars = maxChars>0 ? maxChars : Long.MAX_VALUE;
+	}
+
+	// the budget of the extraction run by the current thread
+	public static ExtractionBudget getCurrent() {
+		ExtractionBudget budget = current.get();
+		return budget!=null ? budget : unlimited;
+	}
+
+	protected static void setCurrent(ExtractionBudget budget) {
+		if (budget==null)
+			current.remove();
+		else
+			current.set(budget);
+	}
+
+	// ask the extraction to stop at its next write
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	// whether the text was cut short by time, rather than by its length
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	public void check() throws ExceededException {
+		if (cancelled) {
+			truncated = true;
+			timedOut = true;
+			throw new ExceededException("extraction was cancelled");
+		}
+		if (System.currentTimeMillis()>deadline) {
+			truncated = true;
+			timedOut = true;
+			throw new ExceededException("extraction ran out of time");
+		}
+	}
+
+	public Writer getWriter(Writer out) {
+		return new BudgetWriter(out);
+	}
+
+	public Reader getReader(Reader in) {
+		return maxChars==Long.MAX_VALUE ? in : new BudgetReader(in);
+	}
+
+	/*
+	 * Thrown from within an extractor to stop it. It is unchecked so that it passes through the
+	 * parsers the extractors are built on.
+	 */
+
+	public static class ExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = -1286453718127639145L;
+
+		public ExceededException(String message) {
+			super(message);
+		}
+	}
+
+	protected class BudgetWriter extends FilterWriter {
+
+		long written = 0;
+
+		BudgetWriter(Writer out) {
+			super(out);
+		}
+
+		public void write(int c) throws IOException {
+			check();
+			if (written>=maxChars)
+				exceeded();
+			out.write(c);
+			written++;
+		}
+
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			check();
+			int allowed = (int)Math.min(len,maxChars-written);
+			out.write(cbuf,off,allowed);
+			written += allowed;
+			if (allowed<len)
+				exceeded();
+		}
+
+		public void write(String str, int off, int len) throws IOException {
+			check();
+			int allowed = (int)Math.min(len,maxChars-written);
+			out.write(str,off,allowed);
+			written += allowed;
+			if (allowed<len)
+				exceeded();
+		}
+
+		protected void exceeded() {
+			truncated = true;
+			throw new ExceededException("extracted text exceeds "+maxChars+" characters");
+		}
+	}
+
+	// returns the end of the text once the allowed number of characters are read
+	protected class BudgetReader extends FilterReader {
+
+		long read = 0;
+
+		BudgetReader(Reader in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			if (read>=maxChars) {
+				truncated = true;
+				return -1;
+			}
+			int c = in.read();
+			if (c!=-1)
+				read++;
+			return c;
+		}
+
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (read>=maxChars) {
+				truncated = true;
+				return -1;
+			}
+			int n = in.read(cbuf,off,(int)Math.min(len,maxChars-read));
+			if (n>0)
+				read += n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n,maxChars-read));
+			read += skipped;
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.extraction;
+
+import java.io.*;
+import com.stimulus.archiva.index.IndexInfo;
+
+/*
+ * Holds extracted text, or a document to be extracted, in memory until it grows beyond the
+ * buffer size, and in a temp file after that. Most attachments yield a few kilobytes of text, so
+ * they are extracted without creating any files. Text is held as UTF-8. The temp file, and the
+ * streams read from the buffer, are removed and closed with the other resources of the message.
+ */
+
+public class ExtractionBuffer extends OutputStream {
+
+	protected static volatile int threshold = 512*1024;
+
+	protected String prefix;
+	protected IndexInfo indexInfo;
+	protected Memory memory = new Memory();
+	protected File file = null;
+	protected OutputStream fileOut = null;
+
+	/**
+	 * @param prefix The prefix of the temp file, should the buffer spill to disk
+	 * @param indexInfo Holds the temp file and streams to clean up once the message is indexed
+	 */
+
+	public ExtractionBuffer(String prefix, IndexInfo indexInfo) {
+		this.prefix = prefix;
+		this.indexInfo = indexInfo;
+	}
+
+	// the number of bytes held in memory before a buffer is written to disk
+	public static void setThreshold(int threshold) {
+		ExtractionBuffer.threshold = Math.max(0,threshold);
+	}
+
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	public void write(int b) throws IOException {
+		if (fileOut==null && memory.size()+1>threshold)
+			spill();
+		if (fileOut!=null)
+			fileOut.write(b);
+		else
+			memory.write(b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (fileOut==null && memory.size()+len>threshold)
+			spill();
+		if (fileOut!=null)
+			fileOut.write(b,off,len);
+		else
+			memory.write(b,off,len);
+	}
+
+	public void flush() throws IOException {
+		if (fileOut!=null)
+			fileOut.flush();
+	}
+
+	public void close() throws IOException {
+		if (fileOut!=null) {
+			fileOut.close();
+			fileOut = null;
+		}
+	}
+
+	protected void spill() throws IOException {
+		file = File.createTempFile(prefix,".tmp");
+		indexInfo.addDeleteFile(file);
+		fileOut = new BufferedOutputStream(new FileOutputStream(file));
+		memory.writeTo(fileOut);
+		memory = null;
+	}
+
+	public boolean isSpilled() {
+		return file!=null;
+	}
+
+	// write text to the buffer. closing the writer closes the buffer.
+	public Writer getWriter() throws IOException {
+		return new OutputStreamWriter(this,"UTF-8");
+	}
+
+	// copy a stream into the buffer and close it
+	public ExtractionBuffer copy(InputStream is) throws IOException {
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read=is.read(buffer))!=-1)
+			write(buffer,0,read);
+		close();
+		return this;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		close();
+		if (file==null)
+			return memory.getInputStream();
+		InputStream is = new FileInputStream(file);
+		indexInfo.addSourceStream(is);
+		return is;
+	}
+
+	// the text written with getWriter()
+	public Reader getReader() throws IOException {
+		Reader reader = new InputStreamReader(getInputStream(),"UTF-8");
+		indexInfo.addReader(reader);
+		return reader;
+	}
+
+	// the contents as a file, for readers that need random access. the buffer is written to disk.
+	public File getFile() throws IOException {
+		if (file==null)
+			spill();
+		close();
+		return file;
+	}
+
+	protected static class Memory extends ByteArrayOutputStream {
+
+		Memory() {
+			super(8192);
+		}
+
+		// reads the buffer in place rather than copying it
+		InputStream getInputStream() {
+			return new ByteArrayInputStream(buf,0,count);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.extraction;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.domain.Volume;
+import com.stimulus.archiva.exception.*;
+import com.stimulus.archiva.index.IndexInfo;
+import com.stimulus.util.LRUCache;
+
+/*
+ * Text extracted from attachments, kept in the store directory of each volume (extracted/) and
+ * keyed by the SHA-1 of the decoded attachment together with the extractor and charset used. An
+ * attachment that circulates in many messages is extracted once, whether it is met while archiving
+ * or while rebuilding the volume index. Each entry file holds the time its extraction took,
+ * followed by the gzipped UTF-8 text. The cache of each volume is bounded by the size of its entry
+ * files, and the least recently used entries are deleted first. Entries larger than an eighth of
+ * the cache are not kept. Plain text is never cached, as reading it is cheaper than the lookup.
+ * Text extracted on a miss is held in an ExtractionBuffer and indexed from there. The entry file is
+ * written from the buffer, so indexing does not wait on reading the entry back from disk.
+ */
+
+public class ExtractionCache {
+
+	protected static final Log logger = LogFactory.getLog(ExtractionCache.class.getName());
+	protected static final String CACHE_DIRECTORY = "extracted";
+	protected static final String entryFileExtension = ".gz";
+	protected static final String tempFileExtension = ".tmp";
+	protected static final int ENTRY_FRACTION = 8;
+	protected static final int LOCK_STRIPES = 64;
+	protected static final String hexits = "0123456789abcdef";
+
+	protected static final Map<String,ExtractionCache> caches = new HashMap<String,ExtractionCache>();
+	protected static volatile long capacity = 256L*1024*1024;
+	protected static final AtomicLong hits = new AtomicLong(0);
+	protected static final AtomicLong misses = new AtomicLong(0);
+	protected static final AtomicLong extractionTime = new AtomicLong(0);
+	protected static final AtomicLong savedTime = new AtomicLong(0);
+
+	protected File directory;
+	protected LRUCache<String,Entry> entries;
+	protected Object[] locks = new Object[LOCK_STRIPES];
+
+	protected ExtractionCache(File directory) {
+		this.directory = directory;
+		for (int i=0;i<LOCK_STRIPES;i++)
+			locks[i] = new Object();
+		entries = new LRUCache<String,Entry>(capacity) {
+			protected long sizeOf(Entry entry) {
+				return entry.length;
+			}
+			// entries are gone once their volume is removed
+			protected boolean isValid(Entry entry) {
+				return entry.file.exists();
+			}
+			protected void released(String key, Entry entry) {
+				entry.file.delete();
+			}
+		};
+		load();
+	}
+
+	public static synchronized ExtractionCache getCache(Volume volume) {
+		ExtractionCache cache = caches.get(volume.getPath());
+		if (cache==null) {
+			cache = new ExtractionCache(new File(volume.getPath(),CACHE_DIRECTORY));
+			caches.put(volume.getPath(),cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Set the size of the cache of each volume
+	 * @param capacity The size in bytes. Zero disables the cache.
+	 */
+
+	public static synchronized void setCapacity(long capacity) {
+		ExtractionCache.capacity = capacity;
+		for (ExtractionCache cache : caches.values())
+			cache.entries.setCapacity(capacity);
+	}
+
+	public static long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Extract the text of an attachment, from the cache of the volume if it was extracted before
+	 * @param volume The volume the message belongs to, or null if the cache is not to be used
+	 * @param is The decoded attachment
+	 * @param mimetype The mime type or file extension of the attachment
+	 * @param charset The charset of the attachment
+	 * @param indexInfo Holds the streams and files to clean up once the message is indexed
+	 * @return The extracted text, or null if the type of attachment is not supported
+	 */
+
+	public static Reader getText(Volume volume, InputStream is, String mimetype, Charset charset, IndexInfo indexInfo) throws ExtractionException {
+		TextExtractor extractor = Extractor.getExtractor(mimetype);
+		if (volume==null || capacity<=0 || extractor==null || extractor instanceof PlainTextExtractor)
+			return Extractor.getText(is,mimetype,charset,indexInfo);
+		return getCache(volume).getText(extractor,is,charset,indexInfo);
+	}
+
+	protected Reader getText(TextExtractor extractor, InputStream is, Charset charset, IndexInfo indexInfo) throws ExtractionException {
+		ExtractionBuffer part = new ExtractionBuffer("extract_part",indexInfo);
+		String key;
+		try {
+			key = copyAndHash(is,part,extractor.getClass().getName()+":"+charset.name());
+		} catch (IOException io) {
+			throw new ExtractionException("failed to copy attachment for extraction:"+io.getMessage(),io,logger,ChainedException.Level.DEBUG);
+		}
+		synchronized(getLock(key)) {
+			// an attachment being extracted by another thread is waited for, then read from the cache
+			Entry entry = entries.get(key);
+			if (entry!=null) {
+				try {
+					Reader reader = openEntry(entry.file,true);
+					indexInfo.addReader(reader);
+					entry.file.setLastModified(System.currentTimeMillis());
+					hits.incrementAndGet();
+					logger.debug("extracted text found in cache {key='"+key+"'}");
+					return reader;
+				} catch (IOException io) {
+					logger.debug("failed to read cached extraction {key='"+key+"'}:"+io.getMessage());
+					entries.remove(key);
+				}
+			}
+			misses.incrementAndGet();
+			return extract(extractor,key,part,charset,indexInfo);
+		}
+	}
+
+	protected Reader extract(TextExtractor extractor, String key, ExtractionBuffer part, Charset charset, IndexInfo indexInfo) throws ExtractionException {
+		long start = System.currentTimeMillis();
+		InputStream partStream;
+		try {
+			partStream = part.getInputStream();
+		} catch (IOException io) {
+			throw new ExtractionException("failed to read attachment for extraction:"+io.getMessage(),io,logger,ChainedException.Level.DEBUG);
+		}
+		Reader text = ExtractionPool.getText(extractor,partStream,charset,indexInfo);
+		if (text==null)
+			return null;
+		if (text instanceof ExtractionPool.TruncatedReader) {
+			logger.debug("extracted text is not cached as it was truncated {key='"+key+"'}");
+			return text;
+		}
+		long time = System.currentTimeMillis()-start;
+		extractionTime.addAndGet(time);
+		ExtractionBuffer buffer = new ExtractionBuffer("extract_text",indexInfo);
+		try {
+			Writer writer = buffer.getWriter();
+			copy(text,writer);
+			writer.close();
+			putEntry(key,time,buffer);
+			return buffer.getReader();
+		} catch (IOException io) {
+			throw new ExtractionException("failed to buffer extracted text:"+io.getMessage(),io,logger,ChainedException.Level.DEBUG);
+		}
+	}
+
+	// the entry is written from the buffered text. the text is indexed from the buffer, cached or not.
+	protected void putEntry(String key, long time, ExtractionBuffer text) {
+		File entryFile = getEntryFile(key);
+		File tempFile = null;
+		try {
+			entryFile.getParentFile().mkdirs();
+			tempFile = File.createTempFile("extract",tempFileExtension,entryFile.getParentFile());
+			Reader reader = new InputStreamReader(text.getInputStream(),"UTF-8");
+			try {
+				writeEntry(tempFile,time,reader);
+			} finally {
+				reader.close();
+			}
+			long length = tempFile.length();
+			if (length<=capacity/ENTRY_FRACTION) {
+				entryFile.delete();
+				if (tempFile.renameTo(entryFile)) {
+					entries.put(key,new Entry(entryFile,length));
+					logger.debug("cached extracted text {key='"+key+"',length='"+length+"',time='"+time+"'}");
+					return;
+				}
+			}
+			logger.debug("extracted text is not cached {key='"+key+"',length='"+length+"'}");
+			tempFile.delete();
+		} catch (IOException io) {
+			logger.debug("failed to cache extracted text {key='"+key+"'}:"+io.getMessage());
+			if (tempFile!=null)
+				tempFile.delete();
+		}
+	}
+
+	protected String copyAndHash(InputStream is, OutputStream out, String extraction) throws IOException {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-1");
+		} catch (java.security.NoSuchAlgorithmException nsae) {
+			throw new IOException("failed to locate SHA-1 digest");
+		}
+		OutputStream os = new DigestOutputStream(out,sha);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read=is.read(buffer))!=-1)
+				os.write(buffer,0,read);
+		} finally {
+			os.close();
+		}
+		sha.update(extraction.getBytes("UTF-8"));
+		byte[] digest = sha.digest();
+		char[] hex = new char[digest.length*2];
+		for (int i=0;i<digest.length;i++) {
+			hex[i*2] = hexits.charAt((digest[i] >>> 4) & 0xf);
+			hex[i*2+1] = hexits.charAt(digest[i] & 0xf);
+		}
+		return new String(hex);
+	}
+
+	protected void writeEntry(File file, long time, Reader text) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			dos.writeLong(time);
+			Writer writer = new OutputStreamWriter(new GZIPOutputStream(dos),"UTF-8");
+			copy(text,writer);
+			writer.close();
+		} finally {
+			dos.close();
+		}
+	}
+
+	protected static void copy(Reader reader, Writer writer) throws IOException {
+		char[] buffer = new char[8192];
+		int read;
+		while ((read=reader.read(buffer))!=-1)
+			writer.write(buffer,0,read);
+	}
+
+	protected Reader openEntry(File file, boolean hit) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			long time = dis.readLong();
+			Reader reader = new InputStreamReader(new GZIPInputStream(dis),"UTF-8");
+			if (hit)
+				savedTime.addAndGet(time);
+			return reader;
+		} catch (IOException io) {
+			dis.close();
+			throw io;
+		}
+	}
+
+	protected File getEntryFile(String key) {
+		return new File(new File(directory,key.substring(0,2)),key+entryFileExtension);
+	}
+
+	protected Object getLock(String key) {
+		return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	// entries kept from before a restart are added from the least recently used
+	protected void load() {
+		File[] dirs = directory.listFiles();
+		if (dirs==null)
+			return;
+		List<File> files = new ArrayList<File>();
+		for (File dir : dirs) {
+			File[] entryFiles = dir.isDirectory() ? dir.listFiles() : null;
+			if (entryFiles==null)
+				continue;
+			for (File file : entryFiles) {
+				if (file.getName().endsWith(tempFileExtension))
+					file.delete();
+				else if (file.getName().endsWith(entryFileExtension))
+					files.add(file);
+			}
+		}
+		final Map<File,Long> modified = new HashMap<File,Long>();
+		for (File file : files)
+			modified.put(file,file.lastModified());
+		Collections.sort(files,new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return modified.get(f1).compareTo(modified.get(f2));
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			entries.put(name.substring(0,name.length()-entryFileExtension.length()),new Entry(file,file.length()));
+		}
+		logger.debug("loaded extraction cache {directory='"+directory.getPath()+"',"+entries.getStatistics()+"}");
+	}
+
+	public String getVolumeStatistics() {
+		return entries.getStatistics();
+	}
+
+	public static String getStatistics() {
+		long entryCount = 0;
+		long size = 0;
+		synchronized(ExtractionCache.class) {
+			for (ExtractionCache cache : caches.values()) {
+				entryCount += cache.entries.getCount();
+				size += cache.entries.getSize();
+			}
+		}
+		long lookups = hits.get()+misses.get();
+		return "entries='"+entryCount+"',size='"+size+"',hits='"+hits.get()+"',misses='"+misses.get()+
+			   "',hitRatio='"+String.format("%.2f",lookups==0 ? 0 : (double)hits.get()/lookups)+
+			   "',extractionTime='"+extractionTime.get()+"ms',savedTime='"+savedTime.get()+"ms'";
+	}
+
+	protected static class Entry {
+
+		File file;
+		long length;
+
+		Entry(File file, long length) {
+			this.file = file;
+			this.length = length;
+		}
+	}
+}
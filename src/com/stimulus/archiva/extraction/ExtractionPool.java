@@ -0,0 +1,269 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.extraction;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.exception.*;
+import com.stimulus.archiva.index.IndexInfo;
+import com.stimulus.util.ThreadUtil;
+
+/*
+ * Runs text extractors on a pool of their own, so that a malformed document cannot hold up the
+ * thread archiving or indexing the message. The number of extractions of each type (extractor)
+ * that run at once is limited. Each extraction has a budget of time and text. Extractors that
+ * write their text as they go stop once the budget is spent and return what they have so far.
+ * An extraction that has not returned shortly after its time is up is abandoned, its message is
+ * indexed without the text, and its temp files are removed whenever it finally ends. An abandoned
+ * extraction still counts against the limit of its type until then, so stuck extractions cannot
+ * take over the pool. Plain text is read in place, as there is nothing to extract.
+ */
+
+public class ExtractionPool {
+
+	protected static final Log logger = LogFactory.getLog(ExtractionPool.class.getName());
+	protected static final long GRACE_PERIOD = 5000; // time allowed for an extractor to return its truncated text
+	protected static final long[] LATENCY_BUCKETS = { 10, 100, 1000, 10000, 60000 }; // milliseconds
+	protected static final int RUNNING = 0;
+	protected static final int DONE = 1;
+	protected static final int ABANDONED = 2;
+
+	protected static final ExecutorService pool = Executors.newCachedThreadPool(ThreadUtil.getDaemonThreadFactory("extraction"));
+	protected static final ConcurrentHashMap<String,ExtractorType> types = new ConcurrentHashMap<String,ExtractorType>();
+	protected static volatile long timeout = 60000;
+	protected static volatile long maxChars = 10L*1024*1024;
+	protected static volatile int typeThreads = 2;
+
+	// the time allowed for each extraction in milliseconds, zero for no limit
+	public static void setTimeout(long timeout) {
+		ExtractionPool.timeout = timeout;
+	}
+
+	// the number of characters of text kept from each document, zero for no limit
+	public static void setMaxChars(long maxChars) {
+		ExtractionPool.maxChars = maxChars;
+	}
+
+	// the number of extractions of each type that run at once
+	public static void setTypeThreads(int typeThreads) {
+		ExtractionPool.typeThreads = Math.max(1,typeThreads);
+		for (ExtractorType type : types.values())
+			type.wake();
+	}
+
+	/**
+	 * Extract the text of a document within the extraction budget
+	 * @param extractor The extractor for the type of document
+	 * @param is The document
+	 * @param charset The charset of the document
+	 * @param indexInfo Holds the streams and files to clean up once the message is indexed
+	 * @return The extracted text, or null if the extraction was abandoned
+	 */
+
+	public static Reader getText(final TextExtractor extractor, final InputStream is, final Charset charset, IndexInfo indexInfo) throws ExtractionException {
+		if (extractor instanceof PlainTextExtractor)
+			return extractor.getText(is,charset,indexInfo);
+		final ExtractorType type = getType(extractor);
+		final IndexInfo taskInfo = new IndexInfo();
+		long wait = timeout>0 ? timeout : Long.MAX_VALUE;
+		try {
+			if (!type.acquire(wait)) {
+				type.rejected.incrementAndGet();
+				logger.warn("text extraction skipped. too many extractions are still running {type='"+type.name+"'}");
+				return null;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new ExtractionException("interrupted while waiting to extract text",ie,logger,ChainedException.Level.DEBUG);
+		}
+		final ExtractionBudget budget = new ExtractionBudget(timeout,maxChars);
+		final AtomicInteger state = new AtomicInteger(RUNNING);
+		final long start = System.currentTimeMillis();
+		Future<Reader> future;
+		try {
+			future = pool.submit(new Callable<Reader>() {
+				public Reader call() throws ExtractionException {
+					ExtractionBudget.setCurrent(budget);
+					try {
+						return extractor.getText(is,charset,taskInfo);
+					} catch (OutOfMemoryError oome) {
+						throw new ExtractionException("ran out of memory while extracting text",oome,logger);
+					} finally {
+						ExtractionBudget.setCurrent(null);
+						type.release();
+						type.record(System.currentTimeMillis()-start);
+						if (!state.compareAndSet(RUNNING,DONE))
+							taskInfo.cleanup(); // abandoned
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			type.release();
+			throw new ExtractionException("failed to start text extraction",ree,logger);
+		}
+		try {
+			Reader reader = timeout>0 ? future.get(timeout+GRACE_PERIOD,TimeUnit.MILLISECONDS) : future.get();
+			if (budget.isTruncated()) {
+				type.truncated.incrementAndGet();
+				logger.debug("extracted text was truncated {type='"+type.name+"'}");
+			}
+			if (reader==null)
+				return null;
+			if (budget.isTimedOut())
+				return new TruncatedReader(budget.getReader(reader));
+			return budget.getReader(reader);
+		} catch (TimeoutException te) {
+			if (state.compareAndSet(RUNNING,ABANDONED)) {
+				budget.cancel();
+				future.cancel(true);
+				type.timeouts.incrementAndGet();
+				logger.warn("text extraction timed out. the document is indexed without its text {type='"+type.name+"',timeout='"+timeout+"ms'}");
+				return null;
+			}
+			// finished as it timed out
+			return getResult(future,type,budget);
+		} catch (InterruptedException ie) {
+			if (state.compareAndSet(RUNNING,ABANDONED)) {
+				budget.cancel();
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new ExtractionException("interrupted while extracting text",ie,logger,ChainedException.Level.DEBUG);
+		} catch (ExecutionException ee) {
+			type.failures.incrementAndGet();
+			if (ee.getCause() instanceof ExtractionException)
+				throw (ExtractionException)ee.getCause();
+			throw new ExtractionException("failed to extract text:"+ee.getCause(),ee.getCause(),logger,ChainedException.Level.DEBUG);
+		} finally {
+			if (state.get()==DONE)
+				indexInfo.addAll(taskInfo);
+		}
+	}
+
+	protected static Reader getResult(Future<Reader> future, ExtractorType type, ExtractionBudget budget) throws ExtractionException {
+		try {
+			Reader reader = future.get();
+			if (reader==null)
+				return null;
+			if (budget.isTimedOut())
+				return new TruncatedReader(budget.getReader(reader));
+			return budget.getReader(reader);
+		} catch (Exception e) {
+			type.failures.incrementAndGet();
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			if (cause instanceof ExtractionException)
+				throw (ExtractionException)cause;
+			throw new ExtractionException("failed to extract text:"+cause,cause,logger,ChainedException.Level.DEBUG);
+		}
+	}
+
+	protected static ExtractorType getType(TextExtractor extractor) {
+		String name = extractor.getClass().getSimpleName();
+		ExtractorType type = types.get(name);
+		if (type==null) {
+			ExtractorType newType = new ExtractorType(name);
+			type = types.putIfAbsent(name,newType);
+			if (type==null)
+				type = newType;
+		}
+		return type;
+	}
+
+	public static String getStatistics() {
+		StringBuffer buffer = new StringBuffer();
+		for (ExtractorType type : new TreeMap<String,ExtractorType>(types).values()) {
+			if (buffer.length()>0)
+				buffer.append(',');
+			buffer.append(type.toString());
+		}
+		return buffer.toString();
+	}
+
+	// text cut short by the time allowed. it may be complete when extracted again.
+	public static class TruncatedReader extends FilterReader {
+
+		TruncatedReader(Reader in) {
+			super(in);
+		}
+	}
+
+	protected static class ExtractorType {
+
+		String name;
+		int running = 0;
+		AtomicLong extractions = new AtomicLong(0);
+		AtomicLong failures = new AtomicLong(0);
+		AtomicLong timeouts = new AtomicLong(0);
+		AtomicLong truncated = new AtomicLong(0);
+		AtomicLong rejected = new AtomicLong(0);
+		AtomicLong totalTime = new AtomicLong(0);
+		AtomicLong[] latencies = new AtomicLong[LATENCY_BUCKETS.length+1];
+
+		ExtractorType(String name) {
+			this.name = name;
+			for (int i=0;i<latencies.length;i++)
+				latencies[i] = new AtomicLong(0);
+		}
+
+		synchronized boolean acquire(long wait) throws InterruptedException {
+			long end = System.currentTimeMillis()+wait;
+			while (running>=typeThreads) {
+				long remaining = end-System.currentTimeMillis();
+				if (remaining<=0)
+					return false;
+				wait(remaining);
+			}
+			running++;
+			return true;
+		}
+
+		synchronized void release() {
+			running--;
+			notifyAll();
+		}
+
+		synchronized void wake() {
+			notifyAll();
+		}
+
+		void record(long time) {
+			extractions.incrementAndGet();
+			totalTime.addAndGet(time);
+			int bucket = 0;
+			while (bucket<LATENCY_BUCKETS.length && time>=LATENCY_BUCKETS[bucket])
+				bucket++;
+			latencies[bucket].incrementAndGet();
+		}
+
+		public String toString() {
+			StringBuffer histogram = new StringBuffer();
+			for (int i=0;i<latencies.length;i++) {
+				if (i>0)
+					histogram.append(' ');
+				histogram.append(i<LATENCY_BUCKETS.length ? "<"+LATENCY_BUCKETS[i]+"ms:" : ">="+LATENCY_BUCKETS[i-1]+"ms:");
+				histogram.append(latencies[i].get());
+			}
+			long count = extractions.get();
+			return name+"={extractions='"+count+"',averageTime='"+(count==0 ? 0 : totalTime.get()/count)+"ms',failures='"+failures.get()+
+				   "',timeouts='"+timeouts.get()+"',truncated='"+truncated.get()+"',skipped='"+rejected.get()+"',latency='"+histogram+"'}";
+		}
+	}
+}
@@ -115,16 +115,21 @@ public class Extractor implements Serializable
 	 public Extractor() {
 	 }
 
+	 // the text extractor for a mime type or file extension, or null if it is not supported
+	 public static TextExtractor getExtractor(String mimetype) {
+		 return handlers.get(mimetype.toLowerCase(Locale.ENGLISH));
+	 }
+
 	 public static Reader getText(InputStream is, String mimetype,Charset fromCharset, IndexInfo indexInfo) throws ExtractionException {
 	     TextExtractor extractor;
-	     extractor = handlers.get(mimetype.toLowerCase(Locale.ENGLISH));
+	     extractor = getExtractor(mimetype);
 	     if(extractor == null) {
 	    	 logger.debug("failed to extract text (mimetype not supported) {mimetype='"+mimetype+"'}");
 	     	//throw new ExtractionException("failed to extract text (mimetype not supported) {mimetype='"+mimetype+"'}",logger);
 	      return null;
 	     } else {
 	    	 try {
-	    		 return extractor.getText(is, fromCharset,indexInfo);
+	    		 return ExtractionPool.getText(extractor,is,fromCharset,indexInfo);
 	    	 } catch (ExtractionException ee) {
 	    		 throw ee;
 	    	 }
@@ -24,16 +24,15 @@ public class MS2007Extractor implements TextExtractor, Serializable
  public Reader getText(InputStream is, Charset charset, IndexInfo indexInfo) throws ExtractionException {
 	  ZipInputStream zis  		 = null; 
 	  ZipEntry entry   			 = null;
-	  File extractFile 			 = null;
-	  OutputStreamWriter writer  = null;
+	  ExtractionBuffer buffer	 = new ExtractionBuffer("extract",indexInfo);
+	  Writer writer  			 = null;
 	  Reader reader   			 = null;
 	  try {
-	   extractFile = File.createTempFile("extract",".tmp");
 	   zis = new ZipInputStream(is);
 	   SAXParserFactory factory = SAXParserFactory.newInstance();
 	   SAXParser parser = factory.newSAXParser();
-	   writer = new OutputStreamWriter(new FileOutputStream(extractFile),"UTF-8");
-	   SaxHandler handler = new SaxHandler(writer);
+	   writer = buffer.getWriter();
+	   SaxHandler handler = new SaxHandler(ExtractionBudget.getCurrent().getWriter(writer));
 	   while (( entry = zis.getNextEntry() ) != null) {
 	    String name = entry.getName();
 	    if (name.endsWith("sharedStrings.xml") ||
@@ -49,7 +48,15 @@ public class MS2007Extractor implements TextExtractor, Serializable
 	   }
 	   zis.close();
 	   writer.close();
-	   reader = new InputStreamReader(new FileInputStream(extractFile),"UTF-8");
+	   reader = buffer.getReader();
+	  } catch (ExtractionBudget.ExceededException ee) {
+		  logger.debug("microsoft 2007 document extraction stopped. the text is truncated:"+ee.getMessage());
+		  try {
+			  writer.close();
+			  reader = buffer.getReader();
+		  } catch (IOException io) {
+			  throw new ExtractionException("failed to extract text from microsoft 2007 document:"+io.getMessage(),io,logger);
+		  }
 	  } catch (Exception e) {
 		  throw new ExtractionException("failed to extract text from microsoft 2007 document:"+e.getMessage(),e,logger);
 	  } catch (OutOfMemoryError ome) {
@@ -57,8 +64,6 @@ public class MS2007Extractor implements TextExtractor, Serializable
 	  } finally {
 		   try { if (zis!=null) zis.close(); } catch (Exception e) { System.out.println(e); }
 		   try { if (writer!=null) writer.close(); } catch (Exception e) { System.out.println(e); }
-		  if (extractFile!=null) indexInfo.addDeleteFile(extractFile);
-		   if (reader!=null) indexInfo.addReader(reader);
 	  }
 	  return reader;
 } 
@@ -45,6 +45,7 @@ public class MessageExtraction implements Serializable
 	protected String baseURL;
 	protected String viewFileName;
 	protected String messageId;
+	protected long created = System.currentTimeMillis();
 
 	public MessageExtraction(Email message, InputStream originalMessageStream, String baseURL) throws MessageExtractionException {
 		this.baseURL  = baseURL;
@@ -295,12 +296,8 @@ public class MessageExtraction implements Serializable
 		OutputStream os = null;
 
 		try {
-            os = new BufferedOutputStream(new FileOutputStream(file));
-            BufferedInputStream bis = new BufferedInputStream(originalMessageStream);
-            int c = 0;
-            while ((c = bis.read()) != -1) {
-            	os.write(c);
-            }
+            os = new FileOutputStream(file);
+            IOUtil.copy(originalMessageStream, os, 65536);
             Config.getFileSystem().getTempFiles().markForDeletion(file);
 			return emailId.getUniqueID() + ".eml";
 		} catch (Exception ex) {
@@ -492,6 +489,19 @@ public class MessageExtraction implements Serializable
 		logger.debug("getOriginalMessageFileName() {fileName='" + fileName + "'}");
 		return fileName;
 	}
+	public String getBaseURL() {
+		return baseURL;
+	}
+
+	// whether the extracted files can still be served. they are removed some time after extraction.
+	public boolean isAvailable() {
+		if (System.currentTimeMillis()-created>TempFiles.DELETE_WAIT/2*60*1000L)
+			return false;
+		if (viewFileName==null || !new File(Config.getFileSystem().getViewPath(),viewFileName).exists())
+			return false;
+		return fileName==null || fileName.length()==0 || new File(getFilePath()).exists();
+	}
+
 	public String getBaseExtractionURL() {
 		return baseURL + "/temp";
 	}
@@ -45,7 +45,7 @@ public class PDFExtractor implements TextExtractor, Serializable
 
  public Reader getText(InputStream is,Charset charset,IndexInfo indexInfo) throws ExtractionException  {
      logger.debug("extracting pdf file");
-	 File file = null;
+	 ExtractionBuffer buffer = new ExtractionBuffer("extract_pdf",indexInfo);
      PDDocument document = null;
      Writer output = null;
      try {
@@ -60,9 +60,7 @@ public class PDFExtractor implements TextExtractor, Serializable
 	         }
 	         decryptor.decryptDocument("");
 	     }
-	     file = File.createTempFile("extract_pdf", ".tmp");
-	     indexInfo.addDeleteFile(file);
-	     output = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+	     output = ExtractionBudget.getCurrent().getWriter(buffer.getWriter());
 	     PDFTextStripper stripper = new PDFTextStripper();
 	  	 stripper.writeText(document, output);
 	  	/*logger.debug("PDF extraction completed");
@@ -77,6 +75,8 @@ public class PDFExtractor implements TextExtractor, Serializable
 	  	 } catch(Exception e) {
 	  		 logger.error("failed to open txt file",e);
 	  	 }*/
+     } catch (ExtractionBudget.ExceededException ee) {
+    	 logger.debug("pdf extraction stopped. the text is truncated:"+ee.getMessage());
      } catch (Throwable e) {
          throw new ExtractionException("failed to extract pdf (probable password protected document)",e,logger,ChainedException.Level.DEBUG);
      } finally {
@@ -89,9 +89,7 @@ public class PDFExtractor implements TextExtractor, Serializable
      }
      try {
 	 	logger.debug("returning extracted PDF data");
-	 	Reader outReader = new FileReader(file);
-	    indexInfo.addReader(outReader);
-	    return outReader;
+	    return buffer.getReader();
      } catch(Exception ex) {
         throw new ExtractionException("failed to extract text from powerpoint document",ex,logger,ChainedException.Level.DEBUG);
      }
@@ -38,16 +38,13 @@ public class RTFExtractor implements TextExtractor,Serializable
 	public Reader getText(InputStream is,  Charset charset,IndexInfo indexInfo) throws ExtractionException {
 	    
 	        Reader reader = null;
-	        FileWriter writer = null;
-	        File file = null;
+	        String text = null;
 	        try {
 	            reader = new InputStreamReader(is);
-	            file = File.createTempFile("extract_rtf", ".tmp");
-	            indexInfo.addDeleteFile(file);
-	            writer = new FileWriter(file);
 	            DefaultStyledDocument doc = new DefaultStyledDocument();
 	            new RTFEditorKit().read(reader, doc, 0);
-	            writer.write(doc.getText(0, doc.getLength()));
+	            // the document already holds the text in memory
+	            text = doc.getText(0, doc.getLength());
 	        } catch (Throwable ioe) {
 	            throw new ExtractionException("failed to parse rtf document", ioe,logger);
 	        } finally {
@@ -56,20 +53,10 @@ public class RTFExtractor implements TextExtractor,Serializable
 	                    reader.close();
 	                } catch (IOException ioe) {}
 	            }
-
-	            if (writer != null) {
-	                try {
-	                    writer.close();
-	                } catch (IOException ioe) {}
-	            }
 	        }
-	        try {
-		        Reader outReader = new FileReader(file);
-		        indexInfo.addReader(outReader);
-		        return outReader;
-		    } catch(Exception ex) {
-		        throw new ExtractionException("failed to extract text from powerpoint document",ex,logger,ChainedException.Level.DEBUG);
-		    }
+	        Reader outReader = new StringReader(text);
+	        indexInfo.addReader(outReader);
+	        return outReader;
 	        
 	    }
 
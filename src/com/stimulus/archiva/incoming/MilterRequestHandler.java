@@ -11,6 +11,7 @@ import com.sendmail.jilter.JilterProcessor;
 import com.sendmail.jilter.JilterStatus;
 import com.stimulus.archiva.domain.Config;
 import com.stimulus.archiva.domain.FetchMessageCallback;
+import com.stimulus.archiva.domain.MessageSpool;
 import java.util.*;
 import java.util.regex.*;
 import com.stimulus.archiva.exception.*;
@@ -24,7 +25,7 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 	 protected FetchMessageCallback callback;
 	 protected String host = "";
 	 protected JilterStatus status = null;
-	 protected ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	 protected MessageSpool spool = null;
 	 protected static Pattern headerPattern1 = Pattern.compile("^cc|^to|^bcc");
 	 protected static Pattern headerPattern2 = Pattern.compile(".*<([-.+_\\d\\w]*@[-.+_\\d\\w]*)>");
 	 protected static Pattern headerPattern3 = Pattern.compile("([-.+_\\d\\w]*@[-.+_\\d\\w]*)");
@@ -36,7 +37,7 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 		this.callback = callback;
 		includeBCC = false;
 		rcpts = new ArrayList<String>();
-		bos = new ByteArrayOutputStream();
+		discardSpool();
 		
 		InetAddress address = socket.socket().getInetAddress();
 		boolean isAllowed = Config.getConfig().getAgent().isAllowed(address);
@@ -62,6 +63,7 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
         catch (IOException e) {
             logger.debug("Unexpected exception, connection will be closed", e);
         } finally {
+            discardSpool();
             logger.debug("closing processor");
             processor.close();
             logger.debug("processor closed");
@@ -77,6 +79,7 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 	
 	public JilterStatus abort() {
 		logger.debug("abort");
+		discardSpool();
 		return JilterStatus.SMFIS_CONTINUE;
 	}
 
@@ -89,8 +92,8 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 			return JilterStatus.SMFIS_REJECT;
 		}
 		try {
-			bos.write("\n".getBytes());
-			bos.write(bodyp.array());
+			getSpool().write("\n".getBytes());
+			getSpool().write(bodyp.array());
 		} catch (IOException io) {
 			logger.error("jilter failed to write milter body data to byte buffer",io);
 		}
@@ -189,13 +192,13 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 				try {
 					for (int j = 0; j < rcpts.size(); j++) 	{
 						if (j == 0) {
-							bos.write("bcc: ".getBytes());
+							getSpool().write("bcc: ".getBytes());
 						} else {
-							bos.write(",".getBytes());
+							getSpool().write(",".getBytes());
 						}
-						bos.write(rcpts.get(j).getBytes());
+						getSpool().write(rcpts.get(j).getBytes());
 					}
-					bos.write("\n".getBytes());
+					getSpool().write("\n".getBytes());
 				} catch (IOException io) {
 					logger.error("jilter failed to write end of header data",io);
 				}
@@ -206,18 +209,13 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 
 	public JilterStatus eom(JilterEOMActions eomActions, Properties properties) {
 		logger.debug("jilter eom()");
-		try {
-			bos.close(); // close stream
-		} catch (IOException io) {
-			logger.error("jilter failed to close io stream during eom",io);
-		}
-		byte[] messageBytes = bos.toByteArray();
-		bos = new ByteArrayOutputStream();
-		ByteArrayInputStream bis = new ByteArrayInputStream(messageBytes);
+		// the spooled message is handed over as is, large messages are not copied into memory
+		MessageSpool messageSpool = getSpool();
+		spool = null;
 		try {	
 			logger.debug("jilter store callback execute");
 			Config.getStopBlockFactory().detectBlock("milter server",Thread.currentThread(),this,IDLE_TIMEOUT);
-    		callback.store(bis,host);
+    		callback.store(messageSpool.getInputStream(),host);
     		logger.debug("jilter store callback finished");
 		} catch (ArchiveException e) {
 			logger.error("failed to store the message via milter",e);
@@ -233,10 +231,24 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 			return JilterStatus.SMFIS_REJECT;
 		}  finally {
 			Config.getStopBlockFactory().endDetectBlock(Thread.currentThread());
+			messageSpool.close();
 		}
 		return JilterStatus.SMFIS_CONTINUE;
 	}
 
+	protected MessageSpool getSpool() {
+		if (spool==null)
+			spool = new MessageSpool(MessageSpool.getDefaultThreshold());
+		return spool;
+	}
+
+	protected void discardSpool() {
+		if (spool!=null) {
+			spool.close();
+			spool = null;
+		}
+	}
+
 	public int getRequiredModifications() {
 		logger.debug("jilter requiredmodifications()");
 		return SMFIF_NONE;
@@ -256,7 +268,7 @@ public class MilterRequestHandler implements RequestHandler, JilterHandler, Stop
 		header.append(headerv);
 		header.append("\n");
 		try {
-			bos.write(header.toString().getBytes());
+			getSpool().write(header.toString().getBytes());
 		} catch (IOException io) {
 			logger.error("jilter failed to write header field",io);
 		}
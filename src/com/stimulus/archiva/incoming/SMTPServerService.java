@@ -13,8 +13,11 @@ import org.subethamail.smtp.helper.*;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
 
-public class SMTPServerService implements Service, Props, SimpleMessageListener, StopBlockTarget {
+public class SMTPServerService implements Service, Props, SimpleMultipleRecipientMessageListener, StopBlockTarget {
 	
 	static List<String> MECHANISMS = new ArrayList<String>(1);
 	
@@ -23,6 +26,7 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
 	}
 	
 	private static final int IDLE_TIMEOUT = 300000; // 5 minutes
+	private static final int MAX_HEADER_SIZE = 262144; // headers examined for bcc reconstruction
 	protected static final String smtpAuthKey 			   	   	= "agent.authentication";
 	protected static final String smtpUsernameKey 			   	= "agent.username";
 	protected static final String smtpPasswordKey 			  	 = "agent.password";
@@ -33,6 +37,7 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
 	protected static final String smtpSocketBackLogKey			= "subsmtp.socket.backlog";
 	protected static final String smtpMaxConnectionsKey			= "subsmtp.maxconnections";
 	protected static final String smtpDeferredSizeKey			= "subsmtp.deferredsz";
+	protected static final String smtpIncludeBCCKey				= "agent.smtp.includebcc";
 	
 	protected static final String defaultSMTPAuth				= "no";
 	protected static final String defaultSMTPUsername  	    	= "admin";
@@ -46,6 +51,7 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
 	protected static final String defaultSMTPSocketBackLog			= "50";
 	protected static final String defaultSMTPCertAlias			= null;
 	protected static final String defaultSMTPAuthCerts			= "no";
+	protected static final String defaultSMTPIncludeBCC			= "no";
 	
 	protected static Log logger = LogFactory.getLog(SMTPServerService.class);
 	protected int port							= 8091;
@@ -61,6 +67,7 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
 	protected int smtpSocketBackLog = 50;
 	protected int smtpDeferredSize = 5242880;
 	protected int smtpMaxConnections = 1000;
+	protected boolean smtpIncludeBCC = false;
 	protected String certAlias;
 	
 	
@@ -86,7 +93,9 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
 			}
 			//int archiveThreads = Config.getConfig().getArchiver().getArchiveThreads();
 			logger.debug(getServiceName()+" started");
-			smtpServer = new SMTPServer(new SimpleMessageListenerAdapter(this));
+			Collection<SimpleMessageListener> listeners = new ArrayList<SimpleMessageListener>(1);
+			listeners.add(this);
+			smtpServer = new SMTPServer(new SimpleMessageListenerAdapter(listeners,smtpDeferredSize));
 			
 			//smtpServer.setName(Config.getConfig().getProductName()+Config.getConfig().getApplicationVersion());
 			UsernamePasswordValidator validator = new MailArchivaUsernamePasswordValidator();
@@ -248,6 +257,7 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
         smtpSocketBackLog = ConfigUtil.getInteger(prop.getProperty(smtpSocketBackLogKey),defaultSMTPSocketBackLog);
         smtpDeferredSize =  ConfigUtil.getInteger(prop.getProperty(smtpDeferredSizeKey),defaultSMTPDeferredSize);
         smtpMaxConnections =  ConfigUtil.getInteger(prop.getProperty(smtpMaxConnectionsKey),defaultSMTPMaxConnections);
+        smtpIncludeBCC = ConfigUtil.getBoolean(prop.getProperty(smtpIncludeBCCKey),defaultSMTPIncludeBCC);
         return true;
     }
 
@@ -279,8 +289,16 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
     }
 
 	public void deliver(String from, String recipient, InputStream data) throws TooMuchDataException, IOException {
+		deliver(from, Collections.singletonList(recipient), data);
+	}
+
+	// the message is archived once for all envelope recipients of the smtp transaction
+	public void deliver(String from, List<String> recipients, InputStream data) throws TooMuchDataException, IOException {
 		Config.getStopBlockFactory().detectBlock("smtp server",Thread.currentThread(),this,IDLE_TIMEOUT);
 		try {
+		   logger.debug("smtp deliver {from='"+from+"',recipients='"+recipients.size()+"'}");
+		   if (smtpIncludeBCC)
+			   data = includeBCC(data, recipients);
 		   Config.getConfig().getFetchMessageCallback().store(data,from);	
 	   } catch (ArchiveException ae) {
 		   logger.error("failed to archive message:"+ae.getMessage(),ae);
@@ -296,6 +314,71 @@ public class SMTPServerService implements Service, Props, SimpleMessageListener,
 	
 	
 
+	/*
+	 * Reconstructs the BCC field from envelope recipients that do not appear in the to, cc or
+	 * bcc headers. As with the milter, this is only done if at least one envelope recipient
+	 * appears in the headers, since RCPT TO is sometimes unrelated to the actual recipients.
+	 */
+	protected InputStream includeBCC(InputStream data, List<String> recipients) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(data);
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		int c, lineLength = 0, last = -1;
+		while (headerBytes.size()<MAX_HEADER_SIZE && (c = in.read())!=-1) {
+			headerBytes.write(c);
+			if (c=='\n') {
+				if (lineLength==0 || (lineLength==1 && last=='\r'))
+					break; // blank line ends the headers
+				lineLength = 0;
+			} else {
+				lineLength++;
+			}
+			last = c;
+		}
+		byte[] headers = headerBytes.toByteArray();
+		String bcc = getMissingRecipients(headers, recipients);
+		if (bcc.length()>0) {
+			logger.debug("including BCC addresses {bcc='"+bcc+"'}");
+			byte[] bccHeader = ("Bcc: "+bcc+"\r\n").getBytes("ISO-8859-1");
+			return new SequenceInputStream(new ByteArrayInputStream(bccHeader),
+						new SequenceInputStream(new ByteArrayInputStream(headers),in));
+		}
+		return new SequenceInputStream(new ByteArrayInputStream(headers),in);
+	}
+
+	protected String getMissingRecipients(byte[] headers, List<String> recipients) {
+		Set<String> headerAddresses = new HashSet<String>();
+		try {
+			InternetHeaders internetHeaders = new InternetHeaders(new ByteArrayInputStream(headers));
+			for (String name : new String[] { "To", "Cc", "Bcc" }) {
+				String[] values = internetHeaders.getHeader(name);
+				if (values==null)
+					continue;
+				for (String value : values) {
+					for (InternetAddress address : InternetAddress.parseHeader(value, false)) {
+						if (address.getAddress()!=null)
+							headerAddresses.add(address.getAddress().toLowerCase(Locale.ENGLISH).trim());
+					}
+				}
+			}
+		} catch (MessagingException me) {
+			logger.debug("failed to parse message headers. bcc not included:"+me.getMessage());
+			return "";
+		}
+		boolean recipientInHeaders = false;
+		StringBuffer bcc = new StringBuffer();
+		for (String recipient : recipients) {
+			String address = recipient.toLowerCase(Locale.ENGLISH).trim().replaceAll("<","").replaceAll(">","");
+			if (headerAddresses.contains(address)) {
+				recipientInHeaders = true;
+			} else if (address.length()>0) {
+				if (bcc.length()>0)
+					bcc.append(", ");
+				bcc.append(address);
+			}
+		}
+		return recipientInHeaders ? bcc.toString() : "";
+	}
+
 	class MailArchivaUsernamePasswordValidator implements UsernamePasswordValidator
 	{
 		public void login(String username, String password) throws LoginFailedException
@@ -22,6 +22,8 @@ import com.stimulus.archiva.domain.fields.EmailFieldValue;
 import com.stimulus.archiva.domain.fields.EmailFields;
 import com.stimulus.archiva.exception.*;
 import com.stimulus.archiva.extraction.Extractor;
+import com.stimulus.archiva.extraction.ExtractionBuffer;
+import com.stimulus.archiva.extraction.ExtractionCache;
 import com.stimulus.archiva.language.LanguageIdentifier;
 import com.stimulus.archiva.monitor.Event;
 import com.stimulus.util.*;
@@ -72,6 +74,7 @@ public class DocumentIndex {
 		  		return;
 		  	 }
 		  	 
+		  	 indexInfo.setVolume(message.getEmailID().getVolume());
 		  	 doc.add(new Field("ver","2",Field.Store.YES,Field.Index.UN_TOKENIZED));    
 		  	 if (uniqueID!=null) {
 		  		 doc.add(new Field("uid",uniqueID,Field.Store.YES,Field.Index.UN_TOKENIZED)); 
@@ -219,7 +222,7 @@ public class DocumentIndex {
 			  				  	 Compare.equalsIgnoreCase(mimetype, "gzip/document")) {
 			  			  	extractAndIndexGZipFile(is,doc,filename,charset,indexInfo);
 					  } else {
-						  Reader textReader = Extractor.getText(is,mimetype,charset,indexInfo);
+						  Reader textReader = getAttachmentText(is,mimetype,charset,indexInfo);
 						  if (textReader!=null) {
 							  doc.add(new Field("attachments", textReader));
 							 // try { textReader.close(); } catch (Exception e) {
@@ -231,11 +234,9 @@ public class DocumentIndex {
 			  } else {
 				  Reader textReader = Extractor.getText(is,mimetype,charset,indexInfo);
 				  if (textReader!=null) {
-					  doc.add(new Field("body", textReader));
-		          	  Reader detectReader = Extractor.getText(is,mimetype,charset,indexInfo);
 		          	  String[] languages = ((MimePart)p).getContentLanguage();
-		              addLanguage(languages, doc, detectReader);
-		              //detectReader.close();
+		          	  textReader = addLanguage(languages, doc, textReader);
+					  doc.add(new Field("body", textReader));
 		              /*Reader test = Extractor.getText(getInputStreamFromPart((MimePart)p),mimetype,tempFiles);
 		              BufferedReader b = new BufferedReader(test); 
 		              String line = b.readLine();
@@ -273,7 +274,7 @@ public class DocumentIndex {
 	  		extractAndIndexZipFile(is,doc,charset,indexInfo);
 		  } else {
 			  try {
-				  Reader textReader = Extractor.getText(is,extension,charset,indexInfo);
+				  Reader textReader = getAttachmentText(is,extension,charset,indexInfo);
 				  if (textReader!=null) {
 					  doc.add(new Field("attachments", textReader));
 					 /* try { textReader.close(); } catch (Exception e) {
@@ -302,7 +303,7 @@ public class DocumentIndex {
 			  if (Compare.equalsIgnoreCase(extension,"tar"))
 				  extractAndIndexTarFile(gis,doc,charset,indexInfo);
 			  else {
-				  Reader textReader = Extractor.getText(gis,extension,charset,indexInfo);
+				  Reader textReader = getAttachmentText(gis,extension,charset,indexInfo);
 				  if (textReader!=null) {
 					  doc.add(new Field("attachments", textReader));
 				  }
@@ -341,10 +342,8 @@ public class DocumentIndex {
 		             int dot = name.lastIndexOf('.');
 		             if (dot==-1) continue;
 		             String extention = name.substring(dot+1,name.length());
-		             File file = File.createTempFile(name,extention);
-		             indexInfo.addDeleteFile(file);
-		             IOUtil.copy(tis, new FileOutputStream(file));
-		             Reader textReader = Extractor.getText(new FileInputStream(file),extention,charset,indexInfo);
+		             InputStream entryStream = new ExtractionBuffer("extract_tar",indexInfo).copy(tis).getInputStream();
+		             Reader textReader = getAttachmentText(entryStream,extention,charset,indexInfo);
 	                 if (textReader!=null) {
 	                	doc.add(new Field("attachments", textReader));
 	                 }
@@ -366,9 +365,8 @@ public class DocumentIndex {
 		  ZipFile zipFile = null;
 		  try {
        		logger.debug("extractAndIndexZipFile()");
-       		File file = File.createTempFile("extract_zip",".tmp");
-       		indexInfo.addDeleteFile(file);
-       		IOUtil.copy(is, new FileOutputStream(file));
+       		// the zip is read with random access, so it is always written to disk
+       		File file = new ExtractionBuffer("extract_zip",indexInfo).copy(is).getFile();
        		String charname = Config.getConfig().getIndex().getIndexZipFileNameCharSet();
        		zipFile = new ZipFile(file,charname);
        		Enumeration<ZipEntry> zips = (Enumeration<ZipEntry>)zipFile.getEntries();
@@ -380,7 +378,7 @@ public class DocumentIndex {
 		             String extention = name.substring(dot+1,name.length());
 		             InputStream zis = zipFile.getInputStream(entry);
 		             indexInfo.addSourceStream(zis);
-		             Reader textReader = Extractor.getText(zis,extention,charset,indexInfo);
+		             Reader textReader = getAttachmentText(zis,extention,charset,indexInfo);
 		             if (textReader!=null) {
 		                	doc.add(new Field("attachments", textReader));
 		             }
@@ -398,7 +396,20 @@ public class DocumentIndex {
        	}
 	  }
 	  
-	  protected void addLanguage(String[] languages, Document doc, Reader detectReader) {
+	  // attachments are looked up in the extraction cache of the volume before they are extracted
+	  protected Reader getAttachmentText(InputStream is, String type, Charset charset, IndexInfo indexInfo) throws ExtractionException {
+		  return ExtractionCache.getText(indexInfo.getVolume(),is,type,charset,indexInfo);
+	  }
+	  
+	  protected static synchronized LanguageIdentifier getLanguageIdentifier() {
+		  if (languageIdentifier==null) 
+			  languageIdentifier= new LanguageIdentifier();
+		  return languageIdentifier;
+	  }
+	  
+	  // the body text is read once. the start of it is sampled to detect the language and then
+	  // pushed back, so that the returned reader still holds the whole text for the index.
+	  protected Reader addLanguage(String[] languages, Document doc, Reader textReader) {
 		    String lang;
         	if (indexer.getIndexLanguageDetection() && doc.get("lang")==null) {
             try {
@@ -407,19 +418,25 @@ public class DocumentIndex {
           		  logger.debug("detected language from the email header. {language='"+lang+"'}");
           	  } else {
           		  logger.debug("email did not contain language header field. analyzing text to determine language.");
-          		  
-          		  if (languageIdentifier==null) 
-          		   languageIdentifier= new LanguageIdentifier();
-          		  
-          		  lang = languageIdentifier.identify(detectReader);
+          		  LanguageIdentifier identifier = getLanguageIdentifier();
+          		  char[] sample = new char[Math.max(1,identifier.getAnalyzeLength())];
+          		  int length = 0;
+          		  int read;
+          		  while (length<sample.length && (read = textReader.read(sample,length,sample.length-length))!=-1)
+          			  length += read;
+          		  PushbackReader pushbackReader = new PushbackReader(textReader,sample.length);
+          		  pushbackReader.unread(sample,0,length);
+          		  textReader = pushbackReader;
+          		  lang = identifier.identify(sample,0,length);
           	  }
             } catch (Exception e) {
           	  logger.debug("exception occurred while detecting indexing language.",e);
-          	  return;
+          	  return textReader;
             }
             if (lang!=null)
           	  doc.add(new Field("lang",lang,Field.Store.YES,Field.Index.UN_TOKENIZED));  
         	}
+        	return textReader;
 	  }
 	  
 	  
@@ -4,12 +4,14 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
 import com.stimulus.archiva.domain.Config;
+import com.stimulus.archiva.domain.Volume;
 import com.stimulus.util.StreamUtil;
 import org.apache.tools.zip.*;
 
 public class IndexInfo {
 	  
 	  protected Charset charset;
+	  protected Volume volume;
 	  protected LinkedList<InputStream> sourceStreams;
 	  protected LinkedList<ZipFile> zipFiles;
 	  protected LinkedList<Reader> readers;
@@ -22,6 +24,7 @@ public class IndexInfo {
 	  public void reset() {
 		  String charname = Config.getConfig().getIndex().getIndexDefaultCharSet();
 		  charset = Charset.forName(charname);
+		  volume = null;
 		  sourceStreams = new LinkedList<InputStream>();
 		  zipFiles = new LinkedList<ZipFile>();
 		  readers = new LinkedList<Reader>();
@@ -32,6 +35,11 @@ public class IndexInfo {
 	  
 	  public void setCharset(Charset charset) { this.charset = charset; }
 	  
+	  // the volume of the message being indexed, whose extraction cache is used for its attachments
+	  public Volume getVolume() { return volume; }
+	  
+	  public void setVolume(Volume volume) { this.volume = volume; }
+	  
 	  public void addSourceStream(InputStream sourceStream) {
 		  if (sourceStream!=null) {
 			  sourceStreams.add(sourceStream);
@@ -56,6 +64,15 @@ public class IndexInfo {
 		  }
 	  }
 	  
+	  // take over the streams, readers and files of an extraction run on another thread
+	  public void addAll(IndexInfo indexInfo) {
+		  sourceStreams.addAll(indexInfo.sourceStreams);
+		  zipFiles.addAll(indexInfo.zipFiles);
+		  readers.addAll(indexInfo.readers);
+		  deleteFiles.addAll(indexInfo.deleteFiles);
+		  indexInfo.reset();
+	  }
+	  
 	  protected void finalize() throws Throwable {
 		  cleanup();
 	  }
@@ -0,0 +1,264 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.index;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.*;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import com.stimulus.archiva.domain.*;
+import com.stimulus.archiva.language.AnalyzerFactory;
+import com.stimulus.util.ThreadUtil;
+
+/*
+ * Staged indexing pipeline used to rebuild a volume index. Messages submitted by the store
+ * scanner are read (decrypted, decompressed and attachments expanded) by a read pool sized by
+ * archive.threads, parsed and text extracted by an extraction pool sized by index.threads, and
+ * added to the index in batches by a single writer thread. The number of messages in flight is
+ * bounded so that a slow stage holds back the scanner rather than filling the heap.
+ */
+
+public class IndexPipeline {
+
+	protected static final Log logger = LogFactory.getLog(IndexPipeline.class.getName());
+	protected static final int WRITE_BATCH_SIZE = 100;
+	protected static final int BUFFER_SIZE = 8192;
+
+	protected Indexer indexer;
+	protected IndexWriter writer;
+	protected ExecutorService readPool;
+	protected ExecutorService extractPool;
+	protected BlockingQueue<ExtractedMessage> writeQueue;
+	protected WriterThread writerThread;
+	protected Semaphore permits;
+	protected int bound;
+	protected volatile IOException writeError = null;
+	protected AtomicLong failed = new AtomicLong(0);
+
+	protected Stage readStage = new Stage("read");
+	protected Stage extractStage = new Stage("extract");
+	protected Stage writeStage = new Stage("write");
+
+	public IndexPipeline(Indexer indexer, IndexWriter writer, int readThreads, int extractThreads) {
+		this.indexer = indexer;
+		this.writer = writer;
+		bound = (readThreads+extractThreads)*2;
+		permits = new Semaphore(bound);
+		readPool = Executors.newFixedThreadPool(readThreads,ThreadUtil.getDaemonThreadFactory("index read"));
+		extractPool = Executors.newFixedThreadPool(extractThreads,ThreadUtil.getDaemonThreadFactory("index extract"));
+		writeQueue = new LinkedBlockingQueue<ExtractedMessage>(bound);
+		writerThread = new WriterThread();
+		writerThread.start();
+	}
+
+	// blocks while the pipeline is full
+	public void submit(final EmailID emailID) throws InterruptedException {
+		permits.acquire();
+		try {
+			readPool.execute(new Runnable() {
+				public void run() {
+					read(emailID);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			permits.release();
+		}
+	}
+
+	protected void read(final EmailID emailID) {
+		long s = System.nanoTime();
+		final byte[] data;
+		try {
+			InputStream is = Config.getConfig().getArchiver().getRawMessageInputStream(emailID);
+			try {
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = is.read(buffer))>=0)
+					os.write(buffer,0,read);
+				data = os.toByteArray();
+			} finally {
+				is.close();
+			}
+			readStage.record(System.nanoTime()-s);
+		} catch (Throwable t) {
+			fail(emailID,t);
+			return;
+		}
+		try {
+			extractPool.execute(new Runnable() {
+				public void run() {
+					extract(emailID,data);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			permits.release();
+		}
+	}
+
+	protected void extract(EmailID emailID, byte[] data) {
+		long s = System.nanoTime();
+		IndexInfo indexInfo = new IndexInfo();
+		try {
+			Email email = new Email(emailID,new ByteArrayInputStream(data));
+			Document doc = new Document();
+			new DocumentIndex(indexer).write(email,doc,indexInfo);
+			extractStage.record(System.nanoTime()-s);
+			writeQueue.put(new ExtractedMessage(emailID,doc,indexInfo));
+		} catch (Throwable t) {
+			indexInfo.cleanup();
+			fail(emailID,t);
+		}
+	}
+
+	protected void fail(EmailID emailID, Throwable t) {
+		failed.incrementAndGet();
+		logger.debug("failed to index message {"+emailID+"}:"+t.getMessage());
+		permits.release();
+	}
+
+	// wait until every submitted message has been written (or has failed)
+	public void drain() throws IOException, InterruptedException {
+		permits.acquire(bound);
+		permits.release(bound);
+		if (writeError!=null)
+			throw writeError;
+	}
+
+	public void shutdown() {
+		readPool.shutdownNow();
+		extractPool.shutdownNow();
+		writerThread.interrupt();
+		try { writerThread.join(10000); } catch (InterruptedException ie) {}
+		logger.debug("index pipeline shutdown "+getStatistics());
+	}
+
+	public long getWritten() { return writeStage.getCount(); }
+
+	public long getFailed() { return failed.get(); }
+
+	public String getStatistics() {
+		return "{"+readStage+","+extractStage+","+writeStage+",failed='"+failed.get()+"'}";
+	}
+
+	public String getThroughput() {
+		return readStage.getName()+" "+readStage.formatRate()+"/s, "+
+			   extractStage.getName()+" "+extractStage.formatRate()+"/s, "+
+			   writeStage.getName()+" "+writeStage.formatRate()+"/s";
+	}
+
+	protected class WriterThread extends Thread {
+
+		public WriterThread() {
+			setName("index write");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<ExtractedMessage> batch = new ArrayList<ExtractedMessage>(WRITE_BATCH_SIZE);
+			try {
+				while (!isInterrupted()) {
+					batch.add(writeQueue.take());
+					writeQueue.drainTo(batch,WRITE_BATCH_SIZE-1);
+					for (ExtractedMessage message : batch) {
+						long s = System.nanoTime();
+						try {
+							if (writeError==null) {
+								writer.addDocument(message.doc,AnalyzerFactory.getAnalyzer(indexer.getIndexLanguage(),AnalyzerFactory.Operation.INDEX));
+								writeStage.record(System.nanoTime()-s);
+							} else {
+								failed.incrementAndGet();
+							}
+						} catch (IOException io) {
+							logger.error("failed to write to shadow index:"+io.getMessage(),io);
+							writeError = io;
+							failed.incrementAndGet();
+						} catch (Throwable t) {
+							failed.incrementAndGet();
+							logger.debug("failed to index message {"+message.emailID+"}:"+t.getMessage());
+						} finally {
+							message.indexInfo.cleanup();
+							permits.release();
+						}
+					}
+					batch.clear();
+				}
+			} catch (InterruptedException ie) {
+			}
+		}
+	}
+
+	protected static class ExtractedMessage {
+
+		EmailID emailID;
+		Document doc;
+		IndexInfo indexInfo;
+
+		public ExtractedMessage(EmailID emailID, Document doc, IndexInfo indexInfo) {
+			this.emailID = emailID;
+			this.doc = doc;
+			this.indexInfo = indexInfo;
+		}
+	}
+
+	// per stage message count and busy time
+
+	protected static class Stage {
+
+		String name;
+		long startTime = System.currentTimeMillis();
+		AtomicLong count = new AtomicLong(0);
+		AtomicLong busyTime = new AtomicLong(0); // nanoseconds
+
+		public Stage(String name) {
+			this.name = name;
+		}
+
+		public void record(long elapsed) {
+			count.incrementAndGet();
+			busyTime.addAndGet(elapsed);
+		}
+
+		public String getName() { return name; }
+
+		public long getCount() { return count.get(); }
+
+		// messages per second since the pipeline started
+		public double getRate() {
+			long elapsed = System.currentTimeMillis()-startTime;
+			return elapsed<=0 ? 0 : (count.get()*1000.0)/elapsed;
+		}
+
+		public String formatRate() {
+			return String.format("%.1f",getRate());
+		}
+
+		// average time spent on a message by one worker
+		public double getAverageTime() {
+			long c = count.get();
+			return c==0 ? 0 : busyTime.get()/1000000.0/c;
+		}
+
+		@Override
+		public String toString() {
+			return name+"='"+count.get()+" msgs,"+formatRate()+"/s,"+String.format("%.2f",getAverageTime())+"ms avg'";
+		}
+	}
+}
@@ -0,0 +1,463 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.index;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.*;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import com.stimulus.archiva.domain.*;
+import com.stimulus.archiva.exception.*;
+import com.stimulus.archiva.language.AnalyzerFactory;
+import com.stimulus.archiva.search.*;
+
+/*
+ * Rebuilds the index of a volume into a shadow directory next to the live index, so that the
+ * volume remains searchable while it is reindexed. Messages are fed from the store through an
+ * IndexPipeline into the shadow index. While the rebuild runs, the live volume index
+ * journals the messages it indexes or deletes, and these are replayed into the shadow index
+ * before the two directories are swapped and the searchers reopened.
+ *
+ * The store is walked one top level directory at a time. The directories completed so far and
+ * the replayed journal offset are stored in the commit user data of the shadow index, so that
+ * after a crash or shutdown the rebuild resumes from its last commit.
+ */
+
+public class IndexRebuild extends Thread {
+
+	protected static final Log logger = LogFactory.getLog(IndexRebuild.class.getName());
+	protected static final String SHADOW_SUFFIX 	= ".rebuild";
+	protected static final String OLD_SUFFIX 		= ".old";
+	protected static final String SHADOW_INDEX 		= "index";
+	protected static final String JOURNAL_FILE 		= "journal";
+	protected static final String COMPLETED_KEY 	= "rebuild.completed";
+	protected static final String REPLAYED_KEY 		= "rebuild.replayed";
+	protected static final String FINISHED_KEY 		= "rebuild.finished";
+	protected static final char JOURNAL_ADD			= 'A';
+	protected static final char JOURNAL_DELETE		= 'D';
+
+	protected Volume volume;
+	protected VolumeIndex volumeIndex;
+	protected Indexer indexer;
+	protected File indexDir;
+	protected File oldDir;
+	protected File shadowDir;
+	protected File shadowIndexDir;
+	protected File journalFile;
+	protected IndexWriter writer = null;
+	protected ArchivaAnalyzer analyzer = new ArchivaAnalyzer();
+	protected OutputStream journal = null; // guarded by volumeIndex.indexLock
+	protected Set<String> completed = new TreeSet<String>();
+	protected long replayed = 0;
+	protected long lastCheckpoint = System.currentTimeMillis();
+	protected volatile boolean stopped = false;
+
+	// progress
+	protected long startTime = System.currentTimeMillis();
+	protected long estimatedTotal = 0;
+	protected long resumedDocs = 0;
+	protected IndexPipeline pipeline = null;
+	protected AtomicLong replayedDocs = new AtomicLong(0);
+	protected AtomicLong replayFailed = new AtomicLong(0);
+
+	public IndexRebuild(Indexer indexer, VolumeIndex volumeIndex) {
+		this.indexer = indexer;
+		this.volumeIndex = volumeIndex;
+		this.volume = volumeIndex.volume;
+		indexDir = new File(volume.getIndexPath()).getAbsoluteFile();
+		oldDir = new File(indexDir.getParentFile(),indexDir.getName()+OLD_SUFFIX);
+		shadowDir = new File(indexDir.getParentFile(),indexDir.getName()+SHADOW_SUFFIX);
+		shadowIndexDir = new File(shadowDir,SHADOW_INDEX);
+		journalFile = new File(shadowDir,JOURNAL_FILE);
+		setName("index rebuild "+indexDir.getName());
+		setDaemon(true);
+	}
+
+	// true if a rebuild or index swap was interrupted and must be resumed
+	public static boolean isPending(Volume volume) {
+		File indexDir = new File(volume.getIndexPath()).getAbsoluteFile();
+		return new File(indexDir.getParentFile(),indexDir.getName()+SHADOW_SUFFIX).exists() ||
+			   new File(indexDir.getParentFile(),indexDir.getName()+OLD_SUFFIX).exists();
+	}
+
+	/*
+	 * Opens (or resumes) the shadow index and starts journaling live index changes. This is done
+	 * before the rebuild thread is started, so that no message indexed in the meantime is missed.
+	 */
+	public void begin() throws MessageSearchException {
+		try {
+			recoverSwap();
+			if (IndexReader.indexExists(shadowIndexDir)) {
+				Map<?,?> data = IndexReader.getCommitUserData(FSDirectory.open(shadowIndexDir));
+				String completedDirs = (String)data.get(COMPLETED_KEY);
+				if (completedDirs!=null && completedDirs.length()>0)
+					completed.addAll(Arrays.asList(completedDirs.split(",")));
+				String replayedOffset = (String)data.get(REPLAYED_KEY);
+				if (replayedOffset!=null)
+					replayed = Long.parseLong(replayedOffset);
+				writer = openWriter(false);
+				resumedDocs = writer.numDocs();
+				logger.info("resuming index rebuild {completedDirs='"+completed.size()+"',docs='"+resumedDocs+"',"+volume+"}");
+			} else {
+				deleteDirectory(shadowDir);
+				if (!shadowIndexDir.mkdirs())
+					throw new MessageSearchException("failed to create shadow index directory {location='"+shadowIndexDir+"'}",logger);
+				writer = openWriter(true);
+				logger.info("starting index rebuild {location='"+shadowIndexDir+"',"+volume+"}");
+			}
+			estimatedTotal = volume.getTotalMessageCount();
+		} catch (IOException io) {
+			closeWriter(false);
+			throw new MessageSearchException("failed to open shadow index {location='"+shadowIndexDir+"'}",io,logger);
+		}
+		try {
+			lockIndex();
+			try {
+				journal = new FileOutputStream(journalFile,true);
+				volumeIndex.rebuild = this;
+			} finally {
+				volumeIndex.indexLock.unlock();
+			}
+		} catch (IOException io) {
+			closeWriter(false);
+			throw new MessageSearchException("failed to open index rebuild journal {location='"+journalFile+"'}",io,logger);
+		} catch (MessageSearchException mse) {
+			closeWriter(false);
+			throw mse;
+		}
+	}
+
+	protected IndexWriter openWriter(boolean create) throws IOException {
+		IndexWriter indexWriter = new IndexWriter(FSDirectory.getDirectory(shadowIndexDir),analyzer,create,new IndexWriter.MaxFieldLength(50000));
+		indexWriter.setRAMBufferSizeMB(indexer.getIndexRebuildRAMBufferSize());
+		return indexWriter;
+	}
+
+	@Override
+	public void run() {
+		pipeline = new IndexPipeline(indexer,writer,Config.getConfig().getArchiver().getArchiveThreads(),indexer.getIndexThreads());
+		try {
+			indexStore();
+			if (stopped)
+				return;
+			replayJournal();
+			swapIndex();
+			logger.info("index rebuild complete {indexed='"+getProgress()+"',failed='"+getFailed()+"',"+volume+"}");
+		} catch (Throwable t) {
+			if (stopped) {
+				logger.info("index rebuild stopped. it will resume from its last checkpoint {"+volume+"}");
+			} else {
+				logger.error("index rebuild failed. the live index is unchanged {"+volume+"}:"+t.getMessage(),t);
+				abort();
+			}
+		} finally {
+			pipeline.shutdown();
+			logger.info("index rebuild statistics "+pipeline.getStatistics());
+			if (stopped) {
+				closeWriter(false);
+				release();
+			}
+		}
+	}
+
+	// walk the store one top level directory at a time, checkpointing as directories complete
+
+	protected void indexStore() throws IOException, InterruptedException, ProcessException {
+		File[] dirs = new File(volume.getPath()).listFiles();
+		if (dirs==null)
+			throw new IOException("failed to list volume store directory {location='"+volume.getPath()+"'}");
+		Arrays.sort(dirs);
+		for (File dir : dirs) {
+			if (stopped)
+				return;
+			if (!dir.isDirectory() || completed.contains(dir.getName()))
+				continue;
+			Config.getConfig().getArchiver().processMessages(new RebuildMessage(volume),dir);
+			// wait for the directory to be fully written before recording it
+			pipeline.drain();
+			if (stopped)
+				return;
+			completed.add(dir.getName());
+			if (System.currentTimeMillis()-lastCheckpoint>=indexer.getIndexCommitInterval())
+				checkpoint(false);
+		}
+		checkpoint(false);
+	}
+
+	// replace a message in the shadow index with its current version in the store
+	protected void reindexMessage(EmailID emailID) throws Exception {
+		Email email = Config.getConfig().getArchiver().retrieveMessage(emailID);
+		Document doc = new Document();
+		IndexInfo indexInfo = new IndexInfo();
+		try {
+			new DocumentIndex(indexer).write(email,doc,indexInfo);
+			writer.updateDocument(new Term("uid",emailID.getUniqueID()),doc,AnalyzerFactory.getAnalyzer(indexer.getIndexLanguage(),AnalyzerFactory.Operation.INDEX));
+			replayedDocs.incrementAndGet();
+		} finally {
+			indexInfo.cleanup();
+		}
+	}
+
+	protected void checkpoint(boolean finished) throws IOException {
+		StringBuilder completedDirs = new StringBuilder();
+		for (String dir : completed) {
+			if (completedDirs.length()>0)
+				completedDirs.append(',');
+			completedDirs.append(dir);
+		}
+		Map<String,String> data = new HashMap<String,String>();
+		data.put(COMPLETED_KEY,completedDirs.toString());
+		data.put(REPLAYED_KEY,Long.toString(replayed));
+		if (finished)
+			data.put(FINISHED_KEY,"yes");
+		writer.commit(data);
+		lastCheckpoint = System.currentTimeMillis();
+		logger.debug("index rebuild checkpoint {completedDirs='"+completed.size()+"',docs='"+getProgress()+"',"+volume+"}");
+	}
+
+	// journal live index changes (called by the volume index with indexLock held)
+
+	protected void journalAdd(EmailID emailID) {
+		journal(JOURNAL_ADD,emailID);
+	}
+
+	protected void journalDelete(EmailID emailID) {
+		journal(JOURNAL_DELETE,emailID);
+	}
+
+	protected void journal(char op, EmailID emailID) {
+		try {
+			journal.write((op+" "+emailID.getUniqueID()+"\n").getBytes("UTF-8"));
+		} catch (IOException io) {
+			logger.error("failed to journal index change {"+emailID+"}:"+io.getMessage(),io);
+		}
+	}
+
+	// apply journal entries written since the last replay to the shadow index
+
+	protected void replayJournal() throws IOException {
+		RandomAccessFile in = new RandomAccessFile(journalFile,"r");
+		try {
+			in.seek(replayed);
+			String line;
+			while ((line = in.readLine())!=null && line.length()>2) {
+				// stop at an entry that is still being written
+				in.seek(in.getFilePointer()-1);
+				if (in.read()!='\n')
+					break;
+				EmailID emailID = EmailID.getEmailID(volume,line.substring(2));
+				try {
+					if (line.charAt(0)==JOURNAL_DELETE)
+						writer.deleteDocuments(new Term("uid",emailID.getUniqueID()));
+					else
+						reindexMessage(emailID);
+				} catch (Exception e) {
+					replayFailed.incrementAndGet();
+					logger.debug("failed to replay index change {"+emailID+"}:"+e.getMessage());
+				}
+				replayed = in.getFilePointer();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Holding the volume index lock, replay the remainder of the journal, close both writers and
+	 * swap the directories. Searches in flight keep their readers on the old index until released.
+	 */
+	protected void swapIndex() throws IOException, MessageSearchException {
+		lockIndex();
+		try {
+			replayJournal();
+			checkpoint(true);
+			closeWriter(true);
+			detach();
+			volumeIndex.closeIndex();
+			swapDirectories();
+			VolumeSearcherManager.close(volume);
+			volume.updateUsedIndexSpace();
+		} finally {
+			volumeIndex.indexLock.unlock();
+		}
+	}
+
+	protected void swapDirectories() throws IOException {
+		deleteDirectory(oldDir);
+		if (indexDir.exists() && !indexDir.renameTo(oldDir))
+			throw new IOException("failed to move live index aside {location='"+indexDir+"'}");
+		if (!shadowIndexDir.renameTo(indexDir)) {
+			oldDir.renameTo(indexDir);
+			throw new IOException("failed to move shadow index into place {location='"+shadowIndexDir+"'}");
+		}
+		deleteDirectory(oldDir);
+		deleteDirectory(shadowDir);
+		logger.info("swapped rebuilt index into place {location='"+indexDir+"'}");
+	}
+
+	// complete or undo a swap that was interrupted by a crash
+
+	protected void recoverSwap() throws IOException {
+		if (!oldDir.exists())
+			return;
+		if (!indexDir.exists()) {
+			if (IndexReader.indexExists(shadowIndexDir) &&
+				IndexReader.getCommitUserData(FSDirectory.open(shadowIndexDir)).get(FINISHED_KEY)!=null) {
+				logger.info("completing interrupted index swap {location='"+indexDir+"'}");
+				if (shadowIndexDir.renameTo(indexDir))
+					deleteDirectory(shadowDir);
+			} else {
+				logger.info("restoring live index after interrupted swap {location='"+indexDir+"'}");
+				oldDir.renameTo(indexDir);
+			}
+		}
+		deleteDirectory(oldDir);
+	}
+
+	protected void abort() {
+		release();
+		closeWriter(false);
+		deleteDirectory(shadowDir);
+	}
+
+	// stop journaling live index changes
+	protected void release() {
+		try {
+			lockIndex();
+			try {
+				detach();
+			} finally {
+				volumeIndex.indexLock.unlock();
+			}
+		} catch (Exception e) {
+			logger.error("failed to detach index rebuild {"+volume+"}:"+e.getMessage(),e);
+		}
+	}
+
+	// caller must hold volumeIndex.indexLock
+	protected void detach() {
+		if (volumeIndex.rebuild==this)
+			volumeIndex.rebuild = null;
+		try {
+			if (journal!=null)
+				journal.close();
+		} catch (IOException io) {
+			logger.error("failed to close index rebuild journal:"+io.getMessage(),io);
+		}
+		journal = null;
+	}
+
+	protected void closeWriter(boolean commit) {
+		if (writer==null)
+			return;
+		try {
+			if (commit)
+				writer.close();
+			else
+				writer.rollback(); // discard changes since the last checkpoint
+		} catch (Exception e) {
+			logger.error("failed to close shadow index writer:"+e.getMessage(),e);
+		}
+		writer = null;
+	}
+
+	protected void lockIndex() throws MessageSearchException {
+		try {
+			boolean isLocked = volumeIndex.indexLock.tryLock(10,TimeUnit.MINUTES);
+			if (!isLocked)
+				throw new MessageSearchException("failed to lock index for rebuild. could not acquire lock on index.",logger);
+		} catch (InterruptedException ie) {
+			throw new MessageSearchException("failed to lock index for rebuild. interrupted.",logger);
+		}
+	}
+
+	protected static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files!=null) {
+			for (File file : files) {
+				if (file.isDirectory())
+					deleteDirectory(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	// stop the rebuild, leaving the shadow index at its last checkpoint
+	public void shutdown() {
+		stopped = true;
+		interrupt();
+		try { join(30000); } catch (InterruptedException ie) {}
+	}
+
+	// messages indexed since the rebuild was started or resumed
+	protected long getIndexed() {
+		IndexPipeline p = pipeline;
+		return (p!=null ? p.getWritten() : 0)+replayedDocs.get();
+	}
+
+	public long getProgress() { return resumedDocs+getIndexed(); }
+
+	public long getEstimatedTotal() { return estimatedTotal; }
+
+	public long getFailed() {
+		IndexPipeline p = pipeline;
+		return (p!=null ? p.getFailed() : 0)+replayFailed.get();
+	}
+
+	// messages indexed per second since the rebuild was started or resumed
+	public double getRate() {
+		long elapsed = System.currentTimeMillis()-startTime;
+		return elapsed<=0 ? 0 : (getIndexed()*1000.0)/elapsed;
+	}
+
+	// throughput of the read, extract and write stages
+	public String getThroughput() {
+		IndexPipeline p = pipeline;
+		return p!=null ? p.getThroughput() : "";
+	}
+
+	// estimated seconds remaining, or -1 if unknown
+	public long getRemainingTime() {
+		double rate = getRate();
+		long remaining = estimatedTotal-getProgress();
+		if (rate<=0 || remaining<=0)
+			return -1;
+		return (long)(remaining/rate);
+	}
+
+	public class RebuildMessage extends Archiver.ProcessMessage {
+
+		public RebuildMessage(Volume volume) {
+			super(volume);
+		}
+
+		public void process(EmailID emailID) throws ProcessException {
+			if (stopped)
+				return;
+			try {
+				pipeline.submit(emailID);
+			} catch (InterruptedException ie) {
+				stopped = true;
+			}
+		}
+	}
+}
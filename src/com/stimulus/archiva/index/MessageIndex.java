@@ -56,8 +56,25 @@ public class MessageIndex extends Indexer implements Serializable {
 		 for (VolumeIndex volumeIndex : volumeIndexes.values()) {
 			 volumeIndex.startup();
 		 }
+		 resumeRebuilds();
 		 serviceDelegate.startup();
 	 }
+	 
+	 // resume shadow rebuilds interrupted by a crash or shutdown
+	 protected void resumeRebuilds() {
+		 Volumes volumes = Config.getConfig().getVolumes();
+		 if (volumes==null)
+			 return;
+		 for (Volume volume : volumes.getVolumes()) {
+			 if (volume.getIndexPath().startsWith("rmi://") || !IndexRebuild.isPending(volume))
+				 continue;
+			 try {
+				 rebuildIndex(volume);
+			 } catch (Exception e) {
+				 logger.error("failed to resume index rebuild {"+volume+"}:"+e.getMessage(),e);
+			 }
+		 }
+	 }
 	
 	 public void prepareShutdown() {
 		 serviceDelegate.prepareShutdown();
@@ -69,9 +86,37 @@ public class MessageIndex extends Indexer implements Serializable {
 			 if (volumeIndex!=null)
 				 volumeIndex.shutdown();
 		 }
+		 VolumeSearcherManager.closeAll();
+		 logger.info("extraction cache statistics "+ExtractionCache.getStatistics());
+		 logger.info("extraction statistics "+ExtractionPool.getStatistics());
 		 serviceDelegate.shutdown();
 	 }
 	 
+	 public void setIndexExtractionCacheSize(int indexExtractionCacheSize) {
+		 super.setIndexExtractionCacheSize(indexExtractionCacheSize);
+		 ExtractionCache.setCapacity((long)Math.max(0,indexExtractionCacheSize)*1024*1024);
+	 }
+	 
+	 public void setIndexExtractionTimeout(int indexExtractionTimeout) {
+		 super.setIndexExtractionTimeout(indexExtractionTimeout);
+		 ExtractionPool.setTimeout((long)Math.max(0,indexExtractionTimeout)*1000);
+	 }
+	 
+	 public void setIndexExtractionMaxSize(int indexExtractionMaxSize) {
+		 super.setIndexExtractionMaxSize(indexExtractionMaxSize);
+		 ExtractionPool.setMaxChars((long)Math.max(0,indexExtractionMaxSize)*1024);
+	 }
+	 
+	 public void setIndexExtractionThreads(int indexExtractionThreads) {
+		 super.setIndexExtractionThreads(indexExtractionThreads);
+		 ExtractionPool.setTypeThreads(indexExtractionThreads);
+	 }
+	 
+	 public void setIndexExtractionBufferSize(int indexExtractionBufferSize) {
+		 super.setIndexExtractionBufferSize(indexExtractionBufferSize);
+		 ExtractionBuffer.setThreshold(Math.max(0,indexExtractionBufferSize)*1024);
+	 }
+	 
 	 public void reloadConfig() {
 		 serviceDelegate.reloadConfig();
 	 }
@@ -85,6 +130,26 @@ public class MessageIndex extends Indexer implements Serializable {
 		  VolumeIndex volumeIndex = getVolumeIndex(volume);
 		  volumeIndex.deleteIndex();
 	}
+	
+	// rebuild the volume index in the background while the live index continues to serve searches
+	public void rebuildIndex(Volume volume) throws MessageSearchException {
+		  VolumeIndex volumeIndex = getVolumeIndex(volume);
+		  synchronized (volumeIndex) {
+			  IndexRebuild rebuild = volumeIndex.getRebuild();
+			  if (rebuild!=null && rebuild.isAlive()) {
+				  logger.warn("index rebuild is already in progress {"+volume+"}");
+				  return;
+			  }
+			  rebuild = new IndexRebuild(this,volumeIndex);
+			  rebuild.begin();
+			  rebuild.start();
+		  }
+	}
+	
+	public IndexRebuild getRebuild(Volume volume) {
+		  VolumeIndex volumeIndex = volumeIndexes.get(volume);
+		  return volumeIndex!=null ? volumeIndex.getRebuild() : null;
+	}
 		 
  	
 	public VolumeIndex getVolumeIndex(Volume volume) {
@@ -35,6 +35,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.AlreadyClosedException;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,10 +44,12 @@ public class VolumeIndex extends Thread {
 	
 		 protected static final Log logger = LogFactory.getLog(VolumeIndex.class.getName());
 		 public static final int indexOpenTime = 2000;
+		 protected static final double RAM_BUFFER_COMMIT_RATIO = 0.8; // commit before lucene flushes the buffer
 	   	 IndexWriter writer = null;
 	   	 Volume volume;
-	   	  protected static ScheduledExecutorService scheduler;
-		 protected static ScheduledFuture<?> scheduledTask;
+	   	 protected ScheduledExecutorService scheduler;
+		 protected ScheduledFuture<?> scheduledTask;
+		 protected boolean shutdownHookRegistered = false;
 		 
 		 ReentrantLock indexLock = new ReentrantLock();
 		 ArchivaAnalyzer analyzer 	= new ArchivaAnalyzer();
@@ -54,6 +57,20 @@ public class VolumeIndex extends Thread {
 		 File indexLogFile;
 		 PrintStream indexLogOut;
 		 
+		 // commit policy state (guarded by indexLock)
+		 int uncommittedDocs = 0;
+		 long lastCommitTime = System.currentTimeMillis();
+		 
+		 // ingest statistics
+		 long statsStartTime = System.currentTimeMillis();
+		 AtomicLong indexedDocs = new AtomicLong(0);
+		 AtomicLong commits = new AtomicLong(0);
+		 AtomicLong totalCommitTime = new AtomicLong(0);
+		 AtomicLong maxCommitTime = new AtomicLong(0);
+		 
+		 // shadow rebuild in progress, if any (guarded by indexLock)
+		 volatile IndexRebuild rebuild = null;
+		 
 	  	  public VolumeIndex(Indexer indexer, Volume volume) {
 	  		  logger.debug("creating new volume index {"+volume+"}");
 	  		  this.volume = volume;
@@ -99,6 +116,9 @@ public class VolumeIndex extends Thread {
 				  openIndex();
 				  try {
 					  writer.deleteDocuments(new Term("uid",emailID.getUniqueID()));
+					  uncommittedDocs++;
+					  if (rebuild!=null)
+						  rebuild.journalDelete(emailID);
 				  } catch (Exception e) {
 					  throw new MessageSearchException("failed to delete email from index.",e,logger);
 				  } 
@@ -134,9 +154,14 @@ public class VolumeIndex extends Thread {
 					try {
 							FSDirectory fsDirectory = FSDirectory.getDirectory(volume.getIndexPath());
 							writer = new IndexWriter(fsDirectory,analyzer,new IndexWriter.MaxFieldLength(50000));
+							if (isPersistentWriter()) {
+								writer.setRAMBufferSizeMB(indexer.getIndexRAMBufferSize());
+							}
 							if (logger.isDebugEnabled() && indexLogOut!=null) {
 								writer.setInfoStream(indexLogOut);
 							}
+							uncommittedDocs = 0;
+							lastCommitTime = System.currentTimeMillis();
 					} catch (LockObtainFailedException lobfe) {
 							logger.debug("write lock on index. will reopen in 50ms.");
 							try { Thread.sleep(50); } catch (Exception e) {}
@@ -181,6 +206,13 @@ public class VolumeIndex extends Thread {
 					}
 		   			openIndex();
 		   			writer.addDocument(doc,AnalyzerFactory.getAnalyzer(language,AnalyzerFactory.Operation.INDEX));
+		   			indexedDocs.incrementAndGet();
+		   			uncommittedDocs++;
+		   			if (rebuild!=null)
+		   				rebuild.journalAdd(message.getEmailId());
+		   			if (isPersistentWriter() && uncommittedDocs>=indexer.getIndexCommitDocs()) {
+		   				commitIndex();
+		   			}
 			    } catch (InterruptedException ie) {
 					 throw new MessageSearchException("failed to write email to index. interrupted.",logger);
 				} finally {
@@ -219,19 +251,119 @@ public class VolumeIndex extends Thread {
 		         if (writer==null)
 		        		return;
 		         try {
+		        	long s = System.currentTimeMillis();
 		        	writer.close();
+		        	if (uncommittedDocs>0) {
+		        		recordCommit(System.currentTimeMillis()-s);
+		        		VolumeSearcherManager.refresh(volume);
+		        		volume.updateUsedIndexSpace();
+		        	}
 				    logger.debug("writer closed");
 				 } catch (Exception io) {
 					logger.error("failed to close index writer:"+io.getMessage(),io);
 
 				 }
 				 writer = null;
+				 uncommittedDocs = 0;
 	 		} catch (InterruptedException ie) {
 				 logger.error("failed to close index. interrupted.");
 			} finally {
 				  indexLock.unlock();
 			}		
 	   	}
+		
+		/* 
+		 * Commit pending documents without closing the writer. The caller must hold indexLock.
+		 */
+		protected void commitIndex() throws IOException {
+			if (writer==null || uncommittedDocs==0)
+				return;
+			long s = System.currentTimeMillis();
+			writer.commit();
+			long elapsed = System.currentTimeMillis()-s;
+			logger.debug("index committed {docs='"+uncommittedDocs+"',time='"+elapsed+"ms',"+volume+"}");
+			uncommittedDocs = 0;
+			lastCommitTime = System.currentTimeMillis();
+			recordCommit(elapsed);
+			VolumeSearcherManager.refresh(volume);
+			volume.updateUsedIndexSpace();
+		}
+		
+		/* 
+		 * Called periodically by the scheduler. In persistent writer mode, the writer is left
+		 * open and only committed when the commit interval has elapsed or the RAM buffer is nearly
+		 * full. Lucene flushes the buffer itself once it is full, so the check is made against a
+		 * fraction of the buffer, or it would never be met.
+		 * Otherwise (or once the volume is no longer active) the writer is closed as before.
+		 */
+		protected void maintainIndex() {
+			if (!isPersistentWriter()) {
+				closeIndex();
+				return;
+			}
+			try {
+	 			 boolean isLocked = indexLock.tryLock(10,TimeUnit.MINUTES);
+				 if (!isLocked) {
+					 logger.error("failed to commit index. could not acquire lock on index.");
+					 return;
+				 }
+				 try {
+					 if (writer==null || uncommittedDocs==0)
+						 return;
+					 long ramBufferBytes = (long)(indexer.getIndexRAMBufferSize()*1024*1024*RAM_BUFFER_COMMIT_RATIO);
+					 if (System.currentTimeMillis()-lastCommitTime>=indexer.getIndexCommitInterval() || 
+						 writer.ramSizeInBytes()>=ramBufferBytes) {
+						 commitIndex();
+					 }
+				 } catch (AlreadyClosedException ace) {
+					 writer = null;
+				 } catch (Exception e) {
+					 logger.error("failed to commit index writer:"+e.getMessage(),e);
+				 } finally {
+					 indexLock.unlock();
+				 }
+	 		} catch (InterruptedException ie) {
+				 logger.error("failed to commit index. interrupted.");
+			}
+		}
+		
+		protected boolean isPersistentWriter() {
+			return indexer.getIndexPersistentWriter() && volume.getStatus()==Volume.Status.ACTIVE;
+		}
+		
+		protected void recordCommit(long elapsed) {
+			commits.incrementAndGet();
+			totalCommitTime.addAndGet(elapsed);
+			long max = maxCommitTime.get();
+			while (elapsed>max && !maxCommitTime.compareAndSet(max,elapsed)) {
+				max = maxCommitTime.get();
+			}
+		}
+		
+		public IndexRebuild getRebuild() { return rebuild; }
+		
+		public long getIndexedDocs() { return indexedDocs.get(); }
+		
+		public long getCommits() { return commits.get(); }
+		
+		public long getMaxCommitTime() { return maxCommitTime.get(); }
+		
+		public long getAverageCommitTime() {
+			long c = commits.get();
+			return c==0 ? 0 : totalCommitTime.get()/c;
+		}
+		
+		// documents indexed per second since startup
+		public double getIngestRate() {
+			long elapsed = System.currentTimeMillis()-statsStartTime;
+			return elapsed<=0 ? 0 : (indexedDocs.get()*1000.0)/elapsed;
+		}
+		
+		public String getStatistics() {
+			return "{"+volume+",persistentWriter='"+isPersistentWriter()+"',indexedDocs='"+getIndexedDocs()+"',docsPerSec='"+
+				   String.format("%.2f",getIngestRate())+"',commits='"+getCommits()+"',avgCommitTime='"+getAverageCommitTime()+
+				   "ms',maxCommitTime='"+getMaxCommitTime()+"ms'}";
+		}
 	
 		  public void deleteIndex() throws MessageSearchException {
 			  	 logger.debug("delete index {indexpath='"+volume.getIndexPath()+"'}");
@@ -240,6 +372,7 @@ public class VolumeIndex extends Thread {
 					 if (!isLocked) {
 						 throw new MessageSearchException("failed to close index. could not acquire lock on index.",logger);
 					 }
+					 closeIndex();
 					 try {
 						  writer = new IndexWriter(FSDirectory.getDirectory(volume.getIndexPath()),false, analyzer,true);
 					 } catch (Exception cie) {
@@ -251,7 +384,11 @@ public class VolumeIndex extends Thread {
 	              	 } catch (Exception e) {
 	              		logger.error("failed to delete index {index='"+volume.getIndexPath()+"'}",e);
 	              	 }
-	              	 MessageIndex.volumeIndexes.remove(this);
+	              	 writer = null;
+	              	 VolumeSearcherManager.refresh(volume);
+	              	 if (scheduler!=null)
+	              		 scheduler.shutdownNow();
+	              	 MessageIndex.volumeIndexes.remove(volume);
 		  		} catch (InterruptedException ie) {
 					 throw new MessageSearchException("failed to delete email from index. interrupted.",logger);
 				} finally {
@@ -270,21 +407,30 @@ public class VolumeIndex extends Thread {
 				logger.warn("if you are running more than one indexer, your index could be subject to corruption.");
 				lockFile.delete();
 			}
+			if (scheduler!=null)
+				scheduler.shutdownNow();
 			scheduler = Executors.newScheduledThreadPool(1);
 			scheduledTask = scheduler.scheduleWithFixedDelay(new TimerTask() {
 	            @Override
 				public void run() {
-	             	closeIndex();
+	             	maintainIndex();
 	            }
 	        }, indexOpenTime, indexOpenTime,TimeUnit.MILLISECONDS);
-			Runtime.getRuntime().addShutdownHook(this);
+			if (!shutdownHookRegistered) {
+				Runtime.getRuntime().addShutdownHook(this);
+				shutdownHookRegistered = true;
+			}
 			
 		  }
 		  
 		  public void shutdown() {
 			  logger.debug("volumeindex is shutting down");
+			  IndexRebuild r = rebuild;
+			  if (r!=null)
+				  r.shutdown();
 			  scheduler.shutdownNow();
 		      closeIndex();
+		      logger.info("volume index statistics "+getStatistics());
 		  }
 		  
 		  @Override
@@ -32,7 +32,6 @@ package com.stimulus.archiva.language;
 // JDK imports
 import java.io.*;
 import java.util.*;
-import com.stimulus.archiva.language.NGramProfile.NGramEntry;
 import org.apache.commons.logging.*;
 
 
@@ -49,24 +48,16 @@ private final static int MINIMUM_SAMPLE_LENGTH = 300;
   
   protected static final Log logger = LogFactory.getLog(LanguageIdentifier.class.getName());
     
-  private ArrayList languages = new ArrayList();
-
   private ArrayList supportedLanguages = new ArrayList();
 
-  /** Minimum size of NGrams */
-  private int minLength = NGramProfile.DEFAULT_MIN_NGRAM_LENGTH;
-  
-  /** Maximum size of NGrams */
-  private int maxLength = NGramProfile.DEFAULT_MAX_NGRAM_LENGTH;
+  /** Size of NGrams */
+  private int ngramLength = NGramProfile.DEFAULT_MAX_NGRAM_LENGTH;
   
   /** The maximum amount of data to analyze */
   public int analyzeLength = DEFAULT_ANALYSIS_LENGTH;
   
-  /** A global index of ngrams of all supported languages */
-  private HashMap ngramsIdx = new HashMap();
-
-  /** The NGramProfile used for identification */
-  private NGramProfile suspect = null;
+  /** The ngrams of all supported languages, held in arrays so that identification runs in parallel */
+  private NGramModel model = null;
 
   /** My singleton instance */
   private static LanguageIdentifier identifier = null;
@@ -77,76 +68,53 @@ private final static int MINIMUM_SAMPLE_LENGTH = 300;
    */
   public LanguageIdentifier() {
 
-    // Gets ngram sizes to take into account from the Nutch Config
-    minLength = NGramProfile.DEFAULT_MIN_NGRAM_LENGTH;
-    maxLength = NGramProfile.DEFAULT_MAX_NGRAM_LENGTH;
-    // Ensure the min and max values are in an acceptale range
-    // (ie min >= DEFAULT_MIN_NGRAM_LENGTH and max <= DEFAULT_MAX_NGRAM_LENGTH)
-    maxLength = Math.min(maxLength, NGramProfile.ABSOLUTE_MAX_NGRAM_LENGTH);
-    maxLength = Math.max(maxLength, NGramProfile.ABSOLUTE_MIN_NGRAM_LENGTH);
-    minLength = Math.max(minLength, NGramProfile.ABSOLUTE_MIN_NGRAM_LENGTH);
-    minLength = Math.min(minLength, maxLength);
+    // Gets the ngram size to take into account
+    ngramLength = NGramProfile.DEFAULT_MAX_NGRAM_LENGTH;
+    // Ensure the size is in an acceptable range
+    // (ie >= ABSOLUTE_MIN_NGRAM_LENGTH and <= the longest ngram the model packs)
+    ngramLength = Math.min(ngramLength, NGramModel.MAX_LENGTH);
+    ngramLength = Math.max(ngramLength, NGramProfile.ABSOLUTE_MIN_NGRAM_LENGTH);
 
     // Gets the value of the maximum size of data to analyze
     analyzeLength = DEFAULT_ANALYSIS_LENGTH;
     
     Properties p = new Properties();
+    List<NGramProfile> languages = new ArrayList<NGramProfile>();
     try {
         
       p.load(this.getClass().getResourceAsStream("langmappings.properties"));
 
       Enumeration alllanguages = p.keys();
       
-      logger.debug("language identifier configuration {minLength='"+minLength+"',maxLength='"+maxLength+"',analyzeLength='"+analyzeLength+"'}");
+      logger.debug("language identifier configuration {ngramLength='"+ngramLength+"',analyzeLength='"+analyzeLength+"'}");
      
       StringBuffer list = new StringBuffer("language identifier service supports:");
-      HashMap tmpIdx = new HashMap();
       while (alllanguages.hasMoreElements()) {
         String lang = (String) (alllanguages.nextElement());
        
         InputStream is = this.getClass().getClassLoader().getResourceAsStream("com/stimulus/archiva/language/" + lang + "." + NGramProfile.FILE_EXTENSION);
 
         if (is != null) {
-          NGramProfile profile = new NGramProfile(lang, minLength, maxLength);
+          NGramProfile profile = new NGramProfile(lang, ngramLength, ngramLength);
           try {
             profile.load(is);
             languages.add(profile);
             supportedLanguages.add(lang);
-            List ngrams = profile.getSorted();
-            for (int i=0; i<ngrams.size(); i++) {
-                NGramEntry entry = (NGramEntry) ngrams.get(i);
-                List registered = (List) tmpIdx.get(entry);
-                if (registered == null) {
-                    registered = new ArrayList();
-                    tmpIdx.put(entry, registered);
-                }
-                registered.add(entry);
-                entry.setProfile(profile);
-            }
-            list.append(" " + lang + "(" + ngrams.size() + ")");
+            list.append(" " + lang + "(" + profile.getSorted().size() + ")");
             is.close();
           } catch (IOException e1) {
               logger.error("failed to initialize language identifier module",e1);
           }
         }
       }
-      // transform all ngrams lists to arrays for performances
-      Iterator keys = tmpIdx.keySet().iterator();
-      while (keys.hasNext()) {
-        NGramEntry entry = (NGramEntry) keys.next();
-        List l = (List) tmpIdx.get(entry);
-        if (l != null) {
-          NGramEntry[] array = (NGramEntry[]) l.toArray(new NGramEntry[l.size()]);
-          ngramsIdx.put(entry.getSeq(), array);
-        }
-      }
       logger.debug(list.toString());
-    
-      // Create the suspect profile
-      suspect = new NGramProfile("suspect", minLength, maxLength);
     } catch (Exception e) {
       logger.error("failed to initialize language identifier service",e); 
     }
+    
+    // transform all profiles to arrays for performances
+    model = new NGramModel(languages, ngramLength);
+    logger.debug("language identifier model loaded {ngrams='"+model.size()+"'}");
   }
 
 
@@ -161,7 +129,7 @@ private final static int MINIMUM_SAMPLE_LENGTH = 300;
    *         matches the specified content.
    */
   public String identify(String content) {
-    return identify(new StringBuffer(content));
+    return identify((CharSequence) content);
   }
 
   /**
@@ -173,65 +141,59 @@ private final static int MINIMUM_SAMPLE_LENGTH = 300;
    *         language code</a> (en, fi, sv, ...) of the language that best
    *         matches the specified content.
    */
-  public synchronized String identify(StringBuffer content) {
-    //logger.debug("language identification sample:");
-    //logger.debug(content.toString());
-    StringBuffer text = content;
-    if ((analyzeLength > 0) && (content.length() > analyzeLength)) {
-        text = new StringBuffer().append(content);
-        text.setLength(analyzeLength);
+  public String identify(StringBuffer content) {
+    return identify((CharSequence) content);
+  }
+
+  protected String identify(CharSequence content) {
+    int length = content.length();
+    if ((analyzeLength > 0) && (length > analyzeLength)) {
+        length = analyzeLength;
     }
+    return identified(model.identify(content, length));
+  }
 
-    suspect.analyze(text);
-    Iterator iter = suspect.getSorted().iterator();
-    float topscore = Float.MIN_VALUE;
-    String lang = null;
-    HashMap scores = new HashMap();
-    NGramEntry searched = null;
-    
-    while (iter.hasNext()) {
-        searched = (NGramEntry) iter.next();
-        NGramEntry[] ngrams = (NGramEntry[]) ngramsIdx.get(searched.getSeq());
-        if (ngrams != null) {
-            for (int j=0; j<ngrams.length; j++) {
-                NGramProfile profile = ngrams[j].getProfile();
-                Float pScore = (Float) scores.get(profile);
-                if (pScore == null) {
-                    pScore = new Float(0);
-                }
-                float plScore = pScore.floatValue();
-                plScore += ngrams[j].getFrequency() + searched.getFrequency();
-                scores.put(profile, new Float(plScore));
-                if (plScore > topscore) {
-                    topscore = plScore;
-                    lang = profile.getName();
-                }
-            }
-        }
+  /**
+   * Identify language of a sample of content.
+   * 
+   * @param sample holds the content to analyze.
+   * @param offset is the start of the content in the sample.
+   * @param length is the number of characters of content.
+   * @return The 2 letter ISO 639 language code of the language that best
+   *         matches the content, or null if the content is too short.
+   */
+  public String identify(char[] sample, int offset, int length) {
+    if (length<MINIMUM_SAMPLE_LENGTH) {
+    	logger.debug("the sample is too small to reliably detect the language.");
+    	return null;
+    }
+    if ((analyzeLength > 0) && (length > analyzeLength)) {
+        length = analyzeLength;
+    }
+    return identified(model.identify(sample, offset, length));
+  }
+
+  private String identified(String lang) {
+    if (logger.isDebugEnabled()) {
+        logger.debug("document language identified {language='"+lang+"'}");
     }
-    logger.debug("document language identified {language='"+lang+"'}");
     return lang;
   }
  
   public String identify(Reader reader) throws IOException {
 
-    StringBuffer out = new StringBuffer();
-    char[] buffer = new char[2048];
+    char[] sample = new char[analyzeLength > 0 ? analyzeLength : 2048];
+    int length = 0;
     int len = 0;
 
-    while (((len = reader.read(buffer)) != -1) &&
-           ((analyzeLength == 0) || (out.length() < analyzeLength))) {
-      if (analyzeLength != 0) {
-          len = Math.min(len, analyzeLength - out.length());
+    while (((analyzeLength == 0) || (length < sample.length)) &&
+           ((len = reader.read(sample, length, sample.length - length)) != -1)) {
+      length += len;
+      if (length == sample.length && analyzeLength == 0) {
+          sample = Arrays.copyOf(sample, sample.length * 2);
       }
-      out.append(buffer, 0, len);
-    }
-   
-    if (out.length()<MINIMUM_SAMPLE_LENGTH) {
-    	logger.debug("the sample is too small to reliably detect the language.");
-    	return null;
     }
-    return identify(out);
+    return identify(sample, 0, length);
   }
   
   public int getAnalyzeLength() {
@@ -0,0 +1,285 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.language;
+
+import java.io.*;
+import java.util.*;
+import com.stimulus.archiva.language.NGramProfile.NGramEntry;
+
+/*
+ * The ngram profiles of the supported languages, held in arrays. Each ngram is packed into a long,
+ * sixteen bits a character, and looked up in an open addressing hash table. The frequencies of
+ * an ngram in each language are held next to each other. A sample is counted in scratch arrays
+ * that belong to the calling thread, so identification takes no locks and, once the arrays of
+ * a thread are sized, allocates nothing. The scores are calculated as they are with the profiles:
+ * the most frequent ngrams of the sample are scored in order of frequency (then sequence), and the
+ * first language to reach the top score is chosen.
+ */
+
+public class NGramModel implements Serializable {
+
+	private static final long serialVersionUID = 2894370419287367812L;
+	public static final int MAX_LENGTH = 3; // characters packed into an ngram code
+	protected static final long EMPTY = 0; // no ngram packs to zero, as it never starts with a null character
+	protected static final float ABSENT = -1;
+	protected static final int MAX_COUNT = 0x7fff; // counts held in the sort keys of the sample
+	protected static final long CODE_MASK = (1L<<(MAX_LENGTH*16))-1;
+
+	protected String[] languages;
+	protected int length;
+	protected long codeMask;
+	protected long[] keys;
+	protected int[] ids;
+	protected float[] frequencies; // frequencies[id*languages.length+language]
+	protected transient ThreadLocal<Scratch> scratch = newScratch();
+
+	/**
+	 * Build a model from language profiles
+	 * @param profiles The language profiles, in the order in which ties are settled
+	 * @param length The length of the ngrams the profiles were loaded with
+	 */
+
+	public NGramModel(List<NGramProfile> profiles, int length) {
+		if (length<1 || length>MAX_LENGTH)
+			throw new IllegalArgumentException("ngram length must be between 1 and "+MAX_LENGTH+" {length='"+length+"'}");
+		this.length = length;
+		this.codeMask = (1L<<(length*16))-1;
+		languages = new String[profiles.size()];
+		List<List> sorted = new ArrayList<List>(profiles.size());
+		int entries = 0;
+		for (int i=0;i<languages.length;i++) {
+			languages[i] = profiles.get(i).getName();
+			List ngrams = profiles.get(i).getSorted();
+			sorted.add(ngrams);
+			entries += ngrams.size();
+		}
+		int capacity = 16;
+		while (capacity<entries*2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		ids = new int[capacity];
+		float[] frequencies = new float[entries*languages.length];
+		Arrays.fill(frequencies,ABSENT);
+		int count = 0;
+		for (int i=0;i<languages.length;i++) {
+			for (Object o : sorted.get(i)) {
+				NGramEntry entry = (NGramEntry)o;
+				CharSequence seq = entry.getSeq();
+				if (seq.length()!=length)
+					continue;
+				long code = 0;
+				for (int j=0;j<length;j++)
+					code = (code<<16) | seq.charAt(j);
+				int slot = slot(code);
+				if (keys[slot]==EMPTY) {
+					keys[slot] = code;
+					ids[slot] = count++;
+				}
+				frequencies[ids[slot]*languages.length+i] = entry.getFrequency();
+			}
+		}
+		this.frequencies = Arrays.copyOf(frequencies,count*languages.length);
+	}
+
+	// the slot that holds the code, or the empty slot where it belongs
+	protected int slot(long code) {
+		int mask = keys.length-1;
+		int slot = hash(code) & mask;
+		while (keys[slot]!=EMPTY && keys[slot]!=code)
+			slot = (slot+1) & mask;
+		return slot;
+	}
+
+	protected static int hash(long code) {
+		return (int)((code*0x9E3779B97F4A7C15L)>>>32);
+	}
+
+	public String[] getLanguages() {
+		return languages.clone();
+	}
+
+	// the number of distinct ngrams in the model
+	public int size() {
+		return frequencies.length/Math.max(1,languages.length);
+	}
+
+	/**
+	 * Identify the language of a text
+	 * @param text The text
+	 * @param length The number of characters to analyze
+	 * @return The language, or null if the text has no ngrams in common with any language
+	 */
+
+	public String identify(CharSequence text, int length) {
+		Scratch s = scratch.get();
+		s.start();
+		for (int i=0;i<length;i++)
+			s.add(text.charAt(i));
+		return identify(s);
+	}
+
+	public String identify(char[] text, int offset, int length) {
+		Scratch s = scratch.get();
+		s.start();
+		for (int i=offset;i<offset+length;i++)
+			s.add(text[i]);
+		return identify(s);
+	}
+
+	protected String identify(Scratch s) {
+		s.end();
+		long[] order = s.order;
+		for (int i=0;i<s.size;i++) {
+			int slot = s.used[i];
+			order[i] = ((long)(MAX_COUNT-Math.min(s.counts[slot],MAX_COUNT))<<(MAX_LENGTH*16)) | s.keys[slot];
+		}
+		Arrays.sort(order,0,s.size);
+		float[] scores = s.scores;
+		Arrays.fill(scores,0);
+		float topscore = Float.MIN_VALUE;
+		int top = -1;
+		int n = languages.length;
+		int ngrams = Math.min(s.size,NGramProfile.MAX_SIZE);
+		for (int i=0;i<ngrams;i++) {
+			long code = order[i] & CODE_MASK;
+			int slot = slot(code);
+			if (keys[slot]==EMPTY)
+				continue;
+			float frequency = (float)s.count(code) / (float)s.total;
+			int base = ids[slot]*n;
+			for (int j=0;j<n;j++) {
+				float f = frequencies[base+j];
+				if (f==ABSENT)
+					continue;
+				float score = scores[j];
+				score += f + frequency;
+				scores[j] = score;
+				if (score>topscore) {
+					topscore = score;
+					top = j;
+				}
+			}
+		}
+		return top>=0 ? languages[top] : null;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		scratch = newScratch();
+	}
+
+	protected ThreadLocal<Scratch> newScratch() {
+		return new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+	}
+
+	/*
+	 * The ngrams of a sample, counted in an open addressing hash table. The table grows with the
+	 * sample and is kept for the next one. Only the slots that were used are cleared.
+	 */
+
+	protected class Scratch {
+
+		long[] keys = new long[4096];
+		int[] counts = new int[4096];
+		int[] used = new int[2048];
+		long[] order = new long[2048];
+		float[] scores = new float[languages.length];
+		int size = 0;
+		int total = 0;
+		int wordLength;
+		long gram;
+
+		void start() {
+			for (int i=0;i<size;i++)
+				keys[used[i]] = EMPTY;
+			size = 0;
+			total = 0;
+			wordLength = 1;
+			gram = NGramProfile.SEPARATOR;
+		}
+
+		void add(char c) {
+			c = Character.toLowerCase(c);
+			if (Character.isLetter(c))
+				append(c);
+			else if (wordLength>1) {
+				// word boundary
+				append(NGramProfile.SEPARATOR);
+				wordLength = 1;
+				gram = NGramProfile.SEPARATOR;
+			}
+		}
+
+		void end() {
+			if (wordLength>1)
+				append(NGramProfile.SEPARATOR);
+		}
+
+		void append(char c) {
+			gram = ((gram<<16) | c) & codeMask;
+			wordLength++;
+			if (wordLength>=length && !(length==1 && c==NGramProfile.SEPARATOR))
+				increment(gram);
+		}
+
+		int count(long code) {
+			int slot = slot(code);
+			return keys[slot]==EMPTY ? 0 : counts[slot];
+		}
+
+		void increment(long code) {
+			total++;
+			int slot = slot(code);
+			if (keys[slot]!=EMPTY) {
+				counts[slot]++;
+				return;
+			}
+			keys[slot] = code;
+			counts[slot] = 1;
+			used[size++] = slot;
+			if (size==used.length)
+				grow();
+		}
+
+		int slot(long code) {
+			int mask = keys.length-1;
+			int slot = hash(code) & mask;
+			while (keys[slot]!=EMPTY && keys[slot]!=code)
+				slot = (slot+1) & mask;
+			return slot;
+		}
+
+		void grow() {
+			long[] oldKeys = keys;
+			int[] oldCounts = counts;
+			int[] oldUsed = used;
+			keys = new long[oldKeys.length*2];
+			counts = new int[oldKeys.length*2];
+			used = new int[oldUsed.length*2];
+			order = new long[oldUsed.length*2];
+			for (int i=0;i<size;i++) {
+				int slot = slot(oldKeys[oldUsed[i]]);
+				keys[slot] = oldKeys[oldUsed[i]];
+				counts[slot] = oldCounts[oldUsed[i]];
+				used[i] = slot;
+			}
+		}
+	}
+}
@@ -526,6 +526,44 @@ public ConfigBean() {
       return "reload";
   }
 
+  public String migrateAttachments(int volumeIndex) {
+      logger.debug("migrateAttachments() {volumeIndex='"+volumeIndex+"'}");
+      try {
+    	  MessageService.migrateAttachments(getMailArchivaPrincipal(),volumeIndex);
+      } catch (Exception e) {
+    	  setSimpleMessage(getMessage("config.error_volume_migrate_attachments")+":"+e.getMessage());
+      }
+      return "reload";
+  }
+
+  public String packStore(int volumeIndex) {
+      logger.debug("packStore() {volumeIndex='"+volumeIndex+"'}");
+      try {
+    	  MessageService.packStore(getMailArchivaPrincipal(),volumeIndex);
+      } catch (Exception e) {
+    	  setSimpleMessage(getMessage("config.error_volume_pack_store")+":"+e.getMessage());
+      }
+      return "reload";
+  }
+
+  public String upgradeStore(int volumeIndex) {
+      logger.debug("upgradeStore() {volumeIndex='"+volumeIndex+"'}");
+      try {
+    	  MessageService.upgradeStore(getMailArchivaPrincipal(),volumeIndex);
+      } catch (Exception e) {
+    	  setSimpleMessage(getMessage("config.error_volume_upgrade_store")+":"+e.getMessage());
+      }
+      return "reload";
+  }
+
+  public String recalculateSpace(int volumeIndex) {
+      logger.debug("recalculateSpace() {volumeIndex='"+volumeIndex+"'}");
+      Volume volume = config.getVolumes().getVolume(volumeIndex);
+      if (volume!=null)
+    	  volume.recalculateSpace();
+      return "reload";
+  }
+
   public String closeVolume(int volumeIndex) {
       logger.debug("closeVolume()");
       try {
@@ -970,6 +1008,14 @@ public ConfigBean() {
 	  		return cancel();
 	  	} else if (button.action.equals("indexvolume")) {
 	  	    return indexVolume(Integer.parseInt(button.value));
+	  	} else if (button.action.equals("migrateattachments")) {
+	  	    return migrateAttachments(Integer.parseInt(button.value));
+	  	} else if (button.action.equals("recalculatespace")) {
+	  	    return recalculateSpace(Integer.parseInt(button.value));
+	  	} else if (button.action.equals("upgradestore")) {
+	  	    return upgradeStore(Integer.parseInt(button.value));
+	  	} else if (button.action.equals("packstore")) {
+	  	    return packStore(Integer.parseInt(button.value));
 	  	} else if (button.action.equals("newadrolemap")) {
 	  	    return newAdRoleMap();
 	  	} else if (button.action.equals("deleteadrolemap")) {
@@ -20,6 +20,9 @@ import org.apache.commons.logging.*;
 import org.apache.struts.actions.DownloadAction;
 import org.apache.struts.action.*;
 import com.stimulus.archiva.domain.Config;
+import com.stimulus.archiva.domain.Email;
+import com.stimulus.archiva.domain.EmailID;
+import com.stimulus.archiva.exception.MessageStoreException;
 import javax.servlet.http.*;
 import java.io.*;
 import java.net.*;
@@ -55,6 +58,10 @@ public class DownloadMessageBean extends DownloadAction implements Serializable
         	response.setHeader("Content-Disposition","attachment;filename=" + fileName);
         }
         String contentType = "message/rfc822";
+        // stream the message being viewed straight from the store
+        Email email = form instanceof MessageBean ? ((MessageBean)form).getEmail() : null;
+        if (email!=null && email.getEmailID()!=null && fileName!=null && fileName.equals(email.getEmailID().getUniqueID()+".eml"))
+        	return new MessageStreamInfo(contentType, email.getEmailID());
         //String filePath = ((MessageBean)form).getOriginalMessageFilePath();
         String filePath = Config.getFileSystem().getViewPath() + File.separatorChar + fileName;
         File file          = new File(filePath);
@@ -63,4 +70,32 @@ public class DownloadMessageBean extends DownloadAction implements Serializable
         return new FileStreamInfo(contentType, file);
     }
 
+    @Override
+    protected int getBufferSize() {
+    	return 65536;
+    }
+
+    public static class MessageStreamInfo implements StreamInfo {
+
+    	protected String contentType;
+    	protected EmailID emailID;
+
+    	public MessageStreamInfo(String contentType, EmailID emailID) {
+    		this.contentType = contentType;
+    		this.emailID = emailID;
+    	}
+
+    	public String getContentType() {
+    		return contentType;
+    	}
+
+    	public InputStream getInputStream() throws IOException {
+    		try {
+    			return Config.getConfig().getArchiver().getMessageInputStream(emailID);
+    		} catch (MessageStoreException mse) {
+    			throw new IOException("failed to retrieve message {"+emailID+"}:"+mse.getMessage());
+    		}
+    	}
+    }
+
 }
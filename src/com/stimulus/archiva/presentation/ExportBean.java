@@ -16,28 +16,23 @@
 
 package com.stimulus.archiva.presentation;
 import org.apache.commons.logging.*;
-import org.apache.struts.actions.DownloadAction;
 import org.apache.struts.action.*;
-import com.stimulus.archiva.domain.Config;
-import com.stimulus.archiva.domain.Email;
-import com.stimulus.archiva.extraction.MessageExtraction;
-import com.stimulus.archiva.service.MessageService;
-import com.stimulus.struts.ActionContext;
+import com.stimulus.archiva.exception.ArchivaException;
+import com.stimulus.archiva.service.ExportJob;
 
 import javax.servlet.http.*;
 
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.mail.internet.MimeUtility;
 
-public class ExportBean extends DownloadAction implements Serializable {
+/*
+ * Downloads the file of a completed export job. Byte ranges are supported, so that an
+ * interrupted download of a large export can be resumed.
+ */
+
+public class ExportBean extends Action implements Serializable {
 
     /**
 	 * 
@@ -47,18 +42,18 @@ public class ExportBean extends DownloadAction implements Serializable {
 	 * 
 	 */
 	protected static final Log logger = LogFactory.getLog(ExportBean.class.getName());
+	protected static final int BUFFER_SIZE = 65536;
     
     @Override
-	protected StreamInfo getStreamInfo(ActionMapping mapping, ActionForm form, 
+	public ActionForward execute(ActionMapping mapping, ActionForm form, 
             						   HttpServletRequest request, 
             						   HttpServletResponse response)
     									throws Exception {
     	SearchBean searchBean = (SearchBean)form;
-    	
-    	String outputDir = Config.getFileSystem().getViewPath() + File.separatorChar;
-    	SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-    	String zipFileName = "export-" + sdf.format(new Date()) + ".zip";
-    	File zipFile = new File(outputDir + zipFileName);
+    	ExportJob exportJob = searchBean.getExportJob();
+    	if (exportJob==null || exportJob.getState()!=ExportJob.State.COMPLETED || !exportJob.getFile().exists())
+    		throw new ArchivaException("there is no completed export to download",logger);
+    	String zipFileName = exportJob.getFileName();
     	
         String agent = request.getHeader("USER-AGENT");
         if (null != agent && -1 != agent.indexOf("MSIE"))  {
@@ -67,61 +62,84 @@ public class ExportBean extends DownloadAction implements Serializable {
         	response.setHeader("Content-Disposition","attachment;filename=" + codedfilename);
         } else if (null != agent && -1 != agent.indexOf("Mozilla")) {    
         	String codedfilename = MimeUtility.encodeText(zipFileName, "UTF8", "B");
-        	response.setContentType("application/x-download");
+        	response.setContentType(exportJob.getFormat().getContentType());
         	response.setHeader("Content-Disposition","attachment;filename=" + codedfilename);
         } else {
+        	response.setContentType(exportJob.getFormat().getContentType());
         	response.setHeader("Content-Disposition","attachment;filename=" + zipFileName);
         }
 
-        logger.debug("size of searchResult = " + searchBean.getSearchResults().size());
-        //MessageBean.viewMessage
-        List<File> files = new ArrayList<File>();
-        for(SearchResultBean searchResult : searchBean.getSearchResults()) {
-        	if (searchResult.getSelected()) {
-        		Email email = MessageService.getMessageByID(searchResult.getVolumeID(), searchResult.getUniqueID(), false);
-
-        		HttpServletRequest hsr = ActionContext.getActionContext().getRequest();
-    	  		String baseURL = hsr.getRequestURL().substring(0,hsr.getRequestURL().lastIndexOf(hsr.getServletPath()));
-    	  		MessageExtraction messageExtraction = MessageService.extractMessage(email, baseURL, true); // can take a while to extract message
+        File file = exportJob.getFile();
+        long length = file.length();
+        long start = 0;
+        long end = length-1;
+        String etag = "\""+exportJob.getId()+"\"";
+        response.setHeader("Accept-Ranges","bytes");
+        response.setHeader("ETag",etag);
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range!=null && (ifRange==null || ifRange.equals(etag))) {
+        	long[] bounds = parseRange(range,length);
+        	if (bounds==null) {
+        		response.setHeader("Content-Range","bytes */"+length);
+        		response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        		return null;
+        	}
+        	// a range that covers the whole file (or cannot be parsed) is served as a normal download
+        	if (bounds[0]!=0 || bounds[1]!=length-1) {
+	        	start = bounds[0];
+	        	end = bounds[1];
+	        	response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+	        	response.setHeader("Content-Range","bytes "+start+"-"+end+"/"+length);
+        	}
+        }
+        response.setHeader("Content-Length",Long.toString(end-start+1));
+        logger.debug("download export {fileName='"+zipFileName+"',start='"+start+"',end='"+end+"'}");
 
-//        		MessageBean mbean = new MessageBean();
-//        		mbean.setMessageID(searchResult.getUniqueID());
-//        		mbean.setVolumeID(searchResult.getVolumeID());
-//        		writer.println(searchResult.toString());
-//        		writer.println(messageExtraction.getFileName());
-    	  		
-    	  		File fileToAdd = new File(outputDir, messageExtraction.getFileName());
-    	  		if (!files.contains(fileToAdd)) {
-        	  		files.add(fileToAdd);
-    	  		}
+        RandomAccessFile in = new RandomAccessFile(file,"r");
+        try {
+        	in.seek(start);
+        	OutputStream os = response.getOutputStream();
+        	byte[] buf = new byte[BUFFER_SIZE];
+        	long remaining = end-start+1;
+        	while (remaining>0) {
+        		int len = in.read(buf,0,(int)Math.min(buf.length,remaining));
+        		if (len < 0)
+        			break;
+        		os.write(buf,0,len);
+        		remaining -= len;
         	}
+        	os.flush();
+        } finally {
+        	in.close();
         }
-        
-		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
-		try {
-			byte[] buf = new byte[1024];
-			for (File f : files) {
-				ZipEntry ze = new ZipEntry(f.getName());
-				logger.debug("Adding file " + f.getName());
-				zos.putNextEntry(ze);
-				InputStream is = new BufferedInputStream(new FileInputStream(f));
-				for (;;) {
-					int len = is.read(buf);
-					if (len < 0)
-						break;
-					zos.write(buf, 0, len);
-				}
-				is.close();
-				Config.getFileSystem().getTempFiles().markForDeletion(f);
-			}
-		} finally {
-			zos.close();
-		}
-        logger.debug("download zipped emails {fileName='"+zipFileName+"'}");
-        
-        String contentType = "application/zip";
-        Config.getFileSystem().getTempFiles().markForDeletion(zipFile);
-        return new FileStreamInfo(contentType, zipFile);
+        return null;
+    }
+
+    // a single range of the form "bytes=start-[end]" or "bytes=-suffix". returns null if unsatisfiable.
+    protected static long[] parseRange(String range, long length) {
+    	if (!range.startsWith("bytes=") || range.indexOf(',')>=0)
+    		return new long[] { 0, length-1 };
+    	String spec = range.substring(6).trim();
+    	int dash = spec.indexOf('-');
+    	if (dash<0)
+    		return new long[] { 0, length-1 };
+    	try {
+    		long start, end;
+    		if (dash==0) {
+    			long suffix = Long.parseLong(spec.substring(1));
+    			start = Math.max(0,length-suffix);
+    			end = length-1;
+    		} else {
+    			start = Long.parseLong(spec.substring(0,dash));
+    			end = dash==spec.length()-1 ? length-1 : Math.min(length-1,Long.parseLong(spec.substring(dash+1)));
+    		}
+    		if (start>end || start>=length)
+    			return null;
+    		return new long[] { start, end };
+    	} catch (NumberFormatException nfe) {
+    		return new long[] { 0, length-1 };
+    	}
     }
 
 }
@@ -114,6 +114,8 @@ public class SearchBean extends BaseBean implements HttpSessionBindingListener,
   protected static final Log audit = LogFactory.getLog("com.stimulus.archiva.audit");
 
   protected boolean notSearched;
+  protected transient ExportJob exportJob;
+  protected String exportFormat = "zip";
   
   /* Constructors */
 
@@ -424,6 +426,8 @@ public class SearchBean extends BaseBean implements HttpSessionBindingListener,
   public void setPageSize(int pageSize) { 
   	//logger.debug("setPageSize() {pagesize='"+pageSize+"'}"); 
   	this.pageSize = pageSize; 
+  	if (search!=null)
+  		((StandardSearch)search).setResultFetchSize(pageSize);
   }
   
   public int getPageSize() { 
@@ -601,15 +605,63 @@ public class SearchBean extends BaseBean implements HttpSessionBindingListener,
 
   public void delete() throws Exception {
 	  logger.debug("SearchBean.delete");
-      for(SearchResultBean searchResult :getSearchResults()) {
-      	if (searchResult.getSelected()) {
-			Email email = MessageService.getMessageByID(searchResult.getVolumeID(), searchResult.getUniqueID(), false);
-			logger.debug("deleting message: " + email.getEmailId());
-			Config.getConfig().getIndex().deleteMessage(email.getEmailId());
-      	}
+      for(SearchResultBean searchResult :getSelectedResults()) {
+			MessageService.deleteMessage(searchResult.getVolumeID(), searchResult.getUniqueID());
       }
   }
   
+  // results are selected until they are deselected. bulk operations act on no more than the maximum search results.
+  protected List<SearchResultBean> getSelectedResults() {
+	  List<SearchResultBean> selectedResults = new ArrayList<SearchResultBean>();
+	  if (searchResults==null)
+		  return selectedResults;
+	  int max = Math.min(searchResults.size(),search.getMaxSearchResults());
+	  for (int i=0;i<max;i++) {
+		  SearchResultBean searchResult = searchResults.get(i);
+		  if (searchResult.getSelected())
+			  selectedResults.add(searchResult);
+	  }
+	  return selectedResults;
+  }
+  
+  // the selected messages are exported in the background. the export status page polls the job.
+  public String export() throws Exception {
+	  if (exportJob!=null)
+		  exportJob.delete();
+	  Volumes volumes = Config.getConfig().getVolumes();
+	  Set<String> uniqueIds = new HashSet<String>();
+	  List<EmailID> emailIDs = new ArrayList<EmailID>();
+	  for (SearchResultBean searchResult : getSelectedResults()) {
+		  if (uniqueIds.add(searchResult.getUniqueID()))
+			  emailIDs.add(EmailID.getEmailID(volumes.getNewVolume(searchResult.getVolumeID()),searchResult.getUniqueID()));
+	  }
+	  ExportJob.Format format = Compare.equalsIgnoreCase(exportFormat,"mbox") ? ExportJob.Format.MBOX : ExportJob.Format.ZIP;
+	  exportJob = MessageService.exportMessages(getMailArchivaPrincipal(),emailIDs,format);
+	  return "export";
+  }
+
+  public String exportstatus() {
+	  return "success";
+  }
+
+  public String exportcancel() {
+	  if (exportJob!=null)
+		  exportJob.cancel();
+	  return "success";
+  }
+
+  public ExportJob getExportJob() {
+	  return exportJob;
+  }
+
+  public String getExportFormat() {
+	  return exportFormat;
+  }
+
+  public void setExportFormat(String exportFormat) {
+	  this.exportFormat = exportFormat;
+  }
+
   public List<CriteriaBean> getCriteria() {
 	return CriteriaBean.getCriteriaBeans(((StandardSearch)search).getCriteria());
   }
@@ -654,7 +706,7 @@ public class SearchBean extends BaseBean implements HttpSessionBindingListener,
 //		searchMessages();
 		return "success";
   	} else if (button.action!=null && button.action.equals("export")) {
-		return "export";
+		return export();
   	} 
   	
   	return searchMessages();
@@ -715,6 +767,10 @@ public class SearchBean extends BaseBean implements HttpSessionBindingListener,
 	  		search.reset();
 	  		search = null;
 	  	}
+	  	if (exportJob!=null) {
+	  		exportJob.delete();
+	  		exportJob = null;
+	  	}
 }	
   public void valueBound(HttpSessionBindingEvent event) {
 		 logger.debug("searchform() begin");
@@ -728,7 +784,7 @@ public class SearchBean extends BaseBean implements HttpSessionBindingListener,
 		    logger.debug("browser language detected {language='"+language+"'}");
 		    search.setLanguage(language);
 		    page=1;
-		    pageSize=20;
+		    setPageSize(20);
 		    logger.debug("searchform() end");
 		    
   }
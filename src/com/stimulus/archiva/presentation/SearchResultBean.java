@@ -30,6 +30,8 @@ public class SearchResultBean implements Serializable {
 	 */
 	private static final long serialVersionUID = -837802320118584736L;
 	protected Search.Result searchResult;
+	protected SearchResultBeans owner;
+	protected int index;
 	protected static Log logger = LogFactory.getLog(SearchResultBean.class.getName());
 	protected Locale locale;
 	protected boolean display = false;
@@ -45,16 +47,34 @@ public class SearchResultBean implements Serializable {
 		this.selected = true;
 	}
 	
+	// the result is looked up once it is displayed, so that skipping to a page does not fetch the hits before it
+	protected SearchResultBean(SearchResultBeans owner, int index, Locale locale) {
+		this.owner = owner;
+		this.index = index;
+		this.locale = locale;
+		this.display = true;
+	}
+	
+	protected Search.Result getSearchResult() {
+		if (searchResult==null && owner!=null)
+			searchResult = owner.results.get(index);
+		return searchResult;
+	}
+	
 	public boolean getDisplay() {
 		return display;
 	}
 	
 	public boolean getSelected() {
+		if (owner!=null)
+			return owner.isSelected(index);
 		return selected;
 	}
 	  
 	  public void setSelected(boolean selected) {
-		  logger.debug("SearchResultBean.setChecked():" + getUniqueID() + "," + selected);
+		  logger.debug("SearchResultBean.setChecked():" + index + "," + selected);
+		  if (owner!=null)
+			  owner.setSelected(index,selected);
 		  this.selected = selected;
 	  }
 
@@ -64,7 +84,7 @@ public class SearchResultBean implements Serializable {
 		 for (EmailField field :  emailFields.getAvailableFields().values()) {
 			 if (field.getShowInResults()!=EmailField.ShowInResults.NORESULTS) {
 				 try {
-					 EmailFieldValue efv = searchResult.getFieldValue(field.getName());
+					 EmailFieldValue efv = getSearchResult().getFieldValue(field.getName());
 					 list.add(DisplayField.getDisplayField(efv , locale,false));
 				 } catch (MessageSearchException mse) {
 					 logger.debug("failed to retrieve field value from message: "+mse.getMessage()); 
@@ -76,7 +96,7 @@ public class SearchResultBean implements Serializable {
 	 
 	public String getUniqueID() {
 		try { 
-			return searchResult.getEmailId().getUniqueID();
+			return getSearchResult().getEmailId().getUniqueID();
 		} catch (MessageSearchException mse) {
 			logger.debug("failed to retrieve unique message id: "+mse.getMessage(),mse);
 			return null;
@@ -86,7 +106,7 @@ public class SearchResultBean implements Serializable {
 	
 	public boolean getMessageExist() {
 		try {
-			EmailID emailID = searchResult.getEmailId();
+			EmailID emailID = getSearchResult().getEmailId();
 			Volume volume = emailID.getVolume();
 			return (volume!=null);
 				
@@ -108,7 +128,7 @@ public class SearchResultBean implements Serializable {
 	
 	public String getVolumeID() {
 		try {
-			EmailID emailID = searchResult.getEmailId();
+			EmailID emailID = getSearchResult().getEmailId();
 			Volume volume = emailID.getVolume();
 			if (volume!=null) {
 				String volumeID = volume.getID();
@@ -123,22 +143,56 @@ public class SearchResultBean implements Serializable {
 	
 
 
-    public static synchronized List<SearchResultBean> getSearchResultBeans(List<Search.Result> results,Locale locale) {
-		  List<SearchResultBean> searchResultBeans = new LinkedList<SearchResultBean>();
-		  try {
-			  for (Search.Result result: results) {
-				  searchResultBeans.add(new SearchResultBean(result,locale));
-			  }
-			  while (searchResultBeans.size()<Config.getConfig().getSearch().getMaxSearchResults()) {
-				  searchResultBeans.add(new SearchResultBean());
-			  }
-		  } catch (java.util.ConcurrentModificationException ce) {
-			  	// bit of a hack to say the least
-			 
-			  try { Thread.sleep(50); } catch (Exception e) {}
-			  return getSearchResultBeans(results,locale);
-		  }
-		  return searchResultBeans;
+    public static List<SearchResultBean> getSearchResultBeans(List<Search.Result> results,Locale locale) {
+		  return new SearchResultBeans(results,locale);
 	}
     
+    /*
+     * The beans of the search results, created as they are displayed. All results are selected
+     * until they are deselected, so only the selections that differ are held. Indexes outside of
+     * the results give an empty bean, so that a form posted against earlier results still populates.
+     */
+    
+    public static class SearchResultBeans extends AbstractList<SearchResultBean> implements Serializable {
+
+		private static final long serialVersionUID = 4418072237540913215L;
+		protected List<Search.Result> results;
+		protected Locale locale;
+		protected Set<Integer> deselected = new HashSet<Integer>();
+
+		public SearchResultBeans(List<Search.Result> results, Locale locale) {
+			this.results = results;
+			this.locale = locale;
+		}
+
+		public SearchResultBean get(int index) {
+			if (index<0 || index>=results.size())
+				return new SearchResultBean();
+			return new SearchResultBean(this,index,locale);
+		}
+
+		public int size() {
+			return results.size();
+		}
+
+		protected synchronized boolean isSelected(int index) {
+			return !deselected.contains(index);
+		}
+
+		protected synchronized void setSelected(int index, boolean selected) {
+			if (selected)
+				deselected.remove(index);
+			else
+				deselected.add(index);
+		}
+
+		public boolean equals(Object o) {
+			return this==o;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(this);
+		}
+    }
+    
 }
@@ -21,6 +21,10 @@ import com.stimulus.archiva.domain.Volume.Status;
 import com.stimulus.archiva.exception.ArchivaException;
 import com.stimulus.archiva.exception.ConfigurationException;
 import com.stimulus.util.EnumUtil;
+import com.stimulus.util.FormatUtil;
+import com.stimulus.archiva.index.IndexRebuild;
+import com.stimulus.archiva.index.MessageIndex;
+import com.stimulus.archiva.store.CompressionCodec;
 
 import java.io.Serializable;
 import java.util.*;
@@ -103,6 +107,47 @@ public class VolumeBean extends BaseBean implements Serializable {
 	  public void setPath(String path) { v.setPath(path);}
 	  public void setMaxSize(long maxSize) { v.setMaxSize(maxSize); }
 
+	  // compression of new store files, as codec-level (e.g. gzip-9)
+	  public String getCompression() {
+		  CompressionCodec codec = CompressionCodec.getCodec(v.getCompression());
+		  return formatCompression(codec,codec.normalizeLevel(v.getCompressionLevel()));
+	  }
+	  
+	  public void setCompression(String compression) {
+		  int dash = compression.lastIndexOf('-');
+		  CompressionCodec codec = CompressionCodec.getCodec(dash<0 ? compression : compression.substring(0,dash));
+		  int level = 0;
+		  if (dash>=0) {
+			  try {
+				  level = Integer.parseInt(compression.substring(dash+1));
+			  } catch (NumberFormatException nfe) {}
+		  }
+		  v.setCompression(codec.getName());
+		  v.setCompressionLevel(codec.normalizeLevel(level));
+	  }
+	  
+	  public List<String> getCompressions() {
+		  List<String> compressions = new ArrayList<String>();
+		  for (CompressionCodec codec : CompressionCodec.getCodecs()) {
+			  if (codec.getMaxLevel()==0) {
+				  compressions.add(formatCompression(codec,0));
+			  } else {
+				  compressions.add(formatCompression(codec,1));
+				  if (codec.getDefaultLevel()>1 && codec.getDefaultLevel()<codec.getMaxLevel())
+					  compressions.add(formatCompression(codec,codec.getDefaultLevel()));
+				  compressions.add(formatCompression(codec,codec.getMaxLevel()));
+			  }
+		  }
+		  String current = getCompression();
+		  if (!compressions.contains(current))
+			  compressions.add(current);
+		  return compressions;
+	  }
+	  
+	  protected static String formatCompression(CompressionCodec codec, int level) {
+		  return level==0 ? codec.getName() : codec.getName()+"-"+level;
+	  }
+
 	  public static List<VolumeBean> getVolumeBeans(List<Volume> volumes) {
 		  List<VolumeBean> volumeBeans = new LinkedList<VolumeBean>();
 		  for (Volume vol: volumes)
@@ -125,6 +170,52 @@ public class VolumeBean extends BaseBean implements Serializable {
 			  return "";
 	  }
 	  
+	  public String getRebuildProgress() {
+		  try {
+			  if (!(Config.getConfig().getIndex() instanceof MessageIndex))
+				  return "";
+			  IndexRebuild rebuild = ((MessageIndex)Config.getConfig().getIndex()).getRebuild(v);
+			  if (rebuild==null)
+				  return "";
+			  String progress = FormatUtil.formatCount(rebuild.getProgress());
+			  if (rebuild.getEstimatedTotal()>0)
+				  progress += " / ~"+FormatUtil.formatCount(rebuild.getEstimatedTotal());
+			  progress += " ("+String.format("%.1f",rebuild.getRate())+" msg/s";
+			  long remaining = rebuild.getRemainingTime();
+			  if (remaining>=0)
+				  progress += ", ETA "+FormatUtil.formatDuration(remaining);
+			  return progress+")";
+		  } catch (Throwable t) {
+			  logger.error("failed to obtain index rebuild progress:"+t.getMessage(),t);
+			  return "";
+		  }
+	  }
+	  
+	  public String getRebuildThroughput() {
+		  try {
+			  if (!(Config.getConfig().getIndex() instanceof MessageIndex))
+				  return "";
+			  IndexRebuild rebuild = ((MessageIndex)Config.getConfig().getIndex()).getRebuild(v);
+			  return rebuild!=null ? rebuild.getThroughput() : "";
+		  } catch (Throwable t) {
+			  logger.error("failed to obtain index rebuild throughput:"+t.getMessage(),t);
+			  return "";
+		  }
+	  }
+	  
+	  public String getAttachmentSavedSpace() {
+		  try {
+			  long savedSpace = Config.getConfig().getArchiver().getAttachmentSavedSpace(v);
+			  if (savedSpace>0)
+				  return v.formatDiskSpace(savedSpace);
+			  else
+				  return "";
+		  } catch (Throwable t) {
+			  logger.error("failed to obtain attachment saved space:"+t.getMessage(),t);
+			  return "";
+		  }
+	  }
+
 	  public String getFreeArchiveSpace() { 
 		  try {
 		  if (v.isDiskSpaceChecked())
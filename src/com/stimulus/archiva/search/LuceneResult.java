@@ -12,7 +12,6 @@ import com.stimulus.archiva.domain.Search;
 import com.stimulus.archiva.domain.Volume;
 import com.stimulus.archiva.domain.fields.EmailField;
 import com.stimulus.archiva.domain.fields.EmailFieldValue;
-import com.stimulus.archiva.domain.fields.EmailFields;
 import com.stimulus.archiva.exception.ChainedException;
 import com.stimulus.archiva.exception.MessageSearchException;
 import com.stimulus.util.Compare;
@@ -23,18 +22,27 @@ public class LuceneResult extends Search.Result {
   	Document doc = null;
   	ScoreDoc scoreDoc;
   	Searcher searcher;
+  	ResultFields resultFields;
+  	LuceneResults owner;
+  	boolean allFields = false;
   	
   	protected static final Log logger = LogFactory.getLog(LuceneResult.class.getName());
   	
   	public LuceneResult(Searcher searcher, ScoreDoc scoreDoc) {
+  		this(searcher,scoreDoc,null,null);
+  	}
+  	
+  	public LuceneResult(Searcher searcher, ScoreDoc scoreDoc, ResultFields resultFields, LuceneResults owner) {
   		this.scoreDoc = scoreDoc;
   		this.searcher = searcher;
+  		this.resultFields = resultFields;
+  		this.owner = owner;
   	}
   			
   	public EmailID getEmailId() throws MessageSearchException {
   		Document doc = getDocument();
-  		String uid 	  = doc.get("uid");
-  		String name   = doc.get("vol");
+  		String uid 	  = doc.get(ResultFields.UID);
+  		String name   = doc.get(ResultFields.VOLUME);
   		if (uid==null)  {
 			  logger.warn("found message with null ID during construction of search results");
 			  return null;
@@ -51,11 +59,23 @@ public class LuceneResult extends Search.Result {
 	  	  return EmailID.getEmailID(volume,uid);
 	  		
   	}
+  	// the position of the hit in the results, to continue a later search after it
+  	public String getCursor() {
+  		if (scoreDoc instanceof FieldDoc)
+  			return LuceneResults.toCursor((FieldDoc)scoreDoc);
+  		return null;
+  	}
+  	
+  	// the documents of neighbouring results are loaded together, in document order
   	protected Document getDocument() throws MessageSearchException {
   		try {
   			
-  			if (doc==null)
-	    			doc = searcher.doc(scoreDoc.doc);
+  			if (doc==null) {
+  				if (owner!=null)
+  					owner.loadDocuments(this);
+  				else
+  					doc = searcher.doc(scoreDoc.doc);
+  			}
   			return doc;
   		} catch (Exception e) {
   			throw new MessageSearchException("failed to retrieve document from hits:"+e.getMessage(),e,logger,ChainedException.Level.DEBUG);
@@ -63,23 +83,35 @@ public class LuceneResult extends Search.Result {
   		}
   	}
   	
+  	protected void loadDocument() throws java.io.IOException {
+  		if (doc==null)
+  			doc = resultFields!=null ? searcher.doc(scoreDoc.doc,resultFields.getFieldSelector()) : searcher.doc(scoreDoc.doc);
+  	}
+  	
   	public EmailFieldValue getFieldValue(String key) throws MessageSearchException {
-  		Document doc = getDocument();
   		String value = "";
-  		EmailFields emailFields = Config.getConfig().getEmailFields();
-  		EmailField field = emailFields.get(key);
+  		EmailField field = resultFields!=null ? resultFields.get(key) : Config.getConfig().getEmailFields().get(key);
   		if (field!=null) {
 	  			if (Compare.equalsIgnoreCase(key, "score")) {
 	  				float score = 0;
 			    	score = scoreDoc.score;
 			    	return new EmailFieldValue(field,Float.toString(round(score * 100, 2)) + "%");
 	  			}
-  				EmailField.SearchMethod searchMethod = field.getSearchMethod();
-			    if (searchMethod==EmailField.SearchMethod.STORED) {
-				  value = doc.get(field.getIndex());
-			    } else if (searchMethod==EmailField.SearchMethod.TOKENIZED_AND_STORED) {
-				  value = doc.get(field.getIndex()+"s");
-			    }
+	  			Document doc = getDocument();
+	  			String storedName = ResultFields.getStoredName(field);
+	  			if (storedName!=null) {
+	  				if (resultFields!=null && !allFields && !resultFields.isLoaded(storedName)) {
+	  					// the field was not selected for this search
+	  					logger.debug("loading all stored fields of search result {field='"+storedName+"'}");
+	  					try {
+	  						doc = this.doc = searcher.doc(scoreDoc.doc);
+	  						allFields = true;
+	  					} catch (Exception e) {
+	  						throw new MessageSearchException("failed to retrieve document from hits:"+e.getMessage(),e,logger,ChainedException.Level.DEBUG);
+	  					}
+	  				}
+	  				value = doc.get(storedName);
+	  			}
 			    return new EmailFieldValue(field,value);
   		} 
   		logger.error("failed to retrieve email field {key='"+key+"'}");
@@ -0,0 +1,284 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.search;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import org.apache.commons.logging.*;
+import org.apache.lucene.search.*;
+import com.stimulus.archiva.domain.Search;
+
+/*
+ * The results of a search. Only one window of hits is held at a time. A window is fetched when
+ * one of its hits is first asked for, by collecting the hits after the last hit of the window
+ * before it. The last hit before every few windows is kept as a checkpoint, so that moving back
+ * through the results, or jumping forward, starts from the nearest checkpoint rather than from
+ * the first hit. The number of hits is counted exactly when the search is run.
+ * The stored fields of a result are loaded when it is first read, together with those of the
+ * results that follow it (usually the rest of the page displayed), in document order.
+ */
+
+public class LuceneResults extends AbstractList<Search.Result> implements Serializable {
+
+	private static final long serialVersionUID = -3158329741238420937L;
+	protected static final Log logger = LogFactory.getLog(LuceneResults.class.getName());
+	protected static final int DEFAULT_WINDOW_SIZE = 100;
+	protected static final int CHECKPOINT_WINDOWS = 10;
+	protected static final int MAX_SKIP = 10000; // hits collected in a single pass when skipping ahead
+	protected static final int DEFAULT_FETCH_SIZE = 20;
+
+	protected transient Searcher searcher;
+	protected transient Query query;
+	protected transient Filter filter;
+	protected transient Sort sort;
+	protected transient FieldDoc start;
+	protected transient LuceneResult[] window = new LuceneResult[0];
+	protected transient TreeMap<Integer,FieldDoc> checkpoints = new TreeMap<Integer,FieldDoc>();
+	protected transient FieldDoc next;
+	protected transient ResultFields resultFields;
+	protected int fetchSize = DEFAULT_FETCH_SIZE;
+	protected int windowSize = DEFAULT_WINDOW_SIZE;
+	protected int windowStart = 0;
+	protected int totalHits = 0;
+	protected int size = 0;
+
+	/**
+	 * Run a search
+	 * @param searcher The searcher. It must stay open while the results are used.
+	 * @param query The query
+	 * @param filter The filter, or null
+	 * @param sort The sort order, or null to sort by relevance
+	 * @param start The hit to start after, or null to start from the first hit
+	 * @param resultFields The fields read from the results
+	 */
+
+	public synchronized void search(Searcher searcher, Query query, Filter filter, Sort sort, FieldDoc start, ResultFields resultFields) throws IOException {
+		clear();
+		this.searcher = searcher;
+		this.resultFields = resultFields;
+		this.query = query;
+		this.filter = filter;
+		this.sort = sort!=null ? sort : Sort.RELEVANCE;
+		this.start = start;
+		SearchAfterCollector collector = collect(start,windowSize);
+		totalHits = collector.getTotalHits();
+		size = collector.getHitsAfter();
+		setWindow(0,collector.topDocs().scoreDocs);
+	}
+
+	public synchronized void clear() {
+		searcher = null;
+		query = null;
+		filter = null;
+		start = null;
+		resultFields = null;
+		window = new LuceneResult[0];
+		windowStart = 0;
+		checkpoints = new TreeMap<Integer,FieldDoc>();
+		next = null;
+		totalHits = 0;
+		size = 0;
+	}
+
+	// the searcher is not serialized. the search must be run again.
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		clear();
+	}
+
+	protected SearchAfterCollector collect(FieldDoc after, int numHits) throws IOException {
+		SearchAfterCollector collector = new SearchAfterCollector(sort,after,numHits);
+		searcher.search(query,filter,collector);
+		return collector;
+	}
+
+	protected void setWindow(int position, ScoreDoc[] hits) {
+		window = new LuceneResult[hits.length];
+		for (int i=0;i<hits.length;i++)
+			window[i] = new LuceneResult(searcher,hits[i],resultFields,this);
+		windowStart = position;
+		if (hits.length>0) {
+			next = (FieldDoc)hits[hits.length-1];
+			if ((position+hits.length)%getCheckpointInterval()==0)
+				checkpoints.put(position+hits.length,next);
+		}
+	}
+
+	protected int getCheckpointInterval() {
+		return windowSize*CHECKPOINT_WINDOWS;
+	}
+
+	protected void load(int position) throws IOException {
+		int hit = 0;
+		FieldDoc after = start;
+		if (position==windowStart+window.length && next!=null) {
+			hit = position;
+			after = next;
+		} else {
+			Map.Entry<Integer,FieldDoc> checkpoint = checkpoints.floorEntry(position);
+			if (checkpoint!=null) {
+				hit = checkpoint.getKey();
+				after = checkpoint.getValue();
+			}
+		}
+		int skip = Math.max(getCheckpointInterval(),MAX_SKIP/getCheckpointInterval()*getCheckpointInterval());
+		while (hit<position) {
+			int count = Math.min(position-hit,skip);
+			ScoreDoc[] skipped = collect(after,count).topDocs().scoreDocs;
+			if (skipped.length<count)
+				throw new IOException("search results are no longer available {position='"+position+"',hits='"+(hit+skipped.length)+"'}");
+			after = (FieldDoc)skipped[count-1];
+			hit += count;
+			if (hit%getCheckpointInterval()==0)
+				checkpoints.put(hit,after);
+		}
+		logger.debug("fetching search results {position='"+position+"',checkpoints='"+checkpoints.size()+"'}");
+		setWindow(position,collect(after,windowSize).topDocs().scoreDocs);
+	}
+
+	protected synchronized void loadDocuments(LuceneResult result) throws IOException {
+		int position = -1;
+		for (int i=0;i<window.length && position<0;i++) {
+			if (window[i]==result)
+				position = i;
+		}
+		if (position<0) {
+			// the result is no longer in the window
+			result.loadDocument();
+			return;
+		}
+		List<LuceneResult> batch = new ArrayList<LuceneResult>(fetchSize);
+		for (int i=position;i<window.length && batch.size()<fetchSize;i++) {
+			if (window[i].doc==null)
+				batch.add(window[i]);
+		}
+		Collections.sort(batch,new Comparator<LuceneResult>() {
+			public int compare(LuceneResult r1, LuceneResult r2) {
+				return r1.scoreDoc.doc<r2.scoreDoc.doc ? -1 : (r1.scoreDoc.doc==r2.scoreDoc.doc ? 0 : 1);
+			}
+		});
+		for (LuceneResult r : batch)
+			r.loadDocument();
+	}
+
+	public synchronized Search.Result get(int index) {
+		if (index<0 || index>=size)
+			throw new IndexOutOfBoundsException("index "+index+" is out of bounds {hits='"+size+"'}");
+		if (index<windowStart || index>=windowStart+window.length) {
+			try {
+				load(index-index%windowSize);
+			} catch (IOException io) {
+				logger.error("failed to fetch search results:"+io.getMessage(),io);
+				throw new IndexOutOfBoundsException("failed to fetch search result "+index+":"+io.getMessage());
+			}
+			if (index>=windowStart+window.length)
+				throw new IndexOutOfBoundsException("index "+index+" is out of bounds {hits='"+(windowStart+window.length)+"'}");
+		}
+		return window[index-windowStart];
+	}
+
+	// the number of hits after the start of the search
+	public synchronized int size() {
+		return size;
+	}
+
+	// the number of hits, including those before the start of the search
+	public synchronized int getTotalHits() {
+		return totalHits;
+	}
+
+	// the number of hits fetched at a time
+	public synchronized void setWindowSize(int windowSize) {
+		this.windowSize = Math.max(1,windowSize);
+	}
+
+	public synchronized int getWindowSize() {
+		return windowSize;
+	}
+
+	// the number of results whose documents are loaded together, usually the page size
+	public synchronized void setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(1,fetchSize);
+	}
+
+	// the results are not compared or printed by their hits, which would fetch them all
+
+	public boolean equals(Object o) {
+		return this==o;
+	}
+
+	public int hashCode() {
+		return System.identityHashCode(this);
+	}
+
+	public String toString() {
+		return "hits='"+totalHits+"',windowStart='"+windowStart+"',windowSize='"+windowSize+"'";
+	}
+
+	/* cursors */
+
+	/**
+	 * Encode the position of a hit, to continue a later search after it
+	 * @param hit The hit
+	 * @return The cursor
+	 */
+
+	public static String toCursor(FieldDoc hit) {
+		StringBuffer cursor = new StringBuffer(Integer.toString(hit.doc));
+		for (Object value : hit.fields) {
+			cursor.append(',');
+			if (value==null)
+				cursor.append('n');
+			else if (value instanceof Integer)
+				cursor.append('i').append(value);
+			else if (value instanceof Float)
+				cursor.append('f').append(Float.floatToIntBits((Float)value));
+			else
+				cursor.append('s').append(encode(value.toString()));
+		}
+		return cursor.toString();
+	}
+
+	public static FieldDoc parseCursor(String cursor) throws IllegalArgumentException {
+		String[] parts = cursor.split(",",-1);
+		try {
+			Comparable[] fields = new Comparable[parts.length-1];
+			for (int i=1;i<parts.length;i++) {
+				String value = parts[i].substring(1);
+				switch (parts[i].charAt(0)) {
+					case 'n': fields[i-1] = null; break;
+					case 'i': fields[i-1] = Integer.valueOf(value); break;
+					case 'f': fields[i-1] = Float.valueOf(Float.intBitsToFloat(Integer.parseInt(value))); break;
+					case 's': fields[i-1] = URLDecoder.decode(value,"UTF-8"); break;
+					default: throw new IllegalArgumentException("unknown value type");
+				}
+			}
+			return new FieldDoc(Integer.parseInt(parts[0]),Float.NaN,fields);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("failed to parse search cursor {cursor='"+cursor+"'}:"+e.getMessage());
+		}
+	}
+
+	protected static String encode(String value) {
+		try {
+			return URLEncoder.encode(value,"UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			return value;
+		}
+	}
+}
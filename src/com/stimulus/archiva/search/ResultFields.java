@@ -0,0 +1,77 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.search;
+
+import java.util.*;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.SetBasedFieldSelector;
+import com.stimulus.archiva.domain.Config;
+import com.stimulus.archiva.domain.fields.EmailField;
+
+/*
+ * The email fields read from the index for the results of a search, resolved once per search.
+ * Only the stored fields that are read are loaded from the index, along with the message id and
+ * volume. The large tokenized and stored copies of fields not displayed are never loaded.
+ */
+
+public class ResultFields {
+
+	public static final String UID = "uid";
+	public static final String VOLUME = "vol";
+
+	protected Map<String,EmailField> fields = new HashMap<String,EmailField>();
+	protected Set<String> loaded = new HashSet<String>();
+	protected FieldSelector fieldSelector;
+
+	/**
+	 * @param displayedOnly Whether only the fields shown in the search results are read. Otherwise
+	 * all stored fields are read.
+	 */
+
+	public ResultFields(boolean displayedOnly) {
+		loaded.add(UID);
+		loaded.add(VOLUME);
+		for (EmailField field : Config.getConfig().getEmailFields().getAvailableFields().values()) {
+			fields.put(field.getName(),field);
+			String storedName = getStoredName(field);
+			if (storedName!=null && (!displayedOnly || field.getShowInResults()!=EmailField.ShowInResults.NORESULTS))
+				loaded.add(storedName);
+		}
+		fieldSelector = new SetBasedFieldSelector(loaded,Collections.EMPTY_SET);
+	}
+
+	// the index field that holds the stored value of an email field
+	public static String getStoredName(EmailField field) {
+		EmailField.SearchMethod searchMethod = field.getSearchMethod();
+		if (searchMethod==EmailField.SearchMethod.STORED)
+			return field.getIndex();
+		else if (searchMethod==EmailField.SearchMethod.TOKENIZED_AND_STORED)
+			return field.getIndex()+"s";
+		return null;
+	}
+
+	public EmailField get(String name) {
+		return fields.get(name);
+	}
+
+	public boolean isLoaded(String storedName) {
+		return loaded.contains(storedName);
+	}
+
+	public FieldSelector getFieldSelector() {
+		return fieldSelector;
+	}
+}
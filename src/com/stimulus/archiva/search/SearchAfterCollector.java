@@ -0,0 +1,154 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.search;
+
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.*;
+
+/*
+ * Collects the top hits that sort after a given hit (the last hit of the previous page), so that
+ * a page of results deep into a search costs no more memory than the first page. Hits are
+ * compared on the sort values of the given hit, and then on their document number, which is how
+ * the top field collector breaks ties. Every matching document is counted, so the first page of
+ * a search also gives its exact number of hits, and the number of hits after the given one.
+ */
+
+public class SearchAfterCollector extends Collector {
+
+	protected TopFieldCollector collector;
+	protected SortField[] fields;
+	protected FieldDoc after;
+	protected Scorer scorer;
+	protected int docBase;
+	protected int totalHits = 0;
+	protected int hitsAfter = 0;
+	protected Object[] values;
+
+	/**
+	 * @param sort The sort order
+	 * @param after The hit to collect after, or null to collect from the first hit
+	 * @param numHits The number of hits to collect
+	 */
+
+	public SearchAfterCollector(Sort sort, FieldDoc after, int numHits) throws IOException {
+		this.fields = sort.getSort();
+		this.after = after;
+		if (after!=null && (after.fields==null || after.fields.length!=fields.length))
+			throw new IllegalArgumentException("search cursor does not match the sort order");
+		collector = TopFieldCollector.create(sort,Math.max(1,numHits),true,true,false,false);
+		values = new Object[fields.length];
+	}
+
+	public void setScorer(Scorer scorer) throws IOException {
+		// the score may be needed for the comparison and again by the collector
+		this.scorer = new ScoreCachingWrappingScorer(scorer);
+		collector.setScorer(this.scorer);
+	}
+
+	public void setNextReader(IndexReader reader, int docBase) throws IOException {
+		collector.setNextReader(reader,docBase);
+		this.docBase = docBase;
+		if (after==null)
+			return;
+		for (int i=0;i<fields.length;i++) {
+			SortField field = fields[i];
+			switch (field.getType()) {
+				case SortField.STRING:
+				case SortField.STRING_VAL:
+					values[i] = FieldCache.DEFAULT.getStringIndex(reader,field.getField()); break;
+				case SortField.INT:
+					values[i] = FieldCache.DEFAULT.getInts(reader,field.getField(),(FieldCache.IntParser)field.getParser()); break;
+				case SortField.FLOAT:
+					values[i] = FieldCache.DEFAULT.getFloats(reader,field.getField(),(FieldCache.FloatParser)field.getParser()); break;
+				case SortField.SCORE:
+				case SortField.DOC:
+					break;
+				default:
+					throw new IllegalArgumentException("unsupported sort type {field='"+field.getField()+"',type='"+field.getType()+"'}");
+			}
+		}
+	}
+
+	public void collect(int doc) throws IOException {
+		totalHits++;
+		if (after==null || isAfter(doc)) {
+			hitsAfter++;
+			collector.collect(doc);
+		}
+	}
+
+	public boolean acceptsDocsOutOfOrder() {
+		return collector.acceptsDocsOutOfOrder();
+	}
+
+	protected boolean isAfter(int doc) throws IOException {
+		for (int i=0;i<fields.length;i++) {
+			int c = compareHit(i,doc);
+			if (c!=0)
+				return c>0;
+		}
+		return docBase+doc>after.doc;
+	}
+
+	// compares the document with the previous hit, in sort order
+	protected int compareHit(int i, int doc) throws IOException {
+		SortField field = fields[i];
+		Object value = after.fields[i];
+		int c;
+		switch (field.getType()) {
+			case SortField.STRING:
+			case SortField.STRING_VAL:
+				FieldCache.StringIndex index = (FieldCache.StringIndex)values[i];
+				String s = index.lookup[index.order[doc]];
+				if (s==null || value==null)
+					c = s==null ? (value==null ? 0 : -1) : 1;
+				else
+					c = s.compareTo((String)value);
+				break;
+			case SortField.INT:
+				c = compare(((int[])values[i])[doc],((Integer)value).intValue()); break;
+			case SortField.FLOAT:
+				c = compare(((float[])values[i])[doc],((Float)value).floatValue()); break;
+			case SortField.SCORE:
+				// higher scores come first
+				c = compare(((Float)value).floatValue(),scorer.score()); break;
+			default:
+				c = compare(docBase+doc,((Integer)value).intValue());
+		}
+		return field.getReverse() ? -c : c;
+	}
+
+	protected static int compare(int a, int b) {
+		return a<b ? -1 : (a==b ? 0 : 1);
+	}
+
+	protected static int compare(float a, float b) {
+		return a<b ? -1 : (a>b ? 1 : 0);
+	}
+
+	public TopDocs topDocs() {
+		return collector.topDocs();
+	}
+
+	public int getTotalHits() {
+		return totalHits;
+	}
+
+	public int getHitsAfter() {
+		return hitsAfter;
+	}
+}
@@ -51,6 +51,7 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 	protected String			compiledQuery = ""; 
 	protected static final Log logger = LogFactory.getLog(StandardSearch.class.getName());
 	protected Searcher searchers = null;
+	protected transient List<IndexReader> volumeReaders = null;
 	protected Date lastSentAfter  = new Date();
 	protected Date lastSentBefore = new Date();
 	protected Analyzer analyzer; 
@@ -62,9 +63,10 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 	protected Sort sort;
 	protected Filter queryFilter;
 	protected String oldQuery = "";
-	protected ArrayList<Result> results = new ArrayList<Result>();
-	protected int totalHits = 0;
+	protected LuceneResults results = new LuceneResults();
 	protected String filterQuery = "";
+	protected String startAfter = null;
+	protected boolean displayedFieldsOnly = true;
 	
 	public StandardSearch() {
 	    newCriteria();
@@ -90,8 +92,19 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 		searchersModified = true;
 		setSearchQuery(null);
 		setFilterQuery(null);
-		totalHits = 0;
-		
+		close();
+	}
+	
+	/**
+	 * Clear the results and release the index readers they were read from. Called when the search
+	 * is reset (e.g. when the session ends) and once a web service search has been answered.
+	 */
+	
+	public void close() {
+		results.clear();
+		searchers = null;
+		searchersModified = true;
+		releaseVolumeReaders();
 	}
 	public void setSearchQuery(String searchQuery) {
 		if (searchQuery!=null) {
@@ -118,6 +131,30 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 		return filterQuery;
 	}
 	
+	// continue the search after the hit with the given cursor (see LuceneResult.getCursor())
+	public void setStartAfter(String startAfter) {
+		this.startAfter = startAfter;
+	}
+	
+	public String getStartAfter() {
+		return startAfter;
+	}
+	
+	// the number of hits fetched from the index at a time
+	public void setResultWindowSize(int windowSize) {
+		results.setWindowSize(windowSize);
+	}
+	
+	// the number of results whose stored fields are read together. a page of results is read at once.
+	public void setResultFetchSize(int fetchSize) {
+		results.setFetchSize(fetchSize);
+	}
+	
+	// whether only the fields displayed in the search results are read from the index
+	public void setDisplayedFieldsOnly(boolean displayedFieldsOnly) {
+		this.displayedFieldsOnly = displayedFieldsOnly;
+	}
+	
 	
 	public synchronized void searchMessage() throws MessageSearchException {
 	
@@ -270,13 +307,13 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 		  else if (sortField.equals("score"))  
 			  sort = new Sort(SortField.FIELD_SCORE);
 		  else if (sortField.equals("subject") || sortField.equals("to") || sortField.equals("from"))
-			  sort = new Sort(new SortField[]{new SortField(sortField+"s",sortOrder)});
+			  sort = new Sort(new SortField[]{new SortField(sortField+"s",SortField.STRING,sortOrder)});
 		  else if (sortField.equals("sentdate"))
-			  sort = new Sort(new SortField[]{new SortField(sortField,sortOrder)});
+			  sort = new Sort(new SortField[]{new SortField(sortField,SortField.STRING,sortOrder)});
 		  else if (sortField.equals("archivedate"))
-			  sort = new Sort(new SortField[]{new SortField(sortField,sortOrder)});
+			  sort = new Sort(new SortField[]{new SortField(sortField,SortField.STRING,sortOrder)});
 		  else if (sortField.equals("receiveddate"))
-			  sort = new Sort(new SortField[]{new SortField(sortField,sortOrder)});
+			  sort = new Sort(new SortField[]{new SortField(sortField,SortField.STRING,sortOrder)});
 		  else return null;
 		  return sort;  	  
 	  }
@@ -411,6 +448,7 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 			Hashtable<String,String> remoteServers = new Hashtable<String,String>();
 		    List<Volume> volumes = Config.getConfig().getVolumes().getVolumes();
 			LinkedList<Searchable> searchers = new LinkedList<Searchable>();
+			List<IndexReader> readers = new ArrayList<IndexReader>();
 			Iterator<Volume> vl = volumes.iterator();
 			logger.debug("searching for suitable searchers");
 			while (vl.hasNext()) {
@@ -420,7 +458,9 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 			    		Searchable volsearcher;
 			    		if (shouldSearch(volume)) {
 			            			try {
-				            			volsearcher = new IndexSearcher(volume.getIndexPath());
+			            				IndexReader reader = VolumeSearcherManager.acquire(volume);
+			            				readers.add(reader);
+				            			volsearcher = new IndexSearcher(reader);
 				            			logger.debug("adding volume to search {indexpath='"+volume.getIndexPath()+"'}");
 				            			searchers.add(volsearcher); 
 				            			searcherPresent = true; 
@@ -428,6 +468,9 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 				            			logger.error("failed to volume to search{"+volume+"}: "+e.getMessage(),e);
 				            		}
 	            		} else {
+	            			if (volume.getStatus()==Volume.Status.EJECTED || volume.getStatus()==Volume.Status.UNMOUNTED) {
+	            				VolumeSearcherManager.close(volume);
+	            			}
 	            			logger.debug("deliberately not searching inside volume {"+volume.getIndexPath()+"}");
 	            		}
 			    } catch (Exception io) {
@@ -436,6 +479,10 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 				    
 			}
 		
+			// the readers of the previous search are no longer needed once its results are replaced
+			releaseVolumeReaders();
+			volumeReaders = readers;
+			
 			if (!searcherPresent)
 				return null;
 			
@@ -459,6 +506,15 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 			return searcher;
 	  }
 	  
+		protected void releaseVolumeReaders() {
+			if (volumeReaders==null)
+				return;
+			for (IndexReader reader : volumeReaders) {
+				VolumeSearcherManager.release(reader);
+			}
+			volumeReaders = null;
+		}
+		
 		public List<Result> getResults() {
 			return results;
 		}
@@ -471,23 +527,24 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 		}
 		
 		public int getTotalHits() {
-			return totalHits;
+			if (results!=null)
+				return results.getTotalHits();
+			else
+				return 0;
 		}
 		
 	
+	  // the hits are fetched a window at a time as the results are read. only the first window is fetched here.
 	  protected void search(Query query, Filter queryFilter, Sort sort) throws MessageSearchException  {
 		  try {
 			   logger.debug("start search  {searchquery='"+getSearchQuery()+"'}");
 			   
 			   Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-			   results.clear(); 
-			   totalHits = getMaxSearchResults();
-			   TopFieldDocs topDocs = searchers.search(query,queryFilter,totalHits,sort);
-			   totalHits = topDocs.scoreDocs.length;
-			   for (int i=0; i < totalHits; i++) {
-					results.add(new LuceneResult(searchers,topDocs.scoreDocs[i]));
-			   }
-			   logger.info("search executed successfully {query='"+getSearchQuery()+"',returnedresults='"+results.size()+"'}");
+			   FieldDoc after = startAfter!=null ? LuceneResults.parseCursor(startAfter) : null;
+			   results.search(searchers,query,queryFilter,sort,after,new ResultFields(displayedFieldsOnly));
+			   logger.info("search executed successfully {query='"+getSearchQuery()+"',totalhits='"+results.getTotalHits()+"',returnedresults='"+results.size()+"'}");
+		  } catch (IllegalArgumentException iae) {
+			throw new MessageSearchException("failed to execute search query {searchquery='"+getSearchQuery()+"}",iae,logger,ChainedException.Level.DEBUG);
 		  } catch (IOException io) {
 			throw new MessageSearchException("failed to execute search query {searchquery='"+getSearchQuery()+"}",io,logger,ChainedException.Level.DEBUG);
 		  }
@@ -554,7 +611,7 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 	    
 	    protected void finalize() throws Throwable {
 	    	Config.getConfig().unregisterUpdateObserver(this);
-	    	results = null;
+	    	close(); // the readers are normally released by reset() or close()
 	    	/*
 		    try {
 				searchers.close();
@@ -575,9 +632,9 @@ public class StandardSearch extends Search  implements Serializable, Config.Upda
 		    	  	return 0;
 		      IndexReader indexReader = null;
 		      try {
-		    	  indexReader = IndexReader.open(indexDir);
+		    	  indexReader = VolumeSearcherManager.acquire(volume);
 		    	  count += indexReader.numDocs();
-		    	  indexReader.close();
+		    	  VolumeSearcherManager.release(indexReader);
 		      } catch (IOException e ) {
 		    	  logger.debug("failed to open index to calculate total email count", e);
 		    	  //throw new MessageSearchException("failed to open index to calculate total email count",e,logger);
@@ -0,0 +1,128 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.*;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+import com.stimulus.archiva.domain.Volume;
+
+/*
+ * Keeps one read-only IndexReader open per volume so that searches do not cold open the
+ * term dictionaries and field caches on every query. Readers are reference counted: each
+ * search acquires the readers it uses and releases them once its results are discarded.
+ * When the volume index commits, the reader is marked stale and reopened on next acquire.
+ */
+
+public class VolumeSearcherManager {
+
+	protected static final Log logger = LogFactory.getLog(VolumeSearcherManager.class.getName());
+	protected static final long REOPEN_CHECK_INTERVAL = 5000; // ms
+	protected static ConcurrentHashMap<String,VolumeReader> volumeReaders = new ConcurrentHashMap<String,VolumeReader>();
+
+	public static IndexReader acquire(Volume volume) throws IOException {
+		String indexPath = volume.getIndexPath();
+		VolumeReader volumeReader = volumeReaders.get(indexPath);
+		if (volumeReader==null) {
+			VolumeReader newVolumeReader = new VolumeReader(indexPath);
+			volumeReader = volumeReaders.putIfAbsent(indexPath,newVolumeReader);
+			if (volumeReader==null)
+				volumeReader = newVolumeReader;
+		}
+		return volumeReader.acquire();
+	}
+
+	public static void release(IndexReader reader) {
+		if (reader==null)
+			return;
+		try {
+			reader.decRef();
+		} catch (IOException io) {
+			logger.error("failed to release index reader:"+io.getMessage(),io);
+		}
+	}
+
+	// called when the volume index has committed changes
+	public static void refresh(Volume volume) {
+		VolumeReader volumeReader = volumeReaders.get(volume.getIndexPath());
+		if (volumeReader!=null)
+			volumeReader.setStale();
+	}
+
+	// called when a volume is ejected, unmounted or removed
+	public static void close(Volume volume) {
+		VolumeReader volumeReader = volumeReaders.remove(volume.getIndexPath());
+		if (volumeReader!=null) {
+			logger.debug("closing volume index reader {"+volume+"}");
+			volumeReader.close();
+		}
+	}
+
+	public static void closeAll() {
+		for (String indexPath : volumeReaders.keySet()) {
+			VolumeReader volumeReader = volumeReaders.remove(indexPath);
+			if (volumeReader!=null)
+				volumeReader.close();
+		}
+	}
+
+	protected static class VolumeReader {
+
+		String indexPath;
+		IndexReader reader = null;
+		volatile boolean stale = false;
+		long lastCheck = 0;
+
+		public VolumeReader(String indexPath) {
+			this.indexPath = indexPath;
+		}
+
+		public void setStale() {
+			stale = true;
+		}
+
+		public synchronized IndexReader acquire() throws IOException {
+			long now = System.currentTimeMillis();
+			if (reader==null) {
+				logger.debug("opening volume index reader {indexpath='"+indexPath+"'}");
+				reader = IndexReader.open(FSDirectory.open(new File(indexPath)),true);
+				stale = false;
+				lastCheck = now;
+			} else if (stale || now-lastCheck>REOPEN_CHECK_INTERVAL) {
+				// the index may also be modified by another process or a reindex
+				stale = false;
+				lastCheck = now;
+				IndexReader newReader = reader.reopen();
+				if (newReader!=reader) {
+					logger.debug("reopened volume index reader {indexpath='"+indexPath+"'}");
+					IndexReader oldReader = reader;
+					reader = newReader;
+					release(oldReader); // closed once in-flight searches release it
+				}
+			}
+			reader.incRef();
+			return reader;
+		}
+
+		public synchronized void close() {
+			release(reader);
+			reader = null;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.service;
+
+import java.io.*;
+import java.security.Principal;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.domain.*;
+import com.stimulus.archiva.exception.*;
+import com.stimulus.util.*;
+
+/*
+ * Decouples message acceptance from archiving. Incoming messages are written to the journal
+ * directory and acknowledged. They are then parsed, filtered, stored and indexed by bounded
+ * worker stages. When a stage is full, the stage before it blocks, so that ultimately the
+ * SMTP/milter/IAP thread is held back. Journal entries are only removed once a message has been
+ * fully processed (or handed over to the no archive queue), and are replayed on startup.
+ */
+
+public class ArchiveQueueService implements Serializable, Service {
+
+	private static final long serialVersionUID = -3913471162507371524L;
+	protected static final Log logger = LogFactory.getLog(ArchiveQueueService.class);
+	protected static final Log audit = LogFactory.getLog("com.stimulus.archiva.audit");
+	protected static final String journalFileExtension = ".eml";
+	protected static final String journalTempFileExtension = ".tmp";
+	protected static final int SHUTDOWN_WAIT_SECONDS = 10;
+	protected ServiceDelegate serviceDelegate;
+	protected transient List<Stage> stages;
+	protected transient Stage parseStage;
+	protected transient Stage filterStage;
+	protected transient Stage storeStage;
+	protected transient Stage indexStage;
+
+	public ArchiveQueueService() {
+		serviceDelegate = new ServiceDelegate("archive queue", this, logger);
+	}
+
+	public String getServiceName() {
+		return serviceDelegate.getServiceName();
+	}
+
+	public boolean isAlive() {
+		return serviceDelegate.isAlive(stages!=null);
+	}
+
+	public Status getStatus() {
+		return serviceDelegate.getStatus();
+	}
+
+	public void reloadConfig() {
+		serviceDelegate.reloadConfig();
+	}
+
+	public void startup() {
+		Archiver archiver = Config.getConfig().getArchiver();
+		int threads = archiver.getArchiveThreads();
+		int queueSize = archiver.getAsyncIngestQueueSize();
+		parseStage = new ParseStage(threads,queueSize);
+		filterStage = new FilterStage(1,queueSize);
+		storeStage = new StoreStage(threads,queueSize);
+		indexStage = new IndexStage(threads,queueSize);
+		stages = new ArrayList<Stage>();
+		stages.add(parseStage);
+		stages.add(filterStage);
+		stages.add(storeStage);
+		stages.add(indexStage);
+		// the journal is read before new messages are accepted, as they are journaled and queued as they arrive
+		final File[] journalFiles = listJournal();
+		serviceDelegate.startup();
+		if (journalFiles.length==0)
+			return;
+		Thread replay = new Thread(new Runnable() {
+			public void run() {
+				replayJournal(journalFiles);
+			}
+		},"archive queue replay");
+		replay.start();
+	}
+
+	public void prepareShutdown() {
+		serviceDelegate.prepareShutdown();
+	}
+
+	public void shutdown() {
+		if (stages==null)
+			return;
+		// stop each stage in turn so that upstream work can drain into downstream stages
+		for (Stage stage : stages) {
+			stage.shutdown();
+		}
+		logger.info("archive queue stopped. unprocessed messages will be replayed on startup {journal='"+getJournalSize()+"'}");
+		stages = null;
+		serviceDelegate.shutdown();
+	}
+
+	public boolean isAccepting() {
+		return serviceDelegate.getStatus()==Status.STARTED && stages!=null;
+	}
+
+	/*
+	 * Write the message to the journal and queue it for archiving. Once this method returns,
+	 * the message has been durably written and may be acknowledged to the sender.
+	 */
+	public void queueMessage(Principal principal, InputStream in) throws ArchiveException, InterruptedException {
+		if (in == null)
+			throw new ArchiveException("assertion failure: null message",logger,ArchiveException.RecoveryDirective.RETRYLATER);
+		File journalFile = writeJournal(in);
+		logger.debug("message journaled {journalFile='"+journalFile.getName()+"',"+principal+"}");
+		parseStage.submit(new QueuedMessage(principal,journalFile));
+	}
+
+	public LinkedHashMap<String,Integer> getQueueDepths() {
+		LinkedHashMap<String,Integer> depths = new LinkedHashMap<String,Integer>();
+		if (stages!=null) {
+			for (Stage stage : stages) {
+				depths.put(stage.getName(),stage.getQueueDepth());
+			}
+		}
+		return depths;
+	}
+
+	public int getJournalSize() {
+		File[] files = new File(Config.getFileSystem().getJournalPath()).listFiles(new JournalFileFilter());
+		return files==null ? 0 : files.length;
+	}
+
+	protected File writeJournal(InputStream in) throws ArchiveException {
+		String journalPath = Config.getFileSystem().getJournalPath();
+		String name = UUID.randomUUID().toString();
+		File tempFile = new File(journalPath + File.separatorChar + name + journalTempFileExtension);
+		File journalFile = new File(journalPath + File.separatorChar + name + journalFileExtension);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tempFile);
+			BufferedOutputStream bos = new BufferedOutputStream(fos,65536);
+			IOUtil.copy(in,bos);
+			bos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			if (!tempFile.renameTo(journalFile))
+				throw new IOException("failed to rename journal file {tempFile='"+tempFile.getPath()+"'}");
+			return journalFile;
+		} catch (IOException io) {
+			try { if (fos!=null) fos.close(); } catch (Exception e) {}
+			tempFile.delete();
+			throw new ArchiveException("failed to write message to journal:"+io.getMessage(),io,logger,ArchiveException.RecoveryDirective.RETRYLATER);
+		}
+	}
+
+	// remove unfinished journal writes and list the unprocessed messages, oldest first
+	protected File[] listJournal() {
+		File journalDir = new File(Config.getFileSystem().getJournalPath());
+		File[] tempFiles = journalDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(journalTempFileExtension);
+			}
+		});
+		// temp files were never acknowledged to the sender
+		if (tempFiles!=null) {
+			for (File tempFile : tempFiles) {
+				tempFile.delete();
+			}
+		}
+		File[] journalFiles = journalDir.listFiles(new JournalFileFilter());
+		if (journalFiles==null)
+			return new File[0];
+		Arrays.sort(journalFiles,new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return f1.lastModified()<f2.lastModified() ? -1 : (f1.lastModified()==f2.lastModified() ? 0 : 1);
+			}
+		});
+		return journalFiles;
+	}
+
+	protected void replayJournal(File[] journalFiles) {
+		logger.info("replaying unprocessed messages in archive journal {total='"+journalFiles.length+"'}");
+		MailArchivaPrincipal principal = new MailArchivaPrincipal("journal",Roles.SYSTEM_ROLE.getName(),null,null);
+		try {
+			for (File journalFile : journalFiles) {
+				if (!isAccepting())
+					return;
+				QueuedMessage queued = new QueuedMessage(principal,journalFile);
+				queued.replayed = true;
+				parseStage.submit(queued);
+			}
+		} catch (InterruptedException ie) {
+			logger.debug("archive journal replay interrupted");
+		} catch (Exception e) {
+			logger.error("failed to replay archive journal:"+e.getMessage(),e);
+		}
+	}
+
+	protected void completeMessage(QueuedMessage queued) {
+		queued.release();
+		if (!queued.journalFile.delete()) {
+			logger.warn("failed to delete journal file {journalFile='"+queued.journalFile.getPath()+"'}");
+		}
+	}
+
+	// hand the original message over to the no archive queue, where it is reprocessed later
+	protected void backupMessage(QueuedMessage queued) {
+		queued.release();
+		try {
+			Config.getConfig().getArchiver().backupMessage(queued.journalFile);
+		} catch (MessageStoreException mse) {
+			logger.error("failed to move journaled message to the no archive queue. it will be replayed on restart {journalFile='"+queued.journalFile.getPath()+"'}");
+		}
+	}
+
+	public static class JournalFileFilter implements FilenameFilter {
+		public boolean accept(File dir, String name) {
+			return name.endsWith(journalFileExtension);
+		}
+	}
+
+	protected static class QueuedMessage {
+
+		Principal principal;
+		File journalFile;
+		Email message;
+		MessageSpool spool;
+		boolean replayed = false; // read from the journal on startup
+		boolean reindex = false; // already stored, but perhaps not indexed
+
+		public QueuedMessage(Principal principal, File journalFile) {
+			this.principal = principal;
+			this.journalFile = journalFile;
+		}
+
+		// the journal file must not be held open when it is deleted or moved
+		public void release() {
+			if (spool!=null) {
+				spool.close();
+				spool = null;
+			}
+			message = null;
+		}
+	}
+
+	protected abstract class Stage {
+
+		String name;
+		ThreadPoolExecutor executor;
+		Semaphore semaphore;
+
+		public Stage(String name, int threads, int queueSize) {
+			this.name = name;
+			this.executor = new ThreadPoolExecutor(threads,threads,0L,TimeUnit.MILLISECONDS,new LinkedBlockingQueue<Runnable>(),ThreadUtil.getDaemonThreadFactory(name));
+			this.semaphore = new Semaphore(threads+queueSize);
+		}
+
+		public String getName() { return name; }
+
+		public int getQueueDepth() { return executor.getQueue().size(); }
+
+		// blocks while the stage is full
+		public void submit(final QueuedMessage queued) throws InterruptedException {
+			semaphore.acquire();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							process(queued);
+						} catch (InterruptedException ie) {
+							queued.release();
+							logger.debug("archive queue interrupted. message will be replayed {stage='"+name+"'}");
+						} catch (OutOfMemoryError ofme) {
+							logger.error("failed archive message: out of memory {stage='"+name+"'}",ofme);
+							backupMessage(queued);
+						} catch (Throwable t) {
+							logger.error("failed archive message:"+t.getMessage()+" {stage='"+name+"'}",t);
+							backupMessage(queued);
+						} finally {
+							semaphore.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				semaphore.release();
+				queued.release();
+				logger.debug("archive queue stage is shutdown. message will be replayed {stage='"+name+"'}");
+			}
+		}
+
+		public void shutdown() {
+			executor.shutdown();
+			try {
+				if (!executor.awaitTermination(SHUTDOWN_WAIT_SECONDS,TimeUnit.SECONDS))
+					executor.shutdownNow();
+			} catch (InterruptedException ie) {
+				executor.shutdownNow();
+			}
+		}
+
+		protected abstract void process(QueuedMessage queued) throws Exception;
+	}
+
+	protected class ParseStage extends Stage {
+
+		public ParseStage(int threads, int queueSize) { super("parse",threads,queueSize); }
+
+		protected void process(QueuedMessage queued) throws Exception {
+			// large messages are parsed from the journal file, so that only their headers are held in memory
+			queued.spool = MessageSpool.open(queued.journalFile);
+			try {
+				queued.message = queued.spool.getEmail(null);
+			} catch (javax.mail.MessagingException me) {
+				logger.error("archive message is corrupted:"+me.getMessage(),me);
+				if (Config.getConfig().getArchiver().getProcessMalformedMessages())
+					backupMessage(queued);
+				else
+					completeMessage(queued);
+				return;
+			}
+			filterStage.submit(queued);
+		}
+	}
+
+	protected class FilterStage extends Stage {
+
+		public FilterStage(int threads, int queueSize) { super("filter",threads,queueSize); }
+
+		protected void process(QueuedMessage queued) throws Exception {
+			Config config = Config.getConfig();
+			if (!config.getArchiver().isDefaultPassPhraseModified()) {
+				logger.error("failed to archive message. encryption password is not set.");
+				backupMessage(queued);
+				return;
+			}
+			if (config.getArchiveFilter().shouldArchive(queued.message,config.getDomains())!=ArchiveFilter.Action.ARCHIVE) {
+				audit.info("skip email {"+queued.message+", "+queued.principal+"}");
+				logger.debug("skip email {"+queued.message+", "+queued.principal+"}");
+				completeMessage(queued);
+				return;
+			}
+			MessageService.assignEmailID(queued.message,config.getVolumes());
+			if (queued.message.getEmailID().getVolume().isEjected()) {
+				logger.debug("attempt to archive message to ejected volume. sending message to no archive queue.");
+				backupMessage(queued);
+				return;
+			}
+			storeStage.submit(queued);
+		}
+	}
+
+	protected class StoreStage extends Stage {
+
+		public StoreStage(int threads, int queueSize) { super("store",threads,queueSize); }
+
+		protected void process(QueuedMessage queued) throws Exception {
+			if (Config.getShutdown()) {
+				logger.debug("archive queue store skipped. server is shutting down. message will be replayed.");
+				queued.release();
+				return;
+			}
+			Email message = queued.message;
+			boolean inserted;
+			try {
+				inserted = Config.getConfig().getArchiver().insertMessage(message);
+			} catch (Exception e) {
+				if (e.getCause() instanceof IOException && e.getMessage()!=null && e.getMessage().contains("space")) {
+					logger.error("must close volume (out of disk space)",e);
+					MessageService.closeVolume(Config.getConfig().getVolumes(),message.getEmailID().getVolume());
+				}
+				audit.error("fail archive email {"+message+", "+queued.principal+"}");
+				logger.error("error occurred while archiving message. message will be reprocessed later",e);
+				backupMessage(queued);
+				return;
+			}
+			if (!inserted) {
+				if (!queued.replayed) {
+					completeMessage(queued);
+					return;
+				}
+				// the server may have stopped after storing the message, but before indexing it
+				logger.debug("replayed message is already stored. indexing it again {"+message+"}");
+				queued.reindex = true;
+				indexStage.submit(queued);
+				return;
+			}
+			audit.info("archive email {"+message+", "+queued.principal+"}");
+			logger.debug("archive email {"+message+", "+queued.principal+"}");
+			indexStage.submit(queued);
+		}
+	}
+
+	protected class IndexStage extends Stage {
+
+		public IndexStage(int threads, int queueSize) { super("index",threads,queueSize); }
+
+		// the journal entry is kept until the message is indexed
+		protected void process(QueuedMessage queued) throws Exception {
+			Indexer indexer = Config.getConfig().getIndex();
+			if (Config.getShutdown() || indexer.getStatus()!=Status.STARTED) {
+				logger.debug("archive queue index skipped. index is not running. message will be replayed.");
+				queued.release();
+				return;
+			}
+			try {
+				if (queued.reindex)
+					indexer.deleteMessage(queued.message.getEmailID());
+				indexer.indexMessage(queued.message);
+			} catch (OutOfMemoryError ofme) {
+				logger.error("failed to index message: out of memory. sending message to no archive queue. {"+queued.message+"}",ofme);
+				backupMessage(queued);
+				return;
+			} catch (Throwable t) {
+				logger.error("failed to index message:"+t.getMessage()+". sending message to no archive queue. {"+queued.message+"}",t);
+				backupMessage(queued);
+				return;
+			}
+			completeMessage(queued);
+		}
+	}
+}
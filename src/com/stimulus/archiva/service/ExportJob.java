@@ -0,0 +1,382 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.service;
+
+import java.io.*;
+import java.security.Principal;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.domain.Config;
+import com.stimulus.archiva.domain.EmailID;
+import com.stimulus.util.ThreadUtil;
+
+/*
+ * Exports messages to a zip or mbox file in the background. The messages are read from the store
+ * (decrypted, decompressed and with their attachments restored) by a small pool of threads, and
+ * written to the export file in order. No more than two messages per thread are prepared ahead
+ * of the writer. Prepared messages are held in memory up to the spool threshold, and spooled to
+ * the export directory beyond it.
+ * Export files are kept in the export directory until they are replaced or expire.
+ */
+
+public class ExportJob implements Runnable {
+
+	protected static final Log logger = LogFactory.getLog(ExportJob.class.getName());
+	protected static final Log audit = LogFactory.getLog("com.stimulus.archiva.audit");
+	protected static final int BUFFER_SIZE = 65536;
+	protected static final int MAX_PREPARE_THREADS = 4;
+	protected static final long RETENTION = 24*60*60*1000L; // ms
+
+	public enum Format {
+
+		ZIP ("zip","application/zip"),
+		MBOX ("mbox","application/mbox");
+
+		protected String extension;
+		protected String contentType;
+
+		Format(String extension, String contentType) {
+			this.extension = extension;
+			this.contentType = contentType;
+		}
+
+		public String getExtension() { return extension; }
+
+		public String getContentType() { return contentType; }
+	}
+
+	public enum State { RUNNING, COMPLETED, FAILED, CANCELLED };
+
+	protected String id = UUID.randomUUID().toString();
+	protected Principal principal;
+	protected List<EmailID> emailIDs;
+	protected Format format;
+	protected File file;
+	protected String fileName;
+	protected volatile State state = State.RUNNING;
+	protected String error;
+	protected AtomicInteger exported = new AtomicInteger(0);
+	protected AtomicInteger failed = new AtomicInteger(0);
+	protected long started = System.currentTimeMillis();
+	protected long finished = 0;
+
+	public ExportJob(Principal principal, List<EmailID> emailIDs, Format format) {
+		this.principal = principal;
+		this.emailIDs = emailIDs;
+		this.format = format;
+		fileName = "export-"+new SimpleDateFormat("yyyyMMddHHmmss").format(new Date(started))+"."+format.getExtension();
+		file = new File(getExportPath(),id+"."+format.getExtension());
+	}
+
+	public void start() {
+		Thread thread = new Thread(this,"message export");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.NORM_PRIORITY-1);
+		thread.start();
+	}
+
+	public void run() {
+		audit.info("export messages {messages='"+emailIDs.size()+"',format='"+format.getExtension()+"', "+principal+"}");
+		logger.debug("export messages {messages='"+emailIDs.size()+"',file='"+file.getPath()+"'}");
+		deleteExpiredExports();
+		int threads = Math.max(1,Math.min(MAX_PREPARE_THREADS,Config.getConfig().getArchiver().getArchiveThreads()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads,ThreadUtil.getDaemonThreadFactory("export prepare"));
+		LinkedList<Future<PreparedMessage>> prepared = new LinkedList<Future<PreparedMessage>>();
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(file),BUFFER_SIZE);
+			ExportWriter writer = format==Format.ZIP ? new ZipWriter(os) : new MboxWriter(os);
+			Iterator<EmailID> i = emailIDs.iterator();
+			while (state==State.RUNNING && !Config.getShutdown()) {
+				while (prepared.size()<threads*2 && i.hasNext())
+					prepared.add(pool.submit(new PrepareMessage(i.next())));
+				if (prepared.isEmpty())
+					break;
+				PreparedMessage message;
+				try {
+					message = prepared.removeFirst().get();
+				} catch (ExecutionException ee) {
+					logger.error("failed to export message:"+ee.getCause().getMessage());
+					failed.incrementAndGet();
+					continue;
+				}
+				try {
+					writer.write(message.emailID,message.getInputStream());
+					exported.incrementAndGet();
+				} finally {
+					message.release();
+				}
+			}
+			writer.finish();
+			os.close();
+			os = null;
+			if (state==State.RUNNING && Config.getShutdown())
+				state = State.CANCELLED;
+			else if (state==State.RUNNING)
+				state = State.COMPLETED;
+		} catch (Exception e) {
+			logger.error("failed to export messages:"+e.getMessage(),e);
+			error = e.getMessage();
+			state = State.FAILED;
+		} finally {
+			if (os!=null)
+				try { os.close(); } catch (IOException io) {}
+			for (Future<PreparedMessage> future : prepared) {
+				future.cancel(true);
+				try {
+					if (future.isDone() && !future.isCancelled())
+						future.get().release();
+				} catch (Exception e) {}
+			}
+			pool.shutdownNow();
+			finished = System.currentTimeMillis();
+		}
+		if (state!=State.COMPLETED)
+			delete();
+		logger.info("message export finished {state='"+state+"',exported='"+exported+"',failed='"+failed+"',time='"+(finished-started)+"ms'}");
+	}
+
+	public void cancel() {
+		if (state==State.RUNNING)
+			state = State.CANCELLED;
+	}
+
+	// remove the export file, cancelling the job if it is still running
+	public void delete() {
+		cancel();
+		if (file.exists() && !file.delete())
+			logger.debug("failed to delete export file {file='"+file.getPath()+"'}");
+	}
+
+	public String getId() { return id; }
+
+	public Format getFormat() { return format; }
+
+	public File getFile() { return file; }
+
+	public String getFileName() { return fileName; }
+
+	public State getState() { return state; }
+
+	public boolean getRunning() { return state==State.RUNNING; }
+
+	public boolean getCompleted() { return state==State.COMPLETED; }
+
+	public String getError() { return error; }
+
+	public int getTotal() { return emailIDs.size(); }
+
+	public int getExported() { return exported.get(); }
+
+	public int getFailed() { return failed.get(); }
+
+	public int getPercentage() {
+		return emailIDs.isEmpty() ? 100 : (exported.get()+failed.get())*100/emailIDs.size();
+	}
+
+	public long getSize() { return file.length(); }
+
+	public static String getExportPath() {
+		return Config.getFileSystem().getExportPath();
+	}
+
+	// export files that were not replaced are removed once they expire
+	protected static void deleteExpiredExports() {
+		File[] files = new File(getExportPath()).listFiles();
+		if (files==null)
+			return;
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			if (now-file.lastModified()>RETENTION && !file.delete())
+				logger.debug("failed to delete expired export file {file='"+file.getPath()+"'}");
+		}
+	}
+
+	protected class PrepareMessage implements Callable<PreparedMessage> {
+
+		EmailID emailID;
+
+		public PrepareMessage(EmailID emailID) {
+			this.emailID = emailID;
+		}
+
+		public PreparedMessage call() throws Exception {
+			InputStream is = Config.getConfig().getArchiver().getRawMessageInputStream(emailID);
+			try {
+				return new PreparedMessage(emailID,is,Config.getConfig().getArchiver().getSpoolThreshold()*1024);
+			} catch (IOException io) {
+				throw new IOException("failed to read message {"+emailID+"}:"+io.getMessage());
+			} finally {
+				is.close();
+			}
+		}
+	}
+
+	protected static class PreparedMessage {
+
+		EmailID emailID;
+		byte[] bytes;
+		File spool;
+
+		public PreparedMessage(EmailID emailID, InputStream is, int threshold) throws IOException {
+			this.emailID = emailID;
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.min(threshold,BUFFER_SIZE)+1);
+			byte[] chunk = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = is.read(chunk))>=0) {
+				buffer.write(chunk,0,read);
+				if (buffer.size()>threshold) {
+					spool(buffer,is,chunk);
+					return;
+				}
+			}
+			bytes = buffer.toByteArray();
+		}
+
+		protected void spool(ByteArrayOutputStream buffer, InputStream is, byte[] chunk) throws IOException {
+			spool = File.createTempFile("spool",".tmp",new File(getExportPath()));
+			OutputStream os = new FileOutputStream(spool);
+			try {
+				buffer.writeTo(os);
+				int read;
+				while ((read = is.read(chunk))>=0)
+					os.write(chunk,0,read);
+			} catch (IOException io) {
+				os.close();
+				release();
+				throw io;
+			}
+			os.close();
+		}
+
+		public InputStream getInputStream() throws IOException {
+			if (spool!=null)
+				return new BufferedInputStream(new FileInputStream(spool),BUFFER_SIZE);
+			return new ByteArrayInputStream(bytes);
+		}
+
+		public void release() {
+			if (spool!=null && !spool.delete())
+				logger.debug("failed to delete export spool file {file='"+spool.getPath()+"'}");
+		}
+	}
+
+	protected static abstract class ExportWriter {
+
+		protected byte[] buffer = new byte[BUFFER_SIZE];
+
+		public abstract void write(EmailID emailID, InputStream is) throws IOException;
+
+		public abstract void finish() throws IOException;
+	}
+
+	// each message is written to its own .eml entry
+	protected static class ZipWriter extends ExportWriter {
+
+		ZipOutputStream zos;
+
+		public ZipWriter(OutputStream os) {
+			zos = new ZipOutputStream(os);
+		}
+
+		public void write(EmailID emailID, InputStream is) throws IOException {
+			try {
+				zos.putNextEntry(new ZipEntry(emailID.getUniqueID()+".eml"));
+				int read;
+				while ((read = is.read(buffer))>=0)
+					zos.write(buffer,0,read);
+				zos.closeEntry();
+			} finally {
+				is.close();
+			}
+		}
+
+		public void finish() throws IOException {
+			zos.finish();
+		}
+	}
+
+	// mboxrd: lines are terminated by LF, and lines starting with any number of '>' followed by
+	// "From " are quoted with one more '>'
+	protected static class MboxWriter extends ExportWriter {
+
+		protected static final byte[] FROM = { 'F','r','o','m',' ' };
+
+		OutputStream os;
+		byte[] separator;
+		ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+
+		public MboxWriter(OutputStream os) {
+			this.os = os;
+			SimpleDateFormat asctime = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy",Locale.ENGLISH);
+			try {
+				separator = ("From MAILER-DAEMON "+asctime.format(new Date())+"\n").getBytes("US-ASCII");
+			} catch (UnsupportedEncodingException uee) {
+				separator = ("From MAILER-DAEMON "+asctime.format(new Date())+"\n").getBytes();
+			}
+		}
+
+		public void write(EmailID emailID, InputStream is) throws IOException {
+			try {
+				os.write(separator);
+				int read;
+				while ((read = is.read(buffer))>=0) {
+					for (int i=0;i<read;i++) {
+						byte b = buffer[i];
+						if (b=='\n')
+							writeLine();
+						else
+							line.write(b);
+					}
+				}
+				if (line.size()>0)
+					writeLine();
+				os.write('\n');
+			} finally {
+				is.close();
+			}
+		}
+
+		protected void writeLine() throws IOException {
+			byte[] bytes = line.toByteArray();
+			int length = bytes.length;
+			if (length>0 && bytes[length-1]=='\r')
+				length--;
+			int start = 0;
+			while (start<length && bytes[start]=='>')
+				start++;
+			if (length-start>=FROM.length) {
+				boolean from = true;
+				for (int i=0;i<FROM.length && from;i++)
+					from = bytes[start+i]==FROM[i];
+				if (from)
+					os.write('>');
+			}
+			os.write(bytes,0,length);
+			os.write('\n');
+			line.reset();
+		}
+
+		public void finish() throws IOException {
+			os.flush();
+		}
+	}
+}
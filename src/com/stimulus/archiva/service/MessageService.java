@@ -31,6 +31,7 @@ import org.apache.commons.logging.*;
 import com.stimulus.archiva.exception.*;
 import javax.mail.event.*;
 import javax.mail.*;
+import javax.mail.internet.SharedInputStream;
 import com.stimulus.util.*;
 
 
@@ -38,7 +39,13 @@ public class MessageService implements Serializable {
   
   private static final long serialVersionUID = -11293874311212271L;
   protected static final Log logger = LogFactory.getLog(MessageService.class);
-  protected static Hashtable<String,MessageExtraction> extractedMessages = new Hashtable<String,MessageExtraction>();
+  protected static final int EXTRACTION_CACHE_ENTRIES = 64;
+  // extracted messages are reused while their view files are kept
+  protected static LRUCache<String,MessageExtraction> extractedMessages = new LRUCache<String,MessageExtraction>(EXTRACTION_CACHE_ENTRIES) {
+	  protected boolean isValid(MessageExtraction extraction) {
+		  return extraction.isAvailable();
+	  }
+  };
   protected static final Log audit = LogFactory.getLog("com.stimulus.archiva.audit");
   public static enum MessageState { COMPRESSED, UNCOMPRESSED };
   protected static WriteMessageCallback callback = new WriteMessageCallback();
@@ -55,7 +62,50 @@ public class MessageService implements Serializable {
     logger.debug("getMessageByID() {volumeName="+volumeName+",uniqueId='"+uniqueId+"'}");
     Volume volume = Config.getConfig().getVolumes().getNewVolume(volumeName);
     EmailID emailID = EmailID.getEmailID(volume, uniqueId);
-  	return Config.getConfig().getArchiver().retrieveMessage(emailID);
+  	return Config.getConfig().getArchiver().retrieveCachedMessage(emailID);
+  }
+
+  public static void deleteMessage(String volumeName, String uniqueId) throws ArchivaException {
+    if (volumeName == null || uniqueId == null)
+          throw new ArchivaException("assertion failure: null emailId",logger);
+
+    Volume volume = Config.getConfig().getVolumes().getNewVolume(volumeName);
+    EmailID emailID = EmailID.getEmailID(volume, uniqueId);
+    logger.debug("deleting message: " + emailID);
+    Config.getConfig().getIndex().deleteMessage(emailID);
+    evictMessage(emailID);
+  }
+
+  // drop a message from the message and extraction caches
+  public static void evictMessage(EmailID emailID) {
+	  Config.getConfig().getArchiver().evictMessage(emailID);
+	  extractedMessages.remove(getExtractionKey(emailID,true));
+	  extractedMessages.remove(getExtractionKey(emailID,false));
+  }
+
+  public static String getCacheStatistics() {
+	  return "{messages={"+Config.getConfig().getArchiver().getMessageCacheStatistics()+"},extractions={"+extractedMessages.getStatistics()+"}}";
+  }
+
+  /**
+   * Stream the original message straight from the store, without parsing it.
+   * Used when the message is downloaded, exported or returned by the web service.
+   */
+
+  public static InputStream getRawMessageByID(String volumeName, String uniqueId) throws ArchivaException, IOException {
+    if (volumeName == null || uniqueId == null)
+          throw new ArchivaException("assertion failure: null emailId",logger);
+
+    logger.debug("getRawMessageByID() {volumeName="+volumeName+",uniqueId='"+uniqueId+"'}");
+    Volume volume = Config.getConfig().getVolumes().getNewVolume(volumeName);
+    EmailID emailID = EmailID.getEmailID(volume, uniqueId);
+  	return Config.getConfig().getArchiver().getMessageInputStream(emailID);
+  }
+
+  public static ExportJob exportMessages(Principal principal, List<EmailID> emailIDs, ExportJob.Format format) {
+	  ExportJob job = new ExportJob(principal,emailIDs,format);
+	  job.start();
+	  return job;
   }
 
   public static FetchMessageCallback getFetchMessageCallback() {
@@ -170,11 +220,6 @@ public class MessageService implements Serializable {
   }
 
   
-  private static void deleteTemp(File tempFile) {
-	  if (tempFile!=null) {
-		  tempFile.delete();
-	  }
-  }
   private static File copyToTemp(InputStream stream) throws ArchiveException {
 	  File tempFile = null;
 		try {
@@ -198,43 +243,32 @@ public class MessageService implements Serializable {
 	      		logger.debug("message received for archival {"+principal+"'}");
 	      		
 	      		boolean processMalformed = Config.getConfig().getArchiver().getProcessMalformedMessages();
-	      		File tempFile = null;
-	      		InputStream inStream = null;
+	      		MessageSpool spool = null;
 	      		Email message =  null;
 		  	    Config config = Config.getConfig();
 		  	    
 		  	    try {
-			  	    if (processMalformed) {
+		  	    	// the message body is parsed on demand from the spool (in memory or in a temp file)
+		  	    	InputStream inStream;
+		  	    	if (MessageSpool.isSpooled(in)) {
+		  	    		inStream = in;
+		  	    	} else {
 			  	  		try {
-			  	  			tempFile = copyToTemp(in);
+			  	  			spool = MessageSpool.spool(in);
+			  	  			inStream = spool.getInputStream();
 			  	  		} catch (Exception io) {
 			  	  			throw new ArchiveException("failed to copy message to temp directory:"+io.getMessage(),io,logger,ArchiveException.RecoveryDirective.RETRYLATER);
 			  	  		}
-			      		try {
-			      			inStream = new BufferedInputStream(new FileInputStream(tempFile));
-			      		} catch (FileNotFoundException fnfe) {
-			      			throw new ArchiveException("failed to copy message to temp directory:"+fnfe.getMessage(),fnfe,logger,ArchiveException.RecoveryDirective.RETRYLATER);
-			      		}
-			      		try {
-			      			message = new Email(null,inStream);
-			      		} catch (Exception e) {
-			      			InputStream errorStream = null;
-			      			try {
-			      				errorStream = new BufferedInputStream(new FileInputStream(tempFile));
-				      		} catch (FileNotFoundException fnfe) {
-				      			throw new ArchiveException("failed to copy message to temp directory:"+fnfe.getMessage(),fnfe,logger,ArchiveException.RecoveryDirective.RETRYLATER);
-				      		}
-			      			backupMessage(errorStream); 
-			      			throw new ArchiveException("archive message appears corrupted:"+e.getMessage(),e,logger,ArchiveException.RecoveryDirective.ACCEPT);
-			      		}
-			  	  	} else {
-			  	  		inStream = new BufferedInputStream(in);
-			  	  		try {
-			  	  			message = new Email(null,inStream);
-				  	  	} catch (Exception e) {
-			      			throw new ArchiveException("archive message is corrupted:"+e.getMessage()+".",e,logger,ArchiveException.RecoveryDirective.ACCEPT);
-			      		}
-			  	  	}
+		  	    	}
+		      		try {
+		      			message = new Email(null,inStream);
+		      		} catch (Exception e) {
+		      			if (processMalformed) {
+		      				backupMessage(((SharedInputStream)inStream).newStream(0,-1)); 
+		      				throw new ArchiveException("archive message appears corrupted:"+e.getMessage(),e,logger,ArchiveException.RecoveryDirective.ACCEPT);
+		      			}
+		      			throw new ArchiveException("archive message is corrupted:"+e.getMessage()+".",e,logger,ArchiveException.RecoveryDirective.ACCEPT);
+		      		}
 			  	  
 			  	    if (!config.getArchiver().isDefaultPassPhraseModified()) {
 			  	    	backupMessage(message);
@@ -258,7 +292,8 @@ public class MessageService implements Serializable {
 			  	      logger.debug("skip email {"+message+", "+principal+"}");
 			  	    }
 		  	    } finally {
-		  	    	deleteTemp(tempFile);
+		  	    	if (spool!=null)
+		  	    		spool.close();
 		  	    	StreamUtil.emptyStream(in);
 		  	    }
 	}
@@ -285,14 +320,105 @@ public class MessageService implements Serializable {
 		  logger.debug("index volume {"+volume+", "+principal+"}");
 		  MessageIndex index = (MessageIndex)config.getIndex();
 	      try {
-	    	  index.deleteIndex(volume);
-	    	  config.getArchiver().processMessages(new IndexMessage(volume));
+	    	  if (index.getIndexShadowRebuild() && !volume.getIndexPath().startsWith("rmi://")) {
+	    		  index.rebuildIndex(volume);
+	    	  } else {
+	    		  index.deleteIndex(volume);
+	    		  config.getArchiver().processMessages(new IndexMessage(volume));
+	    	  }
 	     } catch (Exception e) {
 	    	 logger.error("failed to index volume {"+volume+"}:"+e.getMessage(),e);
 	     }
 	  }
   }
 
+  public static void migrateAttachments(Principal principal, int volumeIndex) throws ArchivaException {
+	  new MigrateAttachmentsThread(principal,volumeIndex).start();
+  }
+
+  public static class MigrateAttachmentsThread extends Thread {
+
+	  Principal principal;
+	  int volumeIndex;
+
+	  public MigrateAttachmentsThread(Principal principal, int volumeIndex) {
+		  this.principal = principal;
+		  this.volumeIndex = volumeIndex;
+	  }
+
+	  public void run() {
+		  Config config = Config.getConfig();
+	      Volume volume = config.getVolumes().getVolume(volumeIndex);
+	      audit.info("migrate volume attachments {"+volume+", "+principal+"}");
+		  logger.debug("migrate volume attachments {"+volume+", "+principal+"}");
+	      try {
+	    	  config.getArchiver().migrateAttachments(volume);
+	     } catch (Exception e) {
+	    	 logger.error("failed to migrate volume attachments {"+volume+"}:"+e.getMessage(),e);
+	     }
+	  }
+  }
+
+  public static void upgradeStore(Principal principal, int volumeIndex) throws ArchivaException {
+	  Volume volume = Config.getConfig().getVolumes().getVolume(volumeIndex);
+	  if (volume==null || volume.getStatus()!=Volume.Status.CLOSED)
+		  throw new ArchivaException("only closed volumes can be upgraded",logger);
+	  new UpgradeStoreThread(principal,volume).start();
+  }
+
+  public static class UpgradeStoreThread extends Thread {
+
+	  Principal principal;
+	  Volume volume;
+
+	  public UpgradeStoreThread(Principal principal, Volume volume) {
+		  this.principal = principal;
+		  this.volume = volume;
+		  setName("store upgrade");
+		  setPriority(Thread.NORM_PRIORITY-1);
+	  }
+
+	  public void run() {
+	      audit.info("upgrade volume store format {"+volume+", "+principal+"}");
+		  logger.debug("upgrade volume store format {"+volume+", "+principal+"}");
+	      try {
+	    	  Config.getConfig().getArchiver().upgradeStore(volume);
+	     } catch (Exception e) {
+	    	 logger.error("failed to upgrade volume store format {"+volume+"}:"+e.getMessage(),e);
+	     }
+	  }
+  }
+
+  public static void packStore(Principal principal, int volumeIndex) throws ArchivaException {
+	  Volume volume = Config.getConfig().getVolumes().getVolume(volumeIndex);
+	  if (volume==null || volume.getStatus()!=Volume.Status.CLOSED)
+		  throw new ArchivaException("only closed volumes can be packed",logger);
+	  new PackStoreThread(principal,volume).start();
+  }
+
+  public static class PackStoreThread extends Thread {
+
+	  Principal principal;
+	  Volume volume;
+
+	  public PackStoreThread(Principal principal, Volume volume) {
+		  this.principal = principal;
+		  this.volume = volume;
+		  setName("store pack");
+		  setPriority(Thread.NORM_PRIORITY-1);
+	  }
+
+	  public void run() {
+	      audit.info("pack volume store {"+volume+", "+principal+"}");
+		  logger.debug("pack volume store {"+volume+", "+principal+"}");
+	      try {
+	    	  Config.getConfig().getArchiver().packStore(volume);
+	     } catch (Exception e) {
+	    	 logger.error("failed to pack volume store {"+volume+"}:"+e.getMessage(),e);
+	     }
+	  }
+  }
+
 /* deliberately non recursive (so we avoid situations where the whole h/d is deleted) */
   
   public static void recoverNoArchiveMessages(Recovery recovery) {
@@ -523,6 +649,16 @@ public class MessageService implements Serializable {
 		    throw new ArchivaException("assertion failure: null message or baseURL",logger);
 	
 	    logger.debug("extractMessage() {"+message+"}");
+	    EmailID emailID = message.getEmailID();
+	    String key = null;
+	    if (emailID!=null && emailID.getVolume()!=null && emailID.getUniqueID()!=null) {
+	    	key = getExtractionKey(emailID,isOriginalMessage);
+	    	MessageExtraction extraction = extractedMessages.get(key);
+	    	if (extraction!=null && baseURL.equals(extraction.getBaseURL())) {
+	    		logger.debug("returning cached message extraction {extractionURL='"+extraction.getViewURL()+"'}");
+	    		return extraction;
+	    	}
+	    }
 	    InputStream is = null;
 		  
 		if (isOriginalMessage) {
@@ -538,10 +674,15 @@ public class MessageService implements Serializable {
 		}
 		MessageExtraction messageExtract = new MessageExtraction(message, is, baseURL);
 		logger.debug("message extracted successfully {extractionURL='"+messageExtract.getViewURL()+"'}" );
-		
+		if (key!=null)
+			extractedMessages.put(key,messageExtract);
 		return messageExtract;
   }
 
+  protected static String getExtractionKey(EmailID emailID, boolean isOriginalMessage) {
+	  return emailID.getVolume().getPath()+File.pathSeparator+emailID.getUniqueID()+File.pathSeparator+isOriginalMessage;
+  }
+
   public static class WriteMessageCallback implements FetchMessageCallback {
 	  
 	  public void store(InputStream is, String remoteIP) throws ArchiveException {
@@ -551,7 +692,16 @@ public class MessageService implements Serializable {
 		 		logger.info("message received for archival (via smtp service)) {username='"+userName+"', client ip='"+remoteIP+"'}");
 		 	  	try {
 		 	  		logger.debug("start store message");
-		 	  	    storeMessage(mp,is);
+		 	  		ArchiveQueueService archiveQueue = Config.getConfig().getArchiveQueueService();
+		 	  		if (Config.getConfig().getArchiver().isAsyncIngest() && archiveQueue.isAccepting()) {
+		 	  			try {
+		 	  				archiveQueue.queueMessage(mp,is);
+		 	  			} catch (InterruptedException ie) {
+		 	  				throw new ArchiveException("interrupted while queuing message for archiving",logger,ArchiveException.RecoveryDirective.RETRYLATER);
+		 	  			}
+		 	  		} else {
+		 	  			storeMessage(mp,is);
+		 	  		}
 		 	  	    logger.debug("end store message");
 		 	  	} catch (ArchiveException me) {
 		 	  	    logger.debug("failed to store message. Cause:",me);
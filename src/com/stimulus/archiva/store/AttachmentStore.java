@@ -0,0 +1,696 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.domain.*;
+import com.stimulus.archiva.exception.MessageStoreException;
+import com.stimulus.archiva.exception.ProcessException;
+import com.stimulus.util.Compare;
+import com.sun.mail.util.LineOutputStream;
+
+/*
+ * Single instance attachment storage. Large MIME parts are stored once per volume under the
+ * hash tree (<sha1>.att) together with a reference count (<sha1>.ref). The message file keeps
+ * the part headers and a stub line in place of the encoded content. The X-MailArchiva-Attachments
+ * header lists the stubbed hashes so that only messages written by this class are re-expanded.
+ * Parts are stored in their transfer encoding so the expanded message is byte identical to the
+ * message that would otherwise have been written. Only multiparts that contain a stub are rewritten,
+ * for these the epilogue is dropped and the preamble is written with CRLF line endings.
+ */
+
+public class AttachmentStore {
+
+	 protected static final Log logger = LogFactory.getLog(AttachmentStore.class.getName());
+	 protected static final String ATTACHMENTS_HEADER = "X-MailArchiva-Attachments";
+	 protected static final String STUB_PREFIX = "X-MailArchiva-Attachment-Stub: ";
+	 protected static final String attachmentFileExtension = ".att";
+	 protected static final String referenceFileExtension = ".ref";
+	 protected static final int LOCK_STRIPES = 64;
+	 protected static final int MAX_STUB_LINE = 256;
+	 protected static final String hexits = "0123456789abcdef";
+	 protected static final String STATISTICS_FILE = "attachmentinfo";
+	 protected static final String[] compressedContentTypes = { "image/jpeg", "image/jpg", "image/pjpeg", "image/png", "image/gif",
+		 "application/zip", "application/x-zip-compressed", "application/x-gzip", "application/gzip", "application/x-rar-compressed",
+		 "application/x-7z-compressed", "audio/mpeg", "video/mpeg", "video/mp4", "video/quicktime" };
+	 protected static final Set<String> compressedExtensions = new HashSet<String>(Arrays.asList(new String[] {
+		 "jpg", "jpeg", "png", "gif", "zip", "gz", "tgz", "rar", "7z", "mp3", "mp4", "mpg", "mov",
+		 "docx", "xlsx", "pptx", "odt", "ods", "odp" }));
+
+	 protected MessageStore store;
+	 protected Object[] locks = new Object[LOCK_STRIPES];
+	 protected ConcurrentHashMap<String,AttachmentStatistics> statistics = new ConcurrentHashMap<String,AttachmentStatistics>();
+	 protected ConcurrentHashMap<String,String> savedStatistics = new ConcurrentHashMap<String,String>();
+
+	 public AttachmentStore(MessageStore store) {
+		 this.store = store;
+		 for (int i=0;i<LOCK_STRIPES;i++)
+			 locks[i] = new Object();
+	 }
+
+	 protected Object getLock(String hash) {
+		 return locks[(hash.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	 }
+
+	 /**
+	   * Store the large parts of a message in the attachment store
+	   * @param volume The volume
+	   * @param email The message
+	   * @return The hashes of the stored parts in message order (empty if none qualify)
+	   */
+
+	 public List<String> storeAttachments(Volume volume, Email email) {
+		 List<String> hashes = new ArrayList<String>();
+		 try {
+			 if (email.isMimeType("multipart/*") && !email.isMimeType("multipart/signed")) {
+				 Object content = email.getContent();
+				 if (content instanceof MimeMultipart)
+					 storeAttachments(volume,(MimeMultipart)content,hashes);
+			 }
+		 } catch (Exception e) {
+			 logger.debug("failed to store attachments. message will be stored whole:"+e.getMessage(),e);
+			 releaseAttachments(volume,hashes);
+			 hashes.clear();
+		 }
+		 return hashes;
+	 }
+
+	 protected void storeAttachments(Volume volume, MimeMultipart multipart, List<String> hashes) throws Exception {
+		 for (int i=0, n=multipart.getCount(); i<n; i++) {
+			 MimeBodyPart part = (MimeBodyPart)multipart.getBodyPart(i);
+			 if (isAttachment(part)) {
+				 hashes.add(storeAttachment(volume,part));
+			 } else if (isNestedMultipart(part)) {
+				 storeAttachments(volume,(MimeMultipart)part.getContent(),hashes);
+			 }
+		 }
+	 }
+
+	 protected boolean isAttachment(MimeBodyPart part) throws MessagingException {
+		 return !part.isMimeType("multipart/*") && part.getSize()>=store.getSmartAttachmentMinSize();
+	 }
+
+	 // multipart/signed content must be stored byte for byte so that signatures still verify
+	 protected boolean isNestedMultipart(MimeBodyPart part) throws MessagingException, IOException {
+		 return part.isMimeType("multipart/*") && !part.isMimeType("multipart/signed") &&
+		 		part.getContent() instanceof MimeMultipart;
+	 }
+
+	 protected boolean containsAttachment(MimeMultipart multipart) throws MessagingException, IOException {
+		 for (int i=0, n=multipart.getCount(); i<n; i++) {
+			 MimeBodyPart part = (MimeBodyPart)multipart.getBodyPart(i);
+			 if (isAttachment(part) || (isNestedMultipart(part) && containsAttachment((MimeMultipart)part.getContent())))
+				 return true;
+		 }
+		 return false;
+	 }
+
+	 protected String storeAttachment(Volume volume, MimeBodyPart part) throws MessagingException, IOException, MessageStoreException {
+		 String hash = hashAttachment(part);
+		 synchronized(getLock(hash)) {
+			 File attachFile = store.getNewFile(volume,hash,attachmentFileExtension);
+			 File refFile = store.getNewFile(volume,hash,referenceFileExtension);
+			 long references = attachFile.exists() ? readReferences(refFile) : 0;
+			 AttachmentStatistics stats = getStatistics(volume);
+			 if (references==0) {
+				 writeAttachment(volume,part,attachFile);
+				 logger.debug("stored attachment {hash='"+hash+"',size='"+attachFile.length()+"',"+volume+"}");
+				 stats.attachments.incrementAndGet();
+				 stats.storedSpace.addAndGet(attachFile.length());
+				 if (volume.isDiskSpaceChecked())
+					 store.updateDiskSpace(volume,attachFile.length());
+			 } else {
+				 logger.debug("attachment already stored {hash='"+hash+"',references='"+references+"',"+volume+"}");
+				 stats.savedSpace.addAndGet(attachFile.length());
+			 }
+			 writeReferences(refFile,references+1);
+			 stats.references.incrementAndGet();
+		 }
+		 return hash;
+	 }
+
+	 protected String hashAttachment(MimeBodyPart part) throws MessagingException, IOException {
+		 MessageDigest sha;
+		 try {
+			 sha = MessageDigest.getInstance("SHA-1");
+		 } catch (java.security.NoSuchAlgorithmException nsae) {
+			 throw new IOException("failed to locate SHA-1 digest");
+		 }
+		 InputStream is = new DigestInputStream(part.getRawInputStream(),sha);
+		 byte[] buffer = new byte[8192];
+		 try {
+			 while (is.read(buffer)!=-1);
+		 } finally {
+			 is.close();
+		 }
+		 byte[] digest = sha.digest();
+		 char[] hex = new char[digest.length*2];
+		 for (int i=0;i<digest.length;i++) {
+			 hex[i*2] = hexits.charAt((digest[i] >>> 4) & 0xf);
+			 hex[i*2+1] = hexits.charAt(digest[i] & 0xf);
+		 }
+		 return new String(hex);
+	 }
+
+	 protected void writeAttachment(Volume volume, MimeBodyPart part, File attachFile) throws MessagingException, IOException, MessageStoreException {
+		 File tempFile = new File(attachFile.getPath()+".tmp");
+		 InputStream is = part.getRawInputStream();
+		 OutputStream os = null;
+		 try {
+			 if (isCompressed(part)) {
+				 // base64 text still deflates by about a quarter, so it is given the fastest level
+				 if (Compare.equalsIgnoreCase(part.getEncoding(),"base64"))
+					 os = store.getRawMessageOutputStream(tempFile,CompressionCodec.GZIP,1);
+				 else
+					 os = store.getRawMessageOutputStream(tempFile,CompressionCodec.STORE,0);
+			 } else {
+				 os = store.getRawMessageOutputStream(tempFile,volume);
+			 }
+			 byte[] buffer = new byte[8192];
+			 int read;
+			 while ((read=is.read(buffer))!=-1)
+				 os.write(buffer,0,read);
+			 os.close();
+			 os = null;
+			 replaceFile(tempFile,attachFile);
+		 } finally {
+			 try { is.close(); } catch (Exception e) {}
+			 if (os!=null) try { os.close(); } catch (Exception e) {}
+			 if (tempFile.exists())
+				 tempFile.delete();
+		 }
+	 }
+
+	 // payloads that are already compressed, and gain nothing from compressing them again
+	 protected boolean isCompressed(MimeBodyPart part) throws MessagingException {
+		 for (String contentType : compressedContentTypes) {
+			 if (part.isMimeType(contentType))
+				 return true;
+		 }
+		 String fileName = null;
+		 try {
+			 fileName = part.getFileName();
+		 } catch (MessagingException me) {}
+		 if (fileName!=null) {
+			 int dot = fileName.lastIndexOf('.');
+			 if (dot>=0 && compressedExtensions.contains(fileName.substring(dot+1).toLowerCase(Locale.ENGLISH).trim()))
+				 return true;
+		 }
+		 return false;
+	 }
+
+	 /**
+	   * Decrement the reference counts of stored attachments. An attachment is deleted when
+	   * it is no longer referenced.
+	   * @param volume The volume
+	   * @param hashes The attachment hashes
+	   */
+
+	 public void releaseAttachments(Volume volume, List<String> hashes) {
+		 for (String hash : hashes) {
+			 synchronized(getLock(hash)) {
+				 try {
+					 File attachFile = store.getExistingAttachmentFilePath(volume,hash);
+					 File refFile = new File(attachFile.getParentFile(),hash+referenceFileExtension);
+					 long references = readReferences(refFile);
+					 AttachmentStatistics stats = getStatistics(volume);
+					 stats.references.decrementAndGet();
+					 if (references<=1) {
+						 logger.debug("deleting unreferenced attachment {hash='"+hash+"',"+volume+"}");
+						 stats.attachments.decrementAndGet();
+						 stats.storedSpace.addAndGet(-attachFile.length());
+						 if (volume.isDiskSpaceChecked())
+							 store.updateDiskSpace(volume,-attachFile.length());
+						 attachFile.delete();
+						 refFile.delete();
+					 } else {
+						 stats.savedSpace.addAndGet(-attachFile.length());
+						 writeReferences(refFile,references-1);
+					 }
+				 } catch (Exception e) {
+					 logger.error("failed to release attachment {hash='"+hash+"',"+volume+"}:"+e.getMessage());
+				 }
+			 }
+		 }
+	 }
+
+	 protected long readReferences(File refFile) {
+		 if (!refFile.exists())
+			 return 1; // attachment exists without a count, assume a single reference
+		 BufferedReader reader = null;
+		 try {
+			 reader = new BufferedReader(new FileReader(refFile));
+			 return Long.parseLong(reader.readLine().trim());
+		 } catch (Exception e) {
+			 logger.error("failed to read attachment reference count {file='"+refFile.getPath()+"'}:"+e.getMessage());
+			 return 1;
+		 } finally {
+			 try { if (reader!=null) reader.close(); } catch (Exception e) {}
+		 }
+	 }
+
+	 protected void writeReferences(File refFile, long references) throws IOException {
+		 File tempFile = new File(refFile.getPath()+".tmp");
+		 FileWriter writer = new FileWriter(tempFile);
+		 try {
+			 writer.write(Long.toString(references));
+		 } finally {
+			 writer.close();
+		 }
+		 replaceFile(tempFile,refFile);
+	 }
+
+	 protected static void replaceFile(File source, File dest) throws IOException {
+		 if (!source.renameTo(dest)) {
+			 // rename cannot replace an existing file on some platforms
+			 dest.delete();
+			 if (!source.renameTo(dest))
+				 throw new IOException("failed to rename file {src='"+source.getPath()+"',dest='"+dest.getPath()+"'}");
+		 }
+	 }
+
+	 /**
+	   * Write a message with its stored attachments replaced by stubs
+	   * @param email The message
+	   * @param file The message file
+	   * @param hashes The hashes returned by storeAttachments
+	   */
+
+	 public void writeEmail(Email email, File file, List<String> hashes) throws MessageStoreException {
+		 logger.debug("writeEmail() {attachments='"+hashes.size()+"'}");
+		 OutputStream os = null;
+		 try {
+			 email.setHeader(ATTACHMENTS_HEADER, join(hashes));
+			 os = store.getRawMessageOutputStream(file,email.getEmailId().getVolume());
+			 LineOutputStream los = new LineOutputStream(os);
+			 writeHeaders(email,los);
+			 writeMultipart((MimeMultipart)email.getContent(),los,hashes.iterator());
+			 os.close();
+			 os = null;
+		 } catch (Exception e) {
+			 if (os!=null) try { os.close(); } catch (Exception e2) {}
+			 file.delete();
+			 throw new MessageStoreException("failed to write email {filename='"+file.getAbsolutePath()+"'",e,logger);
+		 }
+	 }
+
+	 // mirrors MimeMultipart.writeTo() so that unstubbed content is written unchanged
+	 protected void writeMultipart(MimeMultipart multipart, LineOutputStream los, Iterator<String> hashes) throws MessagingException, IOException {
+		 String boundary = "--" + new javax.mail.internet.ContentType(multipart.getContentType()).getParameter("boundary");
+		 String preamble = multipart.getPreamble();
+		 if (preamble!=null && preamble.length()>0) {
+			 // the parser joins preamble lines with the platform line separator
+			 preamble = preamble.replace("\r\n","\n").replace("\n","\r\n");
+			 los.write(com.sun.mail.util.ASCIIUtility.getBytes(preamble));
+			 char last = preamble.charAt(preamble.length()-1);
+			 if (last!='\r' && last!='\n')
+				 los.writeln();
+		 }
+		 for (int i=0, n=multipart.getCount(); i<n; i++) {
+			 los.writeln(boundary);
+			 MimeBodyPart part = (MimeBodyPart)multipart.getBodyPart(i);
+			 if (isAttachment(part)) {
+				 writeHeaders(part,los);
+				 los.write(com.sun.mail.util.ASCIIUtility.getBytes(STUB_PREFIX+hashes.next()));
+			 } else if (isNestedMultipart(part) && containsAttachment((MimeMultipart)part.getContent())) {
+				 writeHeaders(part,los);
+				 writeMultipart((MimeMultipart)part.getContent(),los,hashes);
+			 } else {
+				 part.writeTo(los);
+			 }
+			 los.writeln();
+		 }
+		 los.writeln(boundary+"--");
+	 }
+
+	 protected void writeHeaders(MimePart part, LineOutputStream los) throws MessagingException, IOException {
+		 Enumeration hdrLines = part.getAllHeaderLines();
+		 while (hdrLines.hasMoreElements())
+			 los.writeln((String)hdrLines.nextElement());
+		 los.writeln();
+	 }
+
+	 protected static String join(List<String> hashes) {
+		 StringBuffer buffer = new StringBuffer();
+		 for (String hash : hashes) {
+			 if (buffer.length()>0)
+				 buffer.append(' ');
+			 buffer.append(hash);
+		 }
+		 return buffer.toString();
+	 }
+
+	 /**
+	   * Return an input stream that re-expands attachment stubs from the attachment store
+	   * @param volume The volume the message is stored in
+	   * @param is The decrypted and decompressed message stream
+	   * @return The expanded message stream
+	   */
+
+	 public InputStream getExpandedInputStream(Volume volume, InputStream is) {
+		 return new AttachmentInputStream(volume, new BufferedInputStream(is));
+	 }
+
+	 protected InputStream getAttachmentInputStream(Volume volume, String hash) throws IOException, MessageStoreException {
+		 File attachFile = store.getExistingAttachmentFilePath(volume,hash);
+		 return store.getRawMessageInputStream(attachFile,true,true);
+	 }
+
+	 /**
+	   * Rewrite an existing message so that its large parts are held in the attachment store
+	   * @param emailID The email ID
+	   * @return Whether the message was rewritten
+	   */
+
+	 public boolean migrateMessage(EmailID emailID) throws MessageStoreException {
+		 Volume volume = emailID.getVolume();
+		 // packed messages cannot be rewritten in place
+		 if (store.isPackedMessage(emailID))
+			 return false;
+		 File messageFile = store.getExistingFile(volume,emailID.getUniqueID(),MessageStore.messageFileExtension);
+		 Email email = null;
+		 InputStream is = null;
+		 try {
+			 is = store.getRawMessageInputStream(messageFile,true,true);
+			 email = new Email(emailID,is);
+		 } catch (Exception e) {
+			 throw new MessageStoreException("failed to read message for attachment migration {"+emailID+"}",e,logger);
+		 } finally {
+			 try { if (is!=null) is.close(); } catch (Exception e) {}
+		 }
+		 try {
+			 if (email.getHeader(ATTACHMENTS_HEADER)!=null)
+				 return false; // already migrated
+		 } catch (MessagingException me) {
+			 return false;
+		 }
+		 List<String> hashes = storeAttachments(volume,email);
+		 if (hashes.isEmpty())
+			 return false;
+		 File tempFile = new File(messageFile.getPath()+".tmp");
+		 try {
+			 writeEmail(email,tempFile,hashes);
+			 replaceFile(tempFile,messageFile);
+		 } catch (Exception e) {
+			 releaseAttachments(volume,hashes);
+			 tempFile.delete();
+			 throw new MessageStoreException("failed to migrate message attachments {"+emailID+"}",e,logger);
+		 }
+		 logger.debug("migrated message attachments {"+emailID+",attachments='"+hashes.size()+"'}");
+		 return true;
+	 }
+
+	 public static class MigrateAttachments extends Archiver.ProcessMessage {
+
+		 AttachmentStore attachmentStore;
+		 int migrated = 0;
+		 int failed = 0;
+
+		 public MigrateAttachments(AttachmentStore attachmentStore, Volume volume) {
+			 super(volume);
+			 this.attachmentStore = attachmentStore;
+		 }
+
+		 public void process(EmailID emailID) throws ProcessException {
+			 try {
+				 if (attachmentStore.migrateMessage(emailID))
+					 migrated++;
+			 } catch (MessageStoreException mse) {
+				 failed++;
+			 }
+		 }
+
+		 public int getMigrated() { return migrated; }
+		 public int getFailed() { return failed; }
+	 }
+
+	 /**
+	   * Retrieve the attachment statistics for a volume
+	   * @param volume The volume
+	   * @return The attachment statistics
+	   */
+
+	 public AttachmentStatistics getStatistics(Volume volume) {
+		 AttachmentStatistics stats = statistics.get(volume.getPath());
+		 if (stats==null) {
+			 AttachmentStatistics newStats = new AttachmentStatistics();
+			 stats = statistics.putIfAbsent(volume.getPath(),newStats);
+			 if (stats==null)
+				 stats = newStats;
+		 }
+		 return stats;
+	 }
+
+	 /**
+	   * Recount the attachment statistics of a volume from its reference files
+	   * @param volume The volume
+	   */
+
+	 public void calculateStatistics(Volume volume) {
+		 File storeDir = new File(volume.getPath());
+		 if (!storeDir.isDirectory())
+			 return;
+		 ReferenceCounter counter = new ReferenceCounter();
+		 storeDir.listFiles(counter);
+		 AttachmentStatistics stats = getStatistics(volume);
+		 stats.attachments.set(counter.attachments);
+		 stats.references.set(counter.references);
+		 stats.storedSpace.set(counter.storedSpace);
+		 stats.savedSpace.set(counter.savedSpace);
+		 logger.debug("attachment statistics {"+stats+","+volume+"}");
+	 }
+
+	 /**
+	   * Load the statistics saved by saveStatistics, adding them to those counted since startup
+	   * @param volume The volume
+	   * @return false if no statistics have been saved for the volume
+	   */
+
+	 public boolean loadStatistics(Volume volume) {
+		 File file = new File(volume.getPath(),STATISTICS_FILE);
+		 if (!file.exists())
+			 return false;
+		 Properties props = new Properties();
+		 InputStream is = null;
+		 try {
+			 is = new FileInputStream(file);
+			 props.load(is);
+			 AttachmentStatistics stats = getStatistics(volume);
+			 stats.attachments.addAndGet(Long.parseLong(props.getProperty("attachments","0")));
+			 stats.references.addAndGet(Long.parseLong(props.getProperty("references","0")));
+			 stats.storedSpace.addAndGet(Long.parseLong(props.getProperty("storedspace","0")));
+			 stats.savedSpace.addAndGet(Long.parseLong(props.getProperty("savedspace","0")));
+			 logger.debug("loaded attachment statistics {"+stats+","+volume+"}");
+			 return true;
+		 } catch (Exception e) {
+			 logger.error("failed to load attachment statistics {"+volume+"}:"+e.getMessage());
+			 return false;
+		 } finally {
+			 try { if (is!=null) is.close(); } catch (Exception e) {}
+		 }
+	 }
+
+	 public void saveStatistics(Volume volume) {
+		 AttachmentStatistics stats = getStatistics(volume);
+		 String current = stats.toString();
+		 if (current.equals(savedStatistics.get(volume.getPath())))
+			 return;
+		 Properties props = new Properties();
+		 props.setProperty("attachments",Long.toString(stats.getAttachments()));
+		 props.setProperty("references",Long.toString(stats.getReferences()));
+		 props.setProperty("storedspace",Long.toString(stats.getStoredSpace()));
+		 props.setProperty("savedspace",Long.toString(stats.getSavedSpace()));
+		 File file = new File(volume.getPath(),STATISTICS_FILE);
+		 File tmpFile = new File(volume.getPath(),STATISTICS_FILE+".tmp");
+		 OutputStream os = null;
+		 try {
+			 os = new FileOutputStream(tmpFile);
+			 props.store(os,"attachment statistics");
+			 os.close();
+			 os = null;
+			 file.delete();
+			 if (!tmpFile.renameTo(file))
+				 throw new IOException("failed to rename "+tmpFile);
+			 savedStatistics.put(volume.getPath(),current);
+		 } catch (IOException io) {
+			 logger.error("failed to save attachment statistics {"+volume+"}:"+io.getMessage());
+		 } finally {
+			 try { if (os!=null) os.close(); } catch (Exception e) {}
+		 }
+	 }
+
+	 public static class AttachmentStatistics {
+
+		 AtomicLong attachments = new AtomicLong(0);
+		 AtomicLong references = new AtomicLong(0);
+		 AtomicLong storedSpace = new AtomicLong(0);
+		 AtomicLong savedSpace = new AtomicLong(0);
+
+		 public long getAttachments() { return attachments.get(); }
+		 public long getReferences() { return references.get(); }
+		 public long getStoredSpace() { return storedSpace.get(); }
+		 public long getSavedSpace() { return savedSpace.get(); }
+
+		 public String toString() {
+			 return "attachments='"+getAttachments()+"',references='"+getReferences()+
+			 		"',storedspace='"+getStoredSpace()+"',savedspace='"+getSavedSpace()+"'";
+		 }
+	 }
+
+	 protected class ReferenceCounter implements FileFilter {
+
+		 long attachments = 0;
+		 long references = 0;
+		 long storedSpace = 0;
+		 long savedSpace = 0;
+
+		 public boolean accept(File file) {
+			 if (file.isDirectory()) {
+				 file.listFiles(this);
+			 } else if (file.getName().endsWith(attachmentFileExtension)) {
+				 String name = file.getName();
+				 File refFile = new File(file.getParentFile(),name.substring(0,name.length()-attachmentFileExtension.length())+referenceFileExtension);
+				 long count = readReferences(refFile);
+				 attachments++;
+				 references += count;
+				 storedSpace += file.length();
+				 savedSpace += (count-1)*file.length();
+			 }
+			 return false;
+		 }
+	 }
+
+	 /*
+	  * Expands stub lines written by writeEmail(). Lines are examined only at the start of a
+	  * line and up to MAX_STUB_LINE bytes, longer lines are passed through in chunks. Messages
+	  * without the attachments header are passed through untouched once the headers are read.
+	  */
+
+	 protected class AttachmentInputStream extends InputStream {
+
+		 Volume volume;
+		 InputStream in;
+		 InputStream current = null;
+		 byte[] line = new byte[MAX_STUB_LINE];
+		 byte[] single = new byte[1];
+		 boolean headers = true;
+		 boolean expand = false;
+		 boolean passThrough = false;
+		 boolean midLine = false;
+		 boolean dropping = false;
+
+		 public AttachmentInputStream(Volume volume, InputStream in) {
+			 this.volume = volume;
+			 this.in = in;
+		 }
+
+		 public int read() throws IOException {
+			 int read = read(single,0,1);
+			 return read==-1 ? -1 : single[0] & 0xff;
+		 }
+
+		 public int read(byte[] b, int off, int len) throws IOException {
+			 if (len==0)
+				 return 0;
+			 while (true) {
+				 if (current!=null) {
+					 int read = current.read(b,off,len);
+					 if (read>0)
+						 return read;
+					 current.close();
+					 current = null;
+				 }
+				 if (passThrough)
+					 return in.read(b,off,len);
+				 if (!nextLine())
+					 return -1;
+			 }
+		 }
+
+		 protected boolean nextLine() throws IOException {
+			 int length = 0;
+			 int c = 0;
+			 while (length<line.length && (c=in.read())!=-1) {
+				 line[length++] = (byte)c;
+				 if (c=='\n')
+					 break;
+			 }
+			 if (length==0)
+				 return false;
+			 boolean lineStart = !midLine;
+			 boolean complete = c==-1 || line[length-1]=='\n';
+			 midLine = !complete;
+			 if (lineStart) {
+				 if (headers) {
+					 if (length<=2 && (line[0]=='\n' || line[0]=='\r')) {
+						 headers = false;
+						 dropping = false;
+						 passThrough = !expand;
+					 } else if (startsWith(ATTACHMENTS_HEADER+":",length,true)) {
+						 expand = true;
+						 dropping = true;
+					 } else if (line[0]!=' ' && line[0]!='\t') {
+						 dropping = false; // folded lines belong to the previous header
+					 }
+				 } else if (expand && complete && startsWith(STUB_PREFIX,length,false)) {
+					 int end = length;
+					 while (end>0 && (line[end-1]=='\n' || line[end-1]=='\r'))
+						 end--;
+					 String hash = new String(line,STUB_PREFIX.length(),end-STUB_PREFIX.length(),"ISO-8859-1");
+					 try {
+						 current = new SequenceInputStream(getAttachmentInputStream(volume,hash),
+								 	new ByteArrayInputStream(Arrays.copyOfRange(line,end,length)));
+						 return true;
+					 } catch (MessageStoreException mse) {
+						 logger.error("failed to expand attachment. attachment is missing from the store {hash='"+hash+"',"+volume+"}");
+					 }
+				 }
+			 }
+			 if (dropping)
+				 return true;
+			 current = new ByteArrayInputStream(line,0,length);
+			 return true;
+		 }
+
+		 protected boolean startsWith(String prefix, int length, boolean ignoreCase) {
+			 if (length<prefix.length())
+				 return false;
+			 for (int i=0;i<prefix.length();i++) {
+				 char c = (char)(line[i] & 0xff);
+				 char p = prefix.charAt(i);
+				 if (c!=p && !(ignoreCase && Character.toLowerCase(c)==Character.toLowerCase(p)))
+					 return false;
+			 }
+			 return true;
+		 }
+
+		 public void close() throws IOException {
+			 if (current!=null)
+				 current.close();
+			 in.close();
+		 }
+	 }
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.logging.*;
+
+/*
+ * Compression applied to store files. The codec id is recorded in the store file header, so that
+ * each file can be read back whatever codec the volume is currently configured with. Additional
+ * codecs are registered through register() or listed in
+ * META-INF/services/com.stimulus.archiva.store.CompressionCodec. Ids must fit in four bits.
+ */
+
+public abstract class CompressionCodec {
+
+	protected static final Log logger = LogFactory.getLog(CompressionCodec.class.getName());
+	protected static final int BUFFER_SIZE = 65536;
+
+	public static final CompressionCodec STORE = new StoreCodec();
+	public static final CompressionCodec GZIP = new GZipCodec();
+
+	protected static Map<Integer,CompressionCodec> codecsById = new ConcurrentHashMap<Integer,CompressionCodec>();
+	protected static Map<String,CompressionCodec> codecsByName = new ConcurrentHashMap<String,CompressionCodec>();
+
+	static {
+		register(STORE);
+		register(GZIP);
+		try {
+			for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class))
+				register(codec);
+		} catch (Throwable t) {
+			logger.error("failed to load compression codecs:"+t.getMessage(),t);
+		}
+	}
+
+	public static void register(CompressionCodec codec) {
+		if (codec.getId()<0 || codec.getId()>15)
+			throw new IllegalArgumentException("compression codec id out of range {codec='"+codec.getName()+"',id='"+codec.getId()+"'}");
+		codecsById.put(codec.getId(),codec);
+		codecsByName.put(codec.getName().toLowerCase(Locale.ENGLISH),codec);
+	}
+
+	public static CompressionCodec getCodec(int id) {
+		return codecsById.get(id);
+	}
+
+	// returns the gzip codec if the name is unknown
+	public static CompressionCodec getCodec(String name) {
+		CompressionCodec codec = name==null ? null : codecsByName.get(name.toLowerCase(Locale.ENGLISH).trim());
+		return codec==null ? GZIP : codec;
+	}
+
+	public static Collection<CompressionCodec> getCodecs() {
+		return codecsById.values();
+	}
+
+	public abstract int getId();
+
+	public abstract String getName();
+
+	public abstract int getDefaultLevel();
+
+	// levels run from 1 (fastest) to getMaxLevel() (smallest). codecs without levels return 0.
+	public abstract int getMaxLevel();
+
+	public int normalizeLevel(int level) {
+		if (getMaxLevel()==0)
+			return 0;
+		if (level<1 || level>getMaxLevel())
+			return getDefaultLevel();
+		return level;
+	}
+
+	public abstract OutputStream getOutputStream(OutputStream os, int level) throws IOException;
+
+	public abstract InputStream getInputStream(InputStream is) throws IOException;
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	// no compression, for payloads that are already compressed
+
+	public static class StoreCodec extends CompressionCodec {
+
+		public int getId() { return 0; }
+		public String getName() { return "store"; }
+		public int getDefaultLevel() { return 0; }
+		public int getMaxLevel() { return 0; }
+
+		public OutputStream getOutputStream(OutputStream os, int level) {
+			return os;
+		}
+
+		public InputStream getInputStream(InputStream is) {
+			return is;
+		}
+	}
+
+	public static class GZipCodec extends CompressionCodec {
+
+		public int getId() { return 1; }
+		public String getName() { return "gzip"; }
+		public int getDefaultLevel() { return 6; }
+		public int getMaxLevel() { return Deflater.BEST_COMPRESSION; }
+
+		public OutputStream getOutputStream(OutputStream os, final int level) throws IOException {
+			return new GZIPOutputStream(os,BUFFER_SIZE) {
+				{
+					def.setLevel(normalizeLevel(level));
+				}
+			};
+		}
+
+		public InputStream getInputStream(InputStream is) throws IOException {
+			return new GZIPInputStream(is,BUFFER_SIZE);
+		}
+	}
+}
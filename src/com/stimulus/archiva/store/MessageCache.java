@@ -0,0 +1,142 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.domain.EmailID;
+import com.stimulus.util.LRUCache;
+
+/*
+ * Decrypted, decompressed messages recently read for viewing or export. The messages are held
+ * in direct buffers, outside of the heap. Messages larger than an eighth of the cache are not
+ * cached, so that a single large message cannot flush it.
+ */
+
+public class MessageCache {
+
+	protected static final Log logger = LogFactory.getLog(MessageCache.class.getName());
+	protected static final int ENTRY_FRACTION = 8;
+
+	protected LRUCache<String,ByteBuffer> cache;
+
+	public MessageCache(long capacity) {
+		cache = new LRUCache<String,ByteBuffer>(capacity) {
+			protected long sizeOf(ByteBuffer value) {
+				return value.capacity();
+			}
+		};
+	}
+
+	protected static String getKey(EmailID emailID) {
+		return emailID.getVolume().getPath()+File.pathSeparator+emailID.getUniqueID();
+	}
+
+	/**
+	 * Get a cached message
+	 * @param emailID The message
+	 * @return A stream of the message, or null if it is not cached
+	 */
+
+	public InputStream get(EmailID emailID) {
+		ByteBuffer buffer = cache.get(getKey(emailID));
+		if (buffer==null)
+			return null;
+		logger.debug("returning cached message {"+emailID+"}");
+		return new BufferInputStream(buffer.duplicate());
+	}
+
+	/**
+	 * Cache a message as it is read from the store
+	 * @param emailID The message
+	 * @param is The message contents
+	 * @return A stream of the message contents. The given stream must no longer be used.
+	 */
+
+	public InputStream put(EmailID emailID, InputStream is) throws IOException {
+		long limit = cache.getCapacity()/ENTRY_FRACTION;
+		if (limit<=0)
+			return is;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(65536);
+		byte[] chunk = new byte[65536];
+		int read;
+		while ((read = is.read(chunk))>=0) {
+			bytes.write(chunk,0,read);
+			if (bytes.size()>limit) {
+				logger.debug("message is too large to cache {"+emailID+"}");
+				return new SequenceInputStream(new ByteArrayInputStream(bytes.toByteArray()),is);
+			}
+		}
+		is.close();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.size());
+		buffer.put(bytes.toByteArray());
+		buffer.flip();
+		cache.put(getKey(emailID),buffer);
+		return new BufferInputStream(buffer.duplicate());
+	}
+
+	// called once a message is deleted, or moved out of the store
+	public void invalidate(EmailID emailID) {
+		if (cache.remove(getKey(emailID))!=null)
+			logger.debug("removed message from cache {"+emailID+"}");
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public void setCapacity(long capacity) {
+		cache.setCapacity(capacity);
+	}
+
+	public String getStatistics() {
+		return cache.getStatistics();
+	}
+
+	protected static class BufferInputStream extends InputStream {
+
+		protected ByteBuffer buffer;
+
+		public BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len==0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len,buffer.remaining());
+			buffer.get(b,off,len);
+			return len;
+		}
+
+		public long skip(long n) {
+			int skipped = (int)Math.max(0,Math.min(n,buffer.remaining()));
+			buffer.position(buffer.position()+skipped);
+			return skipped;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.exception.MessageStoreException;
+
+/*
+ * Self describing format of encrypted store files (messages and attachments). A file starts with
+ * a fixed size header:
+ *
+ *   magic (8 bytes) | version (1) | cipher id (1) | compression (1) | iv length (1) | iv (16) | original size (8)
+ *
+ * followed by the encrypted (and optionally compressed) content. The compression byte holds the
+ * codec id in its low four bits and the level the file was written with in its high four bits. Content is encrypted with AES in
+ * CBC mode using a key derived from the pass phrase and a random IV per file. Files are read and
+ * written in large blocks straight to and from the file channel. Files written before this format
+ * was introduced have no header and are read with the legacy PBE cipher.
+ */
+
+public class MessageContainer {
+
+	protected static final Log logger = LogFactory.getLog(MessageContainer.class.getName());
+
+	public static final byte[] MAGIC = { (byte)0x89, 'M', 'R', 'C', '\r', '\n', 0x1a, '\n' };
+	public static final int VERSION = 1;
+
+	public static final int CIPHER_NONE = 0;
+	public static final int CIPHER_AES128_CBC = 1;
+
+	protected static final int IV_LENGTH = 16;
+	protected static final int SIZE_OFFSET = MAGIC.length + 4 + IV_LENGTH;
+	public static final int HEADER_SIZE = SIZE_OFFSET + 8;
+	protected static final int BUFFER_SIZE = 65536;
+	protected static final int KEY_ITERATIONS = 10000;
+	protected static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+	protected SecretKey key;
+	protected SecureRandom random = new SecureRandom();
+
+	public MessageContainer(SecretKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Derive the AES key used to encrypt store files
+	 * @param passPhrase The archive pass phrase
+	 * @param salt The salt
+	 * @return The key
+	 */
+
+	public static SecretKey deriveKey(String passPhrase, byte[] salt) throws MessageStoreException {
+		try {
+			PBEKeySpec keySpec = new PBEKeySpec(passPhrase.toCharArray(),salt,KEY_ITERATIONS,128);
+			byte[] encoded = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(keySpec).getEncoded();
+			return new SecretKeySpec(encoded,"AES");
+		} catch (Exception e) {
+			throw new MessageStoreException("failed to derive store encryption key",e,logger);
+		}
+	}
+
+	/**
+	 * Read the container header at the current position of a channel
+	 * @param channel The file channel
+	 * @return The header, or null if the file is not a container (the channel is then rewound)
+	 */
+
+	public static Header readHeader(FileChannel channel) throws IOException {
+		long start = channel.position();
+		Header header = readHeader((ReadableByteChannel)channel);
+		if (header==null)
+			channel.position(start);
+		return header;
+	}
+
+	// read the header from a channel that cannot be rewound (e.g. a record of a packed segment)
+	public static Header readHeader(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+		while (buffer.hasRemaining() && channel.read(buffer)>=0);
+		buffer.flip();
+		if (buffer.remaining()<HEADER_SIZE || !hasMagic(buffer))
+			return null;
+		Header header = new Header();
+		header.version = buffer.get() & 0xff;
+		header.cipher = buffer.get() & 0xff;
+		int compression = buffer.get() & 0xff;
+		header.codec = CompressionCodec.getCodec(compression & 0x0f);
+		header.level = compression >>> 4;
+		int ivLength = buffer.get() & 0xff;
+		if (header.version>VERSION || ivLength!=IV_LENGTH)
+			throw new IOException("unsupported store file format {version='"+header.version+"',ivLength='"+ivLength+"'}");
+		if (header.codec==null)
+			throw new IOException("unsupported store file compression {codec='"+(compression & 0x0f)+"'}");
+		header.iv = new byte[IV_LENGTH];
+		buffer.get(header.iv);
+		header.originalSize = buffer.getLong();
+		return header;
+	}
+
+	protected static boolean hasMagic(ByteBuffer buffer) {
+		for (int i=0;i<MAGIC.length;i++) {
+			if (buffer.get()!=MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+
+	public static boolean isContainer(File file) {
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			return readHeader(fis.getChannel())!=null;
+		} catch (IOException io) {
+			return false;
+		} finally {
+			try { if (fis!=null) fis.close(); } catch (IOException io) {}
+		}
+	}
+
+	/**
+	 * Create a new container file
+	 * @param file The file to write
+	 * @param codec The compression codec
+	 * @param level The compression level
+	 * @return An output stream for the plain content
+	 */
+
+	public OutputStream getOutputStream(File file, CompressionCodec codec, int level) throws IOException, MessageStoreException {
+		level = codec.normalizeLevel(level);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		Cipher cipher;
+		try {
+			cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			cipher.init(Cipher.ENCRYPT_MODE,key,new IvParameterSpec(iv));
+		} catch (Exception e) {
+			throw new MessageStoreException("failed to initialize cipher. cause:",e,logger);
+		}
+		FileChannel channel = new FileOutputStream(file).getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC);
+			header.put((byte)VERSION);
+			header.put((byte)CIPHER_AES128_CBC);
+			header.put((byte)(codec.getId() | (level << 4)));
+			header.put((byte)IV_LENGTH);
+			header.put(iv);
+			header.putLong(-1);
+			header.flip();
+			while (header.hasRemaining())
+				channel.write(header);
+			OutputStream os = codec.getOutputStream(new CipherChannelOutputStream(channel,cipher),level);
+			return new ContainerOutputStream(os,channel);
+		} catch (IOException io) {
+			channel.close();
+			throw io;
+		}
+	}
+
+	/**
+	 * Read the content of a container
+	 * @param channel The channel, positioned after the header
+	 * @param header The container header
+	 * @param decompress Should decompress the content
+	 * @return An input stream of the plain content
+	 */
+
+	public InputStream getInputStream(ReadableByteChannel channel, Header header, boolean decompress) throws IOException, MessageStoreException {
+		if (header.cipher!=CIPHER_AES128_CBC)
+			throw new MessageStoreException("unsupported store file cipher {cipher='"+header.cipher+"'}",logger);
+		Cipher cipher;
+		try {
+			cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			cipher.init(Cipher.DECRYPT_MODE,key,new IvParameterSpec(header.iv));
+		} catch (Exception e) {
+			throw new MessageStoreException("failed to initialize cipher. cause:",e,logger);
+		}
+		InputStream is = new CipherChannelInputStream(channel,cipher);
+		if (decompress)
+			is = header.getCodec().getInputStream(is);
+		return is;
+	}
+
+	public static class Header {
+
+		int version;
+		int cipher;
+		CompressionCodec codec;
+		int level;
+		byte[] iv;
+		long originalSize;
+
+		public int getVersion() { return version; }
+		public int getCipher() { return cipher; }
+		public CompressionCodec getCodec() { return codec; }
+		public int getCompressionLevel() { return codec.normalizeLevel(level); }
+
+		// size of the plain content, or -1 if the file was not closed properly
+		public long getOriginalSize() { return originalSize; }
+	}
+
+	// counts the plain content and records its size in the header once the content is written
+
+	protected static class ContainerOutputStream extends FilterOutputStream {
+
+		FileChannel channel;
+		long size = 0;
+		boolean closed = false;
+
+		public ContainerOutputStream(OutputStream out, FileChannel channel) {
+			super(out);
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			size++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b,off,len);
+			size += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				out.close();
+				ByteBuffer buffer = ByteBuffer.allocate(8);
+				buffer.putLong(size);
+				buffer.flip();
+				long position = SIZE_OFFSET;
+				while (buffer.hasRemaining())
+					position += channel.write(buffer,position);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	// encrypts in large blocks and writes directly to the channel, unlike CipherOutputStream
+
+	protected static class CipherChannelOutputStream extends OutputStream {
+
+		FileChannel channel;
+		Cipher cipher;
+		byte[] in = new byte[BUFFER_SIZE];
+		byte[] out;
+		int count = 0;
+		boolean closed = false;
+
+		public CipherChannelOutputStream(FileChannel channel, Cipher cipher) {
+			this.channel = channel;
+			this.cipher = cipher;
+			out = new byte[BUFFER_SIZE+32]; // room for a partial block and padding
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count==in.length)
+				encrypt();
+			in[count++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len>0) {
+				if (count==in.length)
+					encrypt();
+				int n = Math.min(len,in.length-count);
+				System.arraycopy(b,off,in,count,n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		protected void encrypt() throws IOException {
+			try {
+				writeOut(cipher.update(in,0,count,out));
+			} catch (ShortBufferException sbe) {
+				throw new IOException("failed to encrypt store file:"+sbe.getMessage());
+			}
+			count = 0;
+		}
+
+		protected void writeOut(int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(out,0,len);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				writeOut(cipher.doFinal(in,0,count,out));
+			} catch (GeneralSecurityException gse) {
+				throw new IOException("failed to encrypt store file:"+gse.getMessage());
+			}
+		}
+	}
+
+	// reads and decrypts in large blocks directly from the channel, unlike CipherInputStream
+
+	protected static class CipherChannelInputStream extends InputStream {
+
+		ReadableByteChannel channel;
+		Cipher cipher;
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		byte[] out;
+		int pos = 0;
+		int limit = 0;
+		boolean eof = false;
+
+		public CipherChannelInputStream(ReadableByteChannel channel, Cipher cipher) {
+			this.channel = channel;
+			this.cipher = cipher;
+			out = new byte[BUFFER_SIZE+32]; // room for a partial block and padding
+		}
+
+		protected boolean fill() throws IOException {
+			while (pos>=limit) {
+				if (eof)
+					return false;
+				in.clear();
+				int read = channel.read(in);
+				try {
+					if (read<0) {
+						eof = true;
+						limit = cipher.doFinal(out,0);
+					} else {
+						limit = cipher.update(in.array(),0,read,out);
+					}
+				} catch (GeneralSecurityException gse) {
+					throw new IOException("failed to decrypt store file:"+gse.getMessage());
+				}
+				pos = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return out[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len,limit-pos);
+			System.arraycopy(out,pos,b,off,n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit-pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,347 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.logging.*;
+
+/*
+ * Records which layout of a volume holds each archived message, so that the store neither probes
+ * the legacy directory layouts nor touches the file system to find out that a message is not held.
+ * The index (messageids-<capacity>.idx in the volume store directory) is memory mapped:
+ *
+ *   header (64) | bloom filter (capacity bytes) | slots (8 bytes each)
+ *
+ * A slot holds a 61 bit fingerprint of the unique id and the layout in its low three bits. Lookups
+ * check the bloom filter first, so that most negative lookups read a few bytes of the filter only.
+ * The filter is derived from the fingerprints, and is rebuilt with them when the index grows.
+ * The index is complete once it has been built from the volume and was checkpointed since it was
+ * last written. Otherwise it is rebuilt, and the store falls back to probing in the meantime.
+ */
+
+public class MessageIdIndex {
+
+	protected static final Log logger = LogFactory.getLog(MessageIdIndex.class.getName());
+
+	public static final int ABSENT = 0;
+	public static final int PACKED = 1;
+	public static final int HASH = 2;
+	public static final int LEGACY_8 = 3;
+	public static final int LEGACY_3 = 4;
+	public static final int LEGACY_6 = 5;
+	public static final int LEGACY_4 = 6;
+
+	protected static final String INDEX_PREFIX = "messageids-";
+	protected static final String INDEX_EXTENSION = ".idx";
+	protected static final int INDEX_MAGIC = 0x4d494458; // MIDX
+	protected static final int INDEX_VERSION = 1;
+	protected static final int HEADER_SIZE = 64;
+	protected static final int SLOT_SIZE = 8;
+	protected static final int MIN_CAPACITY = 1 << 16;
+	protected static final int MAX_CAPACITY = 1 << 27;
+	protected static final int BLOOM_HASHES = 6;
+	protected static final long LAYOUT_MASK = 7;
+
+	// header offsets
+	protected static final int H_MAGIC = 0;
+	protected static final int H_VERSION = 4;
+	protected static final int H_CAPACITY = 8;
+	protected static final int H_COUNT = 12;
+	protected static final int H_CLEAN = 16;
+	protected static final int H_BUILT = 20;
+
+	protected File directory;
+	protected MappedByteBuffer index;
+	protected File indexFile;
+	protected int capacity;
+	protected int count;
+	protected volatile boolean ready = false;
+	protected volatile boolean invalidated = false;
+	protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public MessageIdIndex(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Open the index, creating it if necessary
+	 * @return Whether the index is complete. If not, it must be built from the volume.
+	 */
+
+	public boolean open() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!loadIndex())
+				createIndex(MIN_CAPACITY);
+			ready = index.getInt(H_BUILT)==1 && index.getInt(H_CLEAN)==1;
+			if (!ready) {
+				index.putInt(H_BUILT,0);
+				index.force();
+			}
+			logger.debug("opened message id index {location='"+indexFile.getPath()+"',messages='"+count+"',complete='"+ready+"'}");
+			return ready;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	protected boolean loadIndex() throws IOException {
+		String[] names = directory.list();
+		List<Integer> capacities = new ArrayList<Integer>();
+		if (names!=null) {
+			for (String name : names) {
+				if (!name.startsWith(INDEX_PREFIX) || !name.endsWith(INDEX_EXTENSION))
+					continue;
+				try {
+					capacities.add(Integer.parseInt(name.substring(INDEX_PREFIX.length(),name.length()-INDEX_EXTENSION.length())));
+				} catch (NumberFormatException nfe) {}
+			}
+		}
+		Collections.sort(capacities,Collections.reverseOrder());
+		boolean loaded = false;
+		for (int candidate : capacities) {
+			File file = getIndexFile(candidate);
+			if (!loaded && file.length()==getLength(candidate)) {
+				MappedByteBuffer buffer = PackedStore.map(file,file.length());
+				if (buffer.getInt(H_MAGIC)==INDEX_MAGIC && buffer.getInt(H_VERSION)==INDEX_VERSION && buffer.getInt(H_CAPACITY)==candidate) {
+					index = buffer;
+					indexFile = file;
+					capacity = candidate;
+					count = buffer.getInt(H_COUNT);
+					loaded = true;
+					continue;
+				}
+			}
+			if (!file.delete())
+				logger.debug("failed to delete stale message id index {location='"+file.getPath()+"'}");
+		}
+		return loaded;
+	}
+
+	protected File getIndexFile(int capacity) {
+		return new File(directory,INDEX_PREFIX+capacity+INDEX_EXTENSION);
+	}
+
+	protected static long getLength(int capacity) {
+		return HEADER_SIZE+(long)capacity+(long)capacity*SLOT_SIZE;
+	}
+
+	// the index is only valid once its magic is written
+	protected void createIndex(int newCapacity) throws IOException {
+		File file = getIndexFile(newCapacity);
+		if (file.exists() && !file.delete())
+			throw new IOException("failed to replace message id index {location='"+file.getPath()+"'}");
+		MappedByteBuffer buffer = PackedStore.map(file,getLength(newCapacity));
+		buffer.putInt(H_VERSION,INDEX_VERSION);
+		buffer.putInt(H_CAPACITY,newCapacity);
+		index = buffer;
+		indexFile = file;
+		capacity = newCapacity;
+		count = 0;
+		if (newCapacity==MIN_CAPACITY)
+			index.putInt(H_MAGIC,INDEX_MAGIC);
+	}
+
+	protected static long getKey(String id) {
+		long key = PackedStore.fingerprint(id) & ~LAYOUT_MASK;
+		return key==0 ? LAYOUT_MASK+1 : key;
+	}
+
+	protected int getSlotPosition(int slot) {
+		return HEADER_SIZE+capacity+slot*SLOT_SIZE;
+	}
+
+	// bit positions of a key in the bloom filter (double hashing)
+	protected static int getBloomBit(long key, int i, int bits) {
+		int combined = (int)key+i*(int)(key >>> 32);
+		if (combined<0)
+			combined = ~combined;
+		return combined % bits;
+	}
+
+	protected boolean mightContain(long key) {
+		int bits = capacity*8;
+		for (int i=1;i<=BLOOM_HASHES;i++) {
+			int bit = getBloomBit(key,i,bits);
+			if ((index.get(HEADER_SIZE+(bit >>> 3)) & (1 << (bit & 7)))==0)
+				return false;
+		}
+		return true;
+	}
+
+	protected void addToBloom(long key) {
+		int bits = capacity*8;
+		for (int i=1;i<=BLOOM_HASHES;i++) {
+			int bit = getBloomBit(key,i,bits);
+			int position = HEADER_SIZE+(bit >>> 3);
+			index.put(position,(byte)(index.get(position) | (1 << (bit & 7))));
+		}
+	}
+
+	/**
+	 * Look up the layout that holds a message
+	 * @param id The unique id of the message
+	 * @return The layout, or ABSENT if the message is not indexed
+	 */
+
+	public int getLayout(String id) {
+		long key = getKey(id);
+		lock.readLock().lock();
+		try {
+			if (index==null || !mightContain(key))
+				return ABSENT;
+			int i = PackedStore.slot(key,capacity);
+			while (true) {
+				long value = index.getLong(getSlotPosition(i));
+				if (value==0)
+					return ABSENT;
+				if ((value & ~LAYOUT_MASK)==key)
+					return (int)(value & LAYOUT_MASK);
+				i = (i+1) & (capacity-1);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Record the layout that holds a message
+	 * @param id The unique id of the message
+	 * @param layout The layout
+	 */
+
+	public void add(String id, int layout) throws IOException {
+		long key = getKey(id);
+		lock.writeLock().lock();
+		try {
+			if (index==null)
+				return;
+			// the index is incomplete on disk until it is next checkpointed
+			if (index.getInt(H_CLEAN)==1) {
+				index.putInt(H_CLEAN,0);
+				index.force();
+			}
+			if ((count+1)>capacity/4*3)
+				grow();
+			put(key,layout);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	protected void put(long key, int layout) {
+		int i = PackedStore.slot(key,capacity);
+		while (true) {
+			int position = getSlotPosition(i);
+			long value = index.getLong(position);
+			if (value==0) {
+				index.putLong(position,key | layout);
+				addToBloom(key);
+				index.putInt(H_COUNT,++count);
+				return;
+			}
+			if ((value & ~LAYOUT_MASK)==key) {
+				index.putLong(position,key | layout);
+				return;
+			}
+			i = (i+1) & (capacity-1);
+		}
+	}
+
+	protected void grow() throws IOException {
+		if (capacity>=MAX_CAPACITY)
+			throw new IOException("message id index is full {location='"+indexFile.getPath()+"',messages='"+count+"'}");
+		MappedByteBuffer old = index;
+		File oldFile = indexFile;
+		int oldCapacity = capacity;
+		int built = old.getInt(H_BUILT);
+		createIndex(capacity*2);
+		for (int i=0;i<oldCapacity;i++) {
+			long value = old.getLong(HEADER_SIZE+oldCapacity+i*SLOT_SIZE);
+			if (value!=0)
+				put(value & ~LAYOUT_MASK,(int)(value & LAYOUT_MASK));
+		}
+		index.putInt(H_BUILT,built);
+		index.force();
+		index.putInt(H_MAGIC,INDEX_MAGIC);
+		index.force();
+		// the old index may not be deletable while it is mapped. it is removed when the index is next opened.
+		if (!oldFile.delete())
+			logger.debug("failed to delete old message id index {location='"+oldFile.getPath()+"'}");
+		logger.debug("message id index grown {location='"+indexFile.getPath()+"',capacity='"+capacity+"'}");
+	}
+
+	public boolean isReady() { return ready; }
+
+	public int getCount() { return count; }
+
+	// called once the index has been built from the volume
+	public void markBuilt() {
+		lock.writeLock().lock();
+		try {
+			if (index==null || invalidated)
+				return;
+			index.putInt(H_BUILT,1);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		checkpoint();
+		ready = true;
+		logger.info("message id index built {location='"+indexFile.getPath()+"',messages='"+count+"'}");
+	}
+
+	// called if a message could not be added. the index is rebuilt when it is next opened.
+	public void invalidate() {
+		lock.writeLock().lock();
+		try {
+			invalidated = true;
+			ready = false;
+			if (index!=null) {
+				index.putInt(H_BUILT,0);
+				index.force();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void checkpoint() {
+		lock.writeLock().lock();
+		try {
+			if (index==null || index.getInt(H_CLEAN)==1)
+				return;
+			index.force();
+			index.putInt(H_CLEAN,1);
+			index.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void close() {
+		checkpoint();
+		lock.writeLock().lock();
+		try {
+			index = null;
+			ready = false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
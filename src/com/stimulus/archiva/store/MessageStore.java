@@ -23,6 +23,7 @@
 package com.stimulus.archiva.store;
 
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import com.stimulus.archiva.domain.*;
 import com.stimulus.archiva.exception.MessageStoreException;
@@ -37,6 +38,7 @@ import javax.mail.MessagingException;
 import javax.mail.Part;
 import org.apache.commons.logging.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 import java.security.spec.*;
@@ -69,7 +71,12 @@ public class MessageStore extends Archiver implements Serializable
 	 protected static final int FILE_COUNT = 1;
      protected SecretKey key;
      protected AlgorithmParameterSpec paramSpec;
+     protected MessageContainer container;
      protected TempFiles tempfiles;
+     protected transient AttachmentStore attachmentStore;
+     protected transient Map<String,PackedStore> packedStores;
+     protected transient Map<String,MessageIdIndex> idIndexes;
+     protected transient MessageCache messageCache;
 	 static enum Action { STRIP, COMBINE };
 
 	 public MessageStore() {
@@ -78,6 +85,10 @@ public class MessageStore extends Archiver implements Serializable
 
 	 public void init() throws MessageStoreException {
 	 	 tempfiles = Config.getFileSystem().getTempFiles();
+	 	 attachmentStore = new AttachmentStore(this);
+	 	 packedStores = new ConcurrentHashMap<String,PackedStore>();
+	 	 idIndexes = new ConcurrentHashMap<String,MessageIdIndex>();
+	 	 messageCache = new MessageCache((long)getMessageCacheSize()*1024*1024);
          byte[] salt = Config.getConfig().getSalt();
          String passPhrase = getPassPhrase();
          if (!isDefaultPassPhraseModified())
@@ -90,7 +101,7 @@ public class MessageStore extends Archiver implements Serializable
              key = SecretKeyFactory.getInstance(algorithm).generateSecret(keySpec);
            
              paramSpec = new PBEParameterSpec(salt, iterationCount);
-
+             container = new MessageContainer(MessageContainer.deriveKey(passPhrase, salt));
          } catch (java.security.NoSuchAlgorithmException e)	{
              throw new MessageStoreException("failed to locate desired encryption algorithm {algorithm='"+algorithm+"'",logger);
          } catch (Exception e) {
@@ -98,6 +109,11 @@ public class MessageStore extends Archiver implements Serializable
          }
 	 }
 
+	 public void setMessageCacheSize(int messageCacheSize) {
+		 super.setMessageCacheSize(messageCacheSize);
+		 if (messageCache!=null)
+			 messageCache.setCapacity((long)messageCacheSize*1024*1024);
+	 }
 	
 	 protected File getFileFromHashValue(Volume volume, String hash, String extension) { 
 		 String filename = volume.getPath() + File.separatorChar +  hash.substring(0, 3) + 
@@ -113,8 +129,28 @@ public class MessageStore extends Archiver implements Serializable
 		 return new File(filename);
 	 }
 	 
+	 protected File getLayoutFile(Volume volume, String hash, String extension, int layout) {
+		 switch (layout) {
+		 	case MessageIdIndex.LEGACY_8: return getLegacyFileFromHashValue(volume,hash,8,extension);
+		 	case MessageIdIndex.LEGACY_3: return getLegacyFileFromHashValue(volume,hash,3,extension);
+		 	case MessageIdIndex.LEGACY_6: return getLegacyFileFromHashValue(volume,hash,6,extension);
+		 	case MessageIdIndex.LEGACY_4: return getLegacyFileFromHashValue(volume,hash,4,extension);
+		 	default: return getFileFromHashValue(volume,hash,extension);
+		 }
+	 }
+
     public File getExistingFile(Volume volume, String hash, String extension) throws MessageStoreException
     {
+    	// the message id index records which layout holds a message file
+    	if (extension.equals(messageFileExtension)) {
+    		MessageIdIndex idIndex = idIndexes.get(volume.getPath());
+    		int layout = idIndex!=null ? idIndex.getLayout(hash) : MessageIdIndex.ABSENT;
+    		if (layout>MessageIdIndex.PACKED) {
+    			File file = getLayoutFile(volume,hash,extension,layout);
+    			if (file.exists())
+    				return file;
+    		}
+    	}
         File file = getFileFromHashValue(volume,hash,extension);
         if (!file.exists()) {
         	logger.debug("read file does not exist {file='"+file.getAbsolutePath()+"'}");
@@ -255,30 +291,82 @@ public class MessageStore extends Archiver implements Serializable
       if (!isDefaultPassPhraseModified())
            throw new MessageStoreException("failed to archive message. encryption password is not set. {"+emailId+"}",logger);
 
-       File messageFile = getNewFile(emailId.getVolume(),emailId.getUniqueID(),messageFileExtension);
-      
-       if (messageFile.exists()) {
+       openIdIndex(emailId.getVolume());
+       if (isArchived(emailId)) {
     	   logger.debug("no need to archive. message already exists in the store. {"+emailId+"}");
     	   return false;
        }
+       // in a packed store, the message is written to a temp file and then appended to a segment
+       PackedStore packedStore = null;
+       if (isPackedStore()) {
+    	   try {
+    		   packedStore = getPackedStore(emailId.getVolume(),true);
+    	   } catch (MessageStoreException mse) {
+    		   logger.error("failed to open packed store. message is written to the hash tree. {"+emailId+"}");
+    	   }
+       }
+       File messageFile;
+       if (packedStore!=null) {
+    	   try {
+    		   messageFile = File.createTempFile("pack",".tmp",packedStore.getDirectory());
+    	   } catch (IOException io) {
+    		   throw new MessageStoreException("failed to create packed store temp file {"+emailId+"}",io,logger);
+    	   }
+       } else {
+    	   messageFile = getNewFile(emailId.getVolume(),emailId.getUniqueID(),messageFileExtension);
+	       if (messageFile.exists()) {
+	    	   logger.debug("no need to archive. message already exists in the store. {"+emailId+"}");
+	    	   return false;
+	       }
+       }
 
        try {
     	   email.setHeader("X-MailArchiva-Archive-Date", DateUtil.convertDatetoString(new Date()));
        } catch (MessagingException me) {
     	   logger.error("failed to set archive date");
        }
+       List<String> attachments = new ArrayList<String>();
        try {
-    	   writeEmail(email,messageFile,true,true);
     	   Volume volume = email.getEmailId().getVolume();
+    	   email.removeHeader(AttachmentStore.ATTACHMENTS_HEADER);
+    	   if (isSmartAttachmentStorage())
+    		   attachments = attachmentStore.storeAttachments(volume,email);
+    	   if (attachments.isEmpty())
+    		   writeEmail(email,messageFile,volume);
+    	   else
+    		   attachmentStore.writeEmail(email,messageFile,attachments);
+    	   long length = messageFile.length();
+    	   if (packedStore!=null)
+    		   length = packMessage(packedStore,emailId,messageFile);
+    	   else
+    		   indexMessage(volume,emailId.getUniqueID(),MessageIdIndex.HASH);
 			if (volume!=null && volume.isDiskSpaceChecked()) {
-				updateDiskSpace(volume,messageFile.length());
+				updateDiskSpace(volume,length);
 			}
        } catch (Throwable e) {
     	   messageFile.delete();
+    	   attachmentStore.releaseAttachments(emailId.getVolume(),attachments);
        }
        return true;
     }
 
+    // append a new store file to the packed store. if this fails, the file is moved to the hash tree.
+    protected long packMessage(PackedStore packedStore, EmailID emailId, File messageFile) throws MessageStoreException, IOException {
+    	try {
+    		long length = packedStore.append(emailId.getUniqueID(),messageFile);
+    		if (!messageFile.delete())
+    			tempfiles.markForDeletion(messageFile);
+    		indexMessage(emailId.getVolume(),emailId.getUniqueID(),MessageIdIndex.PACKED);
+    		return length;
+    	} catch (IOException io) {
+    		logger.warn("failed to append message to packed store. message is written to the hash tree. {"+emailId+"}:"+io.getMessage());
+    		File file = getNewFile(emailId.getVolume(),emailId.getUniqueID(),messageFileExtension);
+    		AttachmentStore.replaceFile(messageFile,file);
+    		indexMessage(emailId.getVolume(),emailId.getUniqueID(),MessageIdIndex.HASH);
+    		return file.length();
+    	}
+    }
+
     /** 
 	   * Retrieves a unique file identifier for a message
 	   * @param emailID The email ID
@@ -299,12 +387,278 @@ public class MessageStore extends Archiver implements Serializable
     
     public boolean isMessageExist(EmailID emailID) {
     	try {
-    		File messageFile = getExistingFile(emailID.getVolume(),emailID.getUniqueID(),messageFileExtension);
-    		return messageFile.exists();
+    		return locateMessage(emailID.getVolume(),emailID.getUniqueID())!=MessageIdIndex.ABSENT;
     	} catch (Exception e) {
     		return false;
     	}
     }
+
+    // whether a message is held by its volume or, according to their message id indexes, by any other volume
+    protected boolean isArchived(EmailID emailID) {
+    	return locateMessage(emailID.getVolume(),emailID.getUniqueID())!=MessageIdIndex.ABSENT ||
+    		   findVolume(emailID.getUniqueID(),emailID.getVolume())!=null;
+    }
+
+    protected static final int[] fileLayouts = { MessageIdIndex.HASH, MessageIdIndex.LEGACY_8, MessageIdIndex.LEGACY_3,
+    											 MessageIdIndex.LEGACY_6, MessageIdIndex.LEGACY_4 };
+
+    /**
+     * Find the layout of a volume that holds a message. Once the message id index of the volume
+     * is complete, a message it does not list is not looked for. Otherwise, the packed store and
+     * each directory layout are probed, and the index is corrected.
+     * @param volume The volume
+     * @param uniqueId The unique id of the message
+     * @return The layout, or MessageIdIndex.ABSENT if the volume does not hold the message
+     */
+
+    protected int locateMessage(Volume volume, String uniqueId) {
+    	MessageIdIndex idIndex = idIndexes.get(volume.getPath());
+    	if (idIndex!=null) {
+    		int layout = idIndex.getLayout(uniqueId);
+    		if (layout==MessageIdIndex.ABSENT && idIndex.isReady())
+    			return MessageIdIndex.ABSENT;
+    		if (layout!=MessageIdIndex.ABSENT && isLayoutHeld(volume,uniqueId,layout))
+    			return layout;
+    	}
+    	int layout = MessageIdIndex.ABSENT;
+    	if (isLayoutHeld(volume,uniqueId,MessageIdIndex.PACKED)) {
+    		layout = MessageIdIndex.PACKED;
+    	} else {
+    		for (int fileLayout : fileLayouts) {
+    			if (isLayoutHeld(volume,uniqueId,fileLayout)) {
+    				layout = fileLayout;
+    				break;
+    			}
+    		}
+    	}
+    	if (layout!=MessageIdIndex.ABSENT && idIndex!=null)
+    		indexMessage(volume,uniqueId,layout);
+    	return layout;
+    }
+
+    protected boolean isLayoutHeld(Volume volume, String uniqueId, int layout) {
+    	if (layout!=MessageIdIndex.PACKED)
+    		return getLayoutFile(volume,uniqueId,messageFileExtension,layout).exists();
+    	try {
+    		PackedStore packedStore = getPackedStore(volume,false);
+    		return packedStore!=null && packedStore.contains(uniqueId);
+    	} catch (MessageStoreException mse) {
+    		return false;
+    	}
+    }
+
+    // another volume that holds a message. only volumes with an open message id index are searched.
+    protected Volume findVolume(String uniqueId, Volume exclude) {
+    	for (Volume volume : Config.getConfig().getVolumes().getVolumes()) {
+    		if (volume.getPath().equals(exclude.getPath()))
+    			continue;
+    		MessageIdIndex idIndex = idIndexes.get(volume.getPath());
+    		if (idIndex!=null && idIndex.getLayout(uniqueId)!=MessageIdIndex.ABSENT && locateMessage(volume,uniqueId)!=MessageIdIndex.ABSENT)
+    			return volume;
+    	}
+    	return null;
+    }
+
+    protected void indexMessage(Volume volume, String uniqueId, int layout) {
+    	MessageIdIndex idIndex = idIndexes.get(volume.getPath());
+    	if (idIndex==null)
+    		return;
+    	try {
+    		idIndex.add(uniqueId,layout);
+    	} catch (IOException io) {
+    		logger.error("failed to add message to message id index. the volume is probed instead. {"+volume+"}:"+io.getMessage());
+    		idIndex.invalidate();
+    	}
+    }
+
+    /**
+     * Open the message id index of a volume. If the index is not complete, it is built from the
+     * volume in the background.
+     * @param volume The volume
+     */
+
+    public void openIdIndex(final Volume volume) {
+    	if (idIndexes.containsKey(volume.getPath()))
+    		return;
+    	File directory = new File(volume.getPath());
+    	if (!directory.isDirectory())
+    		return;
+    	synchronized(idIndexes) {
+    		if (idIndexes.containsKey(volume.getPath()))
+    			return;
+    		final MessageIdIndex idIndex = new MessageIdIndex(directory);
+    		try {
+    			if (idIndex.open()) {
+    				idIndexes.put(volume.getPath(),idIndex);
+    				return;
+    			}
+    		} catch (IOException io) {
+    			logger.error("failed to open message id index {"+volume+"}:"+io.getMessage(),io);
+    			return;
+    		}
+    		idIndexes.put(volume.getPath(),idIndex);
+    		Thread thread = new Thread(new Runnable() {
+    			public void run() {
+    				buildIdIndex(volume,idIndex);
+    			}
+    		},"message id index");
+    		thread.setDaemon(true);
+    		thread.setPriority(Thread.MIN_PRIORITY);
+    		thread.start();
+    	}
+    }
+
+    // messages archived while the index is built are added as they are stored
+    protected void buildIdIndex(Volume volume, final MessageIdIndex idIndex) {
+    	logger.info("building message id index {"+volume+"}");
+    	File[] directories = new File(volume.getPath()).listFiles();
+    	try {
+	    	if (directories!=null) {
+	    		for (File directory : directories) {
+	    			if (Config.getShutdown())
+	    				return;
+	    			if (directory.isDirectory() && !directory.getName().equals(PackedStore.PACKED_DIR))
+	    				indexDirectory(idIndex,directory,true);
+	    		}
+	    	}
+	    	PackedStore packedStore = getPackedStore(volume,false);
+	    	if (packedStore!=null) {
+	    		final IOException[] failure = new IOException[1];
+	    		packedStore.processMessages(new ProcessMessage(volume) {
+	    			public void process(EmailID emailID) {
+	    				try {
+	    					if (failure[0]==null)
+	    						idIndex.add(emailID.getUniqueID(),MessageIdIndex.PACKED);
+	    				} catch (IOException io) {
+	    					failure[0] = io;
+	    				}
+	    			}
+	    		});
+	    		if (failure[0]!=null)
+	    			throw failure[0];
+	    	}
+    	} catch (Exception e) {
+    		logger.error("failed to build message id index {"+volume+"}:"+e.getMessage(),e);
+    		idIndex.invalidate();
+    		return;
+    	}
+    	if (!Config.getShutdown())
+    		idIndex.markBuilt();
+    }
+
+    // store files are either in a three level hash tree or in a single (legacy) directory level
+    protected void indexDirectory(MessageIdIndex idIndex, File directory, boolean topLevel) throws IOException {
+    	String[] names = directory.list();
+    	if (names==null)
+    		return;
+    	int layout = MessageIdIndex.ABSENT;
+    	if (topLevel) {
+    		switch (directory.getName().length()) {
+    			case 8: layout = MessageIdIndex.LEGACY_8; break;
+    			case 3: layout = MessageIdIndex.LEGACY_3; break;
+    			case 6: layout = MessageIdIndex.LEGACY_6; break;
+    			case 4: layout = MessageIdIndex.LEGACY_4; break;
+    		}
+    	} else {
+    		layout = MessageIdIndex.HASH;
+    	}
+    	for (String name : names) {
+    		if (name.endsWith(messageFileExtension)) {
+    			if (layout!=MessageIdIndex.ABSENT)
+    				idIndex.add(name.substring(0,name.length()-messageFileExtension.length()),layout);
+    		} else if (topLevel && directory.getName().length()==3 && name.length()==3) {
+    			File subDirectory = new File(directory,name);
+    			if (subDirectory.isDirectory())
+    				indexDirectory(idIndex,subDirectory,false);
+    		}
+    	}
+    }
+
+    /**
+     * Get the packed store of a volume
+     * @param volume The volume
+     * @param create Should create the store if the volume does not have one
+     * @return The packed store, or null if the volume does not have one
+     */
+
+    public PackedStore getPackedStore(Volume volume, boolean create) throws MessageStoreException {
+    	PackedStore packedStore = packedStores.get(volume.getPath());
+    	if (packedStore!=null)
+    		return packedStore;
+    	File directory = PackedStore.getDirectory(volume);
+    	if (!create && !directory.isDirectory())
+    		return null;
+    	synchronized(packedStores) {
+    		packedStore = packedStores.get(volume.getPath());
+    		if (packedStore==null) {
+    			if (create)
+    				prepareStore(volume);
+    			packedStore = new PackedStore(directory,(long)getPackedSegmentSize()*1024*1024);
+    			try {
+    				packedStore.open();
+    			} catch (IOException io) {
+    				packedStore.close();
+    				throw new MessageStoreException("failed to open packed store {"+volume+"}",io,logger);
+    			}
+    			packedStores.put(volume.getPath(),packedStore);
+    		}
+    		return packedStore;
+    	}
+    }
+
+    public boolean isPackedMessage(EmailID emailID) {
+    	return isLayoutHeld(emailID.getVolume(),emailID.getUniqueID(),MessageIdIndex.PACKED);
+    }
+
+    // returns null if the message is not held in a packed store
+    protected InputStream getPackedMessageInputStream(Volume volume, String uniqueId, boolean decompress, boolean decrypt) throws IOException, MessageStoreException {
+    	PackedStore packedStore = getPackedStore(volume,false);
+    	if (packedStore==null)
+    		return null;
+    	PackedStore.RecordChannel channel = packedStore.openRecord(uniqueId);
+    	if (channel==null)
+    		return null;
+    	logger.debug("returning packed input stream {uniqueId='"+uniqueId+"',"+volume+"}");
+    	try {
+    		if (decrypt) {
+    			MessageContainer.Header header = MessageContainer.readHeader(channel);
+    			if (header!=null)
+    				return container.getInputStream(channel,header,decompress);
+    			channel.rewind();
+    		}
+    		return getLegacyInputStream(new BufferedInputStream(Channels.newInputStream(channel)),decompress,decrypt);
+    	} catch (IOException io) {
+    		channel.close();
+    		throw io;
+    	} catch (MessageStoreException mse) {
+    		channel.close();
+    		throw mse;
+    	}
+    }
+
+    public void syncStore(Volume volume) {
+    	openIdIndex(volume);
+    	MessageIdIndex idIndex = idIndexes.get(volume.getPath());
+    	if (idIndex!=null)
+    		idIndex.checkpoint();
+    	PackedStore packedStore = packedStores.get(volume.getPath());
+    	if (packedStore==null)
+    		return;
+    	try {
+    		packedStore.checkpoint();
+    	} catch (IOException io) {
+    		logger.error("failed to checkpoint packed store {"+volume+"}:"+io.getMessage(),io);
+    	}
+    }
+
+    public void closeStore(Volume volume) {
+    	PackedStore packedStore = packedStores.remove(volume.getPath());
+    	if (packedStore!=null)
+    		packedStore.close();
+    	MessageIdIndex idIndex = idIndexes.remove(volume.getPath());
+    	if (idIndex!=null)
+    		idIndex.close();
+    }
     
  
     
@@ -322,15 +676,28 @@ public class MessageStore extends Archiver implements Serializable
             throw new MessageStoreException("assertion failure: null emailID, volume or uniqueId",logger);
 
         logger.debug("retrieveMessage() {"+emailID+"'}");
-     
-     
+        return parseMessage(emailID,false);
+    }
+
+    /**
+     * Retrieve a message for viewing. The message is read through the message cache.
+     * @param emailID The email ID
+     * @return An email message
+     */
+
+    public Email retrieveCachedMessage(EmailID emailID) throws MessageStoreException {
+    	if (emailID==null || emailID.getVolume()==null || emailID.getUniqueID()==null)
+            throw new MessageStoreException("assertion failure: null emailID, volume or uniqueId",logger);
+
+        logger.debug("retrieveCachedMessage() {"+emailID+"'}");
+        return parseMessage(emailID,true);
+    }
+
+    protected Email parseMessage(EmailID emailID, boolean cached) throws MessageStoreException {
         Email message = null;
         try {
         	
-   			  File messageFile = getExistingFile(emailID.getVolume(),emailID.getUniqueID(),messageFileExtension);
-   			  logger.debug("returning input stream {filename='" + messageFile + "'}");
-   		     
-	   		  message = new Email(emailID,getRawMessageInputStream(messageFile, true, true));
+	   		  message = new Email(emailID,cached ? getMessageInputStream(emailID) : getRawMessageInputStream(emailID));
   
             logger.debug("retrieved message {"+message+"}");
         } catch (java.io.FileNotFoundException fnfe) {
@@ -344,7 +711,43 @@ public class MessageStore extends Archiver implements Serializable
     
    
     
-    public void copyEmail(File source, File dest) throws MessageStoreException {
+    /** 
+	   * Get the decrypted, decompressed message content as originally archived
+	   * @param emailID The message to read
+	   * @return An inputstream of the RFC822 message
+	   */  
+    
+    public InputStream getRawMessageInputStream(EmailID emailID) throws IOException, MessageStoreException {
+    	if (emailID==null || emailID.getVolume()==null || emailID.getUniqueID()==null)
+            throw new MessageStoreException("assertion failure: null emailID, volume or uniqueId",logger);
+    	Volume volume = emailID.getVolume();
+    	String uniqueId = emailID.getUniqueID();
+    	int layout = locateMessage(volume,uniqueId);
+    	if (layout==MessageIdIndex.ABSENT) {
+    		// a duplicate of the message may be held by another volume
+    		Volume holder = findVolume(uniqueId,volume);
+    		if (holder!=null) {
+    			volume = holder;
+    			layout = locateMessage(volume,uniqueId);
+    		}
+    	}
+    	InputStream is = null;
+    	if (layout==MessageIdIndex.PACKED)
+    		is = getPackedMessageInputStream(volume,uniqueId,true,true);
+    	if (is==null) {
+	    	File messageFile = getLayoutFile(volume,uniqueId,messageFileExtension,layout);
+	    	// the message may have been packed since it was located
+	    	if (!messageFile.exists())
+	    		is = getPackedMessageInputStream(volume,uniqueId,true,true);
+	    	if (is==null) {
+	    		logger.debug("returning input stream {filename='" + messageFile + "'}");
+	    		is = getRawMessageInputStream(messageFile, true, true);
+	    	}
+    	}
+    	return attachmentStore.getExpandedInputStream(volume,is);
+    }
+    
+        public void copyEmail(File source, File dest) throws MessageStoreException {
        
         logger.debug("copyEmail()");
         FileChannel in = null, out = null;
@@ -397,6 +800,14 @@ public class MessageStore extends Archiver implements Serializable
 	      if (emailID==null || emailID.getVolume()==null || emailID.getUniqueID()==null)
 	          throw new MessageStoreException("assertion failure: null emailID, volume or uniqueId",logger);
 	      logger.debug("backupMessage() {"+emailID+"'");
+	      if (isPackedMessage(emailID)) {
+	    	  try {
+	    		  getPackedStore(emailID.getVolume(),false).copyRecord(emailID.getUniqueID(),getNoIndexFile(emailID));
+	    	  } catch (IOException io) {
+	    		  throw new MessageStoreException("failed to copy packed message {"+emailID+"}",io,logger);
+	    	  }
+	    	  return;
+	      }
 	      copyEmail(getExistingFile(emailID.getVolume(),emailID.getUniqueID(),messageFileExtension),getNoIndexFile(emailID));   
 	  }
 	  
@@ -526,7 +937,22 @@ public class MessageStore extends Archiver implements Serializable
        if (messageFile==null )
            throw new MessageStoreException("assertion failure: null messageFileName",logger);
 
-       InputStream is = new BufferedInputStream(new FileInputStream(messageFile));
+       FileInputStream fis = new FileInputStream(messageFile);
+       if (decrypt) {
+    	   try {
+    		   MessageContainer.Header header = MessageContainer.readHeader(fis.getChannel());
+    		   if (header!=null)
+    			   return container.getInputStream(fis.getChannel(),header,decompress);
+    	   } catch (IOException io) {
+    		   fis.close();
+    		   throw io;
+    	   }
+       }
+       // legacy store file without a container header
+       return getLegacyInputStream(new BufferedInputStream(fis),decompress,decrypt);
+    }
+
+   protected InputStream getLegacyInputStream(InputStream is, boolean decompress, boolean decrypt)  throws IOException,MessageStoreException {
        Cipher dcipher = null;
        if(decrypt) {
            try {
@@ -545,15 +971,27 @@ public class MessageStore extends Archiver implements Serializable
         return is;
     }
    
+   /** 
+	   * Get the original message for download or export. The message is streamed from the store
+	   * (decrypted, decompressed and with its attachments restored) without being parsed, and is
+	   * kept in the message cache, as the same messages tend to be opened repeatedly during a review.
+	   * @param emailID The message to read
+	   * @return An inputstream of the RFC822 message
+	   */  
+   
    public InputStream getMessageInputStream(EmailID emailID) throws IOException, MessageStoreException {
-	   
-	   Email email = retrieveMessage(emailID); 
-	   File file = File.createTempFile("raw", ".tmp");
-	   tempfiles.markForDeletion(file);
-	   try {
-		   writeEmail(email, file,false,false);
-	   } catch (Exception e) {}
-		   return getRawMessageInputStream(file, false, false);
+	   InputStream is = messageCache.get(emailID);
+	   if (is!=null)
+		   return is;
+	   return messageCache.put(emailID,getRawMessageInputStream(emailID));
+   }
+
+   public void evictMessage(EmailID emailID) {
+	   messageCache.invalidate(emailID);
+   }
+
+   public String getMessageCacheStatistics() {
+	   return messageCache.getStatistics();
    }
    
    /** 
@@ -568,20 +1006,10 @@ public class MessageStore extends Archiver implements Serializable
        if (messageFile==null)
            throw new MessageStoreException("assertion failure: null messageFileName",logger);
 
-       OutputStream os = new BufferedOutputStream(new FileOutputStream(messageFile));
-       Cipher ecipher = null; 
-       if (encrypt) {
-           try {
-               ecipher = Cipher.getInstance(key.getAlgorithm());
-               ecipher.init(Cipher.ENCRYPT_MODE, key, paramSpec);
-           } catch (Exception e) {
-                logger.fatal("Please ensure you have the Java Cryptography Extension (JCE) Unlimited Strength Jurisdiction Policy Files installed.");
-                logger.fatal("Visit http://java.sun.com2/javase/downloads/index.jsp to download them.");
-                throw new MessageStoreException("failed to initalize cipher. Cause:",e,logger);
-           }
-           os = new CipherOutputStream(os,ecipher);
-       }
+       if (encrypt)
+    	   return container.getOutputStream(messageFile,compress ? CompressionCodec.GZIP : CompressionCodec.STORE,0);
 
+       OutputStream os = new BufferedOutputStream(new FileOutputStream(messageFile));
 
        if (compress)
            os = new GZIPOutputStream(os);
@@ -589,6 +1017,23 @@ public class MessageStore extends Archiver implements Serializable
 
        return os;
    }
+   /** 
+	   * Get an encrypted output stream for a store file of a volume
+	   * @param messageFile The file to write
+	   * @param volume The volume, whose codec and level are used to compress the file
+	   * @return An outputstream directed to the file
+	   */  
+   
+   public OutputStream getRawMessageOutputStream(File messageFile, Volume volume) throws IOException,MessageStoreException {
+	   return getRawMessageOutputStream(messageFile,CompressionCodec.getCodec(volume.getCompression()),volume.getCompressionLevel());
+   }
+   
+   public OutputStream getRawMessageOutputStream(File messageFile, CompressionCodec codec, int level) throws IOException,MessageStoreException {
+       if (messageFile==null)
+           throw new MessageStoreException("assertion failure: null messageFileName",logger);
+       return container.getOutputStream(messageFile,codec,level);
+   }
+   
    /** 
 	   * Generic handler for returning the status of the reindexing operation
 	   * @param ProcessMessage The process that must be executed
@@ -608,6 +1053,21 @@ public class MessageStore extends Archiver implements Serializable
     	if(storeDirectory != null && storeDirectory.isDirectory())
         	recurseMessages(storeDirectory, process);
     }
+    
+    /** 
+	   * Process the messages held in a sub directory of the volume store
+	   * @param ProcessMessage The process that must be executed
+	   * @param directory The directory to walk
+	   */  
+    
+    public void processMessages(ProcessMessage process, File directory) throws ProcessException
+    {
+        if (process==null)
+            throw new ProcessException("assertion failure: null procress",logger);
+        
+        if (directory!=null && directory.isDirectory())
+        	recurseMessages(directory, process);
+    }
 
    
     
@@ -635,6 +1095,8 @@ public class MessageStore extends Archiver implements Serializable
 	                    	logger.error("server has run out of memory. skipping message.",ome);
 	                    }
 	        	   }
+	           } else if (file.getName().equals(PackedStore.PACKED_DIR)) {
+	        	   processPackedMessages(process);
 	           } else {
 	        	   file.listFiles(this);
 	           }
@@ -651,10 +1113,25 @@ public class MessageStore extends Archiver implements Serializable
    
     protected void recurseMessages(File file, ProcessMessage process) throws ProcessException
     {
+    	if (file.equals(PackedStore.getDirectory(process.workingVolume))) {
+    		processPackedMessages(process);
+    		return;
+    	}
     	MessageDirFilter messageDirFilter = new MessageDirFilter(process);
     	file.listFiles(messageDirFilter);
     }
 
+    // packed messages are processed in segment order, so that the segments are read sequentially
+    protected void processPackedMessages(ProcessMessage process) {
+    	try {
+    		PackedStore packedStore = getPackedStore(process.workingVolume,false);
+    		if (packedStore!=null)
+    			packedStore.processMessages(process);
+    	} catch (Exception e) {
+    		logger.error("failed to process packed messages {"+process.workingVolume+"}:"+e.getMessage(),e);
+    	}
+    }
+
      
     public boolean findSignature(Object part) throws Exception {
     	boolean foundSignature = false;
@@ -717,6 +1194,247 @@ public class MessageStore extends Archiver implements Serializable
     }
    
 
+  public void migrateAttachments(Volume volume) throws MessageStoreException {
+	  logger.info("migrating volume attachments to single instance storage {"+volume+"}");
+	  AttachmentStore.MigrateAttachments migrate = new AttachmentStore.MigrateAttachments(attachmentStore,volume);
+	  processMessages(migrate); // storeAttachment counts the attachments as they are migrated
+	  logger.info("migrated volume attachments {migrated='"+migrate.getMigrated()+"',failed='"+migrate.getFailed()+"',"+
+			  	  attachmentStore.getStatistics(volume)+","+volume+"}");
+  }
+
+  /**
+   * Rewrite the legacy (headerless) message and attachment files of a closed volume in the
+   * current store file format, compressed with the codec of the volume
+   * @param volume The volume to upgrade
+   */
+
+  public void upgradeStore(Volume volume) throws MessageStoreException {
+	  if (volume.getStatus()!=Volume.Status.CLOSED)
+		  throw new MessageStoreException("only closed volumes can be upgraded {"+volume+"}",logger);
+	  logger.info("upgrading volume store format {"+volume+"}");
+	  StoreRewrite rewrite = new StoreRewrite(CompressionCodec.getCodec(volume.getCompression()),volume.getCompressionLevel(),false);
+	  rewriteDirectory(volume,new File(volume.getPath()),rewrite);
+	  logger.info("upgraded volume store format {"+rewrite+","+volume+"}");
+  }
+
+  /**
+   * Recompress the store files of a closed volume at the recompress level. The job stops when the
+   * quiet hours end, and skips the files that are already recompressed when it is run again.
+   * @param volume The volume to recompress
+   * @return Whether all files were recompressed
+   */
+
+  public boolean recompressStore(Volume volume) throws MessageStoreException {
+	  if (volume.getStatus()!=Volume.Status.CLOSED)
+		  throw new MessageStoreException("only closed volumes can be recompressed {"+volume+"}",logger);
+	  logger.info("recompressing volume store {level='"+getRecompressLevel()+"',"+volume+"}");
+	  StoreRewrite rewrite = new StoreRewrite(CompressionCodec.GZIP,getRecompressLevel(),true);
+	  rewriteDirectory(volume,new File(volume.getPath()),rewrite);
+	  if (rewrite.stopped) {
+		  logger.info("volume store recompression paused {"+rewrite+","+volume+"}");
+		  return false;
+	  }
+	  volume.setCompression(rewrite.codec.getName());
+	  volume.setCompressionLevel(rewrite.level);
+	  try {
+		  volume.save();
+	  } catch (ConfigurationException ce) {
+		  throw new MessageStoreException("failed to save volume compression {"+volume+"}",ce,logger);
+	  }
+	  logger.info("recompressed volume store {"+rewrite+","+volume+"}");
+	  return true;
+  }
+
+  /**
+   * Move the message files of a closed volume from the hash tree to the packed store. The files
+   * of each directory are deleted once their records are checkpointed, and emptied directories
+   * are removed. Attachments remain in the hash tree. The job can be run again if it is stopped.
+   * @param volume The volume to pack
+   */
+
+  public void packStore(Volume volume) throws MessageStoreException {
+	  if (volume.getStatus()!=Volume.Status.CLOSED)
+		  throw new MessageStoreException("only closed volumes can be packed {"+volume+"}",logger);
+	  logger.info("packing volume store {"+volume+"}");
+	  PackedStore packedStore = getPackedStore(volume,true);
+	  StorePack pack = new StorePack();
+	  packDirectory(volume,packedStore,new File(volume.getPath()),pack);
+	  syncStore(volume);
+	  logger.info("packed volume store {"+pack+",messages='"+packedStore.getCount()+"',"+volume+"}");
+  }
+
+  protected void packDirectory(Volume volume, PackedStore packedStore, File directory, StorePack pack) {
+	  File[] files = directory.listFiles();
+	  if (files==null)
+		  return;
+	  List<File> packed = new ArrayList<File>();
+	  long delta = 0;
+	  for (File file : files) {
+		  if (Config.getShutdown())
+			  break;
+		  if (file.isDirectory()) {
+			  if (!file.equals(packedStore.getDirectory()))
+				  packDirectory(volume,packedStore,file,pack);
+			  continue;
+		  }
+		  if (!file.getName().endsWith(messageFileExtension))
+			  continue;
+		  String uniqueId = getUniqueIdFromFileName(file.getName());
+		  try {
+			  // already appended if a previous run was stopped before the file was deleted
+			  if (!packedStore.contains(uniqueId))
+				  delta += packedStore.append(uniqueId,file);
+			  delta -= file.length();
+			  packed.add(file);
+		  } catch (IOException io) {
+			  logger.debug("failed to pack store file {file='"+file.getPath()+"'}:"+io.getMessage());
+			  pack.failed++;
+		  }
+	  }
+	  if (!packed.isEmpty()) {
+		  try {
+			  packedStore.checkpoint();
+		  } catch (IOException io) {
+			  logger.error("failed to checkpoint packed store. store files are kept. {"+volume+"}:"+io.getMessage(),io);
+			  pack.failed += packed.size();
+			  return;
+		  }
+		  for (File file : packed) {
+			  indexMessage(volume,getUniqueIdFromFileName(file.getName()),MessageIdIndex.PACKED);
+			  if (!file.delete())
+				  logger.debug("failed to delete packed store file {file='"+file.getPath()+"'}");
+		  }
+		  pack.packed += packed.size();
+		  if (volume.isDiskSpaceChecked())
+			  volume.incUsedSpace(0,delta);
+	  }
+	  String[] remaining = directory.list();
+	  if (remaining!=null && remaining.length==0 && !directory.equals(new File(volume.getPath())))
+		  directory.delete();
+  }
+
+  protected static class StorePack {
+
+	  int packed = 0;
+	  int failed = 0;
+
+	  public String toString() {
+		  return "packed='"+packed+"',failed='"+failed+"'";
+	  }
+  }
+
+  protected void rewriteDirectory(Volume volume, File directory, StoreRewrite rewrite) {
+	  File[] files = directory.listFiles();
+	  if (files==null)
+		  return;
+	  for (File file : files) {
+		  if (Config.getShutdown() || (rewrite.quietHoursOnly && !isQuietHours())) {
+			  rewrite.stopped = true;
+			  return;
+		  }
+		  String name = file.getName();
+		  if (file.isDirectory()) {
+			  rewriteDirectory(volume,file,rewrite);
+		  } else if (name.endsWith(messageFileExtension)) {
+			  rewriteFile(volume,file,rewrite);
+		  } else if (name.endsWith(AttachmentStore.attachmentFileExtension)) {
+			  // attachments may be released concurrently
+			  synchronized(attachmentStore.getLock(name.substring(0,name.length()-AttachmentStore.attachmentFileExtension.length()))) {
+				  if (file.exists())
+					  rewriteFile(volume,file,rewrite);
+			  }
+		  }
+		  if (rewrite.stopped)
+			  return;
+	  }
+  }
+
+  protected boolean needsRewrite(File file, StoreRewrite rewrite) throws IOException {
+	  FileInputStream fis = new FileInputStream(file);
+	  try {
+		  MessageContainer.Header header = MessageContainer.readHeader(fis.getChannel());
+		  if (header==null)
+			  return true;
+		  // the store codec is only chosen for payloads that are already compressed
+		  if (header.getCodec()==CompressionCodec.STORE)
+			  return false;
+		  return header.getCodec()!=rewrite.codec || header.getCompressionLevel()!=rewrite.codec.normalizeLevel(rewrite.level);
+	  } finally {
+		  fis.close();
+	  }
+  }
+
+  protected void rewriteFile(Volume volume, File file, StoreRewrite rewrite) {
+	  File tempFile = new File(file.getPath()+".tmp");
+	  InputStream is = null;
+	  OutputStream os = null;
+	  try {
+		  if (!needsRewrite(file,rewrite))
+			  return;
+		  is = getRawMessageInputStream(file,true,true);
+		  os = getRawMessageOutputStream(tempFile,rewrite.codec,rewrite.level);
+		  byte[] buffer = new byte[65536];
+		  int read;
+		  while ((read = is.read(buffer))!=-1)
+			  os.write(buffer,0,read);
+		  is.close();
+		  is = null;
+		  os.close();
+		  os = null;
+		  long delta = tempFile.length()-file.length();
+		  AttachmentStore.replaceFile(tempFile,file);
+		  if (volume.isDiskSpaceChecked())
+			  volume.incUsedSpace(0,delta);
+		  rewrite.rewritten++;
+		  rewrite.saved -= delta;
+	  } catch (Exception e) {
+		  logger.debug("failed to rewrite store file {file='"+file.getPath()+"'}:"+e.getMessage());
+		  rewrite.failed++;
+	  } finally {
+		  try { if (is!=null) is.close(); } catch (Exception e) {}
+		  try { if (os!=null) os.close(); } catch (Exception e) {}
+		  if (tempFile.exists())
+			  tempFile.delete();
+	  }
+  }
+
+  protected static class StoreRewrite {
+
+	  CompressionCodec codec;
+	  int level;
+	  boolean quietHoursOnly;
+	  boolean stopped = false;
+	  int rewritten = 0;
+	  int failed = 0;
+	  long saved = 0;
+
+	  public StoreRewrite(CompressionCodec codec, int level, boolean quietHoursOnly) {
+		  this.codec = codec;
+		  this.level = codec.normalizeLevel(level);
+		  this.quietHoursOnly = quietHoursOnly;
+	  }
+
+	  public String toString() {
+		  return "codec='"+codec+"',level='"+level+"',rewritten='"+rewritten+"',failed='"+failed+"',saved='"+saved+"'";
+	  }
+  }
+
+  public void calculateAttachmentStatistics(Volume volume) {
+	  attachmentStore.calculateStatistics(volume);
+  }
+
+  public boolean loadAttachmentStatistics(Volume volume) {
+	  return attachmentStore.loadStatistics(volume);
+  }
+
+  public void saveAttachmentStatistics(Volume volume) {
+	  attachmentStore.saveStatistics(volume);
+  }
+
+  public long getAttachmentSavedSpace(Volume volume) {
+	  return attachmentStore.getStatistics(volume).getSavedSpace();
+  }
+
   public File getExistingAttachmentFilePath(Volume volume, String hash) throws MessageStoreException {
 	  logger.debug("getAttachmentFilePath() {"+volume+",hash='"+hash+"'}");
 	  File attachFile = getFileFromHashValue(volume, hash,attachmentFileExtension);
@@ -752,20 +1470,34 @@ public class MessageStore extends Archiver implements Serializable
 
     
     protected void updateDiskSpace(Volume volume, long fileLength) {
-    	// we have written to the drive, update disk space counters
-			long indexChange = (long)(fileLength*0.1); // rough approximation index %1 size store
-			logger.debug("inc volume store disk space {storeinc='"+fileLength+"',indexinc='"+indexChange+"'}");
-			volume.incUsedSpace(indexChange,fileLength);
+    	// we have written to the drive, update disk space counters (the index is counted on commit)
+			logger.debug("inc volume store disk space {storeinc='"+fileLength+"'}");
+			volume.incUsedSpace(0,fileLength);
     }
     
     
   
 	public byte[] writeEmail(Email message, File file, boolean compress, boolean encrypt) throws  MessageStoreException {
+		try {
+			return writeEmail(message,file,getRawMessageOutputStream(file,compress,encrypt));
+		} catch (IOException io) {
+			throw new MessageStoreException("failed to write email {filename='"+file.getAbsolutePath()+"'",io,logger);
+		}
+	}
+
+	// write to an encrypted store file, compressed with the codec of the volume
+	public byte[] writeEmail(Email message, File file, Volume volume) throws  MessageStoreException {
+		try {
+			return writeEmail(message,file,getRawMessageOutputStream(file,volume));
+		} catch (IOException io) {
+			throw new MessageStoreException("failed to write email {filename='"+file.getAbsolutePath()+"'",io,logger);
+		}
+	}
+
+	protected byte[] writeEmail(Email message, File file, OutputStream fos) throws  MessageStoreException {
 		logger.debug("writeEmail");
-		OutputStream fos = null;
 		try {
 			MessageDigest sha = MessageDigest.getInstance("SHA-1");
-			fos = getRawMessageOutputStream(file,compress,encrypt);
 			DigestOutputStream dos = new DigestOutputStream(fos,sha);
 			message.writeTo(dos);
 			
@@ -0,0 +1,656 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.logging.*;
+import com.stimulus.archiva.domain.*;
+
+/*
+ * Append-only message store of a volume. Rather than one file per message under the hash
+ * directory tree, store files are appended to large segment files held in the segments
+ * directory of the volume:
+ *
+ *   <nnnnnn>.seg  records of  magic (4) | id length (2) | unique id (utf-8) | length (8) | store file
+ *   index-<capacity>.idx  header (64) | slots of  fingerprint (8) | segment (4) | unused (4) | offset (8)
+ *
+ * The index is a memory mapped open addressing hash table keyed on a 64 bit fingerprint of the
+ * unique id, so a lookup costs a few probes of the mapped file and the id is then checked against
+ * the record itself. Records are self describing: the index records a checkpoint (segment data and
+ * index forced to disk) and, after an unclean shutdown, the records written after the checkpoint
+ * are indexed again when the store is opened. A partially written last record is truncated.
+ * The index is rebuilt from the segments if it is lost.
+ */
+
+public class PackedStore {
+
+	protected static final Log logger = LogFactory.getLog(PackedStore.class.getName());
+
+	public static final String PACKED_DIR = "segments";
+	protected static final String SEGMENT_EXTENSION = ".seg";
+	protected static final String INDEX_PREFIX = "index-";
+	protected static final String INDEX_EXTENSION = ".idx";
+	protected static final int RECORD_MAGIC = 0x4d534547; // MSEG
+	protected static final int INDEX_MAGIC = 0x4d534958; // MSIX
+	protected static final int INDEX_VERSION = 1;
+	protected static final int INDEX_HEADER_SIZE = 64;
+	protected static final int SLOT_SIZE = 24;
+	protected static final int MIN_CAPACITY = 1 << 16;
+	protected static final int MAX_CAPACITY = 1 << 26; // keeps the mapped index under 2GB
+	protected static final int MAX_ID_LENGTH = 1024;
+	protected static final int CHECKPOINT_INTERVAL = 1000;
+
+	// index header offsets
+	protected static final int H_MAGIC = 0;
+	protected static final int H_VERSION = 4;
+	protected static final int H_CAPACITY = 8;
+	protected static final int H_COUNT = 12;
+	protected static final int H_CLEAN = 16;
+	protected static final int H_CHECKPOINT_SEGMENT = 20;
+	protected static final int H_CHECKPOINT_OFFSET = 24;
+
+	protected File directory;
+	protected long segmentSize;
+	protected MappedByteBuffer index;
+	protected File indexFile;
+	protected int capacity;
+	protected int count;
+	protected int activeSegment = 1;
+	protected long writeOffset = 0;
+	protected FileChannel writeChannel;
+	protected int uncheckpointed = 0;
+	protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public PackedStore(File directory, long segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	public static File getDirectory(Volume volume) {
+		return new File(volume.getPath(),PACKED_DIR);
+	}
+
+	public File getDirectory() { return directory; }
+
+	/**
+	 * Open the store, creating it if necessary. Records written since the last checkpoint of an
+	 * unclean shutdown are indexed again.
+	 */
+
+	public synchronized void open() throws IOException {
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("failed to create packed store directory {location='"+directory.getPath()+"'}");
+		// store files that were being appended when the server stopped
+		File[] tempFiles = directory.listFiles();
+		for (int i=0;tempFiles!=null && i<tempFiles.length;i++) {
+			if (tempFiles[i].getName().endsWith(".tmp"))
+				tempFiles[i].delete();
+		}
+		int[] segments = listSegments();
+		if (segments.length>0)
+			activeSegment = segments[segments.length-1];
+		boolean loaded = loadIndex();
+		if (!loaded) {
+			logger.info("building packed store index {location='"+directory.getPath()+"',segments='"+segments.length+"'}");
+			createIndex(MIN_CAPACITY);
+			index.putInt(H_CHECKPOINT_SEGMENT,segments.length>0 ? segments[0] : 1);
+			index.putLong(H_CHECKPOINT_OFFSET,0);
+			index.putInt(H_MAGIC,INDEX_MAGIC);
+		}
+		if (!loaded || index.getInt(H_CLEAN)==0)
+			recover(index.getInt(H_CHECKPOINT_SEGMENT),index.getLong(H_CHECKPOINT_OFFSET));
+		File segment = getSegmentFile(activeSegment);
+		writeOffset = segment.exists() ? segment.length() : 0;
+		checkpoint();
+		index.putInt(H_CLEAN,0);
+		index.force();
+		logger.debug("opened packed store {location='"+directory.getPath()+"',messages='"+count+"',capacity='"+capacity+"'}");
+	}
+
+	protected File getSegmentFile(int segment) {
+		StringBuilder name = new StringBuilder(Integer.toString(segment));
+		while (name.length()<6)
+			name.insert(0,'0');
+		return new File(directory,name.append(SEGMENT_EXTENSION).toString());
+	}
+
+	protected int[] listSegments() {
+		String[] names = directory.list();
+		List<Integer> segments = new ArrayList<Integer>();
+		if (names!=null) {
+			for (String name : names) {
+				if (!name.endsWith(SEGMENT_EXTENSION))
+					continue;
+				try {
+					segments.add(Integer.parseInt(name.substring(0,name.length()-SEGMENT_EXTENSION.length())));
+				} catch (NumberFormatException nfe) {}
+			}
+		}
+		Collections.sort(segments);
+		int[] result = new int[segments.size()];
+		for (int i=0;i<result.length;i++)
+			result[i] = segments.get(i);
+		return result;
+	}
+
+	// use the largest complete index. smaller ones are left behind when the index grows.
+	protected boolean loadIndex() throws IOException {
+		String[] names = directory.list();
+		List<Integer> capacities = new ArrayList<Integer>();
+		if (names!=null) {
+			for (String name : names) {
+				if (!name.startsWith(INDEX_PREFIX) || !name.endsWith(INDEX_EXTENSION))
+					continue;
+				try {
+					capacities.add(Integer.parseInt(name.substring(INDEX_PREFIX.length(),name.length()-INDEX_EXTENSION.length())));
+				} catch (NumberFormatException nfe) {}
+			}
+		}
+		Collections.sort(capacities,Collections.reverseOrder());
+		boolean loaded = false;
+		for (int candidate : capacities) {
+			File file = getIndexFile(candidate);
+			if (!loaded && file.length()==INDEX_HEADER_SIZE+(long)candidate*SLOT_SIZE) {
+				MappedByteBuffer buffer = map(file,file.length());
+				if (buffer.getInt(H_MAGIC)==INDEX_MAGIC && buffer.getInt(H_VERSION)==INDEX_VERSION && buffer.getInt(H_CAPACITY)==candidate) {
+					index = buffer;
+					indexFile = file;
+					capacity = candidate;
+					count = buffer.getInt(H_COUNT);
+					loaded = true;
+					continue;
+				}
+			}
+			if (!file.delete())
+				logger.debug("failed to delete stale packed store index {location='"+file.getPath()+"'}");
+		}
+		return loaded;
+	}
+
+	protected File getIndexFile(int capacity) {
+		return new File(directory,INDEX_PREFIX+capacity+INDEX_EXTENSION);
+	}
+
+	protected static MappedByteBuffer map(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file,"rw");
+		try {
+			raf.setLength(length);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	// the index is only valid once its magic is written
+	protected void createIndex(int newCapacity) throws IOException {
+		File file = getIndexFile(newCapacity);
+		if (file.exists() && !file.delete())
+			throw new IOException("failed to replace packed store index {location='"+file.getPath()+"'}");
+		MappedByteBuffer buffer = map(file,INDEX_HEADER_SIZE+(long)newCapacity*SLOT_SIZE);
+		buffer.putInt(H_VERSION,INDEX_VERSION);
+		buffer.putInt(H_CAPACITY,newCapacity);
+		index = buffer;
+		indexFile = file;
+		capacity = newCapacity;
+		count = 0;
+	}
+
+	protected static long fingerprint(String id) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i=0;i<id.length();i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash==0 ? 1 : hash;
+	}
+
+	protected static int slot(long fingerprint, int capacity) {
+		return (int)(fingerprint ^ (fingerprint >>> 32)) & (capacity-1);
+	}
+
+	// called with the write lock held
+	protected void put(String id, int segment, long offset) throws IOException {
+		if ((count+1)>capacity/4*3)
+			grow();
+		long fingerprint = fingerprint(id);
+		int i = slot(fingerprint,capacity);
+		while (true) {
+			int position = INDEX_HEADER_SIZE+i*SLOT_SIZE;
+			long existing = index.getLong(position);
+			if (existing==0) {
+				index.putInt(position+8,segment);
+				index.putLong(position+16,offset);
+				index.putLong(position,fingerprint);
+				index.putInt(H_COUNT,++count);
+				return;
+			}
+			// the record is already indexed (records written after the checkpoint are replayed)
+			if (existing==fingerprint && index.getInt(position+8)==segment && index.getLong(position+16)==offset)
+				return;
+			i = (i+1) & (capacity-1);
+		}
+	}
+
+	protected void grow() throws IOException {
+		if (capacity>=MAX_CAPACITY)
+			throw new IOException("packed store index is full {location='"+directory.getPath()+"',messages='"+count+"'}");
+		MappedByteBuffer old = index;
+		File oldFile = indexFile;
+		int oldCapacity = capacity;
+		createIndex(capacity*2);
+		for (int i=0;i<oldCapacity;i++) {
+			int position = INDEX_HEADER_SIZE+i*SLOT_SIZE;
+			long fingerprint = old.getLong(position);
+			if (fingerprint==0)
+				continue;
+			int j = slot(fingerprint,capacity);
+			while (index.getLong(INDEX_HEADER_SIZE+j*SLOT_SIZE)!=0)
+				j = (j+1) & (capacity-1);
+			int newPosition = INDEX_HEADER_SIZE+j*SLOT_SIZE;
+			index.putInt(newPosition+8,old.getInt(position+8));
+			index.putLong(newPosition+16,old.getLong(position+16));
+			index.putLong(newPosition,fingerprint);
+			count++;
+		}
+		index.putInt(H_COUNT,count);
+		index.putInt(H_CHECKPOINT_SEGMENT,old.getInt(H_CHECKPOINT_SEGMENT));
+		index.putLong(H_CHECKPOINT_OFFSET,old.getLong(H_CHECKPOINT_OFFSET));
+		index.force();
+		index.putInt(H_MAGIC,INDEX_MAGIC);
+		index.force();
+		// the old index may not be deletable while it is mapped. it is removed when the store is next opened.
+		if (!oldFile.delete())
+			logger.debug("failed to delete old packed store index {location='"+oldFile.getPath()+"'}");
+		logger.debug("packed store index grown {location='"+directory.getPath()+"',capacity='"+capacity+"'}");
+	}
+
+	// index the records written after a checkpoint, truncating a partially written last record
+	protected void recover(int fromSegment, long fromOffset) throws IOException {
+		int recovered = 0;
+		int[] segments = listSegments();
+		for (int s=0;s<segments.length;s++) {
+			int segment = segments[s];
+			if (segment<fromSegment)
+				continue;
+			long position = segment==fromSegment ? fromOffset : 0;
+			RandomAccessFile raf = new RandomAccessFile(getSegmentFile(segment),"rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				while (position<size) {
+					Record record = readRecord(channel,position,size);
+					if (record==null) {
+						if (s==segments.length-1) {
+							logger.warn("truncating incomplete packed store record {segment='"+segment+"',offset='"+position+"'}");
+							channel.truncate(position);
+						} else {
+							logger.error("packed store segment is corrupted {segment='"+segment+"',offset='"+position+"'}");
+						}
+						break;
+					}
+					lock.writeLock().lock();
+					try {
+						put(record.id,segment,position);
+					} finally {
+						lock.writeLock().unlock();
+					}
+					recovered++;
+					position = record.end;
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		if (recovered>0)
+			logger.info("indexed packed store records {location='"+directory.getPath()+"',records='"+recovered+"'}");
+	}
+
+	// returns null if there is no complete record at the given position
+	protected static Record readRecord(FileChannel channel, long position, long size) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(6);
+		if (!readFully(channel,header,position))
+			return null;
+		header.flip();
+		int length = header.getShort(4) & 0xffff;
+		if (header.getInt(0)!=RECORD_MAGIC || length==0 || length>MAX_ID_LENGTH)
+			return null;
+		ByteBuffer id = ByteBuffer.allocate(length+8);
+		if (!readFully(channel,id,position+6))
+			return null;
+		id.flip();
+		Record record = new Record();
+		record.id = new String(id.array(),0,length,"UTF-8");
+		record.start = position+6+length+8;
+		record.end = record.start+id.getLong(length);
+		if (record.end<record.start || record.end>size)
+			return null;
+		return record;
+	}
+
+	protected static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer,position);
+			if (read<0)
+				return false;
+			position += read;
+		}
+		return true;
+	}
+
+	protected static byte[] getRecordHeader(String id, long length) throws IOException {
+		byte[] idBytes = id.getBytes("UTF-8");
+		if (idBytes.length==0 || idBytes.length>MAX_ID_LENGTH)
+			throw new IOException("invalid unique id for packed store {id='"+id+"'}");
+		ByteBuffer header = ByteBuffer.allocate(6+idBytes.length+8);
+		header.putInt(RECORD_MAGIC);
+		header.putShort((short)idBytes.length);
+		header.put(idBytes);
+		header.putLong(length);
+		return header.array();
+	}
+
+	/**
+	 * Append a store file to the active segment
+	 * @param id The unique id of the message
+	 * @param file The store file
+	 * @return The number of bytes added to the segment
+	 */
+
+	public synchronized long append(String id, File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel source = fis.getChannel();
+			long length = source.size();
+			ByteBuffer header = ByteBuffer.wrap(getRecordHeader(id,length));
+			long recordLength = header.remaining()+length;
+			if (writeChannel==null || (writeOffset>0 && writeOffset+recordLength>segmentSize))
+				openSegment(writeOffset>0 && writeOffset+recordLength>segmentSize);
+			long position = writeOffset;
+			try {
+				long written = position;
+				while (header.hasRemaining())
+					written += writeChannel.write(header,written);
+				long transferred = 0;
+				while (transferred<length) {
+					long n = writeChannel.transferFrom(source,written+transferred,length-transferred);
+					if (n<=0)
+						throw new IOException("failed to append store file to packed store {file='"+file.getPath()+"'}");
+					transferred += n;
+				}
+			} catch (IOException io) {
+				writeChannel.truncate(position);
+				throw io;
+			}
+			lock.writeLock().lock();
+			try {
+				put(id,activeSegment,position);
+			} catch (IOException io) {
+				writeChannel.truncate(position);
+				throw io;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			writeOffset = position+recordLength;
+			if (++uncheckpointed>=CHECKPOINT_INTERVAL)
+				checkpoint();
+			return recordLength;
+		} finally {
+			fis.close();
+		}
+	}
+
+	protected void openSegment(boolean next) throws IOException {
+		if (writeChannel!=null) {
+			writeChannel.force(false);
+			writeChannel.close();
+			writeChannel = null;
+		}
+		if (next) {
+			activeSegment++;
+			writeOffset = 0;
+			logger.debug("starting new packed store segment {location='"+directory.getPath()+"',segment='"+activeSegment+"'}");
+		}
+		writeChannel = new RandomAccessFile(getSegmentFile(activeSegment),"rw").getChannel();
+		writeOffset = writeChannel.size();
+	}
+
+	/**
+	 * Force the segment data and index to disk, and record the position up to which the index is
+	 * complete
+	 */
+
+	public synchronized void checkpoint() throws IOException {
+		if (index==null)
+			return;
+		if (writeChannel!=null)
+			writeChannel.force(false);
+		lock.writeLock().lock();
+		try {
+			index.force();
+			index.putInt(H_CHECKPOINT_SEGMENT,activeSegment);
+			index.putLong(H_CHECKPOINT_OFFSET,writeOffset);
+			index.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		uncheckpointed = 0;
+	}
+
+	public synchronized void close() {
+		if (index==null)
+			return;
+		try {
+			checkpoint();
+			index.putInt(H_CLEAN,1);
+			index.force();
+		} catch (IOException io) {
+			logger.error("failed to checkpoint packed store {location='"+directory.getPath()+"'}:"+io.getMessage(),io);
+		}
+		try {
+			if (writeChannel!=null)
+				writeChannel.close();
+		} catch (IOException io) {}
+		writeChannel = null;
+		lock.writeLock().lock();
+		try {
+			index = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int getCount() { return count; }
+
+	// positions of the records whose id has the same fingerprint (usually one)
+	protected List<long[]> getCandidates(String id) {
+		List<long[]> candidates = new ArrayList<long[]>(1);
+		long fingerprint = fingerprint(id);
+		lock.readLock().lock();
+		try {
+			if (index==null)
+				return candidates;
+			int i = slot(fingerprint,capacity);
+			while (true) {
+				int position = INDEX_HEADER_SIZE+i*SLOT_SIZE;
+				long existing = index.getLong(position);
+				if (existing==0)
+					break;
+				if (existing==fingerprint)
+					candidates.add(new long[] { index.getInt(position+8), index.getLong(position+16) });
+				i = (i+1) & (capacity-1);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return candidates;
+	}
+
+	/**
+	 * Open the store file of a message
+	 * @param id The unique id of the message
+	 * @return A channel positioned at the start of the store file, or null if the message is not held
+	 */
+
+	public RecordChannel openRecord(String id) throws IOException {
+		for (long[] candidate : getCandidates(id)) {
+			File segment = getSegmentFile((int)candidate[0]);
+			FileChannel channel = new FileInputStream(segment).getChannel();
+			try {
+				Record record = readRecord(channel,candidate[1],channel.size());
+				if (record!=null && record.id.equals(id)) {
+					RecordChannel recordChannel = new RecordChannel(channel,record.start,record.end);
+					channel = null;
+					return recordChannel;
+				}
+			} finally {
+				if (channel!=null)
+					channel.close();
+			}
+		}
+		return null;
+	}
+
+	public boolean contains(String id) {
+		try {
+			RecordChannel channel = openRecord(id);
+			if (channel==null)
+				return false;
+			channel.close();
+			return true;
+		} catch (IOException io) {
+			logger.debug("failed to read packed store record {id='"+id+"'}:"+io.getMessage());
+			return false;
+		}
+	}
+
+	protected boolean isCurrent(String id, int segment, long offset) {
+		for (long[] candidate : getCandidates(id)) {
+			if (candidate[0]==segment && candidate[1]==offset)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the store file of a message
+	 * @param id The unique id of the message
+	 * @param dest The file to write
+	 */
+
+	public void copyRecord(String id, File dest) throws IOException {
+		RecordChannel channel = openRecord(id);
+		if (channel==null)
+			throw new FileNotFoundException("message is not held in the packed store {id='"+id+"'}");
+		FileChannel out = new FileOutputStream(dest).getChannel();
+		try {
+			long position = channel.start;
+			while (position<channel.end)
+				position += channel.channel.transferTo(position,channel.end-position,out);
+		} finally {
+			out.close();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Process the messages of the store in segment order, so that they are read sequentially
+	 * @param process The process
+	 */
+
+	public void processMessages(Archiver.ProcessMessage process) throws IOException {
+		for (int segment : listSegments()) {
+			FileChannel channel = new FileInputStream(getSegmentFile(segment)).getChannel();
+			try {
+				long size = channel.size();
+				long position = 0;
+				while (position<size && !Config.getShutdown()) {
+					Record record = readRecord(channel,position,size);
+					if (record==null)
+						break;
+					if (isCurrent(record.id,segment,position)) {
+						EmailID emailID = EmailID.getEmailID(process.workingVolume,record.id);
+						try {
+							process.process(emailID);
+						} catch (Exception e) {
+							logger.error("failed to process message {"+emailID+"}",e);
+						} catch (OutOfMemoryError ome) {
+							logger.error("server has run out of memory. skipping message.",ome);
+						}
+					}
+					position = record.end;
+				}
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	protected static class Record {
+		String id;
+		long start;
+		long end;
+	}
+
+	// reads a single record. the segment is read with positional reads and closed with the channel.
+
+	public static class RecordChannel implements ReadableByteChannel {
+
+		FileChannel channel;
+		long start;
+		long end;
+		long position;
+
+		public RecordChannel(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			if (position>=end)
+				return -1;
+			int limit = dst.limit();
+			if (dst.remaining()>end-position)
+				dst.limit(dst.position()+(int)(end-position));
+			int read;
+			try {
+				read = channel.read(dst,position);
+			} finally {
+				dst.limit(limit);
+			}
+			if (read>0)
+				position += read;
+			return read;
+		}
+
+		public long getLength() { return end-start; }
+
+		public void rewind() { position = start; }
+
+		public boolean isOpen() { return channel.isOpen(); }
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
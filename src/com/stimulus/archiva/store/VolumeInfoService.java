@@ -22,8 +22,9 @@ public class VolumeInfoService implements Serializable, Service, Runnable {
      protected String adminEmail;
      protected boolean adminNotify;
      protected ServiceDelegate serviceDelegate;
-     protected Calendar lastCheck = null;
+     protected Set<String> statisticsLoaded = Collections.synchronizedSet(new HashSet<String>());
 	protected boolean autoCreateVolume;
+	protected transient Thread recompressThread;
 	 
 	 public VolumeInfoService() {
 		 serviceDelegate = new ServiceDelegate("diskspace checker", this, logger);
@@ -55,6 +56,13 @@ public class VolumeInfoService implements Serializable, Service, Runnable {
 			 serviceDelegate.shutdown();
 			 if (scheduler!=null)
 				 scheduler.shutdownNow();
+			 for (Volume volume : Config.getConfig().getVolumes().getVolumes()) {
+				 if (volume.isVolumeAccessible()) {
+					 volume.saveSpaceInfo();
+					 Config.getConfig().getArchiver().saveAttachmentStatistics(volume);
+				 }
+				 Config.getConfig().getArchiver().closeStore(volume);
+			 }
 		 }
 	 }
 	 
@@ -70,54 +78,61 @@ public class VolumeInfoService implements Serializable, Service, Runnable {
 		 return serviceDelegate.getStatus();
 	 }
 	 
-	 protected boolean checkActiveVolume() {
-		 //logger.debug("checkActiveVolume()");
-		 // here we check if active volume has not been checked yet
-         Volume activeVolume = Config.getConfig().getVolumes().getVolume(Volume.Status.ACTIVE);
-         if (activeVolume!=null && !activeVolume.isDiskSpaceChecked()) {
-        	 //logger.debug("checking disk space on active volume");
-	     	  try  { activeVolume.calculateSpace(); 
-	     	  } catch (ArchivaException ae) {
-	     		  logger.error("failed to check disk space:"+ae.getMessage(),ae);
-	     	  }
-	     	 //logger.debug("checkActiveVolume() return true");
-	     	  return true;
-         }
-         //logger.debug("checkActiveVolume() return false");
-         return false;
-	 }
+	 /*
+	  * Disk usage is tracked incrementally: the store counts the bytes it writes and the index
+	  * recounts its (flat) directory on commit. Every minute, the used space ledger and attachment
+	  * statistics of each volume are persisted, packed stores and message id indexes are checkpointed
+	  * (the index of a volume is opened, and built if need be, on its first run), and the free space
+	  * is refreshed from the file system.
+	  * The store and index are only walked for volumes without a ledger, or on demand.
+	  * During quiet hours, closed volumes are recompressed one at a time (if enabled).
+	  */
 	 
      public void run() {
-    	//logger.debug("volume info run()");
-    	Volume activeVolume = Config.getConfig().getVolumes().getVolume(Volume.Status.ACTIVE);
-	    boolean activeChecked = checkActiveVolume();
-    	
-    	// here we force-check all volumes 
-    	Calendar newCheck = Calendar.getInstance();
-    	long difInHours = 0;
-    	
-    	if (lastCheck!=null) {
-    		difInHours = ((newCheck.getTime().getTime() - lastCheck.getTime().getTime())/(1000*60*60));
-    	}
-    	int diskSpaceCheckWaitHours = Config.getConfig().getVolumes().getDiskSpaceCheckWait();
-		if (lastCheck==null || difInHours>diskSpaceCheckWaitHours) {
-    		logger.debug("scheduled disk space check");
-    		
-    		for (Volume volume : Config.getConfig().getVolumes().getVolumes()) {
-    			
-    				if (activeChecked && volume==activeVolume)
-    					continue; // already checked active volume
-    				try  { 
-    					volume.calculateSpace(); 
-    		     	} catch (ArchivaException ae) {
-    		     		  logger.error("failed to check disk space:"+ae.getMessage(),ae);
-    		     	}
+    	for (Volume volume : Config.getConfig().getVolumes().getVolumes()) {
+    		if (!volume.isVolumeAccessible())
+    			continue;
+    		try { 
+    			if (!volume.isDiskSpaceChecked() && !volume.loadSpaceInfo())
+    				volume.calculateSpace(); 
+    		} catch (ArchivaException ae) {
+    			logger.error("failed to check disk space:"+ae.getMessage(),ae);
     		}
-    		
-    		logger.debug("volume info end()");
-    		lastCheck = newCheck;
+    		Archiver archiver = Config.getConfig().getArchiver();
+    		if (statisticsLoaded.add(volume.getPath()) && !archiver.loadAttachmentStatistics(volume))
+    			archiver.calculateAttachmentStatistics(volume);
+    		volume.reconcileSpace();
+    		volume.saveSpaceInfo();
+    		archiver.saveAttachmentStatistics(volume);
+    		archiver.syncStore(volume);
     	}
-    	
+    	Archiver archiver = Config.getConfig().getArchiver();
+    	if (archiver.isRecompressClosedVolumes() && archiver.isQuietHours())
+    		startRecompress(archiver);
+     }
+
+     protected void startRecompress(final Archiver archiver) {
+    	 if (recompressThread!=null && recompressThread.isAlive())
+    		 return;
+    	 for (final Volume volume : Config.getConfig().getVolumes().getVolumes()) {
+    		 if (volume.getStatus()!=Volume.Status.CLOSED || !volume.isVolumeAccessible())
+    			 continue;
+    		 if (Compare.equalsIgnoreCase(volume.getCompression(),CompressionCodec.GZIP.getName()) && volume.getCompressionLevel()==archiver.getRecompressLevel())
+    			 continue;
+    		 recompressThread = new Thread(new Runnable() {
+    			 public void run() {
+    				 try {
+    					 archiver.recompressStore(volume);
+    				 } catch (Exception e) {
+    					 logger.error("failed to recompress volume {"+volume+"}:"+e.getMessage(),e);
+    				 }
+    			 }
+    		 },"store recompress");
+    		 recompressThread.setDaemon(true);
+    		 recompressThread.setPriority(Thread.MIN_PRIORITY);
+    		 recompressThread.start();
+    		 return;
+    	 }
      }
 
 	  
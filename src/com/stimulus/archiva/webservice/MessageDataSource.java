@@ -0,0 +1,57 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.webservice;
+
+import java.io.*;
+import javax.activation.DataSource;
+import com.stimulus.archiva.domain.Config;
+import com.stimulus.archiva.domain.EmailID;
+import com.stimulus.archiva.exception.MessageStoreException;
+
+/*
+ * Archived message returned by the web service. The message is read from the store each time
+ * the data source is opened, so that it is streamed to the (MTOM) attachment rather than being
+ * held in memory.
+ */
+
+public class MessageDataSource implements DataSource {
+
+	protected EmailID emailID;
+
+	public MessageDataSource(EmailID emailID) {
+		this.emailID = emailID;
+	}
+
+	public String getContentType() {
+		return "message/rfc822";
+	}
+
+	public InputStream getInputStream() throws IOException {
+		try {
+			return Config.getConfig().getArchiver().getMessageInputStream(emailID);
+		} catch (MessageStoreException mse) {
+			throw new IOException("failed to retrieve message {"+emailID+"}:"+mse.getMessage());
+		}
+	}
+
+	public String getName() {
+		return emailID.getUniqueID()+".eml";
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("archived messages are read only");
+	}
+}
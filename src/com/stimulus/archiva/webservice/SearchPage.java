@@ -0,0 +1,23 @@
+package com.stimulus.archiva.webservice;
+
+// a page of search results, with the cursor to fetch the next page (null after the last page)
+
+public class SearchPage {
+
+	protected int totalHits;
+	protected String cursor;
+	protected SearchResult[] results;
+
+	protected SearchPage(int totalHits, String cursor, SearchResult[] results) {
+		this.totalHits = totalHits;
+		this.cursor = cursor;
+		this.results = results;
+	}
+
+	public int getTotalHits() { return totalHits; }
+
+	public String getCursor() { return cursor; }
+
+	public SearchResult[] getResults() { return results; }
+
+}
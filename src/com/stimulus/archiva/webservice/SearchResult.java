@@ -12,25 +12,36 @@ import com.stimulus.archiva.exception.*;
 public class SearchResult {
 	
 	protected static final Log logger = LogFactory.getLog(SearchResult.class.getName());
-	protected Result result;
+	protected String emailId;
+	protected String volumeId;
+	protected String[] fieldValues;
+	protected String emailIdError;
+	protected String volumeIdError;
 	
+	// the values are read here, as the search (and the index readers of its results) is closed before the response is written
 	protected SearchResult(Result result) {
-		this.result = result;
-	}
-	
-	public String getEmailId() throws AxisFault { 
 		try {
-			return result.getEmailId().getUniqueID(); 
+			emailId = result.getEmailId().getUniqueID(); 
 		} catch (Exception e) {
-			throw new AxisFault("failed to retrieve email id:"+e.getMessage());
+			emailIdError = e.getMessage();
 		}
-	}
-	public String getVolumeId() throws AxisFault { 
 		try {
-			return result.getEmailId().getVolume().getID();
+			volumeId = result.getEmailId().getVolume().getID();
 		} catch (Exception e) {
-			throw new AxisFault("failed to retrieve volume id:"+e.getMessage());
+			volumeIdError = e.getMessage();
 		}
+		fieldValues = readFieldValues(result);
+	}
+	
+	public String getEmailId() throws AxisFault { 
+		if (emailIdError!=null)
+			throw new AxisFault("failed to retrieve email id:"+emailIdError);
+		return emailId;
+	}
+	public String getVolumeId() throws AxisFault { 
+		if (volumeIdError!=null)
+			throw new AxisFault("failed to retrieve volume id:"+volumeIdError);
+		return volumeId;
 	}
 	
 	public String[] getFields() throws AxisFault { 
@@ -48,6 +59,10 @@ public class SearchResult {
 	}
 	
 	public String[] getFieldValues() throws AxisFault {
+		return fieldValues;
+	}
+	
+	protected static String[] readFieldValues(Result result) {
 		ArrayList<String> emailFields = new ArrayList<String>();
 		for (EmailField ef : EmailFields.emailFields.values()) {
 			try {
@@ -10,6 +10,7 @@ import com.stimulus.util.*;
 import java.util.*;
 import com.stimulus.archiva.service.*;
 import java.io.*;
+import javax.activation.DataHandler;
 import org.apache.axis2.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,16 +41,20 @@ public class SimpleAPI {
 		principal = null;
 		
 	}
-	public static byte[] getMessageByID(String volumeId, String emailId) throws AxisFault {
-		if (principal!=null) 
+	// the message is streamed from the store as an (MTOM) attachment. it is not parsed.
+	public static DataHandler getMessageByID(String volumeId, String emailId) throws AxisFault {
+		if (principal==null) {
+			audit.warn("attempt to retrieve message via web service interface while not logged in {volumeId='"+volumeId+"',emailId='"+emailId+"'}");
 			throw new AxisFault("not logged in");
+		}
+		if (volumeId==null || emailId==null)
+			throw new AxisFault("failed to retrieve email: null volume or email id");
+		audit.info("retrieving message via web service interface {"+principal+",volumeId='"+volumeId+"',emailId='"+emailId+"'}");
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			Email email =  MessageService.getMessageByID(volumeId,emailId,false);
-			email.writeTo(baos);
-			return baos.toByteArray();
-		} catch (Exception ae) {
-			throw new AxisFault("failed to retrieve email:"+ae.getMessage());
+			Volume volume = Config.getConfig().getVolumes().getNewVolume(volumeId);
+			return new DataHandler(new MessageDataSource(EmailID.getEmailID(volume,emailId)));
+		} catch (Exception e) {
+			throw new AxisFault("failed to retrieve email:"+e.getMessage());
 		}
 	}
 	
@@ -78,43 +83,17 @@ public class SimpleAPI {
 		
 		audit.info("executing search via web service interface {"+principal+",query='"+luceneQuery+"'}");
 		ArrayList<SearchResult> searchResult = null;
+		StandardSearch search = null;
 		try {
-			StandardSearch search = new StandardSearch();
-			// we dont want to perform remote searches otherwise we can get into a cyclical loop
-			search.init();
-		    if (luceneQuery!=null) {
-		    	search.setSearchQuery(luceneQuery);
-		    }
-			if (sortField!=null && sortOrder!=null) {
-				search.setSortField(sortField);
-				search.setSortOrder(Search.SortOrder.valueOf(sortOrder.toUpperCase(Locale.ENGLISH)));
-			}
-			if (filterQuery!=null) {
-				search.setFilterQuery(filterQuery);
-			}
-			if (after!=null) {
-				search.setAfter(DateUtil.convertStringToDate(after));
-			}
-			if (before!=null) {
-				search.setBefore(DateUtil.convertStringToDate(before));
-			}
-			if (dateType!=null) {
-				search.setDateType(Search.DateType.valueOf(dateType.toUpperCase(Locale.ENGLISH)));
-			}
-			search.setMaxSearchResults(maxResults);
+			search = createSearch(luceneQuery,filterQuery,sortField,sortOrder,dateType,after,before,maxResults);
 			search.searchMessage();
-			searchResult = new ArrayList<SearchResult>();
-			List<Result> results = search.getResults();
-			int i = 0;
-			for (Result result : results) {
-				searchResult.add(new SearchResult(result));
-				i++;
-				if (i>Config.getConfig().getSearch().getMaxSearchResults())
-					break;
-			}
+			searchResult = getSearchResults(search,maxResults);
 		} catch (Exception e) {
 			logger.error("failed to search for message:"+e.getMessage());
 			throw new AxisFault("failed to search for message:"+e.getMessage());
+		} finally {
+			if (search!=null)
+				search.close();
 		}
 		int i = 0;
 		SearchResult[] out = new SearchResult[searchResult.size()];
@@ -126,5 +105,78 @@ public class SimpleAPI {
 		//return (SearchResult[])searchResult.toArray();
 	}
 	
+	/**
+	 * Search for messages a page at a time. Each page continues after the cursor of the previous
+	 * page, so deep result sets can be walked without the server holding them.
+	 * @param cursor The cursor of the previous page, or null for the first page
+	 * @param pageSize The number of results in the page
+	 */
+	
+	public static SearchPage searchMessagePage(String luceneQuery, String filterQuery, String sortField, String sortOrder, String dateType, String after, String before, String cursor, int pageSize) throws AxisFault  {
+		if (principal==null) {
+			audit.warn("attempt to search message via web service interface while not logged in {query='"+luceneQuery+"'}");
+			throw new AxisFault("not logged in");
+		}
+		audit.info("executing paged search via web service interface {"+principal+",query='"+luceneQuery+"'}");
+		StandardSearch search = null;
+		try {
+			search = createSearch(luceneQuery,filterQuery,sortField,sortOrder,dateType,after,before,pageSize);
+			search.setStartAfter(cursor);
+			search.searchMessage();
+			List<SearchResult> searchResults = getSearchResults(search,pageSize);
+			String nextCursor = null;
+			if (search.getResultSize()>searchResults.size() && searchResults.size()>0)
+				nextCursor = ((LuceneResult)search.getResults().get(searchResults.size()-1)).getCursor();
+			return new SearchPage(search.getTotalHits(),nextCursor,searchResults.toArray(new SearchResult[searchResults.size()]));
+		} catch (Exception e) {
+			logger.error("failed to search for message:"+e.getMessage());
+			throw new AxisFault("failed to search for message:"+e.getMessage());
+		} finally {
+			if (search!=null)
+				search.close();
+		}
+	}
+	
+	protected static StandardSearch createSearch(String luceneQuery, String filterQuery, String sortField, String sortOrder, String dateType, String after, String before, int maxResults) throws Exception {
+		StandardSearch search = new StandardSearch();
+		// we dont want to perform remote searches otherwise we can get into a cyclical loop
+		search.init();
+	    if (luceneQuery!=null) {
+	    	search.setSearchQuery(luceneQuery);
+	    }
+		if (sortField!=null && sortOrder!=null) {
+			search.setSortField(sortField);
+			search.setSortOrder(Search.SortOrder.valueOf(sortOrder.toUpperCase(Locale.ENGLISH)));
+		}
+		if (filterQuery!=null) {
+			search.setFilterQuery(filterQuery);
+		}
+		if (after!=null) {
+			search.setAfter(DateUtil.convertStringToDate(after));
+		}
+		if (before!=null) {
+			search.setBefore(DateUtil.convertStringToDate(before));
+		}
+		if (dateType!=null) {
+			search.setDateType(Search.DateType.valueOf(dateType.toUpperCase(Locale.ENGLISH)));
+		}
+		search.setMaxSearchResults(maxResults);
+		// a single window holds the results returned, and all their stored fields are read
+		search.setResultWindowSize(Math.min(maxResults,Config.getConfig().getSearch().getMaxSearchResults()));
+		search.setResultFetchSize(maxResults);
+		search.setDisplayedFieldsOnly(false);
+		return search;
+	}
+	
+	protected static ArrayList<SearchResult> getSearchResults(StandardSearch search, int maxResults) {
+		ArrayList<SearchResult> searchResult = new ArrayList<SearchResult>();
+		int max = Math.min(search.getResultSize(),Math.min(maxResults,Config.getConfig().getSearch().getMaxSearchResults()));
+		List<Result> results = search.getResults();
+		for (int i=0;i<max;i++) {
+			searchResult.add(new SearchResult(results.get(i)));
+		}
+		return searchResult;
+	}
+	
 	
 }
@@ -36,4 +36,8 @@ public class FormatUtil {
 		  return formatter.format(count);
 	  }
 	  
+	  public static String formatDuration(long seconds) {
+		  return String.format("%d:%02d:%02d",seconds/3600,(seconds/60)%60,seconds%60);
+	  }
+	  
 }
@@ -0,0 +1,125 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.util;
+
+import java.util.*;
+
+/*
+ * Least recently used cache, bounded by the total size of its entries. Each entry counts as one
+ * unless sizeOf is overridden. Entries larger than the capacity are not cached.
+ */
+
+public class LRUCache<K,V> {
+
+	protected LinkedHashMap<K,V> map = new LinkedHashMap<K,V>(16,0.75f,true);
+	protected long capacity;
+	protected long size = 0;
+	protected long hits = 0;
+	protected long misses = 0;
+	protected long evictions = 0;
+
+	public LRUCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	protected long sizeOf(V value) {
+		return 1;
+	}
+
+	// entries that are no longer valid are dropped when they are looked up
+	protected boolean isValid(V value) {
+		return true;
+	}
+
+	// called once an entry is evicted or removed
+	protected void released(K key, V value) {}
+
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value!=null && !isValid(value)) {
+			remove(key);
+			value = null;
+		}
+		if (value==null)
+			misses++;
+		else
+			hits++;
+		return value;
+	}
+
+	public synchronized boolean put(K key, V value) {
+		long valueSize = sizeOf(value);
+		if (valueSize>capacity)
+			return false;
+		remove(key);
+		map.put(key,value);
+		size += valueSize;
+		trim();
+		return true;
+	}
+
+	public synchronized V remove(K key) {
+		V value = map.remove(key);
+		if (value!=null) {
+			size -= sizeOf(value);
+			released(key,value);
+		}
+		return value;
+	}
+
+	public synchronized void clear() {
+		for (K key : new ArrayList<K>(map.keySet()))
+			remove(key);
+	}
+
+	protected void trim() {
+		Iterator<Map.Entry<K,V>> i = map.entrySet().iterator();
+		while (size>capacity && i.hasNext()) {
+			Map.Entry<K,V> entry = i.next();
+			i.remove();
+			size -= sizeOf(entry.getValue());
+			evictions++;
+			released(entry.getKey(),entry.getValue());
+		}
+	}
+
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		trim();
+	}
+
+	public synchronized long getCapacity() { return capacity; }
+
+	public synchronized long getSize() { return size; }
+
+	public synchronized int getCount() { return map.size(); }
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getMisses() { return misses; }
+
+	public synchronized long getEvictions() { return evictions; }
+
+	public synchronized double getHitRatio() {
+		long lookups = hits+misses;
+		return lookups==0 ? 0 : (double)hits/lookups;
+	}
+
+	public synchronized String getStatistics() {
+		return "entries='"+map.size()+"',size='"+size+"',capacity='"+capacity+"',hits='"+hits+"',misses='"+misses+
+			   "',hitRatio='"+String.format("%.2f",getHitRatio())+"',evictions='"+evictions+"'";
+	}
+}
@@ -9,7 +9,9 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
@@ -33,6 +35,9 @@ public class SimpleMessageListenerAdapter implements MessageHandlerFactory
 	 */
 	private static int DEFAULT_DATA_DEFERRED_SIZE = 1024*1024*5;
 
+	/** Size of the buffer used when copying the DATA stream. */
+	private static final int BUFFER_SIZE = 8192;
+
 	private Collection<SimpleMessageListener> listeners;
 	private int dataDeferredSize;
 
@@ -136,10 +141,29 @@ public class SimpleMessageListenerAdapter implements MessageHandlerFactory
 		/** */
 		public void data(InputStream data) throws TooMuchDataException, IOException
 		{
+			// group the recipients by listener, preserving the RCPT order
+			Map<SimpleMessageListener, List<String>> recipients = new LinkedHashMap<SimpleMessageListener, List<String>>();
+			for (Delivery delivery: this.deliveries)
+			{
+				List<String> listenerRecipients = recipients.get(delivery.getListener());
+				if (listenerRecipients == null)
+				{
+					listenerRecipients = new ArrayList<String>();
+					recipients.put(delivery.getListener(), listenerRecipients);
+				}
+				listenerRecipients.add(delivery.getRecipient());
+			}
+
 			if (this.deliveries.size() == 1)
 			{
 				Delivery delivery = this.deliveries.get(0);
-				delivery.getListener().deliver(this.from, delivery.getRecipient(), data);
+				this.deliver(delivery.getListener(), recipients.get(delivery.getListener()), data);
+			}
+			else if (recipients.size() == 1 && recipients.keySet().iterator().next() instanceof SimpleMultipleRecipientMessageListener)
+			{
+				// a single delivery reads the stream once, no need to buffer it
+				SimpleMessageListener listener = recipients.keySet().iterator().next();
+				this.deliver(listener, recipients.get(listener), data);
 			}
 			else
 			{
@@ -147,15 +171,27 @@ public class SimpleMessageListenerAdapter implements MessageHandlerFactory
 
 				try
 				{
-					int value;
-					while ((value = data.read()) >= 0)
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read;
+					while ((read = data.read(buffer)) >= 0)
 					{
-						dfos.write(value);
+						dfos.write(buffer, 0, read);
 					}
 
-					for (Delivery delivery: this.deliveries)
+					for (Map.Entry<SimpleMessageListener, List<String>> entry: recipients.entrySet())
 					{
-						delivery.getListener().deliver(this.from, delivery.getRecipient(), dfos.getInputStream());
+						SimpleMessageListener listener = entry.getKey();
+						if (listener instanceof SimpleMultipleRecipientMessageListener)
+						{
+							this.deliver(listener, entry.getValue(), dfos.getInputStream());
+						}
+						else
+						{
+							for (String recipient: entry.getValue())
+							{
+								listener.deliver(this.from, recipient, dfos.getInputStream());
+							}
+						}
 					}
 				}
 				finally
@@ -165,6 +201,16 @@ public class SimpleMessageListenerAdapter implements MessageHandlerFactory
 			}
 		}
 
+		/** */
+		private void deliver(SimpleMessageListener listener, List<String> recipients, InputStream data)
+			throws TooMuchDataException, IOException
+		{
+			if (listener instanceof SimpleMultipleRecipientMessageListener)
+				((SimpleMultipleRecipientMessageListener)listener).deliver(this.from, recipients, data);
+			else
+				listener.deliver(this.from, recipients.get(0), data);
+		}
+
 		/** */
 		public void done()
 		{
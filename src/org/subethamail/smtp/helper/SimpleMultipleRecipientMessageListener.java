@@ -0,0 +1,33 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * A SimpleMessageListener which would rather receive a message once with all
+ * of the recipients it accepted than once per recipient. Listeners that store
+ * messages (rather than forward them) can avoid processing the same data
+ * several times.
+ */
+public interface SimpleMultipleRecipientMessageListener extends SimpleMessageListener
+{
+	/**
+	 * When message data arrives, this method will be called once with every
+	 * recipient this listener accepted.
+	 *
+	 * @param from is the envelope sender in rfc822 form
+	 * @param recipients are the accepted recipients in rfc822 form, in the order
+	 * 			they were received
+	 * @param data will be the smtp data stream, stripped of any extra '.' chars.  The
+	 * 			data stream is only valid for the duration of this call.
+	 *
+	 * @throws TooMuchDataException if the listener can't handle that much data.
+	 *         An error will be reported to the client.
+	 * @throws IOException if there is an IO error reading the input data.
+	 */
+	public void deliver(String from, List<String> recipients, InputStream data)
+			throws TooMuchDataException, IOException;
+}
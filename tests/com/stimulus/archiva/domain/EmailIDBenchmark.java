@@ -0,0 +1,94 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.domain;
+
+import java.util.*;
+
+/*
+ * The throughput of unique ID generation with EmailID, against the single lock of LegacyEmailID,
+ * for each number of threads.
+ * Usage: EmailIDBenchmark [threads, comma separated] [seconds per round]
+ */
+
+public class EmailIDBenchmark {
+
+	protected static final int WARMUP_ROUNDS = 2;
+	protected static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		String[] threadCounts = (args.length>0 ? args[0] : "1,2,4,8,16,32").split(",");
+		long roundTime = (args.length>1 ? Long.parseLong(args[1]) : 5)*1000;
+		List<Email> messages = EmailIDTest.randomMessages(1000);
+		final Email[] messageArray = messages.toArray(new Email[messages.size()]);
+		Generation legacy = new Generation() {
+			public String generate(Email message) throws Exception {
+				return LegacyEmailID.generateUniqueID(message);
+			}
+		};
+		Generation threadLocal = new Generation() {
+			public String generate(Email message) {
+				return EmailID.generateUniqueID(message);
+			}
+		};
+		System.out.println("unique id generation {messages='"+messageArray.length+"',processors='"+Runtime.getRuntime().availableProcessors()+"'}");
+		for (String threadCount : threadCounts) {
+			int threads = Integer.parseInt(threadCount.trim());
+			for (int round=0;round<WARMUP_ROUNDS+ROUNDS;round++) {
+				double legacyRate = run(legacy,messageArray,threads,roundTime);
+				double rate = run(threadLocal,messageArray,threads,roundTime);
+				System.out.println((round<WARMUP_ROUNDS ? "warmup " : "round ")+(round+1)+" {threads='"+threads+"',synchronized='"+Math.round(legacyRate)+"/s',threadLocal='"+Math.round(rate)+"/s',speedup='"+String.format("%.1f",rate/legacyRate)+"'}");
+			}
+		}
+	}
+
+	// unique ids a second
+	protected static double run(final Generation generation, final Email[] messages, int threads, long time) throws InterruptedException {
+		final long end = System.currentTimeMillis()+time;
+		final long[] counts = new long[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t=0;t<threads;t++) {
+			final int thread = t;
+			workers[t] = new Thread() {
+				public void run() {
+					int i = thread;
+					long count = 0;
+					try {
+						while (System.currentTimeMillis()<end) {
+							generation.generate(messages[i++%messages.length]);
+							count++;
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+					counts[thread] = count;
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		return total/((System.nanoTime()-start)/1e9);
+	}
+
+	protected interface Generation {
+		String generate(Email message) throws Exception;
+	}
+}
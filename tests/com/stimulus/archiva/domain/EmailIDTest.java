@@ -0,0 +1,135 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.domain;
+
+import java.io.*;
+import java.util.*;
+import javax.mail.MessagingException;
+import junit.framework.TestCase;
+
+/*
+ * Checks that EmailID generates the same unique IDs as LegacyEmailID, for messages with non-ASCII
+ * headers, without the digested headers, and with the digested headers repeated.
+ */
+
+public class EmailIDTest extends TestCase {
+
+	protected static final long SEED = 42;
+	protected static final String[] HEADERS = { "From", "To", "CC", "Bcc", "Subject", "Date", "TO", "subject", "Message-ID", "X-Mailer" };
+
+	public void testNonAscii() throws Exception {
+		assertSameID(message("From: Jürgen Müller <jm@example.de>\r\n"+
+							 "To: Иван <ivan@example.ru>\r\n"+
+							 "Subject: =?UTF-8?B?w6nDqMOgIOKCrCDkuK3mlofvv70=?=\r\n"+
+							 "Date: Mon, 3 Mar 2008 10:15:00 +0100\r\n"));
+		assertSameID(message("From: 日本 <nihon@example.jp>\r\n"+
+							 "Subject: € � 😀\r\n"));
+	}
+
+	public void testMissingHeaders() throws Exception {
+		assertSameID(message(""));
+		assertSameID(message("Message-ID: <1@example.com>\r\nX-Mailer: test\r\n"));
+		assertSameID(message("From: a@example.com\r\n"));
+		assertSameID(message("Subject:\r\nTo: \r\n"));
+	}
+
+	public void testDuplicateHeaders() throws Exception {
+		assertSameID(message("To: a@example.com\r\nTo: a@example.com\r\nTO: a@example.com\r\n"));
+		assertSameID(message("Subject: b\r\nsubject: a\r\nSubject: a\r\nSUBJECT: c\r\nFrom: x\r\n"));
+		StringBuffer headers = new StringBuffer();
+		for (int i=0;i<100;i++)
+			headers.append(i%2==0 ? "To" : "Cc").append(": user").append(100-i%7).append("@example.com\r\n");
+		assertSameID(message(headers.toString()));
+	}
+
+	public void testRandomHeaders() throws Exception {
+		for (Email message : randomMessages(500))
+			assertSameID(message);
+	}
+
+	// each thread digests with its own state
+	public void testParallel() throws Exception {
+		final List<Email> messages = randomMessages(200);
+		final Map<Email,String> expected = new HashMap<Email,String>();
+		for (Email message : messages)
+			expected.put(message,LegacyEmailID.generateUniqueID(message));
+		final List<String> mismatches = Collections.synchronizedList(new ArrayList<String>());
+		Thread[] threads = new Thread[8];
+		for (int t=0;t<threads.length;t++) {
+			final int offset = t*messages.size()/threads.length;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i=0;i<messages.size();i++) {
+						Email message = messages.get((offset+i)%messages.size());
+						String id = EmailID.generateUniqueID(message);
+						if (!expected.get(message).equals(id))
+							mismatches.add(id);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(Collections.EMPTY_LIST,mismatches);
+	}
+
+	protected static void assertSameID(Email message) throws Exception {
+		String expected = LegacyEmailID.generateUniqueID(message);
+		assertEquals(expected,EmailID.generateUniqueID(message));
+		// the state of the thread is reused for the next message
+		assertEquals(expected,EmailID.generateUniqueID(message));
+	}
+
+	protected static Email message(String headers) throws Exception {
+		return new HeaderEmail(new ByteArrayInputStream((headers+"\r\nbody\r\n").getBytes("UTF-8")));
+	}
+
+	// messages of up to 40 headers, with values of ASCII, Latin, Cyrillic and CJK characters
+	public static List<Email> randomMessages(int count) throws Exception {
+		Random random = new Random(SEED);
+		List<Email> messages = new ArrayList<Email>(count);
+		for (int i=0;i<count;i++) {
+			StringBuffer headers = new StringBuffer();
+			int headerCount = random.nextInt(40);
+			for (int j=0;j<headerCount;j++) {
+				headers.append(HEADERS[random.nextInt(HEADERS.length)]).append(": ");
+				int length = random.nextInt(120);
+				for (int k=0;k<length;k++) {
+					switch (random.nextInt(12)) {
+						case 0: headers.append((char)(0xa0+random.nextInt(0x60))); break;
+						case 1: headers.append((char)(0x410+random.nextInt(0x40))); break;
+						case 2: headers.append((char)(0x4e00+random.nextInt(0x100))); break;
+						default: headers.append((char)(0x20+random.nextInt(0x5f)));
+					}
+				}
+				headers.append("\r\n");
+			}
+			messages.add(message(headers.toString()));
+		}
+		return messages;
+	}
+
+	// a message that is only parsed, as the application fields need the configuration
+	protected static class HeaderEmail extends Email {
+
+		private static final long serialVersionUID = 1L;
+
+		public HeaderEmail(InputStream is) throws MessagingException {
+			parse(is);
+		}
+	}
+}
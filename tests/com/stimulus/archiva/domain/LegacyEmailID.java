@@ -0,0 +1,69 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.domain;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import javax.mail.*;
+import javax.mail.internet.*;
+import com.stimulus.util.*;
+
+/*
+ * Unique IDs as EmailID generated them before each thread had its own digest: one lock for all
+ * threads, the headers sorted as strings and digested through a stream. EmailID must generate
+ * the same ID for every message, as the IDs of existing volumes depend on it.
+ */
+
+public class LegacyEmailID {
+
+	private static String hexits = "0123456789abcdef";
+
+	public static synchronized String generateUniqueID(MimeMessage raw) throws Exception {
+		Enumeration<Header> headers = raw.getAllHeaders();
+		LinkedList<String> orderedHeaders = new LinkedList<String>();
+		while (headers.hasMoreElements()) {
+			Header header = headers.nextElement();
+			if (Compare.equalsIgnoreCase(header.getName(), "Date") ||
+				Compare.equalsIgnoreCase(header.getName(), "CC") ||
+				Compare.equalsIgnoreCase(header.getName(), "BCC") ||
+				Compare.equalsIgnoreCase(header.getName(), "Subject") ||
+				Compare.equalsIgnoreCase(header.getName(), "To") ||
+				Compare.equalsIgnoreCase(header.getName(), "From"))
+					orderedHeaders.add(header.getName()+header.getValue());
+		}
+		Collections.sort(orderedHeaders);
+		StringBuffer allHeaders = new StringBuffer();
+		for (String header: orderedHeaders)
+			allHeaders.append(header);
+		MessageDigest sha = MessageDigest.getInstance("SHA-1");
+		byte[] bytes = allHeaders.toString().getBytes();
+		InputStream is = new ByteArrayInputStream(bytes);
+		DigestInputStream dis = new DigestInputStream(is,sha);
+		while (dis.read()!=-1);
+		dis.close();
+		return toHex(sha.digest());
+	}
+
+	private static String toHex(byte[] block) {
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < block.length; ++i) {
+			buf.append(hexits.charAt((block[i] >>> 4) & 0xf));
+			buf.append(hexits.charAt(block[i] & 0xf));
+		}
+		return buf + "";
+	}
+}
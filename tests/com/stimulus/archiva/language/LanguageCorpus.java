@@ -0,0 +1,130 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.language;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * The corpus used to check language identification. It holds the text of the translated
+ * application resources (src/properties), one file per language under corpus/. Samples are cut
+ * from it with a fixed seed, so every run checks the same samples.
+ */
+
+public class LanguageCorpus {
+
+	public static final String[] LANGUAGES = { "en", "de", "es", "fr", "it", "nl", "ru" };
+	protected static final long SEED = 42;
+
+	protected Map<String,String> texts = new LinkedHashMap<String,String>();
+
+	public LanguageCorpus() throws IOException {
+		for (String language : LANGUAGES)
+			texts.put(language,read("corpus/"+language+".txt"));
+	}
+
+	protected String read(String resource) throws IOException {
+		InputStream is = getClass().getResourceAsStream(resource);
+		if (is==null)
+			throw new FileNotFoundException("corpus file is missing {resource='"+resource+"'}");
+		Reader reader = new InputStreamReader(is,"UTF-8");
+		try {
+			StringBuffer text = new StringBuffer();
+			char[] buffer = new char[8192];
+			int read;
+			while ((read=reader.read(buffer))!=-1)
+				text.append(buffer,0,read);
+			return text.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	public String getText(String language) {
+		return texts.get(language);
+	}
+
+	/**
+	 * Cut samples of a language from the corpus
+	 * @param language The language
+	 * @param count The number of samples
+	 * @param minLength The shortest sample
+	 * @param maxLength The longest sample
+	 */
+
+	public List<String> getSamples(String language, int count, int minLength, int maxLength) {
+		Random random = new Random(SEED+language.hashCode());
+		String text = texts.get(language);
+		List<String> samples = new ArrayList<String>(count);
+		for (int i=0;i<count;i++) {
+			int length = Math.min(text.length(),minLength+random.nextInt(maxLength-minLength+1));
+			int start = random.nextInt(text.length()-length+1);
+			samples.add(text.substring(start,start+length));
+		}
+		return samples;
+	}
+
+	// samples of every language, text of two languages run together, letters at random and empty text
+	public List<String> getMixedSamples(int count) {
+		Random random = new Random(SEED);
+		List<String> samples = new ArrayList<String>();
+		for (String language : LANGUAGES)
+			samples.addAll(getSamples(language,count,1,3000));
+		for (int i=0;i<count;i++) {
+			String first = texts.get(LANGUAGES[random.nextInt(LANGUAGES.length)]);
+			String second = texts.get(LANGUAGES[random.nextInt(LANGUAGES.length)]);
+			int firstStart = random.nextInt(first.length()-800);
+			int secondStart = random.nextInt(second.length()-800);
+			samples.add(first.substring(firstStart,firstStart+random.nextInt(800))+" "+second.substring(secondStart,secondStart+random.nextInt(800)));
+			StringBuffer letters = new StringBuffer();
+			int length = random.nextInt(2000);
+			for (int j=0;j<length;j++)
+				letters.append(random.nextInt(5)==0 ? ' ' : (char)('a'+random.nextInt(26)));
+			samples.add(letters.toString());
+		}
+		samples.add("");
+		samples.add("   ");
+		samples.add("a");
+		return samples;
+	}
+
+	// the language profiles, loaded in the order LanguageIdentifier loads them
+	public static List<NGramProfile> loadProfiles(int length) throws IOException {
+		Properties mappings = new Properties();
+		InputStream is = LanguageIdentifier.class.getResourceAsStream("langmappings.properties");
+		try {
+			mappings.load(is);
+		} finally {
+			is.close();
+		}
+		List<NGramProfile> profiles = new ArrayList<NGramProfile>();
+		Enumeration languages = mappings.keys();
+		while (languages.hasMoreElements()) {
+			String language = (String)languages.nextElement();
+			InputStream profileStream = LanguageIdentifier.class.getClassLoader().getResourceAsStream("com/stimulus/archiva/language/"+language+"."+NGramProfile.FILE_EXTENSION);
+			if (profileStream==null)
+				continue;
+			try {
+				NGramProfile profile = new NGramProfile(language,length,length);
+				profile.load(profileStream);
+				profiles.add(profile);
+			} finally {
+				profileStream.close();
+			}
+		}
+		return profiles;
+	}
+}
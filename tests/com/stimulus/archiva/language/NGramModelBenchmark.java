@@ -0,0 +1,95 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.language;
+
+import java.util.*;
+
+/*
+ * The throughput of language identification with NGramModel, against scoring with the
+ * NGramProfiles. Each identification is of a sample as long as LanguageIdentifier analyzes.
+ * Usage: NGramModelBenchmark [threads] [seconds per round]
+ */
+
+public class NGramModelBenchmark {
+
+	protected static final int ANALYZE_LENGTH = 1500;
+	protected static final int NGRAM_LENGTH = 3;
+	protected static final int WARMUP_ROUNDS = 2;
+	protected static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length>0 ? Integer.parseInt(args[0]) : 1;
+		long roundTime = (args.length>1 ? Long.parseLong(args[1]) : 5)*1000;
+		List<NGramProfile> profiles = LanguageCorpus.loadProfiles(NGRAM_LENGTH);
+		final NGramModel model = new NGramModel(profiles,NGRAM_LENGTH);
+		final ProfileScorer scorer = new ProfileScorer(profiles,NGRAM_LENGTH);
+		LanguageCorpus corpus = new LanguageCorpus();
+		List<String> samples = new ArrayList<String>();
+		for (String language : LanguageCorpus.LANGUAGES)
+			samples.addAll(corpus.getSamples(language,100,ANALYZE_LENGTH,ANALYZE_LENGTH));
+		final String[] sampleArray = samples.toArray(new String[samples.size()]);
+		Identification profileScoring = new Identification() {
+			public String identify(String sample) {
+				return scorer.identify(sample,ANALYZE_LENGTH);
+			}
+		};
+		Identification modelScoring = new Identification() {
+			public String identify(String sample) {
+				return model.identify(sample,sample.length());
+			}
+		};
+		System.out.println("language identification {samples='"+sampleArray.length+"',sampleLength='"+ANALYZE_LENGTH+"',threads='"+threads+"',languages='"+profiles.size()+"',ngrams='"+model.size()+"'}");
+		for (int round=0;round<WARMUP_ROUNDS+ROUNDS;round++) {
+			double profileRate = run(profileScoring,sampleArray,threads,roundTime);
+			double modelRate = run(modelScoring,sampleArray,threads,roundTime);
+			System.out.println((round<WARMUP_ROUNDS ? "warmup " : "round ")+(round+1)+" {profiles='"+Math.round(profileRate)+"/s',model='"+Math.round(modelRate)+"/s',speedup='"+String.format("%.1f",modelRate/profileRate)+"'}");
+		}
+	}
+
+	// identifications a second
+	protected static double run(final Identification identification, final String[] samples, int threads, long time) throws InterruptedException {
+		final long end = System.currentTimeMillis()+time;
+		final long[] counts = new long[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t=0;t<threads;t++) {
+			final int thread = t;
+			workers[t] = new Thread() {
+				public void run() {
+					int i = thread;
+					long count = 0;
+					while (System.currentTimeMillis()<end) {
+						identification.identify(samples[i++%samples.length]);
+						count++;
+					}
+					counts[thread] = count;
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		return total/((System.nanoTime()-start)/1e9);
+	}
+
+	protected interface Identification {
+		String identify(String sample);
+	}
+}
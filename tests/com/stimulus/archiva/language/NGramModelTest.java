@@ -0,0 +1,138 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.language;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+/*
+ * Checks that NGramModel identifies the same language as scoring with the NGramProfiles does, for
+ * every sample of the corpus, and that it identifies the languages of the corpus.
+ */
+
+public class NGramModelTest extends TestCase {
+
+	protected static final int ANALYZE_LENGTH = 1500;
+	protected static final int NGRAM_LENGTH = 3;
+	protected static final int SAMPLES = 300;
+
+	protected static LanguageCorpus corpus;
+	protected static NGramModel model;
+	protected static ProfileScorer scorer;
+	protected static List<String> samples;
+
+	protected void setUp() throws IOException {
+		synchronized(NGramModelTest.class) {
+			if (corpus==null) {
+				List<NGramProfile> profiles = LanguageCorpus.loadProfiles(NGRAM_LENGTH);
+				model = new NGramModel(profiles,NGRAM_LENGTH);
+				scorer = new ProfileScorer(profiles,NGRAM_LENGTH);
+				corpus = new LanguageCorpus();
+				samples = corpus.getMixedSamples(SAMPLES);
+			}
+		}
+	}
+
+	public void testSameLanguageAsProfiles() {
+		for (String sample : samples) {
+			String expected = scorer.identify(sample,ANALYZE_LENGTH);
+			int length = Math.min(sample.length(),ANALYZE_LENGTH);
+			assertEquals("sample '"+abbreviate(sample)+"'",expected,model.identify(sample,length));
+			assertEquals("sample '"+abbreviate(sample)+"'",expected,model.identify(sample.toCharArray(),0,length));
+		}
+	}
+
+	public void testLanguageIdentifier() throws IOException {
+		LanguageIdentifier identifier = new LanguageIdentifier();
+		for (String sample : samples) {
+			String expected = scorer.identify(sample,ANALYZE_LENGTH);
+			assertEquals(expected,identifier.identify(sample));
+			assertEquals(expected,identifier.identify(new StringBuffer(sample)));
+			// short samples are not identified from a reader
+			assertEquals(sample.length()<300 ? null : expected,identifier.identify(new StringReader(sample)));
+		}
+	}
+
+	public void testCorpusLanguages() {
+		for (String language : LanguageCorpus.LANGUAGES) {
+			int identified = 0;
+			List<String> languageSamples = corpus.getSamples(language,SAMPLES,300,ANALYZE_LENGTH);
+			for (String sample : languageSamples) {
+				if (language.equals(model.identify(sample,Math.min(sample.length(),ANALYZE_LENGTH))))
+					identified++;
+			}
+			assertTrue("too few samples identified as "+language+" {identified='"+identified+"'}",identified>=languageSamples.size()*9/10);
+		}
+	}
+
+	// with identical profiles every score is tied, and the first profile is chosen
+	public void testTies() throws IOException {
+		List<NGramProfile> profiles = new ArrayList<NGramProfile>();
+		for (String name : new String[] { "first", "second" }) {
+			NGramProfile profile = new NGramProfile(name,NGRAM_LENGTH,NGRAM_LENGTH);
+			InputStream is = LanguageIdentifier.class.getResourceAsStream("en."+NGramProfile.FILE_EXTENSION);
+			try {
+				profile.load(is);
+			} finally {
+				is.close();
+			}
+			profiles.add(profile);
+		}
+		NGramModel tiedModel = new NGramModel(profiles,NGRAM_LENGTH);
+		ProfileScorer tiedScorer = new ProfileScorer(profiles,NGRAM_LENGTH);
+		for (String sample : corpus.getSamples("en",20,300,ANALYZE_LENGTH)) {
+			assertEquals("first",tiedScorer.identify(sample,ANALYZE_LENGTH));
+			assertEquals("first",tiedModel.identify(sample,Math.min(sample.length(),ANALYZE_LENGTH)));
+		}
+	}
+
+	public void testNothingToIdentify() {
+		assertNull(model.identify("",0));
+		assertNull(model.identify(" 123, 456. ",11));
+	}
+
+	// each thread counts its samples in its own arrays
+	public void testParallel() throws InterruptedException {
+		final Map<String,String> expected = new HashMap<String,String>();
+		for (String sample : samples)
+			expected.put(sample,scorer.identify(sample,ANALYZE_LENGTH));
+		final List<String> mismatches = Collections.synchronizedList(new ArrayList<String>());
+		Thread[] threads = new Thread[8];
+		for (int t=0;t<threads.length;t++) {
+			final int offset = t*samples.size()/threads.length;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i=0;i<samples.size();i++) {
+						String sample = samples.get((offset+i)%samples.size());
+						String lang = model.identify(sample,Math.min(sample.length(),ANALYZE_LENGTH));
+						String expectedLang = expected.get(sample);
+						if (expectedLang==null ? lang!=null : !expectedLang.equals(lang))
+							mismatches.add(abbreviate(sample));
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(Collections.EMPTY_LIST,mismatches);
+	}
+
+	protected static String abbreviate(String sample) {
+		return sample.length()>40 ? sample.substring(0,40)+"..." : sample;
+	}
+}
@@ -0,0 +1,81 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.language;
+
+import java.util.*;
+import com.stimulus.archiva.language.NGramProfile.NGramEntry;
+
+/*
+ * Language identification as LanguageIdentifier did it before NGramModel: the sample is analyzed
+ * into an NGramProfile, and its sorted ngrams are scored through an index of the ngram entries
+ * of the language profiles. NGramModel must choose the same language for every sample.
+ */
+
+public class ProfileScorer {
+
+	protected HashMap<CharSequence,NGramEntry[]> ngramsIdx = new HashMap<CharSequence,NGramEntry[]>();
+	protected int length;
+
+	public ProfileScorer(List<NGramProfile> profiles, int length) {
+		this.length = length;
+		HashMap<NGramEntry,List<NGramEntry>> registered = new HashMap<NGramEntry,List<NGramEntry>>();
+		for (NGramProfile profile : profiles) {
+			List ngrams = profile.getSorted();
+			for (int i=0;i<ngrams.size();i++) {
+				NGramEntry entry = (NGramEntry)ngrams.get(i);
+				List<NGramEntry> entries = registered.get(entry);
+				if (entries==null) {
+					entries = new ArrayList<NGramEntry>();
+					registered.put(entry,entries);
+				}
+				entries.add(entry);
+				entry.setProfile(profile);
+			}
+		}
+		for (Map.Entry<NGramEntry,List<NGramEntry>> entries : registered.entrySet())
+			ngramsIdx.put(entries.getKey().getSeq(),entries.getValue().toArray(new NGramEntry[entries.getValue().size()]));
+	}
+
+	// the profile is created for each sample, so that samples may be scored in parallel
+	public String identify(CharSequence content, int analyzeLength) {
+		StringBuffer text = new StringBuffer(content);
+		if (analyzeLength>0 && text.length()>analyzeLength)
+			text.setLength(analyzeLength);
+		NGramProfile suspect = new NGramProfile("suspect",length,length);
+		suspect.analyze(text);
+		float topscore = Float.MIN_VALUE;
+		String lang = null;
+		HashMap<NGramProfile,Float> scores = new HashMap<NGramProfile,Float>();
+		for (Object o : suspect.getSorted()) {
+			NGramEntry searched = (NGramEntry)o;
+			NGramEntry[] ngrams = ngramsIdx.get(searched.getSeq());
+			if (ngrams==null)
+				continue;
+			for (int j=0;j<ngrams.length;j++) {
+				NGramProfile profile = ngrams[j].getProfile();
+				Float pScore = scores.get(profile);
+				float plScore = pScore==null ? 0 : pScore.floatValue();
+				plScore += ngrams[j].getFrequency() + searched.getFrequency();
+				scores.put(profile,new Float(plScore));
+				if (plScore>topscore) {
+					topscore = plScore;
+					lang = profile.getName();
+				}
+			}
+		}
+		return lang;
+	}
+}
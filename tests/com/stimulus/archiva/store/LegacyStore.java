@@ -0,0 +1,70 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.security.spec.*;
+import java.util.zip.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/*
+ * Store files as MessageStore wrote them before MessageContainer: no header, GZIP compressed and
+ * encrypted with PBEWithMD5AndTripleDES through CipherOutputStream. Also creates a MessageStore
+ * with the keys that init() derives from the pass phrase, without the rest of the configuration.
+ */
+
+public class LegacyStore {
+
+	public static final String ALGORITHM = "PBEWithMD5AndTripleDES";
+	public static final byte[] SALT = { 0x1f, 0x3a, 0x55, 0x07, (byte)0xc2, 0x6e, (byte)0x91, 0x48 };
+	protected static final int ITERATION_COUNT = 17;
+
+	protected SecretKey key;
+	protected PBEParameterSpec paramSpec;
+
+	public LegacyStore(String passPhrase) throws Exception {
+		KeySpec keySpec = new PBEKeySpec(passPhrase.toCharArray(),SALT,ITERATION_COUNT);
+		key = SecretKeyFactory.getInstance(ALGORITHM).generateSecret(keySpec);
+		paramSpec = new PBEParameterSpec(SALT,ITERATION_COUNT);
+	}
+
+	public OutputStream getOutputStream(File file, boolean compress) throws Exception {
+		Cipher ecipher = Cipher.getInstance(key.getAlgorithm());
+		ecipher.init(Cipher.ENCRYPT_MODE,key,paramSpec);
+		OutputStream os = new CipherOutputStream(new BufferedOutputStream(new FileOutputStream(file)),ecipher);
+		if (compress)
+			os = new GZIPOutputStream(os);
+		return os;
+	}
+
+	public InputStream getInputStream(File file, boolean decompress) throws Exception {
+		Cipher dcipher = Cipher.getInstance(key.getAlgorithm());
+		dcipher.init(Cipher.DECRYPT_MODE,key,paramSpec);
+		InputStream is = new CipherInputStream(new BufferedInputStream(new FileInputStream(file)),dcipher);
+		if (decompress)
+			is = new GZIPInputStream(is);
+		return is;
+	}
+
+	public MessageStore createMessageStore(String passPhrase) throws Exception {
+		MessageStore store = new MessageStore();
+		store.key = key;
+		store.paramSpec = paramSpec;
+		store.container = new MessageContainer(MessageContainer.deriveKey(passPhrase,SALT));
+		return store;
+	}
+}
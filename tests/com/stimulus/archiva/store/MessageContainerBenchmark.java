@@ -0,0 +1,112 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+
+/*
+ * The throughput of writing and reading store files in a MessageContainer (AES, 64k blocks straight
+ * to the channel) against legacy store files (PBEWithMD5AndTripleDES through cipher streams), both
+ * GZIP compressed, for messages of a given size.
+ * Usage: MessageContainerBenchmark [message size in kb] [seconds per round]
+ */
+
+public class MessageContainerBenchmark {
+
+	protected static final int WARMUP_ROUNDS = 2;
+	protected static final int ROUNDS = 3;
+	protected static final String PASS_PHRASE = "changeme";
+
+	public static void main(String[] args) throws Exception {
+		int size = (args.length>0 ? Integer.parseInt(args[0]) : 256)*1024;
+		long roundTime = (args.length>1 ? Long.parseLong(args[1]) : 5)*1000;
+		final byte[] content = MessageContainerTest.content(size);
+		final LegacyStore legacy = new LegacyStore(PASS_PHRASE);
+		final MessageStore store = legacy.createMessageStore(PASS_PHRASE);
+		final File file = File.createTempFile("containerbenchmark",".mrc");
+		final byte[] buffer = new byte[8192];
+		try {
+			Operation legacyWrite = new Operation() {
+				public void run() throws Exception {
+					OutputStream os = legacy.getOutputStream(file,true);
+					os.write(content);
+					os.close();
+				}
+			};
+			Operation legacyRead = new Operation() {
+				public void run() throws Exception {
+					drain(legacy.getInputStream(file,true),buffer);
+				}
+			};
+			Operation containerWrite = new Operation() {
+				public void run() throws Exception {
+					OutputStream os = store.getRawMessageOutputStream(file,CompressionCodec.GZIP,CompressionCodec.GZIP.getDefaultLevel());
+					os.write(content);
+					os.close();
+				}
+			};
+			Operation containerRead = new Operation() {
+				public void run() throws Exception {
+					drain(store.getRawMessageInputStream(file,true,true),buffer);
+				}
+			};
+			System.out.println("store file encryption {size='"+size+"',codec='gzip'}");
+			for (int round=0;round<WARMUP_ROUNDS+ROUNDS;round++) {
+				legacyWrite.run();
+				double legacyReadRate = rate(legacyRead,size,roundTime);
+				double legacyWriteRate = rate(legacyWrite,size,roundTime);
+				containerWrite.run();
+				double containerReadRate = rate(containerRead,size,roundTime);
+				double containerWriteRate = rate(containerWrite,size,roundTime);
+				System.out.println((round<WARMUP_ROUNDS ? "warmup " : "round ")+(round+1)+
+						" {legacyWrite='"+format(legacyWriteRate)+"',containerWrite='"+format(containerWriteRate)+
+						"',legacyRead='"+format(legacyReadRate)+"',containerRead='"+format(containerReadRate)+
+						"',writeSpeedup='"+String.format("%.1f",containerWriteRate/legacyWriteRate)+
+						"',readSpeedup='"+String.format("%.1f",containerReadRate/legacyReadRate)+"'}");
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	// plain content bytes a second
+	protected static double rate(Operation operation, int size, long time) throws Exception {
+		long end = System.currentTimeMillis()+time;
+		long start = System.nanoTime();
+		long count = 0;
+		while (System.currentTimeMillis()<end) {
+			operation.run();
+			count++;
+		}
+		return count*(double)size/((System.nanoTime()-start)/1e9);
+	}
+
+	protected static void drain(InputStream is, byte[] buffer) throws IOException {
+		try {
+			while (is.read(buffer)!=-1);
+		} finally {
+			is.close();
+		}
+	}
+
+	protected static String format(double rate) {
+		return String.format("%.1fMB/s",rate/(1024*1024));
+	}
+
+	protected interface Operation {
+		void run() throws Exception;
+	}
+}
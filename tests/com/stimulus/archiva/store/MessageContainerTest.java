@@ -0,0 +1,220 @@
+/* Copyright (C) 2005-2007 Jamie Angus Band
+ * MailArchiva Open Source Edition Copyright (c) 2005-2007 Jamie Angus Band
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version
+ * 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see http://www.gnu.org/licenses or write to the Free Software Foundation,Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package com.stimulus.archiva.store;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+/*
+ * Checks that store files written in a MessageContainer read back as written, that legacy store
+ * files are still read through the same call, and that truncated files and a wrong pass phrase
+ * are not read as content.
+ */
+
+public class MessageContainerTest extends TestCase {
+
+	protected static final String PASS_PHRASE = "changeme";
+	protected static final int BLOCK = 65536;
+	protected static final int[] SIZES = { 0, 1, 15, 16, 17, BLOCK-1, BLOCK, BLOCK+1, 3*BLOCK+100 };
+
+	protected LegacyStore legacy;
+	protected MessageStore store;
+	protected File dir;
+
+	protected void setUp() throws Exception {
+		legacy = new LegacyStore(PASS_PHRASE);
+		store = legacy.createMessageStore(PASS_PHRASE);
+		dir = File.createTempFile("containertest","");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	protected void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	public void testRoundTrip() throws Exception {
+		for (CompressionCodec codec : CompressionCodec.getCodecs()) {
+			for (int size : SIZES) {
+				byte[] content = content(size);
+				File file = writeContainer(content,store,codec);
+				assertTrue(MessageContainer.isContainer(file));
+				assertEquals(codec+" "+size,content,read(store,file));
+				FileInputStream fis = new FileInputStream(file);
+				try {
+					MessageContainer.Header header = MessageContainer.readHeader(fis.getChannel());
+					assertEquals(size,header.getOriginalSize());
+					assertEquals(codec.getId(),header.getCodec().getId());
+				} finally {
+					fis.close();
+				}
+			}
+		}
+	}
+
+	public void testEmpty() throws Exception {
+		assertEquals(new byte[0],read(store,writeContainer(new byte[0],store,CompressionCodec.STORE)));
+		assertEquals(new byte[0],read(store,writeContainer(new byte[0],store,CompressionCodec.GZIP)));
+		assertEquals(new byte[0],read(store,writeLegacy(new byte[0])));
+	}
+
+	// the content fills the cipher buffer exactly, so the padding is encrypted in a block of its own
+	public void testOneBlock() throws Exception {
+		byte[] content = content(BLOCK);
+		File file = writeContainer(content,store,CompressionCodec.STORE);
+		assertEquals(MessageContainer.HEADER_SIZE+BLOCK+16,file.length());
+		assertEquals(content,read(store,file));
+		assertEquals(content,read(store,writeLegacy(content)));
+	}
+
+	public void testLegacyRead() throws Exception {
+		for (int size : SIZES) {
+			byte[] content = content(size);
+			File file = writeLegacy(content);
+			assertFalse(MessageContainer.isContainer(file));
+			assertEquals("legacy "+size,content,read(store,file));
+		}
+	}
+
+	public void testTruncated() throws Exception {
+		byte[] content = content(3*BLOCK+100);
+		for (CompressionCodec codec : CompressionCodec.getCodecs()) {
+			File file = writeContainer(content,store,codec);
+			long length = file.length();
+			long[] truncations = { length-1, length-16, length-17, MessageContainer.HEADER_SIZE+BLOCK, MessageContainer.HEADER_SIZE+5, MessageContainer.HEADER_SIZE-1, 3 };
+			for (long truncation : truncations) {
+				if (truncation>=length)
+					continue;
+				byte[] truncated = truncate(file,truncation);
+				assertNotRead(codec+" truncated to "+truncation,content,truncated);
+			}
+		}
+		File file = writeLegacy(content);
+		assertNotRead("legacy truncated",content,truncate(file,file.length()-1));
+	}
+
+	public void testWrongPassPhrase() throws Exception {
+		MessageStore other = new LegacyStore("wrong").createMessageStore("wrong");
+		for (CompressionCodec codec : CompressionCodec.getCodecs()) {
+			for (int size : new int[] { 1, BLOCK, 3*BLOCK+100 }) {
+				byte[] content = content(size);
+				File file = writeContainer(content,store,codec);
+				assertNotRead(codec+" "+size,content,readOrNull(other,file));
+				// a wrong key is found at the end of the file. gzip content never reads through.
+				if (codec==CompressionCodec.GZIP)
+					assertNull(readOrNull(other,file));
+			}
+		}
+		byte[] content = content(BLOCK);
+		File file = writeLegacy(content);
+		assertNotRead("legacy",content,readOrNull(other,file));
+	}
+
+	protected void assertNotRead(String message, byte[] content, byte[] read) {
+		if (read!=null && Arrays.equals(content,read))
+			fail(message+": content was read");
+	}
+
+	// the content of the truncated file, or null if reading it failed
+	protected byte[] truncate(File file, long length) throws Exception {
+		File truncated = new File(dir,"truncated");
+		RandomAccessFile raf = new RandomAccessFile(truncated,"rw");
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			byte[] bytes = new byte[(int)length];
+			new DataInputStream(fis).readFully(bytes);
+			raf.setLength(0);
+			raf.write(bytes);
+		} finally {
+			fis.close();
+			raf.close();
+		}
+		return readOrNull(store,truncated);
+	}
+
+	protected byte[] readOrNull(MessageStore store, File file) throws Exception {
+		try {
+			return read(store,file);
+		} catch (IOException io) {
+			return null;
+		}
+	}
+
+	protected byte[] read(MessageStore store, File file) throws Exception {
+		InputStream is = store.getRawMessageInputStream(file,true,true);
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read=is.read(buffer))!=-1)
+				bos.write(buffer,0,read);
+			return bos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	protected File writeContainer(byte[] content, MessageStore store, CompressionCodec codec) throws Exception {
+		File file = File.createTempFile("container",".mrc",dir);
+		OutputStream os = store.getRawMessageOutputStream(file,codec,codec.getDefaultLevel());
+		try {
+			os.write(content);
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+
+	protected File writeLegacy(byte[] content) throws Exception {
+		File file = File.createTempFile("legacy",".mrc",dir);
+		OutputStream os = legacy.getOutputStream(file,true);
+		try {
+			os.write(content);
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+
+	protected static void assertEquals(String message, byte[] expected, byte[] actual) {
+		assertNotNull(message,actual);
+		assertEquals(message+" length",expected.length,actual.length);
+		assertTrue(message,Arrays.equals(expected,actual));
+	}
+
+	protected static void assertEquals(byte[] expected, byte[] actual) {
+		assertEquals("content",expected,actual);
+	}
+
+	// message-like text, so that it compresses as messages do
+	public static byte[] content(int size) {
+		Random random = new Random(size);
+		String[] words = { "the", "message", "archive", "Subject:", "Re:", "volume", "search", "index", "\r\n", "attachment", "=?UTF-8?B?", "mailarchiva" };
+		byte[] content = new byte[size];
+		int i = 0;
+		while (i<size) {
+			String word = random.nextInt(20)==0 ? Long.toHexString(random.nextLong()) : words[random.nextInt(words.length)];
+			for (int j=0;j<word.length() && i<size;j++)
+				content[i++] = (byte)word.charAt(j);
+			if (i<size)
+				content[i++] = ' ';
+		}
+		return content;
+	}
+}
@@ -351,11 +351,19 @@ function lookup(index) {
                 		<html:text name="volumes" indexed="true" readonly="true" size="15" property="path" />&nbsp; 
                		 </c:if>
                	</td>
-               <td align="left" nowrap><html:text name="volumes" indexed="true" size="6" property="maxSize"/>&nbsp;</td>
+               <td align="left" nowrap><html:text name="volumes" indexed="true" size="6" property="maxSize"/>&nbsp;
+               		<br><bean:message key="config.volume_compression"/>&nbsp;
+               		<html:select name="volumes" indexed="true" property="compression">
+               			<html:options name="volumes" property="compressions"/>
+               		</html:select>
+               </td>
                <td align="left" nowrap>
                		<c:if test="${volumes.freeArchiveSpace!=''}">
                 		<c:out value="${volumes.freeArchiveSpace}"/>&nbsp;
                 	</c:if>
+                	<c:if test="${volumes.attachmentSavedSpace!=''}">
+                		<br><bean:message key="config.volume_attachment_saved"/>&nbsp;<c:out value="${volumes.attachmentSavedSpace}"/>
+                	</c:if>
                	</td>
           	    <td align="left" nowrap><c:out value="${volumes.totalMessageCount}"/>&nbsp;</td>
                	<td align="left" nowrap>
@@ -374,6 +382,19 @@ function lookup(index) {
                
           	   <td align="left" nowrap><c:if test="${volumes.statusID==0 || volumes.statusID==1}">
                 <input type="submit" onClick="return indexVolume()" name="submit.indexvolume.${volumeIndex}" value="<bean:message key="config.volume_re_index"/>"> 
+                <input type="submit" name="submit.migrateattachments.${volumeIndex}" value="<bean:message key="config.volume_migrate_attachments"/>">
+                <input type="submit" name="submit.recalculatespace.${volumeIndex}" value="<bean:message key="config.volume_recalculate_space"/>">
+                </c:if>
+                <c:if test="${volumes.statusID==0}">
+                <input type="submit" name="submit.upgradestore.${volumeIndex}" value="<bean:message key="config.volume_upgrade_store"/>">
+                <input type="submit" name="submit.packstore.${volumeIndex}" value="<bean:message key="config.volume_pack_store"/>">
+                </c:if>
+                <c:if test="${volumes.rebuildProgress!=''}">
+                	<br><bean:message key="config.volume_rebuild_progress"/>&nbsp;<c:out value="${volumes.rebuildProgress}"/>
+                	<c:if test="${volumes.rebuildThroughput!=''}">
+                		<br><bean:message key="config.volume_rebuild_throughput"/>&nbsp;<c:out value="${volumes.rebuildThroughput}"/>
+                	</c:if>
+                	<br>
                 </c:if>
                   <c:if test="${volumes.statusID==0}">
                 	 	<input type="submit" name="submit.unmountvolume.${volumeIndex}" value="<bean:message key="config.volume_unmount"/>">
@@ -0,0 +1,95 @@
+<!-- MailArchiva Email Archiving Software
+	 Copyright Jamie Band 2005
+-->
+<%@page pageEncoding="UTF-8" contentType="text/html; charset=UTF-8"%>
+<%@ taglib prefix="c" uri="/WEB-INF/tld/c.tld" %>
+<%@ taglib prefix="fmt" uri="/WEB-INF/tld/fmt.tld" %>
+<%@ taglib prefix="fn" uri="/WEB-INF/tld/fn.tld" %>
+<%@ taglib uri="/WEB-INF/tld/struts-html.tld" prefix="html" %>
+<%@ taglib uri="/WEB-INF/tld/struts-logic.tld" prefix="logic" %>
+<%@ taglib uri="/WEB-INF/tld/struts-bean.tld" prefix="bean" %>
+<html>
+<head>
+<title><bean:message key="export.title"/></title>
+<meta http-equiv="Content-Type" content="text/html; charset=utf-8">
+<META HTTP-EQUIV="Pragma" CONTENT="no-cache">
+<META HTTP-EQUIV="Expires" CONTENT="-1">
+<META HTTP-EQUIV="Cache-Control" CONTENT="no-cache">
+
+<link href="common/mailarchiva.css" rel="stylesheet" type="text/css">
+<script language="javascript" src="common/Ajax.js"></script>
+<script language="javascript">
+
+function uncache(url,form){
+    var d = new Date();
+    var time = d.getTime();
+    url += '?time='+time;
+    retrieveURL(url,form);
+}
+
+function reloadstatus() {
+	uncache("exportstatus.do",null);
+}
+
+</script>
+</head>
+
+<body topmargin="0" leftmargin="0" onload="setInterval('reloadstatus()', 1000);">
+
+<table class="pageheading" width="100%" border="0" cellpadding="0" cellspacing="0" >
+  <tr>
+    <td width="50%" height="20"><strong><bean:message key="export.status"/></strong></td>
+    <td width="50%" align="left">&nbsp;</td>
+  </tr>
+</table>
+<table class="pagetext" width="100%" border="0" cellpadding="0" cellspacing="0" >
+  <tr>
+    <td width="100%" colspan="3">&nbsp;</td>
+  </tr>
+  <tr>
+    <td width="5%">&nbsp;</td>
+    <td width="90%" align="left"><span id="status">
+	<c:choose>
+		<c:when test="${searchBean.exportJob==null}">
+			<bean:message key="export.none"/>
+		</c:when>
+		<c:otherwise>
+			<c:if test="${searchBean.exportJob.running}"><bean:message key="export.running"/><br><br></c:if>
+			<bean:message key="export.progress"/> <c:out value="${searchBean.exportJob.exported}"/> <bean:message key="export.of"/> <c:out value="${searchBean.exportJob.total}"/>
+			(<c:out value="${searchBean.exportJob.percentage}"/>%)<br>
+			<c:if test="${searchBean.exportJob.failed>0}"><bean:message key="export.failed"/> <c:out value="${searchBean.exportJob.failed}"/><br></c:if>
+			<br>
+			<c:choose>
+				<c:when test="${searchBean.exportJob.running}">
+					<a href="exportcancel.do"><bean:message key="export.cancel"/></a>
+				</c:when>
+				<c:when test="${searchBean.exportJob.completed}">
+					<bean:message key="export.completed"/>&nbsp;<a href="export.do"><bean:message key="export.download"/> <c:out value="${searchBean.exportJob.fileName}"/></a>
+				</c:when>
+				<c:when test="${searchBean.exportJob.state=='CANCELLED'}">
+					<bean:message key="export.cancelled"/>
+				</c:when>
+				<c:otherwise>
+					<bean:message key="export.error"/> <c:out value="${searchBean.exportJob.error}"/>
+				</c:otherwise>
+			</c:choose>
+		</c:otherwise>
+	</c:choose>
+	</span></td>
+    <td width="5%">&nbsp;</td>
+  </tr>
+  <tr>
+    <td width="100%" colspan="3">&nbsp;</td>
+  </tr>
+</table>
+<table class="pageend" width="100%" border="0" cellpadding="3" cellspacing="0">
+  <tr>
+    <td >&nbsp;</td>
+    <td align="left"><input type="submit" name="submit.back" onClick="window.location='search.do';" value="<bean:message key="export.back"/>">
+    </td>
+    <td></td>
+  </tr>
+</table>
+
+</body>
+</html>
@@ -301,6 +301,10 @@ $(document).ready(function() {
 
 		<div>
 			<input type="submit" name="submit.export" id="submit.export" value="<bean:message key="searchresults.export_button"/>">
+			<html:select name="searchBean" property="exportFormat">
+				<html:option value="zip" key="searchresults.export_zip"/>
+				<html:option value="mbox" key="searchresults.export_mbox"/>
+			</html:select>
 			<input type="submit" name="submit.delete" id="submit.delete" value="<bean:message key="searchresults.delete_button"/>">
 		</div>
   